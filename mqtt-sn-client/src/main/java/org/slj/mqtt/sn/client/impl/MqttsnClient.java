@@ -275,9 +275,14 @@ public class MqttsnClient extends AbstractMqttsnRuntime implements IMqttsnClient
         }
         PublishData publishData = new PublishData(topicName, QoS, retained);
         IMqttsnDataRef dataRef = registry.getMessageRegistry().add(data);
-        return registry.getMessageQueue().offerWithToken(session,
-                new MqttsnQueuedPublishMessageImpl(
-                        dataRef, publishData));
+        try {
+            return registry.getMessageQueue().offerWithToken(session,
+                    new MqttsnQueuedPublishMessageImpl(
+                            dataRef, publishData));
+        } finally {
+            //-- the queue holds its own reference once the message is accepted
+            registry.getMessageRegistry().release(dataRef);
+        }
     }
 
     @Override
@@ -322,7 +322,7 @@ public abstract class AbstractInteractiveCli {
 
     protected void predefine(String topicName, int alias) {
         if(runtime != null && runtimeRegistry != null){
-            runtimeRegistry.getOptions().getPredefinedTopics().put(topicName, alias);
+            runtimeRegistry.getOptions().withPredefinedTopic(topicName, alias);
             message("DONE - predefined topic registered successfully");
         } else {
             message("Cannot add a topic to an uninitialised runtime");
@@ -485,7 +485,7 @@ public abstract class AbstractMqttsnMessageHandler
 
         if(!isError){
             if(topicIdType == MqttsnConstants.TOPIC_PREDEFINED){
-                getRegistry().getOptions().getPredefinedTopics().put(topicPath, topicId);
+                getRegistry().getOptions().withPredefinedTopic(topicPath, topicId);
                 logger.warn("received PREDEFINED regack response (v2), registering {}; Msg={}", context, response);
             } else if(topicIdType == MqttsnConstants.TOPIC_NORMAL){
                 registry.getTopicRegistry().register(context.getMqttsnSession(), topicPath, topicId);
@@ -24,27 +24,120 @@
 
 package org.slj.mqtt.sn.impl;
 
+import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
 import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.IMqttsnMetric;
 import org.slj.mqtt.sn.model.IntegerDataRef;
 import org.slj.mqtt.sn.spi.IMqttsnMessageRegistry;
 import org.slj.mqtt.sn.spi.MqttsnException;
 import org.slj.mqtt.sn.spi.MqttsnExpectationFailedException;
 import org.slj.mqtt.sn.spi.AbstractMqttsnService;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public abstract class AbstractMqttsnMessageRegistry
         extends AbstractMqttsnService implements IMqttsnMessageRegistry {
 
     private volatile int lastId = 0;
     private Object lock = new Object();
 
+    //-- content hash -> the most recent message stored with that content, weakly held so the index never keeps
+    //-- a message alive; references which have been collected are purged via the reference queue
+    private final Map<Long, HashReference> contentIndex = new ConcurrentHashMap<>();
+    private final ReferenceQueue<IMqttsnDataRef> collected = new ReferenceQueue<>();
+
     @Override
     public IMqttsnDataRef add(byte[] data) throws MqttsnException {
+        int expiry = registry.getOptions().getMessageExpiry();
+        return add(data, expiry > 0 ? System.currentTimeMillis() + expiry : Long.MAX_VALUE);
+    }
+
+    @Override
+    public IMqttsnDataRef add(byte[] data, long expires) throws MqttsnException {
+        boolean deduplicate = registry.getOptions().isMessageRegistryDeduplication();
+        long hash = 0;
+        if(deduplicate){
+            purgeCollected();
+            hash = hash(data);
+            IMqttsnDataRef existing = findDuplicate(hash, data, expires);
+            if(existing != null){
+                deduplicated();
+                return existing;
+            }
+        }
         IMqttsnDataRef ref =  createNextMessageId();
-        MessageImpl impl = new MessageImpl(data);
+        MessageImpl impl = new MessageImpl(data, expires);
         storeInternal(ref, impl);
+        if(deduplicate){
+            contentIndex.put(hash, new HashReference(hash, ref, collected));
+        }
         return ref;
     }
 
+    /**
+     * Locate a stored message with identical content which will live at least as long as requested. The content
+     * is compared in full so a hash collision can never share the wrong payload; on a match the caller is given
+     * a reference to the existing message.
+     */
+    protected IMqttsnDataRef findDuplicate(long hash, byte[] data, long expires) throws MqttsnException {
+        HashReference reference = contentIndex.get(hash);
+        IMqttsnDataRef ref = reference == null ? null : reference.get();
+        if(ref == null) return null;
+        MessageImpl impl = readInternal(ref);
+        if(impl == null) return null;
+        byte[] stored = impl.getData();
+        if(stored == null || !Arrays.equals(stored, data)) return null;
+        if(!extendExpiry(ref, impl, expires)) return null;
+        try {
+            retain(ref);
+            return ref;
+        } catch(MqttsnException e){
+            //-- the message was released concurrently, store a new copy
+            return null;
+        }
+    }
+
+    /**
+     * Ensure the message lives until at least the expiry given, returning false if the message is no longer
+     * stored. Implementations which expire messages concurrently should make this atomic with their expiry.
+     */
+    protected boolean extendExpiry(IMqttsnDataRef ref, MessageImpl impl, long expires) throws MqttsnException {
+        if(impl.getExpires() < expires){
+            impl.setExpires(expires);
+        }
+        return true;
+    }
+
+    private void purgeCollected(){
+        HashReference reference;
+        while((reference = (HashReference) collected.poll()) != null){
+            contentIndex.remove(reference.hash, reference);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a, the full content is always compared on a match so this need only be well distributed
+     */
+    protected long hash(byte[] data){
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < data.length; i++){
+            hash ^= (data[i] & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    protected void deduplicated(){
+        if(registry.getMetrics() != null){
+            IMqttsnMetric metric = registry.getMetrics().getMetric(IMqttsnMetrics.MESSAGE_REGISTRY_DEDUPLICATED);
+            if(metric != null) metric.increment(1);
+        }
+    }
+
     @Override
     public byte[] get(IMqttsnDataRef messageId) throws MqttsnException {
 
@@ -53,13 +146,14 @@ public abstract class AbstractMqttsnMessageRegistry
         if(impl != null){
             long expires = impl.getExpires();
             if(expires < now){
-                remove(messageId);
+                if(remove(messageId)) expired(1);
                 impl = null;
             }
         }
-        if(impl == null) throw new MqttsnExpectationFailedException("unable to read message by id ["+messageId+"], message not found in registry");
+        byte[] data = impl == null ? null : impl.getData();
+        if(data == null) throw new MqttsnExpectationFailedException("unable to read message by id ["+messageId+"], message not found in registry");
 
-        return impl.getData();
+        return data;
     }
 
 
@@ -82,14 +176,42 @@ public abstract class AbstractMqttsnMessageRegistry
         }
     }
 
+    /**
+     * By default messages are reclaimed by expiry or by the garbage collector, so reference counting is a no-op
+     */
+    @Override
+    public void retain(IMqttsnDataRef messageId) throws MqttsnException {
+    }
+
+    @Override
+    public void release(IMqttsnDataRef messageId) throws MqttsnException {
+    }
+
+    protected void expired(int count){
+        if(count > 0 && registry.getMetrics() != null){
+            IMqttsnMetric metric = registry.getMetrics().getMetric(IMqttsnMetrics.MESSAGE_REGISTRY_EXPIRED);
+            if(metric != null) metric.increment(count);
+        }
+    }
+
     protected abstract IMqttsnDataRef storeInternal(IMqttsnDataRef ref, MessageImpl message) throws MqttsnException;
 
     protected abstract MessageImpl readInternal(IMqttsnDataRef messageId) throws MqttsnException;
 
+    private static class HashReference extends WeakReference<IMqttsnDataRef> {
+
+        private final long hash;
+
+        HashReference(long hash, IMqttsnDataRef ref, ReferenceQueue<IMqttsnDataRef> queue) {
+            super(ref, queue);
+            this.hash = hash;
+        }
+    }
+
     protected static class MessageImpl {
 
         private long created;
-        private long expires;
+        private volatile long expires;
         private byte[] data;
 
         public MessageImpl(byte[] data) {
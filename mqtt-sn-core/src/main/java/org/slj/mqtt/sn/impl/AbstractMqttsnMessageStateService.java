@@ -189,6 +189,12 @@ public abstract class AbstractMqttsnMessageStateService
         } catch(Exception e){
             logger.error("error tidying message registry on state thread;", e);
         }
+
+        try {
+            registry.getMessageQueue().tidy();
+        } catch(Exception e){
+            logger.error("error tidying message queue on state thread;", e);
+        }
         return Math.max(loopTimeout, 1);
     }
 
@@ -302,6 +308,8 @@ public abstract class AbstractMqttsnMessageStateService
                     }
                     lastMessageSent.put(context, time);
                     confirmPublish(op);
+                    //-- no confirmation is expected, so the message is complete once it is sent
+                    releaseQueuedMessage(queuedPublishMessage);
                 };
             } else {
                 callback = () -> {
@@ -455,6 +463,7 @@ public abstract class AbstractMqttsnMessageStateService
                                 if(m.getRetryCount() >= registry.getOptions().getMaxErrorRetries()){
                                     logger.warn("publish message {} exceeded max retries {}, discard and notify application", registry.getOptions().getMaxErrorRetries(), m);
                                     PublishData data = registry.getCodec().getData(confirmedMessage);
+                                    releaseQueuedMessage(m);
                                     registry.getRuntime().messageSendFailure(context,
                                             new TopicPath(m.getData().getTopicPath()), data.getQos(), data.isRetained(),
                                             data.getData(), confirmedMessage, m.getRetryCount());
@@ -463,15 +472,23 @@ public abstract class AbstractMqttsnMessageStateService
                                     IMqttsnSession session = registry.getSessionRegistry().getSession(context, false);
                                     if(session != null){
                                         registry.getMessageQueue().offer(session, m);
+                                    } else {
+                                        releaseQueuedMessage(m);
                                     }
                                 }
                             } catch(MqttsnQueueAcceptException e){
+                                releaseQueuedMessage(((RequeueableInflightMessage) inflight).getQueuedPublishMessage());
                                 throw new MqttsnException(e);
                             }
                         }
 
                     } else {
 
+                        //-- outbound qos 1 & 2 are complete on their terminal response
+                        if (inflight instanceof RequeueableInflightMessage) {
+                            releaseQueuedMessage(((RequeueableInflightMessage) inflight).getQueuedPublishMessage());
+                        }
+
                         //inbound qos 2 commit
                         if (registry.getCodec().isPubRel(message)) {
                             PublishData data = registry.getCodec().getData(confirmedMessage);
@@ -572,6 +589,19 @@ public abstract class AbstractMqttsnMessageStateService
         });
     }
 
+    /**
+     * The queued message has reached a terminal state (delivered, confirmed, discarded or dead-lettered), so
+     * release the reference the queue took on its data.
+     */
+    protected void releaseQueuedMessage(IMqttsnQueuedPublishMessage queuedPublishMessage) {
+        if(queuedPublishMessage == null) return;
+        try {
+            registry.getMessageRegistry().release(queuedPublishMessage.getDataRefId());
+        } catch(MqttsnException e){
+            logger.warn("unable to release message data for {}", queuedPublishMessage, e);
+        }
+    }
+
     protected MqttsnWaitToken markInflight(IMqttsnOriginatingMessageSource source, IMqttsnContext context, IMqttsnMessage message, IMqttsnQueuedPublishMessage queuedPublishMessage)
             throws MqttsnException {
 
@@ -713,21 +743,28 @@ public abstract class AbstractMqttsnMessageStateService
                         getRegistry().getDeadLetterQueue().add(
                                 MqttsnDeadLetterQueueBean.REASON.RETRY_COUNT_EXCEEDED,
                                 context, queuedPublishMessage);
+                        releaseQueuedMessage(queuedPublishMessage);
                     } else {
                         logger.info("re-queuing publish message {} for {}", context,
                                 queuedPublishMessage);
                         IMqttsnSession session = registry.getSessionRegistry().getSession(context, false);
                         if(session != null){
                             registry.getMessageQueue().offer(session, queuedPublishMessage);
+                        } else {
+                            releaseQueuedMessage(queuedPublishMessage);
                         }
                     }
                 } catch(MqttsnQueueAcceptException e){
                     //queue is full cant put it there
+                    releaseQueuedMessage(queuedPublishMessage);
                 } finally {
                     if(maxRetries){
                         registry.getRuntime().handleConnectionLost(context, null);
                     }
                 }
+            } else {
+                //-- the message is discarded
+                releaseQueuedMessage(requeueableInflightMessage.getQueuedPublishMessage());
             }
         }
     }
@@ -29,6 +29,8 @@ import org.slf4j.LoggerFactory;
 import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
 import org.slj.mqtt.sn.impl.metrics.MqttsnCountingMetric;
 import org.slj.mqtt.sn.impl.metrics.MqttsnSnapshotMetric;
+import org.slj.mqtt.sn.impl.ram.MqttsnInMemoryMessageQueue;
+import org.slj.mqtt.sn.impl.ram.MqttsnOffHeapMessageRegistry;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.model.INetworkContext;
 import org.slj.mqtt.sn.model.MqttsnOptions;
@@ -449,12 +451,38 @@ public abstract class AbstractMqttsnRuntime implements Thread.UncaughtExceptionH
                 IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> registry.getMessageRegistry().size()));
         registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(IMqttsnMetrics.DLQ_REGISTRY_COUNT, "The number of messages residing in the dead letter queue.",
                 IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> registry.getDeadLetterQueue().size()));
+        registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(IMqttsnMetrics.TOPIC_DICTIONARY_SIZE, "The number of distinct topic paths interned by the topic dictionary.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SNAPSHOT_TIME_MILLIS, () -> registry.getTopicDictionary().size()));
+        if(registry.getMessageRegistry() instanceof MqttsnOffHeapMessageRegistry){
+            MqttsnOffHeapMessageRegistry messageRegistry = (MqttsnOffHeapMessageRegistry) registry.getMessageRegistry();
+            registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(IMqttsnMetrics.MESSAGE_REGISTRY_OFFHEAP_USED, "The number of bytes of direct memory occupied by message payloads.",
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SNAPSHOT_TIME_MILLIS, () -> messageRegistry.getUsedBytes()));
+            registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(IMqttsnMetrics.MESSAGE_REGISTRY_OFFHEAP_RESERVED, "The number of bytes of direct memory reserved by the message registry.",
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SNAPSHOT_TIME_MILLIS, () -> messageRegistry.getReservedBytes()));
+        }
+        if(registry.getMessageQueue() instanceof MqttsnInMemoryMessageQueue){
+            MqttsnInMemoryMessageQueue queue = (MqttsnInMemoryMessageQueue) registry.getMessageQueue();
+            registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(IMqttsnMetrics.MESSAGE_QUEUE_LOCK_CONTENTION, "The cumulative number of contended per-session message queue lock acquisitions.",
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SNAPSHOT_TIME_MILLIS, () -> queue.getLockContentionCount()));
+        }
 
         //-- these require managing externally
         registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.PUBLISH_MESSAGE_IN, "The number of mqtt-sn publish messages received (ingress) in the time period.",
                 IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
         registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.PUBLISH_MESSAGE_OUT, "The number of mqtt-sn publish messages sent (egress) in the time period.",
                 IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.MESSAGE_QUEUE_CONFLATED, "The number of queued messages replaced by a newer value on the same topic in the time period.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.MESSAGE_QUEUE_EXPIRED, "The number of queued messages discarded undelivered having expired in the time period.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.MESSAGE_REGISTRY_EXPIRED, "The number of messages expired from the application message data store in the time period.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.SUBSCRIPTION_MATCH_CACHE_HIT, "The number of subscription matches served from the match cache in the time period.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.SUBSCRIPTION_MATCH_CACHE_MISS, "The number of subscription matches which required a search of the subscription tree in the time period.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.MESSAGE_REGISTRY_DEDUPLICATED, "The number of messages which shared an existing identical payload in the application message data store in the time period.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
 
         registry.getMetrics().registerMetric(new MqttsnCountingMetric(IMqttsnMetrics.NETWORK_BYTES_IN, "The number of network bytes received (ingress) in the time period.",
                 IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
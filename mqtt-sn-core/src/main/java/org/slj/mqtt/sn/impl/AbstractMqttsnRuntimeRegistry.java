@@ -31,6 +31,7 @@ import org.slj.mqtt.sn.model.MqttsnOptions;
 import org.slj.mqtt.sn.net.NetworkAddress;
 import org.slj.mqtt.sn.net.NetworkContext;
 import org.slj.mqtt.sn.spi.*;
+import org.slj.mqtt.sn.utils.TopicDictionary;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -54,11 +55,13 @@ public abstract class AbstractMqttsnRuntimeRegistry implements IMqttsnRuntimeReg
     protected IMqttsnCodec codec;
     protected IMqttsnMessageFactory factory;
     protected List<IMqttsnService> services;
+    protected TopicDictionary topicDictionary;
 
     public AbstractMqttsnRuntimeRegistry(IMqttsnStorageService storageService, MqttsnOptions options){
         this.options = options;
         this.storageService = storageService;
         services = new ArrayList<>();
+        topicDictionary = new TopicDictionary(options.getTopicDictionarySize());
     }
 
     @Override
@@ -286,6 +289,11 @@ public abstract class AbstractMqttsnRuntimeRegistry implements IMqttsnRuntimeReg
         return getOptionalService(IMqttsnMetricsService.class).orElse(null);
     }
 
+    @Override
+    public TopicDictionary getTopicDictionary() {
+        return topicDictionary;
+    }
+
     @Override
     public IMqttsnStorageService getStorageService() {
         return storageService;
@@ -29,6 +29,7 @@ import org.slj.mqtt.sn.model.session.IMqttsnSubscription;
 import org.slj.mqtt.sn.model.session.impl.MqttsnSubscriptionImpl;
 import org.slj.mqtt.sn.spi.*;
 import org.slj.mqtt.sn.utils.TopicPath;
+import org.slj.mqtt.sn.utils.tree.MqttTopicTree;
 
 import java.util.Iterator;
 import java.util.Set;
@@ -65,8 +66,7 @@ public abstract class AbstractSubscriptionRegistry
             while (pathItr.hasNext()) {
                 try {
                     IMqttsnSubscription sub = pathItr.next();
-                    TopicPath path = sub.getTopicPath();
-                    if (path.matches(
+                    if (MqttTopicTree.matches(sub.getTopicPath().toString(),
                             getRegistry().getTopicModifier().modifyTopic(session.getContext(), topicPath))) {
                         return sub.getGrantedQoS();
                     }
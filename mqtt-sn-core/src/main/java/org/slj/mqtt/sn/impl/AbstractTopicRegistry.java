@@ -120,17 +120,9 @@ public abstract class AbstractTopicRegistry
 
     @Override
     public String lookupRegistered(IMqttsnSession session, int topicAlias) throws MqttsnException {
-        Map<String, Integer> map = getRegistrationMapInternal(session, false);
-        synchronized (map){
-            Iterator<String> itr = map.keySet().iterator();
-            while(itr.hasNext()){
-                String topicPath = itr.next();
-                Integer i = map.get(topicPath);
-                if(i != null && i.intValue() == topicAlias)
-                    return getRegistry().getTopicModifier().modifyTopic(session.getContext(), topicPath);
-            }
-        }
-        return null;
+        String topicPath = getRegisteredTopicPath(session, topicAlias);
+        return topicPath == null ? null :
+                getRegistry().getTopicModifier().modifyTopic(session.getContext(), topicPath);
     }
 
     @Override
@@ -147,17 +139,9 @@ public abstract class AbstractTopicRegistry
 
     @Override
     public String lookupPredefined(IMqttsnSession session, int topicAlias) throws MqttsnException {
-        Map<String, Integer> predefinedMap = getPredefinedTopicsForInteger(session);
-        synchronized (predefinedMap){
-            Iterator<String> itr = predefinedMap.keySet().iterator();
-            while(itr.hasNext()){
-                String topicPath = itr.next();
-                Integer i = predefinedMap.get(topicPath);
-                if(i != null && i.intValue() == topicAlias)
-                    return getRegistry().getTopicModifier().modifyTopic(session.getContext(), topicPath);
-            }
-        }
-        return null;
+        String topicPath = getPredefinedTopicPath(session, topicAlias);
+        return topicPath == null ? null :
+                getRegistry().getTopicModifier().modifyTopic(session.getContext(), topicPath);
     }
 
     @Override
@@ -245,9 +229,24 @@ public abstract class AbstractTopicRegistry
         return map;
     }
 
+    /**
+     * Resolve the topic path registered against the alias for the session. This is called for every inbound
+     * publish using a normal topic alias, so implementations should make this constant time; the default scans
+     * the session registrations.
+     */
+    protected String getRegisteredTopicPath(IMqttsnSession session, int topicAlias) throws MqttsnException {
+        for (IMqttsnTopicRegistration reg : getRegistrations(session)){
+            if(reg.getAliasId() == topicAlias) return reg.getTopicPath();
+        }
+        return null;
+    }
+
     protected abstract boolean addOrUpdateRegistration(IMqttsnSession session, String topicPath, int alias) throws MqttsnException;
 
-    protected abstract Map<String, Integer> getPredefinedTopicsForInteger(IMqttsnSession session) throws MqttsnException;
+    /**
+     * Resolve the topic path predefined for the alias, or null if none is defined
+     */
+    protected abstract String getPredefinedTopicPath(IMqttsnSession session, int topicAlias) throws MqttsnException;
 
     protected abstract Map<String, Integer> getPredefinedTopicsForString(IMqttsnSession session) throws MqttsnException;
 }
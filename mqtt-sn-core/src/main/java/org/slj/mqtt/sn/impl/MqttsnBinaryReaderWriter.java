@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.impl;
+
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.IntegerDataRef;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.IMqttsnObjectReaderWriter;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact, versioned binary reader / writer for the beans which are written most frequently (queued publish
+ * messages overflowing to disk). Each record is written as a version byte followed by a schema id and the
+ * fields of the schema, using variable length (LEB128) encoding for integers so small values such as QoS,
+ * retry counts and data references occupy a single byte.
+ *
+ * Types which have no schema registered here are delegated to the fallback reader / writer (by default
+ * java serialization) and tagged as such, so the writer can be used as a drop-in replacement anywhere.
+ *
+ * The encoded output never contains the newline byte (it is escaped), so records remain safe to store in
+ * the line delimited overflow files used by the {@link org.slj.mqtt.sn.impl.ram.MqttsnFileBackedInMemoryMessageQueue}.
+ *
+ * Records which do not begin with a known version byte (for example overflow files written by a previous
+ * release with a text based reader / writer) are loaded using the legacy reader / writer when one is supplied.
+ */
+public class MqttsnBinaryReaderWriter implements IMqttsnObjectReaderWriter {
+
+    public static final int VERSION = 1;
+
+    static final int SCHEMA_DELEGATE = 0;
+    static final int SCHEMA_QUEUED_PUBLISH = 1;
+    static final int SCHEMA_PUBLISH_DATA = 2;
+    static final int SCHEMA_INTEGER_DATA_REF = 3;
+
+    static final int DATA_REF_NULL = 0;
+    static final int DATA_REF_INTEGER = 1;
+
+    static final int FLAG_RETAINED = 0x01;
+    static final int FLAG_HAS_TOPIC = 0x02;
+    static final int FLAG_HAS_DATA = 0x04;
+
+    static final byte NEW_LINE = 0x0A;
+    static final byte ESCAPE = 0x7D;
+    static final byte ESCAPE_XOR = 0x20;
+
+    private final IMqttsnObjectReaderWriter delegate;
+    private final IMqttsnObjectReaderWriter legacy;
+
+    public MqttsnBinaryReaderWriter() {
+        this(new MqttsnVMObjectReaderWriter());
+    }
+
+    public MqttsnBinaryReaderWriter(IMqttsnObjectReaderWriter delegate) {
+        this(delegate, null);
+    }
+
+    /**
+     * @param delegate - used to write and read types which have no binary schema
+     * @param legacy - used to read records which were not written by this reader / writer, may be null
+     */
+    public MqttsnBinaryReaderWriter(IMqttsnObjectReaderWriter delegate, IMqttsnObjectReaderWriter legacy) {
+        this.delegate = delegate;
+        this.legacy = legacy;
+    }
+
+    @Override
+    public byte[] write(Serializable o) throws MqttsnException {
+        Buffer buf = new Buffer(32);
+        buf.writeByte(VERSION);
+        if(o instanceof MqttsnQueuedPublishMessageImpl){
+            buf.writeVarInt(SCHEMA_QUEUED_PUBLISH);
+            writeQueuedPublish(buf, (MqttsnQueuedPublishMessageImpl) o);
+        } else if(o instanceof PublishData){
+            buf.writeVarInt(SCHEMA_PUBLISH_DATA);
+            writePublishData(buf, (PublishData) o);
+        } else if(o instanceof IntegerDataRef){
+            buf.writeVarInt(SCHEMA_INTEGER_DATA_REF);
+            writeDataRef(buf, (IntegerDataRef) o);
+        } else {
+            buf.writeVarInt(SCHEMA_DELEGATE);
+            buf.writeBytes(delegate.write(o));
+        }
+        return escape(buf.toByteArray());
+    }
+
+    @Override
+    public <T extends Serializable> T load(Class<? extends T> clz, byte[] arr) throws MqttsnException {
+        //-- the version byte is never escaped, so a record written by this reader / writer can be recognised as is
+        if(legacy != null && arr.length > 0 && (arr[0] < 1 || arr[0] > VERSION)){
+            return legacy.load(clz, arr);
+        }
+        Buffer buf = new Buffer(unescape(arr));
+        int version = buf.readByte();
+        if(version < 1 || version > VERSION){
+            throw new MqttsnException("unsupported binary record version " + version);
+        }
+        int schema = buf.readVarInt();
+        Object o;
+        switch (schema){
+            case SCHEMA_QUEUED_PUBLISH:
+                o = readQueuedPublish(buf, version);
+                break;
+            case SCHEMA_PUBLISH_DATA:
+                o = readPublishData(buf, version);
+                break;
+            case SCHEMA_INTEGER_DATA_REF:
+                o = readDataRef(buf, version);
+                break;
+            case SCHEMA_DELEGATE:
+                return delegate.load(clz, buf.readBytes());
+            default:
+                throw new MqttsnException("unknown binary record schema " + schema);
+        }
+        if(!clz.isInstance(o)){
+            throw new MqttsnException("binary record of type " + o.getClass().getName() + " not assignable to " + clz.getName());
+        }
+        return clz.cast(o);
+    }
+
+    protected void writeQueuedPublish(Buffer buf, MqttsnQueuedPublishMessageImpl message){
+        writeDataRef(buf, message.getDataRefId());
+        buf.writeVarLong(message.getCreated());
+        buf.writeVarInt(message.getRetryCount());
+        buf.writeVarInt(message.getPacketId());
+        buf.writeVarInt(message.getGrantedQoS());
+        writePublishData(buf, message.getData());
+    }
+
+    protected MqttsnQueuedPublishMessageImpl readQueuedPublish(Buffer buf, int version) throws MqttsnException {
+        MqttsnQueuedPublishMessageImpl message = new MqttsnQueuedPublishMessageImpl();
+        message.setDataRefId(readDataRef(buf, version));
+        message.setCreated(buf.readVarLong());
+        message.setRetryCount(buf.readVarInt());
+        message.setPacketId(buf.readVarInt());
+        message.setGrantedQoS(buf.readVarInt());
+        message.setData(readPublishData(buf, version));
+        return message;
+    }
+
+    protected void writePublishData(Buffer buf, PublishData data){
+        if(data == null){
+            buf.writeVarInt(-1);
+            return;
+        }
+        int flags = 0;
+        if(data.isRetained()) flags |= FLAG_RETAINED;
+        if(data.getTopicPath() != null) flags |= FLAG_HAS_TOPIC;
+        if(data.getData() != null) flags |= FLAG_HAS_DATA;
+        buf.writeVarInt(flags);
+        buf.writeVarInt(data.getQos());
+        if(data.getTopicPath() != null) buf.writeBytes(data.getTopicPath().getBytes(StandardCharsets.UTF_8));
+        if(data.getData() != null) buf.writeBytes(data.getData());
+    }
+
+    protected PublishData readPublishData(Buffer buf, int version) throws MqttsnException {
+        int flags = buf.readVarInt();
+        if(flags == -1){
+            return null;
+        }
+        int qos = buf.readVarInt();
+        String topicPath = (flags & FLAG_HAS_TOPIC) != 0 ?
+                new String(buf.readBytes(), StandardCharsets.UTF_8) : null;
+        byte[] payload = (flags & FLAG_HAS_DATA) != 0 ? buf.readBytes() : null;
+        return new PublishData(topicPath, qos, (flags & FLAG_RETAINED) != 0, payload);
+    }
+
+    protected void writeDataRef(Buffer buf, IMqttsnDataRef ref) {
+        if(ref == null || ref.getId() == null){
+            buf.writeVarInt(DATA_REF_NULL);
+        } else if(ref instanceof IntegerDataRef){
+            buf.writeVarInt(DATA_REF_INTEGER);
+            buf.writeVarInt(((IntegerDataRef) ref).getId());
+        } else {
+            throw new IllegalArgumentException("unsupported data ref type " + ref.getClass().getName());
+        }
+    }
+
+    protected IntegerDataRef readDataRef(Buffer buf, int version) throws MqttsnException {
+        int type = buf.readVarInt();
+        switch (type){
+            case DATA_REF_NULL:
+                return null;
+            case DATA_REF_INTEGER:
+                return new IntegerDataRef(buf.readVarInt());
+            default:
+                throw new MqttsnException("unknown data ref type " + type);
+        }
+    }
+
+    protected static byte[] escape(byte[] arr){
+        int extra = 0;
+        for (int i = 0; i < arr.length; i++){
+            if(arr[i] == NEW_LINE || arr[i] == ESCAPE) extra++;
+        }
+        if(extra == 0) return arr;
+        byte[] escaped = new byte[arr.length + extra];
+        int idx = 0;
+        for (int i = 0; i < arr.length; i++){
+            byte b = arr[i];
+            if(b == NEW_LINE || b == ESCAPE){
+                escaped[idx++] = ESCAPE;
+                escaped[idx++] = (byte) (b ^ ESCAPE_XOR);
+            } else {
+                escaped[idx++] = b;
+            }
+        }
+        return escaped;
+    }
+
+    protected static byte[] unescape(byte[] arr) throws MqttsnException {
+        int escapes = 0;
+        for (int i = 0; i < arr.length; i++){
+            if(arr[i] == ESCAPE) escapes++;
+        }
+        if(escapes == 0) return arr;
+        byte[] raw = new byte[arr.length - escapes];
+        int idx = 0;
+        for (int i = 0; i < arr.length; i++){
+            byte b = arr[i];
+            if(b == ESCAPE){
+                if(++i == arr.length) throw new MqttsnException("truncated escape sequence in binary record");
+                raw[idx++] = (byte) (arr[i] ^ ESCAPE_XOR);
+            } else {
+                raw[idx++] = b;
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Minimal growable buffer supporting zig-zag varint encoding
+     */
+    protected static class Buffer {
+
+        private byte[] arr;
+        private int pos;
+        private int limit;
+
+        Buffer(int capacity){
+            this.arr = new byte[capacity];
+        }
+
+        Buffer(byte[] arr){
+            this.arr = arr;
+            this.limit = arr.length;
+        }
+
+        void writeByte(int b){
+            ensure(1);
+            arr[pos++] = (byte) b;
+        }
+
+        void writeVarInt(int value){
+            writeVarLong(value);
+        }
+
+        void writeVarLong(long value){
+            //-- zig-zag so small negatives (used as markers) remain small
+            long v = (value << 1) ^ (value >> 63);
+            ensure(10);
+            while((v & ~0x7FL) != 0){
+                arr[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            arr[pos++] = (byte) v;
+        }
+
+        void writeBytes(byte[] bytes){
+            writeVarInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, arr, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        int readByte() throws MqttsnException {
+            if(pos >= limit) throw new MqttsnException("unexpected end of binary record");
+            return arr[pos++] & 0xFF;
+        }
+
+        int readVarInt() throws MqttsnException {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() throws MqttsnException {
+            long v = 0;
+            int shift = 0;
+            int b;
+            do {
+                if(shift > 63) throw new MqttsnException("malformed varint in binary record");
+                b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        byte[] readBytes() throws MqttsnException {
+            int len = readVarInt();
+            if(len < 0 || pos + len > limit) throw new MqttsnException("invalid length in binary record " + len);
+            byte[] bytes = Arrays.copyOfRange(arr, pos, pos + len);
+            pos += len;
+            return bytes;
+        }
+
+        byte[] toByteArray(){
+            return Arrays.copyOf(arr, pos);
+        }
+
+        private void ensure(int n){
+            if(pos + n > arr.length){
+                arr = Arrays.copyOf(arr, Math.max(arr.length << 1, pos + n));
+            }
+        }
+    }
+}
@@ -29,12 +29,22 @@ import org.slj.mqtt.sn.spi.AbstractMqttsnService;
 import org.slj.mqtt.sn.spi.IMqttsnTopicModifier;
 
 /**
- * Default implementation does nothing to the topic
+ * Default implementation does not change the topic; it does however return the canonical (interned) instance from the
+ * runtime topic dictionary, so every registration, subscription and message which passes through the modifier shares
+ * a single copy of each topic path. Subclasses whose modification does not depend on the context override
+ * {@link #modify(String)}, and the modified form is then cached against the topic in the dictionary.
  */
 public class MqttsnDefaultTopicModifier extends AbstractMqttsnService implements IMqttsnTopicModifier {
 
     @Override
     public String modifyTopic(IMqttsnContext context, String topicName) {
+        return registry.getTopicDictionary().getModified(topicName, this::modify);
+    }
+
+    /**
+     * Modify the topic regardless of context, applied once per interned topic
+     */
+    protected String modify(String topicName) {
         return topicName;
     }
 }
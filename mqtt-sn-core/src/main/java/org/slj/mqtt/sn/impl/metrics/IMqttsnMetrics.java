@@ -40,6 +40,16 @@ public interface IMqttsnMetrics {
     String TOPIC_REGISTRY_COUNT = "TOPIC_REGISTRY_COUNT";
     String MESSAGE_REGISTRY_COUNT = "MESSAGE_REGISTRY_COUNT";
     String DLQ_REGISTRY_COUNT = "DLQ_REGISTRY_COUNT";
+    String MESSAGE_QUEUE_LOCK_CONTENTION = "MESSAGE_QUEUE_LOCK_CONTENTION";
+    String MESSAGE_QUEUE_CONFLATED = "MESSAGE_QUEUE_CONFLATED";
+    String MESSAGE_QUEUE_EXPIRED = "MESSAGE_QUEUE_EXPIRED";
+    String MESSAGE_REGISTRY_EXPIRED = "MESSAGE_REGISTRY_EXPIRED";
+    String TOPIC_DICTIONARY_SIZE = "TOPIC_DICTIONARY_SIZE";
+    String SUBSCRIPTION_MATCH_CACHE_HIT = "SUBSCRIPTION_MATCH_CACHE_HIT";
+    String SUBSCRIPTION_MATCH_CACHE_MISS = "SUBSCRIPTION_MATCH_CACHE_MISS";
+    String MESSAGE_REGISTRY_DEDUPLICATED = "MESSAGE_REGISTRY_DEDUPLICATED";
+    String MESSAGE_REGISTRY_OFFHEAP_USED = "MESSAGE_REGISTRY_OFFHEAP_USED";
+    String MESSAGE_REGISTRY_OFFHEAP_RESERVED = "MESSAGE_REGISTRY_OFFHEAP_RESERVED";
 
     String SESSION_ACTIVE_REGISTRY_COUNT = "SESSION_ACTIVE_REGISTRY_COUNT";
     String SESSION_DISCONNECTED_REGISTRY_COUNT = "SESSION_DISCONNECTED_REGISTRY_COUNT";
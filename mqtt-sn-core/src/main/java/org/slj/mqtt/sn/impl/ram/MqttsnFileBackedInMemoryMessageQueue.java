@@ -41,18 +41,19 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 public class MqttsnFileBackedInMemoryMessageQueue
         extends MqttsnInMemoryMessageQueue {
 
     static final String DIR = "_message-queues-overflow";
     private final IMqttsnObjectReaderWriter readWriter;
-    private Set<IMqttsnDataRef> refs;
+    private Map<IMqttsnDataRef, HeldRef> refs;
     private Map<String, AtomicInteger> countMap;
     private volatile File root = null;
 
@@ -60,6 +61,13 @@ public class MqttsnFileBackedInMemoryMessageQueue
         this.readWriter = readWriter;
     }
 
+    /**
+     * @return the reader / writer used to write and load the overflow records
+     */
+    public IMqttsnObjectReaderWriter getReaderWriter() {
+        return readWriter;
+    }
+
     @Override
     public void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
         super.start(runtime);
@@ -77,116 +85,122 @@ public class MqttsnFileBackedInMemoryMessageQueue
                 }
             }
         }
-        refs = new HashSet();
+        refs = new ConcurrentHashMap<>();
         countMap = new ConcurrentHashMap<>();
     }
 
     @Override
     protected void offerInternal(IMqttsnSession session, IMqttsnQueuedPublishMessage message)
             throws MqttsnException, MqttsnQueueAcceptException {
+        Lock lock = locks.lock(session.getContext().getId());
         try {
-            synchronized (locks.mutex(session.getContext().getId())) {
-
-                int count = super.getSessionBean(session).getQueueSize();
-                int max = getRegistry().getOptions().getMaxMessagesInQueue();
-                int threshold = getRegistry().getOptions().getMessageQueueDiskStorageThreshold();
-                if (MqttsnUtils.percent(count, max) > threshold) {
-                    File f = getFileForSession(session, true);
-                    logger.debug("message queue threshold exceeded ({}), overflow to disk overflow {}", count, session.getContext());
-                    byte[] a = readWriter.write(message);
-                    byte[] c = new byte[a.length + 1];
-                    System.arraycopy(a, 0, c, 0, a.length);
-                    c[c.length - 1] = Files.NEW_LINE_DECIMAL;
-                    Files.append(f, c);
-                    incrementFileObjectCount(session, 1);
-
-                    //-- we use weak references (this is still meant to be volatile storage)
-                    //-- so we need to keep hold of the datarefs so theyre not collected
-                    refs.add(message.getDataRefId());
-                } else {
-                    super.offerInternal(session, message);
-                }
+            int count = super.getSessionBean(session).getQueueSize();
+            int max = getRegistry().getOptions().getMaxMessagesInQueue();
+            int threshold = getRegistry().getOptions().getMessageQueueDiskStorageThreshold();
+            //-- once anything has overflowed, later messages queue behind it on disk so delivery order is kept
+            if (getFileObjectCount(session) > 0 || MqttsnUtils.percent(count, max) > threshold) {
+                File f = getFileForSession(session, true);
+                logger.debug("message queue threshold exceeded ({}), overflow to disk overflow {}", count, session.getContext());
+                byte[] a = readWriter.write(message);
+                byte[] c = new byte[a.length + 1];
+                System.arraycopy(a, 0, c, 0, a.length);
+                c[c.length - 1] = Files.NEW_LINE_DECIMAL;
+                Files.append(f, c);
+                incrementFileObjectCount(session, 1);
 
+                //-- we use weak references (this is still meant to be volatile storage)
+                //-- so we need to keep hold of the datarefs so theyre not collected
+                holdRef(message.getDataRefId());
+            } else {
+                super.offerInternal(session, message);
             }
         } catch(IOException e){
             throw new MqttsnException("error accessing queue overflow file;", e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public IMqttsnQueuedPublishMessage poll(IMqttsnSession session){
-        synchronized (locks.mutex(session.getContext().getId())){
+        Lock lock = locks.lock(session.getContext().getId());
+        try {
             return super.poll(session);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public IMqttsnQueuedPublishMessage peek(IMqttsnSession session){
 
+        Lock lock = locks.lock(session.getContext().getId());
         try {
-            synchronized (locks.mutex(session.getContext().getId())){
-                if(super.queueSize(session) == 0 &&
-                        hasOverflow(session)){
-
-                    int max = getRegistry().getOptions().getMaxMessagesInQueue();
-                    int threshold = getRegistry().getOptions().getMessageQueueDiskStorageThreshold();
-                    int memorySize = (int) MqttsnUtils.percentOf(threshold, max);
-
-                    //-- move some messages from disk into memory space
-                    byte[] data = Files.consumeLinesFromStart(
-                            getFileForSession(session, false), memorySize);
-
-                    logger.info("consuming {} messages from disk overflow {} -> ({} bytes)",
-                            memorySize, session.getContext().getId(), data.length );
-
-                    if(data.length > 0){
-                        int idx = 0;
-                        ByteArrayOutputStream baos
-                                = new ByteArrayOutputStream();
-                        do {
-                            byte b = data[idx++];
-                            if(b == Files.NEW_LINE_DECIMAL
-                                    || idx == data.length){
-                                if(b != Files.NEW_LINE_DECIMAL){
-                                    baos.write(b);
-                                }
-                                super.offerInternal(session,
-                                        readWriter.load(MqttsnQueuedPublishMessageImpl.class,
-                                                baos.toByteArray()));
-                                incrementFileObjectCount(session, -1);
-                                baos = new ByteArrayOutputStream();
-                            } else {
-                                baos.write(b);
-                            }
-                        } while(idx < data.length);
-                    }
+            int max = getRegistry().getOptions().getMaxMessagesInQueue();
+            int threshold = getRegistry().getOptions().getMessageQueueDiskStorageThreshold();
+            int memorySize = Math.max(1, (int) MqttsnUtils.percentOf(threshold, max));
+            int memoryCount = (int) super.queueSize(session);
+
+            //-- the overflow file only ever holds messages newer than those in memory, so top memory
+            //-- back up from disk whenever there is room rather than waiting for it to drain
+            if(memoryCount < memorySize &&
+                    getFileObjectCount(session) > 0){
+
+                int reload = memorySize - memoryCount;
+
+                //-- move some messages from disk into memory space
+                byte[] data = Files.consumeLinesFromStart(
+                        getFileForSession(session, false), reload);
+
+                logger.debug("consuming {} messages from disk overflow {} -> ({} bytes)",
+                        reload, session.getContext().getId(), data.length );
+
+                for (MqttsnQueuedPublishMessageImpl message : readRecords(data)){
+                    //-- the in-memory message must hold the same ref instance the registry is keyed on
+                    message.setDataRefId(dropRef(message.getDataRefId()));
+                    super.offerInternal(session, message);
+                    incrementFileObjectCount(session, -1);
                 }
             }
 
             return super.peek(session);
         } catch(Exception e){
             throw new MqttsnRuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Discard the session's in-memory and overflowed messages, releasing the data each of them held.
+     */
     @Override
-    public long queueSize(IMqttsnSession session) throws MqttsnException {
+    public void clear(IMqttsnSession session) {
+        if(session == null) return;
+        Lock lock = locks.lock(session.getContext().getId());
         try {
-            synchronized (locks.mutex(session.getContext().getId())){
-                long combinedQueue = super.queueSize(session);
-                if(hasOverflow(session)){
-                    combinedQueue += getFileObjectCount(session);
-                }
-                return combinedQueue;
+            super.clear(session);
+            File f = getFileForSession(session, false);
+            if(f.exists()){
+                releaseOverflow(f);
+                f.delete();
             }
+            countMap.remove(session.getContext().getId());
         } catch(Exception e){
-            throw new MqttsnException(e);
+            throw new MqttsnRuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
-    private boolean hasOverflow(IMqttsnSession session) throws IOException {
-        synchronized (locks.mutex(session.getContext().getId())){
-            return countMap.containsKey(session.getContext().getId());
+    @Override
+    public long queueSize(IMqttsnSession session) throws MqttsnException {
+        //-- no lock required; the counters are concurrent and a reload from disk
+        //-- only ever over-counts transiently (memory offer precedes the file decrement)
+        try {
+            return super.queueSize(session) + getFileObjectCount(session);
+        } catch(Exception e){
+            throw new MqttsnException(e);
         }
     }
 
@@ -215,6 +229,57 @@ public class MqttsnFileBackedInMemoryMessageQueue
         return 0;
     }
 
+    private void releaseOverflow(File f) throws IOException, MqttsnException {
+        byte[] data = Files.consumeLinesFromStart(f, Integer.MAX_VALUE);
+        for (MqttsnQueuedPublishMessageImpl message : readRecords(data)){
+            releaseData(dropRef(message.getDataRefId()));
+        }
+    }
+
+    private List<MqttsnQueuedPublishMessageImpl> readRecords(byte[] data) throws MqttsnException {
+        List<MqttsnQueuedPublishMessageImpl> records = new ArrayList<>();
+        if(data.length > 0){
+            int idx = 0;
+            ByteArrayOutputStream baos
+                    = new ByteArrayOutputStream();
+            do {
+                byte b = data[idx++];
+                if(b == Files.NEW_LINE_DECIMAL
+                        || idx == data.length){
+                    if(b != Files.NEW_LINE_DECIMAL){
+                        baos.write(b);
+                    }
+                    records.add(readWriter.load(MqttsnQueuedPublishMessageImpl.class,
+                            baos.toByteArray()));
+                    baos = new ByteArrayOutputStream();
+                } else {
+                    baos.write(b);
+                }
+            } while(idx < data.length);
+        }
+        return records;
+    }
+
+    private void holdRef(IMqttsnDataRef ref){
+        refs.compute(ref, (k, held) -> {
+            if(held == null) held = new HeldRef(ref);
+            held.count++;
+            return held;
+        });
+    }
+
+    /**
+     * @return the instance originally held for the ref (which the message registry may be weakly keyed on)
+     */
+    private IMqttsnDataRef dropRef(IMqttsnDataRef ref){
+        HeldRef[] dropped = new HeldRef[1];
+        refs.computeIfPresent(ref, (k, held) -> {
+            dropped[0] = held;
+            return --held.count == 0 ? null : held;
+        });
+        return dropped[0] == null ? ref : dropped[0].ref;
+    }
+
     private static String fileNameSafe(String clientId){
         return MqttsnWireUtils.toHex(clientId.getBytes(StandardCharsets.UTF_8));
     }
@@ -231,6 +296,12 @@ public class MqttsnFileBackedInMemoryMessageQueue
 
     public void clearFilesystemOnly() throws MqttsnException {
         try {
+            File[] files = root.listFiles();
+            if(files != null){
+                for (File f : files){
+                    releaseOverflow(f);
+                }
+            }
             Files.delete(root);
             countMap.clear();
             refs.clear();
@@ -242,4 +313,14 @@ public class MqttsnFileBackedInMemoryMessageQueue
             initialize();
         }
     }
+
+    private static class HeldRef {
+
+        private final IMqttsnDataRef ref;
+        private int count;
+
+        HeldRef(IMqttsnDataRef ref) {
+            this.ref = ref;
+        }
+    }
 }
@@ -25,19 +25,50 @@
 package org.slj.mqtt.sn.impl.ram;
 
 import org.slj.mqtt.sn.impl.AbstractMqttsnSessionBeanRegistry;
+import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.IMqttsnMetric;
 import org.slj.mqtt.sn.model.MqttsnDeadLetterQueueBean;
 import org.slj.mqtt.sn.model.MqttsnQueueAcceptException;
 import org.slj.mqtt.sn.model.MqttsnWaitToken;
 import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
 import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.model.session.impl.MqttsnSessionBeanImpl;
 import org.slj.mqtt.sn.spi.IMqttsnMessageQueue;
 import org.slj.mqtt.sn.spi.MqttsnException;
-import org.slj.mqtt.sn.utils.TransientObjectLocks;
+import org.slj.mqtt.sn.utils.StripedLocks;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 public class MqttsnInMemoryMessageQueue
         extends AbstractMqttsnSessionBeanRegistry implements IMqttsnMessageQueue {
 
-    protected final TransientObjectLocks locks = new TransientObjectLocks();
+    private static final int MAX_CONFLATION_CACHE_SIZE = 10000;
+
+    protected final StripedLocks locks = new StripedLocks();
+
+    //-- topic paths resolved against the conflated topic filters, so the filters are not re-parsed on every offer
+    private final Map<String, Boolean> conflationCache = new ConcurrentHashMap<>();
+
+    //-- one entry per session with queued messages, ordered by when the head of that session queue expires,
+    //-- so tidy only visits sessions with something to expire (guarded by its own monitor)
+    private final PriorityQueue<ExpiryEntry> expiryIndex = new PriorityQueue<>();
+    private final Set<String> expiryScheduled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @return the total number of per-session lock acquisitions which had to wait for another thread
+     */
+    public long getLockContentionCount(){
+        return locks.getContendedCount();
+    }
 
     @Override
     public long queueSize(IMqttsnSession session) throws MqttsnException {
@@ -48,14 +79,68 @@ public class MqttsnInMemoryMessageQueue
     public final void offer(IMqttsnSession session, IMqttsnQueuedPublishMessage message)
             throws MqttsnException, MqttsnQueueAcceptException {
 
-        synchronized (locks.mutex(session.getContext().getId())){
-            checkQueueSizeRestrictions(session, message);
+        try {
+            offerNoFlush(session, message);
+        } finally {
+            if(registry.getMessageStateService() != null)
+                registry.getMessageStateService().scheduleFlush(session.getContext());
+        }
+    }
+
+    @Override
+    public final int offerAll(List<IMqttsnSession> sessions, List<IMqttsnQueuedPublishMessage> messages)
+            throws MqttsnException {
+
+        int accepted = 0;
+        try {
+            for (int i = 0; i < sessions.size(); i++){
+                try {
+                    offerNoFlush(sessions.get(i), messages.get(i));
+                    accepted++;
+                } catch(MqttsnQueueAcceptException e){
+                    //-- the session queue was full, the message has been dead-lettered
+                } catch(MqttsnException e){
+                    logger.warn("unable to offer message to {} in batch", sessions.get(i).getContext(), e);
+                }
+            }
+        } finally {
+            //-- flushes are only scheduled once the whole batch is visible, so the queue processor does not
+            //-- start draining sessions while the batch is still being queued
+            if(registry.getMessageStateService() != null){
+                for (int i = 0; i < sessions.size(); i++){
+                    registry.getMessageStateService().scheduleFlush(sessions.get(i).getContext());
+                }
+            }
+        }
+        return accepted;
+    }
+
+    private void offerNoFlush(IMqttsnSession session, IMqttsnQueuedPublishMessage message)
+            throws MqttsnException, MqttsnQueueAcceptException {
+
+        if(isConflatable(session, message)){
+            //-- serialise offers per session so two new values on the same topic cannot both be queued
+            Lock lock = locks.lock(session.getContext().getId());
             try {
-                offerInternal(session, message);
+                IMqttsnDataRef replaced = getSessionBean(session).conflate(message);
+                if(replaced != null){
+                    logger.debug("conflated message on {} into undelivered message for {}",
+                            message.getData().getTopicPath(), session.getContext());
+                    //-- the queued message now refers to the new data
+                    registry.getMessageRegistry().retain(message.getDataRefId());
+                    releaseData(replaced);
+                    incrementConflatedMetric();
+                    return;
+                }
+                checkQueueSizeRestrictions(session, message);
+                offerRetained(session, message);
             } finally {
-                if(registry.getMessageStateService() != null)
-                    registry.getMessageStateService().scheduleFlush(session.getContext());
+                lock.unlock();
             }
+        } else {
+            //-- the session queue is lock-free, so the size restriction is a soft bound under concurrent offers
+            checkQueueSizeRestrictions(session, message);
+            offerRetained(session, message);
         }
     }
 
@@ -63,16 +148,40 @@ public class MqttsnInMemoryMessageQueue
     public final MqttsnWaitToken offerWithToken(IMqttsnSession session, IMqttsnQueuedPublishMessage message)
             throws MqttsnException, MqttsnQueueAcceptException {
 
-        synchronized (locks.mutex(session.getContext().getId())){
-            checkQueueSizeRestrictions(session, message);
-            try {
-                MqttsnWaitToken token = MqttsnWaitToken.from(message);
-                offerInternal(session, message);
-                if (token != null) message.setToken(token);
-                return token;
-            } finally {
-                registry.getMessageStateService().scheduleFlush(session.getContext());
-            }
+        checkQueueSizeRestrictions(session, message);
+        try {
+            MqttsnWaitToken token = MqttsnWaitToken.from(message);
+            //-- set the token before the message becomes visible to the queue processor
+            if (token != null) message.setToken(token);
+            offerRetained(session, message);
+            return token;
+        } finally {
+            registry.getMessageStateService().scheduleFlush(session.getContext());
+        }
+    }
+
+    /**
+     * A message holds a reference to its data from the first time it is queued until it reaches a terminal state
+     * (delivered, discarded or dead-lettered); redeliveries of the same message are already holding theirs.
+     */
+    private void offerRetained(IMqttsnSession session, IMqttsnQueuedPublishMessage message)
+            throws MqttsnException, MqttsnQueueAcceptException {
+        boolean retain = message.getRetryCount() == 0;
+        if(retain) registry.getMessageRegistry().retain(message.getDataRefId());
+        boolean queued = false;
+        try {
+            offerInternal(session, message);
+            queued = true;
+        } finally {
+            if(retain && !queued) releaseData(message.getDataRefId());
+        }
+    }
+
+    protected void releaseData(IMqttsnDataRef dataRef) {
+        try {
+            registry.getMessageRegistry().release(dataRef);
+        } catch(MqttsnException e){
+            logger.warn("unable to release message data {}", dataRef, e);
         }
     }
 
@@ -91,14 +200,132 @@ public class MqttsnInMemoryMessageQueue
     @Override
     public void clear(IMqttsnSession session)  {
         if(session != null){
-            getSessionBean(session).clearMessageQueue();
+            MqttsnSessionBeanImpl bean = getSessionBean(session);
+            IMqttsnQueuedPublishMessage message;
+            while((message = bean.poll()) != null){
+                releaseData(message.getDataRefId());
+            }
+            bean.clearMessageQueue();
+        }
+    }
+
+    @Override
+    public void tidy() throws MqttsnException {
+        if(getMessageExpiry() <= 0) return;
+        long now = System.currentTimeMillis();
+        List<IMqttsnSession> due = null;
+        synchronized (expiryIndex){
+            ExpiryEntry entry;
+            while((entry = expiryIndex.peek()) != null && entry.expires <= now){
+                expiryIndex.poll();
+                if(due == null) due = new ArrayList<>();
+                due.add(entry.session);
+            }
+        }
+        if(due != null){
+            for (IMqttsnSession session : due){
+                //-- unmark first so a concurrent offer can always reschedule
+                expiryScheduled.remove(session.getContext().getId());
+                IMqttsnQueuedPublishMessage head = peekUnexpired(session);
+                if(head != null){
+                    scheduleExpiry(session, head);
+                }
+            }
         }
     }
 
     protected void offerInternal(IMqttsnSession session, IMqttsnQueuedPublishMessage message)
             throws MqttsnException, MqttsnQueueAcceptException {
 
-        getSessionBean(session).offer(message);
+        if(isConflatable(session, message)){
+            getSessionBean(session).offerConflated(message);
+        } else {
+            getSessionBean(session).offer(message);
+        }
+        scheduleExpiry(session, message);
+    }
+
+    /**
+     * Ensure the session is in the expiry index; a session is indexed at most once, at the expiry of the
+     * message which caused it to be scheduled, and is re-indexed by tidy against its new head.
+     */
+    protected void scheduleExpiry(IMqttsnSession session, IMqttsnQueuedPublishMessage message) {
+        long expiry = getMessageExpiry();
+        if(expiry > 0 && expiryScheduled.add(session.getContext().getId())){
+            synchronized (expiryIndex){
+                expiryIndex.add(new ExpiryEntry(message.getCreated() + expiry, session));
+            }
+        }
+    }
+
+    protected boolean isExpired(IMqttsnQueuedPublishMessage message, long now) {
+        long expiry = getMessageExpiry();
+        return expiry > 0 && message.getCreated() + expiry < now;
+    }
+
+    /**
+     * Called when a message is discarded from a session queue having expired, a publisher
+     * waiting on the message is released with an error.
+     */
+    protected void expired(IMqttsnSession session, IMqttsnQueuedPublishMessage message) {
+        logger.debug("discarding expired message on {} for {}", message.getData().getTopicPath(), session.getContext());
+        MqttsnWaitToken token = message.getToken();
+        if(token != null){
+            token.markError("message expired before delivery");
+        }
+        releaseData(message.getDataRefId());
+        if(registry.getMetrics() != null){
+            IMqttsnMetric metric = registry.getMetrics().getMetric(IMqttsnMetrics.MESSAGE_QUEUE_EXPIRED);
+            if(metric != null) metric.increment(1);
+        }
+    }
+
+    /**
+     * Only new messages are conflated; redeliveries and messages a publisher is blocking on
+     * are always queued individually.
+     */
+    protected boolean isConflatable(IMqttsnSession session, IMqttsnQueuedPublishMessage message) {
+        return message.getRetryCount() == 0 && message.getToken() == null &&
+                isConflated(session, message.getData().getTopicPath());
+    }
+
+    /**
+     * Determine whether messages on the topic should be conflated in the session queue. By default this is driven by
+     * the runtime options, sub-classes may override to apply a per-session policy.
+     *
+     * @see org.slj.mqtt.sn.model.MqttsnOptions#withMessageQueueConflation(boolean)
+     * @see org.slj.mqtt.sn.model.MqttsnOptions#withConflatedTopic(String)
+     */
+    protected boolean isConflated(IMqttsnSession session, String topicPath) {
+        if(registry.getOptions().isMessageQueueConflation()) return true;
+        Set<String> filters = registry.getOptions().getConflatedTopics();
+        if(filters.isEmpty()) return false;
+        Boolean conflated = conflationCache.get(topicPath);
+        if(conflated == null){
+            conflated = Boolean.FALSE;
+            for (String filter : filters){
+                try {
+                    if(new TopicPath(filter).matches(topicPath)){
+                        conflated = Boolean.TRUE;
+                        break;
+                    }
+                } catch(ParseException e){
+                    logger.warn("unable to match conflated topic filter {}", filter, e);
+                }
+            }
+            if(conflationCache.size() >= MAX_CONFLATION_CACHE_SIZE){
+                conflationCache.clear();
+            }
+            conflationCache.put(topicPath, conflated);
+        }
+        return conflated;
+    }
+
+    protected void incrementConflatedMetric() {
+        if(registry.getMetrics() != null){
+            IMqttsnMetric metric = registry.getMetrics().getMetric(IMqttsnMetrics.MESSAGE_QUEUE_CONFLATED);
+            if(metric != null) metric.increment(1);
+        }
     }
 
     @Override
@@ -108,10 +335,48 @@ public class MqttsnInMemoryMessageQueue
 
     @Override
     public IMqttsnQueuedPublishMessage peek(IMqttsnSession session) {
-        return getSessionBean(session).peek();
+        return peekUnexpired(session);
+    }
+
+    /**
+     * Peek at the head of the in-memory queue, lazily discarding any expired messages found at the head.
+     */
+    protected IMqttsnQueuedPublishMessage peekUnexpired(IMqttsnSession session) {
+        MqttsnSessionBeanImpl bean = getSessionBean(session);
+        IMqttsnQueuedPublishMessage message = bean.peek();
+        if(message != null && getMessageExpiry() > 0){
+            long now = System.currentTimeMillis();
+            while(message != null && isExpired(message, now)){
+                if(bean.remove(message)){
+                    expired(session, message);
+                }
+                message = bean.peek();
+            }
+        }
+        return message;
+    }
+
+    protected int getMessageExpiry() {
+        return registry.getOptions().getMessageExpiry();
     }
 
     protected int getMaxQueueSize() {
         return registry.getOptions().getMaxMessagesInQueue();
     }
+
+    protected static class ExpiryEntry implements Comparable<ExpiryEntry> {
+
+        private final long expires;
+        private final IMqttsnSession session;
+
+        public ExpiryEntry(long expires, IMqttsnSession session) {
+            this.expires = expires;
+            this.session = session;
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry o) {
+            return Long.compare(expires, o.expires);
+        }
+    }
 }
@@ -29,8 +29,9 @@ import org.slj.mqtt.sn.model.IMqttsnDataRef;
 import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
 import org.slj.mqtt.sn.spi.MqttsnException;
 
-import java.util.Iterator;
+import java.lang.ref.WeakReference;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.WeakHashMap;
 
 public class MqttsnInMemoryMessageRegistry
@@ -38,24 +39,38 @@ public class MqttsnInMemoryMessageRegistry
 
     protected Map<IMqttsnDataRef, MessageImpl> messageLookup;
 
+    //-- messages which can expire, ordered by expiry so tidy only ever visits those which are due;
+    //-- guarded by the messageLookup monitor and weakly referenced so the index does not keep messages alive
+    protected PriorityQueue<ExpiryEntry> expiryIndex;
+
     @Override
     public synchronized void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
         //all the messages to drop naturally using weak referencing
         messageLookup = new WeakHashMap<>();
+        expiryIndex = new PriorityQueue<>();
         super.start(runtime);
     }
 
     @Override
     public boolean remove(IMqttsnDataRef messageId) throws MqttsnException {
+        MessageImpl removed;
         synchronized(messageLookup){
-            return messageLookup.remove(messageId) != null;
+            removed = messageLookup.remove(messageId);
+        }
+        if(removed != null){
+            removed(removed);
+            return true;
         }
+        return false;
     }
 
     @Override
-    protected IMqttsnDataRef storeInternal(IMqttsnDataRef ref, MessageImpl message) {
+    protected IMqttsnDataRef storeInternal(IMqttsnDataRef ref, MessageImpl message) throws MqttsnException {
         synchronized(messageLookup){
             messageLookup.put(ref, message);
+            if(message.getExpires() != Long.MAX_VALUE){
+                expiryIndex.add(new ExpiryEntry(message.getExpires(), ref));
+            }
             return ref;
         }
     }
@@ -73,18 +88,64 @@ public class MqttsnInMemoryMessageRegistry
     @Override
     public void tidy() {
         long now = System.currentTimeMillis();
+        int expired = 0;
         synchronized (messageLookup){
-            Iterator<IMqttsnDataRef> itr = messageLookup.keySet().iterator();
-            while(itr.hasNext()){
-                IMqttsnDataRef id = itr.next();
-                if(id != null){
-                    MessageImpl m = messageLookup.get(id);
-                    if(m.getExpires() < now){
-                        logger.info("expiring message {}", id);
-                        itr.remove();
+            ExpiryEntry entry;
+            while((entry = expiryIndex.peek()) != null && entry.expires < now){
+                expiryIndex.poll();
+                IMqttsnDataRef id = entry.ref.get();
+                if(id == null) continue;
+                MessageImpl message = messageLookup.get(id);
+                if(message != null && message.getExpires() > entry.expires){
+                    //-- the expiry was extended (the content was shared by a later message), index it again
+                    if(message.getExpires() != Long.MAX_VALUE){
+                        expiryIndex.add(new ExpiryEntry(message.getExpires(), id));
                     }
+                    continue;
                 }
+                //-- the ref may have been collected or removed already, in which case there is nothing to do
+                MessageImpl removed;
+                if((removed = messageLookup.remove(id)) != null){
+                    logger.debug("expiring message {}", id);
+                    removed(removed);
+                    expired++;
+                }
+            }
+        }
+        expired(expired);
+    }
+
+    @Override
+    protected boolean extendExpiry(IMqttsnDataRef ref, MessageImpl impl, long expires) {
+        //-- atomic with tidy, so a message can not be expired between the check and the extension
+        synchronized (messageLookup){
+            if(messageLookup.get(ref) != impl) return false;
+            if(impl.getExpires() < expires){
+                impl.setExpires(expires);
             }
+            return true;
+        }
+    }
+
+    /**
+     * Called once a message has been removed from the registry (either explicitly or by expiry)
+     */
+    protected void removed(MessageImpl message) {
+    }
+
+    protected static class ExpiryEntry implements Comparable<ExpiryEntry> {
+
+        private final long expires;
+        private final WeakReference<IMqttsnDataRef> ref;
+
+        public ExpiryEntry(long expires, IMqttsnDataRef ref) {
+            this.expires = expires;
+            this.ref = new WeakReference<>(ref);
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry o) {
+            return Long.compare(expires, o.expires);
         }
     }
 }
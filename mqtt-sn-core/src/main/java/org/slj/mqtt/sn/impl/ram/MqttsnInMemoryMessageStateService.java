@@ -27,6 +27,7 @@ package org.slj.mqtt.sn.impl.ram;
 import org.slj.mqtt.sn.impl.AbstractMqttsnMessageStateService;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.model.InflightMessage;
+import org.slj.mqtt.sn.model.RequeueableInflightMessage;
 import org.slj.mqtt.sn.spi.IMqttsnOriginatingMessageSource;
 import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
 import org.slj.mqtt.sn.spi.MqttsnException;
@@ -74,7 +75,24 @@ public class MqttsnInMemoryMessageStateService
 
     @Override
     public void clear(IMqttsnContext context) throws MqttsnException{
-        inflightMessages.remove(context);
+        Pair<Map<Integer, InflightMessage>, Map<Integer, InflightMessage>> pair =
+                inflightMessages.remove(context);
+        if(pair != null){
+            //-- the messages are discarded rather than requeued, so release the data they were holding
+            releaseInflight(pair.getLeft());
+            releaseInflight(pair.getRight());
+        }
+    }
+
+    private void releaseInflight(Map<Integer, InflightMessage> map){
+        synchronized (map){
+            for (InflightMessage inflight : map.values()){
+                if(inflight instanceof RequeueableInflightMessage){
+                    releaseQueuedMessage(((RequeueableInflightMessage) inflight).getQueuedPublishMessage());
+                }
+            }
+            map.clear();
+        }
     }
 
     @Override
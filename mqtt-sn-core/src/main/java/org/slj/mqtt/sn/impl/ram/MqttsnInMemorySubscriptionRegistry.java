@@ -24,47 +24,203 @@
 
 package org.slj.mqtt.sn.impl.ram;
 
-import org.slj.mqtt.sn.MqttsnConstants;
 import org.slj.mqtt.sn.MqttsnSpecificationValidator;
 import org.slj.mqtt.sn.impl.AbstractSubscriptionRegistry;
+import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
 import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.IMqttsnMetric;
+import org.slj.mqtt.sn.model.MqttsnClientState;
 import org.slj.mqtt.sn.model.session.IMqttsnSession;
 import org.slj.mqtt.sn.model.session.IMqttsnSubscription;
 import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
 import org.slj.mqtt.sn.spi.MqttsnException;
 import org.slj.mqtt.sn.spi.MqttsnIllegalFormatException;
 import org.slj.mqtt.sn.spi.MqttsnRuntimeException;
-import org.slj.mqtt.sn.utils.tree.PathTriesTree;
+import org.slj.mqtt.sn.utils.TopicPath;
+import org.slj.mqtt.sn.utils.tree.MqttTopicTree;
 import org.slj.mqtt.sn.utils.tree.TriesTreeLimitExceededException;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class MqttsnInMemorySubscriptionRegistry
         extends AbstractSubscriptionRegistry {
 
-    private PathTriesTree<IMqttsnContext> tree;
+    private MqttTopicTree<Subscriber> tree;
+
+    private static final int MATCH_CACHE_CHANGE_LOG = 256;
+    private static final int MATCH_CACHE_EVICTION_SAMPLE = 8;
+
+    //-- topic -> matching subscribers, read without locking and bounded by second chance eviction
+    private Map<String, CachedMatches> matchCache;
+    private int matchCacheSize;
+    //-- the most recent tree changes, indexed by version, so a cached topic is checked only against the
+    //-- filters changed since it was matched rather than every cached topic being scanned on each change
+    private final AtomicReferenceArray<FilterChange> matchCacheChanges = new AtomicReferenceArray<>(MATCH_CACHE_CHANGE_LOG);
+    private volatile long matchCacheVersion = 0;
+
+    //-- shared subscription -> the position of the next member to consider
+    private final Map<String, AtomicInteger> shareCursors = new ConcurrentHashMap<>();
 
     @Override
     public synchronized void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
         super.start(runtime);
-        tree = new PathTriesTree<>(MqttsnConstants.TOPIC_SEPARATOR_REGEX, "/", true);
-        tree.addWildcard(MqttsnConstants.MULTI_LEVEL_WILDCARD);
-        tree.addWildpath(MqttsnConstants.SINGLE_LEVEL_WILDCARD);
+        tree = new MqttTopicTree<>();
+        matchCacheSize = runtime.getOptions().getSubscriptionMatchCacheSize();
+        if(matchCacheSize > 0){
+            matchCache = new ConcurrentHashMap<>();
+        }
     }
 
     @Override
-    public Set<IMqttsnContext> matches(String topicPath) throws MqttsnException, MqttsnIllegalFormatException {
+    public Map<IMqttsnContext, Integer> matches(String topicPath) throws MqttsnException, MqttsnIllegalFormatException {
 
         if (!MqttsnSpecificationValidator.isValidPublishTopic(
                 topicPath)) {
             throw new MqttsnIllegalFormatException("invalid topic format detected");
         }
-        Set<IMqttsnContext> treeMatches = matchFromTree(topicPath);
-        return treeMatches;
+        Matches matches = null;
+        if(matchCache != null){
+            //-- read before searching, so a change racing the search is checked when the entry is next used
+            long version = matchCacheVersion;
+            CachedMatches cached = matchCache.get(topicPath);
+            if(cached != null && isCurrent(topicPath, cached, version)){
+                cached.referenced = true;
+                matches = cached.matches;
+            }
+            incrementMetric(matches != null ?
+                    IMqttsnMetrics.SUBSCRIPTION_MATCH_CACHE_HIT : IMqttsnMetrics.SUBSCRIPTION_MATCH_CACHE_MISS);
+            if(matches == null){
+                matches = matchFromTree(topicPath);
+                if(cached == null && matchCache.size() >= matchCacheSize){
+                    evictMatches();
+                }
+                matchCache.put(topicPath, new CachedMatches(matches, version));
+            }
+        } else {
+            matches = matchFromTree(topicPath);
+        }
+        return matches.shared.isEmpty() ? matches.direct : resolveShared(matches);
     }
 
-    protected Set<IMqttsnContext> matchFromTree(String topicPath) throws MqttsnException {
-        return tree.searchMembers(topicPath);
+    /**
+     * A cached entry is current when none of the filters changed since it was matched match the topic; an entry
+     * older than the change log is treated as stale. A current entry is moved forward to the version given
+     * so it is not checked against the same changes again.
+     */
+    protected boolean isCurrent(String topicPath, CachedMatches cached, long version){
+        long matched = cached.version;
+        if(matched == version) return true;
+        if(version - matched > MATCH_CACHE_CHANGE_LOG) return false;
+        for (long v = matched + 1; v <= version; v++){
+            FilterChange change = matchCacheChanges.get((int) (v % MATCH_CACHE_CHANGE_LOG));
+            if(change == null || change.version != v ||
+                    MqttTopicTree.matches(change.topicFilter, topicPath)){
+                return false;
+            }
+        }
+        if(cached.version < version) cached.version = version;
+        return true;
+    }
+
+    /**
+     * Make room for a new entry, preferring (from a small sample) one which has not been used since it was
+     * last considered for eviction
+     */
+    protected void evictMatches(){
+        Iterator<Map.Entry<String, CachedMatches>> itr = matchCache.entrySet().iterator();
+        String victim = null;
+        for (int i = 0; i < MATCH_CACHE_EVICTION_SAMPLE && itr.hasNext(); i++){
+            Map.Entry<String, CachedMatches> entry = itr.next();
+            victim = entry.getKey();
+            if(!entry.getValue().referenced) break;
+            entry.getValue().referenced = false;
+        }
+        if(victim != null) matchCache.remove(victim);
+    }
+
+    /**
+     * Record a change to the tree; only those cached topics which the changed topic filter matches are affected,
+     * which is established the next time each is used. Called once the tree has been changed.
+     */
+    protected void invalidateMatches(String topicFilter){
+        if(matchCache != null){
+            synchronized (matchCacheChanges){
+                long version = matchCacheVersion + 1;
+                matchCacheChanges.set((int) (version % MATCH_CACHE_CHANGE_LOG), new FilterChange(version, topicFilter));
+                matchCacheVersion = version;
+            }
+        }
+    }
+
+    protected void incrementMetric(String name){
+        if(registry.getMetrics() != null){
+            IMqttsnMetric metric = registry.getMetrics().getMetric(name);
+            if(metric != null) metric.increment(1);
+        }
+    }
+
+    /**
+     * A single walk of the tree yields each recipient with its granted QoS; where a recipient holds several
+     * overlapping subscriptions matching the topic, the maximum QoS granted is used. The members of shared
+     * subscriptions are gathered per share, one of which is selected on each delivery.
+     */
+    protected Matches matchFromTree(String topicPath) throws MqttsnException {
+        Map<IMqttsnContext, Integer> direct = new HashMap<>();
+        Map<String, List<Subscriber>> shared = new HashMap<>();
+        //-- the levels of the topic are tokenised once per interned topic rather than on every search
+        tree.visitMembers(registry.getTopicDictionary().getSegments(topicPath), s -> {
+            if(s.share == null){
+                direct.merge(s.context, s.grantedQoS, Math::max);
+            } else {
+                shared.computeIfAbsent(s.share, k -> new ArrayList<>()).add(s);
+            }
+        });
+        return new Matches(Collections.unmodifiableMap(direct),
+                shared.isEmpty() ? Collections.emptyMap() : shared);
+    }
+
+    protected Map<IMqttsnContext, Integer> resolveShared(Matches matches) throws MqttsnException {
+        Map<IMqttsnContext, Integer> recipients = new HashMap<>(matches.direct);
+        for (Map.Entry<String, List<Subscriber>> share : matches.shared.entrySet()){
+            Subscriber selected = selectShareMember(share.getKey(), share.getValue());
+            recipients.merge(selected.context, selected.grantedQoS, Math::max);
+        }
+        return recipients;
+    }
+
+    /**
+     * Select the member of the share to receive the next message; members which are asleep or whose queue is full
+     * are passed over, unless no member is available in which case the next member in turn is used.
+     */
+    protected Subscriber selectShareMember(String share, List<Subscriber> members) throws MqttsnException {
+        int size = members.size();
+        int start = Math.floorMod(shareCursors.computeIfAbsent(share, k -> new AtomicInteger()).getAndIncrement(), size);
+        boolean leastQueueDepth = registry.getOptions().isSharedSubscriptionLeastQueueDepth();
+        Subscriber selected = null;
+        long selectedDepth = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++){
+            Subscriber member = members.get((start + i) % size);
+            IMqttsnSession session = registry.getSessionRegistry().getSession(member.context, false);
+            if(session == null || session.getClientState() == MqttsnClientState.ASLEEP) continue;
+            long depth = registry.getMessageQueue().queueSize(session);
+            if(depth >= registry.getOptions().getMaxMessagesInQueue()) continue;
+            if(!leastQueueDepth) return member;
+            if(depth < selectedDepth){
+                selected = member;
+                selectedDepth = depth;
+            }
+        }
+        return selected != null ? selected : members.get(start);
     }
 
     @Override
@@ -76,19 +232,21 @@ public class MqttsnInMemorySubscriptionRegistry
     protected boolean addSubscription(IMqttsnSession session, IMqttsnSubscription subscription)
             throws MqttsnIllegalFormatException {
 
-        if(!MqttsnSpecificationValidator.isValidSubscriptionTopic(
-                subscription.getTopicPath().toString())){
+        String topicPath = subscription.getTopicPath().toString();
+        String topicFilter = TopicPath.getSharedFilter(topicPath);
+        if(!MqttsnSpecificationValidator.isValidSubscriptionTopic(topicFilter)){
             throw new MqttsnIllegalFormatException("invalid topic format detected");
         }
 
         boolean existed = getSessionBean(session).removeSubscription(subscription);
         getSessionBean(session).addSubscription(subscription);
-        if(!existed){
-            try {
-                tree.addPath(subscription.getTopicPath().toString(), session.getContext());
-            } catch(TriesTreeLimitExceededException e){
-                throw new MqttsnRuntimeException(e);
-            }
+        try {
+            //-- an existing subscription is replaced in the tree so its granted QoS is updated
+            tree.addSubscription(topicFilter, new Subscriber(session.getContext(),
+                    subscription.getGrantedQoS(), TopicPath.isShared(topicPath) ? topicPath : null));
+            invalidateMatches(topicFilter);
+        } catch(TriesTreeLimitExceededException e){
+            throw new MqttsnRuntimeException(e);
         }
         return !existed;
     }
@@ -97,11 +255,19 @@ public class MqttsnInMemorySubscriptionRegistry
     protected boolean removeSubscription(IMqttsnSession session, IMqttsnSubscription subscription){
         boolean removed = getSessionBean(session).removeSubscription(subscription);
         if(removed){
-            tree.removeMemberFromPath(subscription.getTopicPath().toString(), session.getContext());
+            removeFromTree(session, subscription);
         }
         return removed;
     }
 
+    protected void removeFromTree(IMqttsnSession session, IMqttsnSubscription subscription){
+        String topicPath = subscription.getTopicPath().toString();
+        String topicFilter = TopicPath.getSharedFilter(topicPath);
+        tree.removeSubscription(topicFilter, new Subscriber(session.getContext(), 0,
+                TopicPath.isShared(topicPath) ? topicPath : null));
+        invalidateMatches(topicFilter);
+    }
+
     @Override
     public boolean hasSubscription(String topicPath) {
         boolean exists = tree.hasMembers(topicPath);
@@ -111,11 +277,83 @@ public class MqttsnInMemorySubscriptionRegistry
 
     @Override
     public void clear(IMqttsnSession session) {
+        for (IMqttsnSubscription subscription : getSessionBean(session).getSubscriptions()){
+            removeFromTree(session, subscription);
+        }
         getSessionBean(session).clearSubscriptions();
     }
 
     @Override
     public Set<String> readAllSubscribedTopicPaths() {
-        return tree.getDistinctPaths(true);
+        return tree.getDistinctPaths();
+    }
+
+    /**
+     * The subscribers matching a topic; those subscribed directly, and the members of each matching shared
+     * subscription (keyed by the full $share path)
+     */
+    protected static final class Matches {
+
+        private final Map<IMqttsnContext, Integer> direct;
+        private final Map<String, List<Subscriber>> shared;
+
+        Matches(Map<IMqttsnContext, Integer> direct, Map<String, List<Subscriber>> shared) {
+            this.direct = direct;
+            this.shared = shared;
+        }
+    }
+
+    protected static final class CachedMatches {
+
+        private final Matches matches;
+        //-- the change log version these matches are known to be current at
+        private volatile long version;
+        private volatile boolean referenced;
+
+        CachedMatches(Matches matches, long version) {
+            this.matches = matches;
+            this.version = version;
+        }
+    }
+
+    protected static final class FilterChange {
+
+        private final long version;
+        private final String topicFilter;
+
+        FilterChange(long version, String topicFilter) {
+            this.version = version;
+            this.topicFilter = topicFilter;
+        }
+    }
+
+    /**
+     * A tree member; equality is by context and share alone so a context is held at most once per topic filter
+     * and share
+     */
+    protected static final class Subscriber {
+
+        private final IMqttsnContext context;
+        private final int grantedQoS;
+        private final String share;
+
+        Subscriber(IMqttsnContext context, int grantedQoS, String share) {
+            this.context = context;
+            this.grantedQoS = grantedQoS;
+            this.share = share;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Subscriber that = (Subscriber) o;
+            return Objects.equals(context, that.context) && Objects.equals(share, that.share);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(context, share);
+        }
     }
 }
@@ -66,8 +66,14 @@ public class MqttsnInMemoryTopicRegistry
     }
 
     @Override
-    protected Map<String, Integer> getPredefinedTopicsForInteger(IMqttsnSession session) {
-        return getPredefinedTopicsForString(session);
+    protected String getPredefinedTopicPath(IMqttsnSession session, int topicAlias) {
+        return registry.getOptions().getPredefinedTopicPath(topicAlias);
+    }
+
+    @Override
+    protected String getRegisteredTopicPath(IMqttsnSession session, int topicAlias) {
+        IMqttsnTopicRegistration reg = getSessionBean(session).getTopicRegistration(topicAlias);
+        return reg == null ? null : reg.getTopicPath();
     }
 
     @Override
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.impl.ram;
+
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.spi.MqttsnExpectationFailedException;
+import org.slj.mqtt.sn.utils.SlabAllocator;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Message registry which holds payloads off the java heap in slab allocated direct memory, so large backlogs
+ * of queued messages do not contribute to garbage collection pauses. Messages are explicitly reference counted;
+ * the registry holds a payload until every reference (the creator's and one per queued recipient) has been
+ * released, or until the message expires.
+ */
+public class MqttsnOffHeapMessageRegistry extends MqttsnInMemoryMessageRegistry {
+
+    public static final long DEFAULT_MAX_RESERVED_BYTES = 64 * 1024 * 1024;
+
+    private final SlabAllocator allocator;
+
+    public MqttsnOffHeapMessageRegistry() {
+        this(DEFAULT_MAX_RESERVED_BYTES);
+    }
+
+    public MqttsnOffHeapMessageRegistry(long maxReservedBytes) {
+        this(SlabAllocator.DEFAULT_SLAB_SIZE, maxReservedBytes);
+    }
+
+    public MqttsnOffHeapMessageRegistry(int slabSize, long maxReservedBytes) {
+        this.allocator = new SlabAllocator(slabSize, maxReservedBytes);
+    }
+
+    @Override
+    public synchronized void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
+        super.start(runtime);
+        //-- messages are reclaimed by reference counting, so they must be strongly held
+        messageLookup = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    protected IMqttsnDataRef storeInternal(IMqttsnDataRef ref, MessageImpl message) throws MqttsnException {
+        SlabAllocator.Slot slot;
+        try {
+            slot = allocator.allocate(message.getData());
+        } catch(IllegalStateException e){
+            throw new MqttsnException("unable to store message off-heap", e);
+        }
+        return super.storeInternal(ref, new OffHeapMessage(slot, message.getExpires()));
+    }
+
+    @Override
+    public void retain(IMqttsnDataRef messageId) throws MqttsnException {
+        OffHeapMessage message = (OffHeapMessage) readInternal(messageId);
+        if(message == null || !message.retain()){
+            throw new MqttsnExpectationFailedException("unable to retain message by id ["+messageId+"], message not found in registry");
+        }
+    }
+
+    @Override
+    public void release(IMqttsnDataRef messageId) throws MqttsnException {
+        OffHeapMessage message = (OffHeapMessage) readInternal(messageId);
+        if(message != null && message.release()){
+            remove(messageId);
+        }
+    }
+
+    @Override
+    protected void removed(MessageImpl message) {
+        SlabAllocator.Slot slot = ((OffHeapMessage) message).detach();
+        if(slot != null){
+            allocator.free(slot);
+        }
+    }
+
+    /**
+     * @return the number of bytes of direct memory reserved by the registry
+     */
+    public long getReservedBytes(){
+        return allocator.getReservedBytes();
+    }
+
+    /**
+     * @return the number of bytes of direct memory occupied by stored payloads
+     */
+    public long getUsedBytes(){
+        return allocator.getUsedBytes();
+    }
+
+    protected static class OffHeapMessage extends MessageImpl {
+
+        private SlabAllocator.Slot slot;
+        private int references = 1;
+
+        public OffHeapMessage(SlabAllocator.Slot slot, long expires) {
+            super(null, expires);
+            this.slot = slot;
+        }
+
+        /**
+         * @return a heap copy of the payload or null if the message has been freed
+         */
+        @Override
+        public synchronized byte[] getData() {
+            return slot == null ? null : slot.read();
+        }
+
+        /**
+         * A message whose last reference has been released is freed even before it is detached, so it can
+         * never be revived by a concurrent retain.
+         */
+        synchronized boolean retain(){
+            if(slot == null || references <= 0) return false;
+            references++;
+            return true;
+        }
+
+        /**
+         * @return true when the last reference has been released; only one caller will ever see true
+         */
+        synchronized boolean release(){
+            if(slot == null || references <= 0) return false;
+            return --references == 0;
+        }
+
+        synchronized SlabAllocator.Slot detach(){
+            SlabAllocator.Slot s = slot;
+            slot = null;
+            references = 0;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.impl.ram;
+
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.MqttsnQueueAcceptException;
+import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A message queue backed by a single shared, append-only log of messages. When the same message is offered
+ * to many sessions (for example during expansion of a backend message to thousands of subscribers) it
+ * is appended to the log ONCE, and each session holds only a cursor onto the log entries it is due to receive.
+ *
+ * The per-session cursor is a primitive ring of log sequence numbers (with the granted QoS packed into the
+ * low bits), so the cost of a recipient is 8 bytes rather than a queued message object per recipient.
+ * Messages which carry per-session state (retries, packet ids or wait tokens) cannot be shared and
+ * are held in a small exception list on the cursor, which is merged with the log by creation time
+ * so the ordering semantics match those of the in-memory queue.
+ *
+ * Log entries are reference counted, and are removed from the log once every cursor has moved past them.
+ */
+public class MqttsnSharedLogMessageQueue extends MqttsnInMemoryMessageQueue {
+
+    private static final int QOS_BITS = 2;
+    private static final int QOS_MASK = (1 << QOS_BITS) - 1;
+    private static final int INITIAL_CURSOR_CAPACITY = 8;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Long, LogEntry> log = new ConcurrentHashMap<>();
+    private final Map<IMqttsnDataRef, LogEntry> tail = new ConcurrentHashMap<>();
+    private final Map<String, SessionCursor> cursors = new ConcurrentHashMap<>();
+
+    @Override
+    public long queueSize(IMqttsnSession session) {
+        SessionCursor cursor = cursors.get(session.getContext().getId());
+        return cursor == null ? 0 : cursor.size();
+    }
+
+    @Override
+    protected void offerInternal(IMqttsnSession session, IMqttsnQueuedPublishMessage message)
+            throws MqttsnException, MqttsnQueueAcceptException {
+
+        SessionCursor cursor = getOrCreateCursor(session);
+        if(isShareable(message)){
+            LogEntry entry = append(message);
+            cursor.append(entry.sequence, message.getGrantedQoS());
+        } else {
+            cursor.addException(message);
+        }
+        scheduleExpiry(session, message);
+    }
+
+    @Override
+    public IMqttsnQueuedPublishMessage poll(IMqttsnSession session) {
+        SessionCursor cursor = cursors.get(session.getContext().getId());
+        return cursor == null ? null : cursor.poll();
+    }
+
+    @Override
+    protected IMqttsnQueuedPublishMessage peekUnexpired(IMqttsnSession session) {
+        SessionCursor cursor = cursors.get(session.getContext().getId());
+        if(cursor == null) return null;
+        IMqttsnQueuedPublishMessage message = cursor.peek();
+        if(message != null && getMessageExpiry() > 0){
+            long now = System.currentTimeMillis();
+            while(message != null && isExpired(message, now)){
+                if(cursor.discard(message)){
+                    expired(session, message);
+                }
+                message = cursor.peek();
+            }
+        }
+        return message;
+    }
+
+    @Override
+    public void clear(IMqttsnSession session) {
+        if(session != null){
+            SessionCursor cursor = cursors.remove(session.getContext().getId());
+            if(cursor != null){
+                cursor.clear();
+            }
+        }
+    }
+
+    @Override
+    public void clearAll() {
+        //-- every cursor position holds a registry reference to its data, release them as clear(session) does
+        Iterator<String> itr = cursors.keySet().iterator();
+        while(itr.hasNext()){
+            SessionCursor cursor = cursors.remove(itr.next());
+            if(cursor != null){
+                cursor.clear();
+            }
+        }
+        log.clear();
+        tail.clear();
+    }
+
+    /**
+     * @return the number of distinct messages currently held in the shared log
+     */
+    public int getLogSize(){
+        return log.size();
+    }
+
+    /**
+     * Log entries are shared between sessions and cannot be replaced for a single session, so
+     * conflation is not supported by this queue.
+     */
+    @Override
+    protected boolean isConflated(IMqttsnSession session, String topicPath) {
+        return false;
+    }
+
+    protected boolean isShareable(IMqttsnQueuedPublishMessage message){
+        return message.getRetryCount() == 0 &&
+                message.getPacketId() == 0 &&
+                message.getToken() == null &&
+                message.getDataRefId() != null &&
+                //-- the granted QoS is packed into the low bits of the cursor entry
+                message.getGrantedQoS() >= 0 && message.getGrantedQoS() <= QOS_MASK;
+    }
+
+    protected LogEntry append(IMqttsnQueuedPublishMessage message){
+        IMqttsnDataRef ref = message.getDataRefId();
+        LogEntry entry = tail.get(ref);
+        if(entry != null && entry.data == message.getData() && entry.retain()){
+            return entry;
+        }
+        entry = new LogEntry(sequence.incrementAndGet(), ref, message.getData(), message.getCreated());
+        log.put(entry.sequence, entry);
+        tail.put(ref, entry);
+        return entry;
+    }
+
+    protected void release(LogEntry entry){
+        if(entry.release()){
+            log.remove(entry.sequence);
+            tail.remove(entry.dataRef, entry);
+        }
+    }
+
+    protected SessionCursor getOrCreateCursor(IMqttsnSession session){
+        return cursors.computeIfAbsent(session.getContext().getId(), k -> new SessionCursor());
+    }
+
+    protected static class LogEntry {
+
+        private final long sequence;
+        private final IMqttsnDataRef dataRef;
+        private final PublishData data;
+        private final long created;
+        private int references = 1;
+
+        public LogEntry(long sequence, IMqttsnDataRef dataRef, PublishData data, long created) {
+            this.sequence = sequence;
+            this.dataRef = dataRef;
+            this.data = data;
+            this.created = created;
+        }
+
+        /**
+         * @return false if the entry has already been fully released and can no longer be shared
+         */
+        synchronized boolean retain(){
+            if(references == 0) return false;
+            references++;
+            return true;
+        }
+
+        /**
+         * @return true when the last reference was released
+         */
+        synchronized boolean release(){
+            return references > 0 && --references == 0;
+        }
+    }
+
+    /**
+     * Per-session view of the log. Access is guarded by the cursor monitor so contention is only
+     * ever between the producers and consumer of a single session.
+     */
+    protected class SessionCursor {
+
+        private long[] ring = new long[INITIAL_CURSOR_CAPACITY];
+        private int head = 0;
+        private int count = 0;
+        private PriorityQueue<IMqttsnQueuedPublishMessage> exceptions;
+        private IMqttsnQueuedPublishMessage next;
+
+        synchronized void append(long sequence, int grantedQoS){
+            if(count == ring.length){
+                long[] grown = new long[ring.length << 1];
+                for (int i = 0; i < count; i++){
+                    grown[i] = ring[(head + i) % ring.length];
+                }
+                ring = grown;
+                head = 0;
+            }
+            ring[(head + count) % ring.length] = (sequence << QOS_BITS) | grantedQoS;
+            count++;
+        }
+
+        synchronized void addException(IMqttsnQueuedPublishMessage message){
+            if(exceptions == null){
+                exceptions = new PriorityQueue<>();
+            }
+            exceptions.offer(message);
+        }
+
+        synchronized int size(){
+            return count + (exceptions == null ? 0 : exceptions.size()) + (next == null ? 0 : 1);
+        }
+
+        synchronized IMqttsnQueuedPublishMessage peek(){
+            if(next == null){
+                next = materializeNext();
+            }
+            return next;
+        }
+
+        synchronized IMqttsnQueuedPublishMessage poll(){
+            IMqttsnQueuedPublishMessage message = peek();
+            next = null;
+            return message;
+        }
+
+        synchronized boolean discard(IMqttsnQueuedPublishMessage message){
+            if(next == message){
+                next = null;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void clear(){
+            //-- each queued message holds a registry reference to its data
+            while(count > 0){
+                LogEntry entry = log.get(ring[head] >>> QOS_BITS);
+                advance();
+                if(entry != null){
+                    releaseData(entry.dataRef);
+                    release(entry);
+                }
+            }
+            if(exceptions != null){
+                IMqttsnQueuedPublishMessage message;
+                while((message = exceptions.poll()) != null){
+                    releaseData(message.getDataRefId());
+                }
+            }
+            if(next != null){
+                releaseData(next.getDataRefId());
+                next = null;
+            }
+        }
+
+        private IMqttsnQueuedPublishMessage materializeNext(){
+            while(count > 0){
+                long value = ring[head];
+                LogEntry entry = log.get(value >>> QOS_BITS);
+                if(entry == null){
+                    //-- the entry was removed under us (clearAll), skip it
+                    advance();
+                    continue;
+                }
+                IMqttsnQueuedPublishMessage exception = exceptions == null ? null : exceptions.peek();
+                if(exception != null && exception.getCreated() <= entry.created){
+                    return exceptions.poll();
+                }
+                advance();
+                MqttsnQueuedPublishMessageImpl impl = new MqttsnQueuedPublishMessageImpl(entry.dataRef, entry.data);
+                impl.setCreated(entry.created);
+                impl.setGrantedQoS((int) (value & QOS_MASK));
+                release(entry);
+                return impl;
+            }
+            return exceptions == null ? null : exceptions.poll();
+        }
+
+        private void advance(){
+            head = (head + 1) % ring.length;
+            count--;
+        }
+    }
+}
@@ -27,8 +27,13 @@ package org.slj.mqtt.sn.model;
 import org.slj.mqtt.sn.MqttsnSpecificationValidator;
 import org.slj.mqtt.sn.net.NetworkAddress;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The options class allows you to control aspects of the MQTT-SN engines lifecycle and functionality. The options
@@ -207,6 +212,37 @@ public class MqttsnOptions {
      */
     public static final int DEFAULT_MESSAGE_QUEUE_DISK_STORAGE_THRESHOLD = 5;
 
+    /**
+     * When enabled, a message queued for a session replaces any undelivered message on the same topic
+     */
+    public static final boolean DEFAULT_MESSAGE_QUEUE_CONFLATION = false;
+
+    /**
+     * Time in millis a message may reside in the message registry and session queues before it is expired, 0 never expires
+     */
+    public static final int DEFAULT_MESSAGE_EXPIRY = 0;
+
+    /**
+     * When enabled, messages with byte-identical payloads share a single stored copy in the message registry
+     */
+    public static final boolean DEFAULT_MESSAGE_REGISTRY_DEDUPLICATION = false;
+
+    /**
+     * The number of distinct topics whose subscription matches are cached, 0 disables the cache
+     */
+    public static final int DEFAULT_SUBSCRIPTION_MATCH_CACHE_SIZE = 1024;
+
+    /**
+     * The number of distinct topic paths interned by the runtime topic dictionary, 0 disables interning
+     */
+    public static final int DEFAULT_TOPIC_DICTIONARY_SIZE = 10000;
+
+    /**
+     * When enabled, messages on a shared subscription go to the member with the fewest queued messages, otherwise
+     * members are selected in turn
+     */
+    public static final boolean DEFAULT_SHARED_SUBSCRIPTION_LEAST_QUEUE_DEPTH = false;
+
     private String contextId;
     private int transportProtocolHandoffThreadCount = DEFAULT_TRANSPORT_PROTOCOL_HANDOFF_THREAD_COUNT;
     private int transportPublishHandoffThreadCount = DEFAULT_TRANSPORT_PUBLISH_HANDOFF_THREAD_COUNT;
@@ -242,8 +278,17 @@ public class MqttsnOptions {
     private boolean metricsEnabled = DEFAULT_METRICS_ENABLED;
 
     private int messageQueueDiskStorageThreshold = DEFAULT_MESSAGE_QUEUE_DISK_STORAGE_THRESHOLD;
+    private boolean messageQueueConflation = DEFAULT_MESSAGE_QUEUE_CONFLATION;
+    private int messageExpiry = DEFAULT_MESSAGE_EXPIRY;
+    private boolean messageRegistryDeduplication = DEFAULT_MESSAGE_REGISTRY_DEDUPLICATION;
+    private int subscriptionMatchCacheSize = DEFAULT_SUBSCRIPTION_MATCH_CACHE_SIZE;
+    private int topicDictionarySize = DEFAULT_TOPIC_DICTIONARY_SIZE;
+    private boolean sharedSubscriptionLeastQueueDepth = DEFAULT_SHARED_SUBSCRIPTION_LEAST_QUEUE_DEPTH;
+    private Set<String> conflatedTopics = new HashSet<>();
     private MqttsnSecurityOptions securityOptions;
-    private Map<String, Integer> predefinedTopics = new HashMap<>();
+    private Map<String, Integer> predefinedTopics = new ConcurrentHashMap<>();
+    //-- alias -> topic path, rebuilt whole as predefined topics are added so lookups by alias are constant time
+    private volatile String[] predefinedTopicsByAlias = new String[0];
     private volatile Map<String, NetworkAddress> networkAddressEntries;
     private MqttsnClientCredentials clientCredentials =
             new MqttsnClientCredentials(true);
@@ -573,10 +618,118 @@ public class MqttsnOptions {
         MqttsnSpecificationValidator.validatePublishPath(topicPath);
         MqttsnSpecificationValidator.validateTopicAlias(alias);
 
-        predefinedTopics.put(topicPath, alias);
+        synchronized (predefinedTopics){
+            Integer previous = predefinedTopics.put(topicPath, alias);
+            String[] byAlias = Arrays.copyOf(predefinedTopicsByAlias,
+                    Math.max(predefinedTopicsByAlias.length, alias + 1));
+            if(previous != null && previous != alias && topicPath.equals(byAlias[previous])){
+                byAlias[previous] = null;
+            }
+            byAlias[alias] = topicPath;
+            predefinedTopicsByAlias = byAlias;
+        }
+        return this;
+    }
+
+    /**
+     * When enabled, session queues keep only the latest undelivered value per topic; a newly queued message
+     * replaces (in place, keeping its position in the queue) any message on the same topic which has not yet
+     * been sent. Intermediate values are therefore never delivered to sleeping or slow devices.
+     *
+     * @param messageQueueConflation - Should all topics be conflated in the session queues
+     * @return this configuration
+     * @see {@link MqttsnOptions#DEFAULT_MESSAGE_QUEUE_CONFLATION}
+     */
+    public MqttsnOptions withMessageQueueConflation(boolean messageQueueConflation) {
+        this.messageQueueConflation = messageQueueConflation;
+        return this;
+    }
+
+    /**
+     * Time in millis a message will be retained for before it is considered expired. Expired messages are
+     * removed from the message registry and are never delivered from the session queues, so devices which
+     * wake after a long sleep do not receive stale data.
+     *
+     * @param messageExpiry - Time in millis a message is valid for, 0 to never expire
+     * @return this configuration
+     * @see {@link MqttsnOptions#DEFAULT_MESSAGE_EXPIRY}
+     */
+    public MqttsnOptions withMessageExpiry(int messageExpiry) {
+        this.messageExpiry = messageExpiry;
+        return this;
+    }
+
+    /**
+     * When enabled, payloads added to the message registry are hashed and a byte-identical payload already held by
+     * the registry is shared rather than stored again. Useful where many devices or rules publish the same content
+     * (heartbeats, status values, repeated configuration).
+     *
+     * @param messageRegistryDeduplication - Should identical payloads share storage in the message registry
+     * @return this configuration
+     * @see {@link MqttsnOptions#DEFAULT_MESSAGE_REGISTRY_DEDUPLICATION}
+     */
+    public MqttsnOptions withMessageRegistryDeduplication(boolean messageRegistryDeduplication) {
+        this.messageRegistryDeduplication = messageRegistryDeduplication;
+        return this;
+    }
+
+    /**
+     * The number of distinct topics for which the set of matching subscribers is cached (topics not used
+     * recently are evicted first). Entries are invalidated only when a subscription matching the topic is added
+     * or removed.
+     *
+     * @param subscriptionMatchCacheSize - The number of topics to cache matches for, 0 to disable
+     * @return this configuration
+     * @see {@link MqttsnOptions#DEFAULT_SUBSCRIPTION_MATCH_CACHE_SIZE}
+     */
+    public MqttsnOptions withSubscriptionMatchCacheSize(int subscriptionMatchCacheSize) {
+        this.subscriptionMatchCacheSize = subscriptionMatchCacheSize;
+        return this;
+    }
+
+    /**
+     * Topic paths are interned by a runtime wide dictionary so each distinct topic is held once in memory, however
+     * many registrations, subscriptions and queued messages refer to it. Topics are released from the dictionary once
+     * nothing refers to them; while it is full, new topics are simply held as received.
+     *
+     * @param topicDictionarySize - The number of distinct topics to intern at any one time, 0 to disable
+     * @return this configuration
+     * @see {@link MqttsnOptions#DEFAULT_TOPIC_DICTIONARY_SIZE}
+     */
+    public MqttsnOptions withTopicDictionarySize(int topicDictionarySize) {
+        this.topicDictionarySize = topicDictionarySize;
         return this;
     }
 
+    /**
+     * Each message matching a shared subscription ($share/{ShareName}/{filter}) is delivered to one member of the
+     * share. By default members are selected round-robin; when enabled the member with the shallowest queue is
+     * selected instead. In either case sleeping members, and those whose queue is full, are passed over.
+     *
+     * @param sharedSubscriptionLeastQueueDepth - Select the member of a share with the fewest queued messages
+     * @return this configuration
+     * @see {@link MqttsnOptions#DEFAULT_SHARED_SUBSCRIPTION_LEAST_QUEUE_DEPTH}
+     */
+    public MqttsnOptions withSharedSubscriptionLeastQueueDepth(boolean sharedSubscriptionLeastQueueDepth) {
+        this.sharedSubscriptionLeastQueueDepth = sharedSubscriptionLeastQueueDepth;
+        return this;
+    }
+
+    /**
+     * Conflate only those topics matching the supplied topic filter (wildcards permitted) in the session queues, a
+     * newly queued message on a matching topic replaces any undelivered message on the same topic.
+     *
+     * @param topicFilter - The topic filter to conflate e.g. "config/#"
+     * @return this configuration
+     * @see {@link MqttsnOptions#withMessageQueueConflation(boolean)}
+     */
+    public MqttsnOptions withConflatedTopic(String topicFilter) {
+
+        MqttsnSpecificationValidator.validateSubscribePath(topicFilter);
+
+        conflatedTopics.add(topicFilter);
+        return this;
+    }
 
     /**
      * The number at which messageIds start, typically this should be 1.
@@ -785,7 +938,15 @@ public class MqttsnOptions {
     }
 
     public Map<String, Integer> getPredefinedTopics() {
-        return predefinedTopics;
+        return Collections.unmodifiableMap(predefinedTopics);
+    }
+
+    /**
+     * @return the topic path predefined for the alias, or null if none is defined
+     */
+    public String getPredefinedTopicPath(int alias) {
+        String[] byAlias = predefinedTopicsByAlias;
+        return alias >= 0 && alias < byAlias.length ? byAlias[alias] : null;
     }
 
     public int getMaxMessagesInflight() {
@@ -904,6 +1065,34 @@ public class MqttsnOptions {
         return messageQueueDiskStorageThreshold;
     }
 
+    public boolean isMessageQueueConflation() {
+        return messageQueueConflation;
+    }
+
+    public Set<String> getConflatedTopics() {
+        return conflatedTopics;
+    }
+
+    public int getMessageExpiry() {
+        return messageExpiry;
+    }
+
+    public boolean isMessageRegistryDeduplication() {
+        return messageRegistryDeduplication;
+    }
+
+    public int getSubscriptionMatchCacheSize() {
+        return subscriptionMatchCacheSize;
+    }
+
+    public int getTopicDictionarySize() {
+        return topicDictionarySize;
+    }
+
+    public boolean isSharedSubscriptionLeastQueueDepth() {
+        return sharedSubscriptionLeastQueueDepth;
+    }
+
     public MqttsnClientCredentials getClientCredentials() {
         return clientCredentials;
     }
@@ -43,5 +43,9 @@ public interface IMqttsnQueuedPublishMessage extends Serializable {
     void incrementRetry();
     void setPacketId(int packetId);
     void setRetryCount(int retryCount);
+    void setData(PublishData data);
+    void setDataRefId(IMqttsnDataRef dataRefId);
+    void setGrantedQoS(int grantedQoS);
+    void setCreated(long created);
 
 }
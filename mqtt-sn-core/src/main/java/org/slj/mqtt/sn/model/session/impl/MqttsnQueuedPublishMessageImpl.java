@@ -119,6 +119,10 @@ public class MqttsnQueuedPublishMessageImpl implements Serializable, Comparable,
         return created;
     }
 
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
     public int getPacketId() {
         return packetId;
     }
@@ -25,23 +25,42 @@
 package org.slj.mqtt.sn.model.session.impl;
 
 import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
 import org.slj.mqtt.sn.model.MqttsnClientState;
 import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
 import org.slj.mqtt.sn.model.session.IMqttsnSubscription;
 import org.slj.mqtt.sn.model.session.IMqttsnTopicRegistration;
 import org.slj.mqtt.sn.model.session.IMqttsnWillData;
+import org.slj.mqtt.sn.utils.PriorityLaneQueue;
 
 import java.util.*;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MqttsnSessionBeanImpl extends MqttsnSessionImpl {
 
     private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Messages which are being redelivered (requeued after a timeout or error) jump ahead of
+     * new messages, in line with them having been created first
+     */
+    private static final int LANE_REDELIVERY = 0;
+    private static final int LANE_NEW = 1;
+
     private Set<IMqttsnSubscription> subscriptionSet = new HashSet<>(INITIAL_CAPACITY);
-    private Map<String, IMqttsnTopicRegistration> registrationMap = new HashMap<>(INITIAL_CAPACITY);
-    private Queue<IMqttsnQueuedPublishMessage> messageQueue = new PriorityBlockingQueue<>(INITIAL_CAPACITY);
+    private Map<String, IMqttsnTopicRegistration> registrationMap = new ConcurrentHashMap<>(INITIAL_CAPACITY);
+    //-- alias -> registration, aliases are leased contiguously so a dense array offset from the lowest alias is used
+    private volatile AliasIndex aliasIndex = AliasIndex.EMPTY;
+    private PriorityLaneQueue<IMqttsnQueuedPublishMessage> messageQueue = new PriorityLaneQueue<>(2,
+            m -> m.getRetryCount() > 0 ? LANE_REDELIVERY : LANE_NEW);
     private IMqttsnWillData willData;
 
+    /**
+     * Undelivered messages on conflated topics, keyed by topic path. A message leaves the index when it is
+     * polled from the queue, from which point it may be inflight and must no longer be modified
+     */
+    private Map<String, IMqttsnQueuedPublishMessage> conflationIndex = new ConcurrentHashMap<>(INITIAL_CAPACITY);
+
     public MqttsnSessionBeanImpl(IMqttsnContext context, MqttsnClientState state) {
         super(context, state);
     }
@@ -55,17 +74,69 @@ public class MqttsnSessionBeanImpl extends MqttsnSessionImpl {
     }
 
     public boolean addTopicRegistration(IMqttsnTopicRegistration registration){
-        return registrationMap.put(registration.getTopicPath(), registration) == null;
+        synchronized (registrationMap){
+            IMqttsnTopicRegistration previous = registrationMap.put(registration.getTopicPath(), registration);
+            AliasIndex index = aliasIndex;
+            if(previous != null && previous.getAliasId() != registration.getAliasId()){
+                index = index.without(previous);
+            }
+            aliasIndex = index.with(registration);
+            return previous == null;
+        }
     }
 
     public boolean removeTopicRegistration(IMqttsnTopicRegistration registration){
-        return registrationMap.remove(registration.getTopicPath()) != null;
+        synchronized (registrationMap){
+            IMqttsnTopicRegistration removed = registrationMap.remove(registration.getTopicPath());
+            if(removed != null){
+                aliasIndex = aliasIndex.without(removed);
+            }
+            return removed != null;
+        }
+    }
+
+    /**
+     * Constant time lookup of the registration held against the alias
+     * @return the registration or null if the alias is not registered
+     */
+    public IMqttsnTopicRegistration getTopicRegistration(int alias){
+        return aliasIndex.get(alias);
     }
 
     public boolean offer(IMqttsnQueuedPublishMessage message){
-        synchronized (messageQueue){
-            return messageQueue.offer(message);
-        }
+        return messageQueue.offer(message);
+    }
+
+    /**
+     * Queue a message whose topic is conflated, such that subsequent messages on the same topic
+     * can be merged into it until it is polled.
+     */
+    public boolean offerConflated(IMqttsnQueuedPublishMessage message){
+        //-- index before the message becomes visible to poll, so poll always sees the entry to remove
+        conflationIndex.put(message.getData().getTopicPath(), message);
+        return messageQueue.offer(message);
+    }
+
+    /**
+     * Merge the message into the undelivered message on the same topic, if there is one. The queued
+     * message keeps its position in the queue but takes on the data of the new message.
+     *
+     * @return the data reference which was replaced if the message was merged (and so should not be queued),
+     * else null
+     */
+    public IMqttsnDataRef conflate(IMqttsnQueuedPublishMessage message){
+        if(conflationIndex.isEmpty()) return null;
+        IMqttsnDataRef[] replaced = new IMqttsnDataRef[1];
+        //-- atomic against the removal in poll, so a message is never modified once it has been handed out
+        conflationIndex.computeIfPresent(message.getData().getTopicPath(), (topicPath, queued) -> {
+            replaced[0] = queued.getDataRefId();
+            queued.setData(message.getData());
+            queued.setDataRefId(message.getDataRefId());
+            queued.setGrantedQoS(message.getGrantedQoS());
+            queued.setCreated(message.getCreated());
+            return queued;
+        });
+        return replaced[0];
     }
 
     public int getQueueSize(){
@@ -77,7 +148,24 @@ public class MqttsnSessionBeanImpl extends MqttsnSessionImpl {
     }
 
     public IMqttsnQueuedPublishMessage poll(){
-        return messageQueue.poll();
+        IMqttsnQueuedPublishMessage message = messageQueue.poll();
+        if(message != null && !conflationIndex.isEmpty()){
+            conflationIndex.remove(message.getData().getTopicPath(), message);
+        }
+        return message;
+    }
+
+    /**
+     * Remove a message which has not been polled, for example because it has expired
+     */
+    public boolean remove(IMqttsnQueuedPublishMessage message){
+        if(messageQueue.remove(message)){
+            if(!conflationIndex.isEmpty()){
+                conflationIndex.remove(message.getData().getTopicPath(), message);
+            }
+            return true;
+        }
+        return false;
     }
 
     public void clearSubscriptions(){
@@ -102,10 +190,14 @@ public class MqttsnSessionBeanImpl extends MqttsnSessionImpl {
 
     public void clearMessageQueue(){
         messageQueue.clear();
+        conflationIndex.clear();
     }
 
     public void clearRegistrations(){
-        registrationMap.clear();
+        synchronized (registrationMap){
+            registrationMap.clear();
+            aliasIndex = AliasIndex.EMPTY;
+        }
     }
 
     @Override
@@ -115,4 +207,46 @@ public class MqttsnSessionBeanImpl extends MqttsnSessionImpl {
         clearMessageQueue();
         clearRegistrations();
     }
+
+    /**
+     * Immutable, copied on change (registrations are rare in comparison to lookups)
+     */
+    private static final class AliasIndex {
+
+        static final AliasIndex EMPTY = new AliasIndex(0, new IMqttsnTopicRegistration[0]);
+
+        private final int base;
+        private final IMqttsnTopicRegistration[] slots;
+
+        AliasIndex(int base, IMqttsnTopicRegistration[] slots) {
+            this.base = base;
+            this.slots = slots;
+        }
+
+        IMqttsnTopicRegistration get(int alias){
+            int slot = alias - base;
+            return slot >= 0 && slot < slots.length ? slots[slot] : null;
+        }
+
+        AliasIndex with(IMqttsnTopicRegistration registration){
+            int alias = registration.getAliasId();
+            int newBase = slots.length == 0 ? alias : Math.min(base, alias);
+            int newLength = Math.max(base + slots.length, alias + 1) - newBase;
+            IMqttsnTopicRegistration[] updated = new IMqttsnTopicRegistration[newLength];
+            if(slots.length > 0){
+                System.arraycopy(slots, 0, updated, base - newBase, slots.length);
+            }
+            updated[alias - newBase] = registration;
+            return new AliasIndex(newBase, updated);
+        }
+
+        AliasIndex without(IMqttsnTopicRegistration registration){
+            int slot = registration.getAliasId() - base;
+            if(slot < 0 || slot >= slots.length || slots[slot] == null ||
+                    !slots[slot].getTopicPath().equals(registration.getTopicPath())) return this;
+            IMqttsnTopicRegistration[] updated = slots.clone();
+            updated[slot] = null;
+            return new AliasIndex(base, updated);
+        }
+    }
 }
@@ -29,6 +29,8 @@ import org.slj.mqtt.sn.model.MqttsnWaitToken;
 import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
 import org.slj.mqtt.sn.model.session.IMqttsnSession;
 
+import java.util.List;
+
 /**
  * Queue implementation to store messages destined to and from gateways and clients. Queues will be flushed acccording
  * to the session semantics defined during CONNECT.
@@ -53,6 +55,18 @@ public interface IMqttsnMessageQueue extends IMqttsnService  {
     void offer(IMqttsnSession session, IMqttsnQueuedPublishMessage message)
             throws MqttsnException, MqttsnQueueAcceptException;
 
+    /**
+     * Offer a batch of messages to the tails of several session queues, where messages.get(i) is destined for
+     * sessions.get(i). A message a session queue will not accept is handled as it would be by offer and does not fail the
+     * rest of the batch; flushes are scheduled once the whole batch has been queued rather than per message.
+     * @param sessions  - the sessions whose queues youd like to append
+     * @param messages - the message metadata to queue, one per session
+     * @return - the number of messages accepted
+     * @throws MqttsnException - an error occurred
+     */
+    int offerAll(List<IMqttsnSession> sessions, List<IMqttsnQueuedPublishMessage> messages)
+            throws MqttsnException;
+
     /**
      * Offer the queue or a context a new message to add to the tail.
      * @param session  - the session whose queue youd like to append
@@ -81,4 +95,10 @@ public interface IMqttsnMessageQueue extends IMqttsnService  {
 
     void clear(IMqttsnSession session) throws MqttsnException;
 
+    /**
+     * Discard expired messages from the session queues, called periodically by the runtime
+     * @throws MqttsnException - an error occurred
+     */
+    void tidy() throws MqttsnException;
+
 }
@@ -41,14 +41,36 @@ public interface IMqttsnMessageRegistry extends IMqttsnService {
 
     void tidy() throws MqttsnException ;
 
+    /**
+     * Add a message to the registry. The caller holds a single reference to the message which it must
+     * {@link #release(IMqttsnDataRef)} once it has finished with it (typically once the message has been queued
+     * to its recipients).
+     */
     IMqttsnDataRef add(byte[] data) throws MqttsnException ;
 
-//    Integer add(byte[] data, Date expires) throws MqttsnException;
+    /**
+     * Add a message which will be expired from the registry at the given time
+     * @param data - the payload
+     * @param expires - epoch millis after which the message is expired, Long.MAX_VALUE never expires
+     * @return a reference to the stored message
+     */
+    IMqttsnDataRef add(byte[] data, long expires) throws MqttsnException ;
 
     boolean remove(IMqttsnDataRef messageId) throws MqttsnException;
 
 //    boolean removeWhenCommitted(Integer messageId) throws MqttsnException;
 
+    /**
+     * Take an additional reference to the message, for example on behalf of each queue the message is placed in.
+     * Registries which rely on the garbage collector to reclaim messages may treat this as a no-op.
+     */
+    void retain(IMqttsnDataRef messageId) throws MqttsnException;
+
+    /**
+     * Release a reference to the message; once all references have been released the message is removed.
+     */
+    void release(IMqttsnDataRef messageId) throws MqttsnException;
+
     byte[] get(IMqttsnDataRef messageId) throws MqttsnException;
 
     long size();
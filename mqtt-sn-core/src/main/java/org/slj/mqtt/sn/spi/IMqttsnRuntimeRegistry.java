@@ -27,6 +27,7 @@ package org.slj.mqtt.sn.spi;
 import org.slj.mqtt.sn.impl.AbstractMqttsnRuntime;
 import org.slj.mqtt.sn.impl.AbstractMqttsnRuntimeRegistry;
 import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.utils.TopicDictionary;
 
 import java.util.List;
 import java.util.Optional;
@@ -185,6 +186,11 @@ public interface IMqttsnRuntimeRegistry {
      */
     IMqttsnMetricsService getMetrics();
 
+    /**
+     * @see TopicDictionary
+     */
+    TopicDictionary getTopicDictionary();
+
     /**
      * @see IMqttsnStorageService
      */
@@ -28,6 +28,7 @@ import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.model.session.IMqttsnSession;
 import org.slj.mqtt.sn.model.session.IMqttsnSubscription;
 
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -71,10 +72,11 @@ public interface IMqttsnSubscriptionRegistry extends IMqttsnService {
      * onto mutliple client queues. (Message expansion).
      *
      * @param topicPath - the full clear text topicPath for the subscription e.g. foo/bar
-     * @return a list of context which hold valid subscriptions for the supplied topic (including wildcard matching)
+     * @return the contexts which hold valid subscriptions for the supplied topic (including wildcard matching), each
+     * mapped to the QoS granted; where a context holds overlapping subscriptions, the maximum granted QoS
      * @throws MqttsnException
      */
-    Set<IMqttsnContext> matches(String topicPath) throws MqttsnException, MqttsnIllegalFormatException ;
+    Map<IMqttsnContext, Integer> matches(String topicPath) throws MqttsnException, MqttsnIllegalFormatException ;
 
 
     /**
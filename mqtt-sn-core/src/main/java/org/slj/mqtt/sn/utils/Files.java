@@ -256,9 +256,11 @@ public class Files {
      */
     public static byte[] consumeLinesFromStart(File file, int count)
             throws IOException {
+        //-- lines are split on the NEW_LINE byte only (no charset decoding) so records
+        //-- which are binary but newline-safe survive the round trip untouched
         ByteArrayOutputStream baos = null;
-        try (BufferedReader reader =
-                     new BufferedReader(new FileReader(file))){
+        try (InputStream reader =
+                     new BufferedInputStream(new FileInputStream(file))){
             File tmp = File.createTempFile(
                     getFileNameExcludingExtension(file.getName()),
                     "." + getFileExtension(file.getName()));
@@ -266,18 +268,23 @@ public class Files {
                     new BufferedOutputStream(
                             new FileOutputStream(tmp))) {
                 baos = new ByteArrayOutputStream(1024);
-                String line;
+                ByteArrayOutputStream line = new ByteArrayOutputStream(128);
                 int progress = 0;
-                while((line = reader.readLine()) != null) {
-                    byte[] b = line.getBytes(StandardCharsets.UTF_8);
-                    if(b.length > 0){
-                        OutputStream os =
-                                progress++ < count ?  baos : fos;
-                        os.write(b);
-                        os.write(System.lineSeparator().
-                                getBytes(StandardCharsets.UTF_8));
+                int b;
+                do {
+                    b = reader.read();
+                    if(b == NEW_LINE_DECIMAL || b == -1){
+                        if(line.size() > 0){
+                            OutputStream os =
+                                    progress++ < count ?  baos : fos;
+                            line.writeTo(os);
+                            os.write(NEW_LINE_DECIMAL);
+                            line.reset();
+                        }
+                    } else {
+                        line.write(b);
                     }
-                }
+                } while(b != -1);
             }
 
             if(!tmp.renameTo(file)){
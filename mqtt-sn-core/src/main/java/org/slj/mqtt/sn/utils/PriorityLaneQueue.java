@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free, multi-producer queue made up of a small fixed number of FIFO priority lanes. Elements are
+ * always taken from the lowest numbered non-empty lane first. Producers never block one another (or the consumer)
+ * and the size is maintained as an atomic counter so it is O(1) to read.
+ *
+ * Intended for use with a single consumer; peek followed by poll from the same thread will return the same element
+ * provided no element is offered to a higher priority lane in between.
+ */
+public class PriorityLaneQueue<T> {
+
+    private final List<Queue<T>> lanes;
+    private final LaneSelector<T> selector;
+    private final AtomicInteger size = new AtomicInteger();
+
+    public PriorityLaneQueue(int laneCount, LaneSelector<T> selector) {
+        if(laneCount < 1) throw new IllegalArgumentException("lane count must be at least 1");
+        this.selector = selector;
+        this.lanes = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++){
+            lanes.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    public boolean offer(T element){
+        int lane = Math.max(0, Math.min(lanes.size() - 1, selector.lane(element)));
+        //-- count the element before it becomes visible, so a concurrent poll can never take the size below
+        //-- the number of elements actually held
+        size.incrementAndGet();
+        if(lanes.get(lane).offer(element)){
+            return true;
+        }
+        size.decrementAndGet();
+        return false;
+    }
+
+    public T peek(){
+        for (int i = 0; i < lanes.size(); i++){
+            T element = lanes.get(i).peek();
+            if(element != null) return element;
+        }
+        return null;
+    }
+
+    public T poll(){
+        for (int i = 0; i < lanes.size(); i++){
+            T element = lanes.get(i).poll();
+            if(element != null){
+                size.decrementAndGet();
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the specific element (by identity or equality) from whichever lane holds it. This is O(n) in the
+     * lane size, but is cheap where the element is at (or near) the head as it is when discarding expired elements.
+     */
+    public boolean remove(T element){
+        for (int i = 0; i < lanes.size(); i++){
+            if(lanes.get(i).remove(element)){
+                size.decrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of queued elements; while offers are in flight this may briefly include elements
+     * not yet visible to poll, but it never under-counts
+     */
+    public int size(){
+        return size.get();
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    public void clear(){
+        while(poll() != null){
+        }
+    }
+
+    public int getLaneCount(){
+        return lanes.size();
+    }
+
+    public interface LaneSelector<T> {
+
+        /**
+         * @return the lane the element should be queued on, 0 being the highest priority
+         */
+        int lane(T element);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates variable length byte storage outside of the java heap. Direct memory is reserved in large slabs
+ * which are carved into power-of-two sized slots (one size class per power of two), freed slots are recycled
+ * within their size class so the steady state allocates nothing. Payloads larger than a slab are given
+ * a dedicated direct buffer.
+ *
+ * Since nothing is reclaimed by the garbage collector, every allocated slot MUST be freed exactly once.
+ */
+public class SlabAllocator {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_SLOT_SHIFT = 6;
+
+    private final int slabSize;
+    private final long maxReserved;
+    private final SizeClass[] classes;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * @param slabSize - the size of each direct buffer reserved (rounded up to a power of two)
+     * @param maxReserved - the maximum number of bytes of direct memory which will be reserved
+     */
+    public SlabAllocator(int slabSize, long maxReserved) {
+        if(slabSize < (1 << MIN_SLOT_SHIFT)) throw new IllegalArgumentException("slab size too small");
+        this.slabSize = Integer.highestOneBit(slabSize - 1) << 1;
+        this.maxReserved = maxReserved;
+        int count = Integer.numberOfTrailingZeros(this.slabSize) - MIN_SLOT_SHIFT + 1;
+        classes = new SizeClass[count];
+        for (int i = 0; i < count; i++){
+            classes[i] = new SizeClass(1 << (i + MIN_SLOT_SHIFT));
+        }
+    }
+
+    /**
+     * Allocate a slot and copy the data into it.
+     * @throws IllegalStateException if the maximum reservation would be exceeded
+     */
+    public Slot allocate(byte[] data){
+        Slot slot;
+        if(data.length > slabSize){
+            reserve(data.length);
+            slot = new Slot(null, ByteBuffer.allocateDirect(data.length), 0, data.length);
+        } else {
+            int idx = Math.max(0, 32 - Integer.numberOfLeadingZeros(Math.max(1, data.length) - 1) - MIN_SLOT_SHIFT);
+            slot = classes[idx].allocate();
+        }
+        ByteBuffer b = slot.buffer.duplicate();
+        b.position(slot.offset);
+        b.put(data);
+        slot.length = data.length;
+        used.addAndGet(slot.capacity);
+        return slot;
+    }
+
+    public void free(Slot slot){
+        used.addAndGet(-slot.capacity);
+        if(slot.owner == null){
+            //-- dedicated buffer, released to the gc (and the cleaner) once unreachable
+            reserved.addAndGet(-slot.capacity);
+        } else {
+            slot.owner.free(slot);
+        }
+    }
+
+    /**
+     * @return the number of bytes of direct memory reserved
+     */
+    public long getReservedBytes(){
+        return reserved.get();
+    }
+
+    /**
+     * @return the number of bytes held by allocated slots
+     */
+    public long getUsedBytes(){
+        return used.get();
+    }
+
+    private void reserve(int bytes){
+        long current;
+        do {
+            current = reserved.get();
+            if(current + bytes > maxReserved){
+                throw new IllegalStateException("off-heap reservation exhausted, unable to reserve " + bytes + " bytes");
+            }
+        } while(!reserved.compareAndSet(current, current + bytes));
+    }
+
+    private class SizeClass {
+
+        private final int slotSize;
+        private final ArrayDeque<Slot> free = new ArrayDeque<>();
+        private ByteBuffer slab;
+        private int position;
+
+        SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+
+        synchronized Slot allocate(){
+            Slot slot = free.pollFirst();
+            if(slot != null) return slot;
+            if(slab == null || position + slotSize > slab.capacity()){
+                reserve(slabSize);
+                slab = ByteBuffer.allocateDirect(slabSize);
+                position = 0;
+            }
+            slot = new Slot(this, slab, position, slotSize);
+            position += slotSize;
+            return slot;
+        }
+
+        synchronized void free(Slot slot){
+            free.addFirst(slot);
+        }
+    }
+
+    public static class Slot {
+
+        private final SizeClass owner;
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int capacity;
+        private int length;
+
+        private Slot(SizeClass owner, ByteBuffer buffer, int offset, int capacity) {
+            this.owner = owner;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Copy the contents of the slot back onto the heap
+         */
+        public byte[] read(){
+            byte[] data = new byte[length];
+            ByteBuffer b = buffer.duplicate();
+            b.position(offset);
+            b.get(data);
+            return data;
+        }
+    }
+}
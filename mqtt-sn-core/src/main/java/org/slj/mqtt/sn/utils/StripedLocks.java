@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed size pool of re-entrant locks, striped by the hash of an id (for example a clientId). Unlike
+ * allocating a lock per id, acquiring a lock is allocation free and never touches a shared monitor; ids which
+ * share a stripe will contend, so size the pool well above the number of concurrently active ids.
+ *
+ * Acquisitions and contended acquisitions (where the lock was not immediately available) are counted
+ * so contention can be surfaced as a metric.
+ */
+public class StripedLocks {
+
+    public static final int DEFAULT_STRIPES = 256;
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+
+    public StripedLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public StripedLocks(int stripeCount) {
+        if(stripeCount < 1) throw new IllegalArgumentException("stripe count must be at least 1");
+        int size = Integer.highestOneBit(stripeCount - 1) << 1;
+        if(size < 1) size = 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++){
+            stripes[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Acquire the lock for the id, the caller MUST unlock the returned lock in a finally block.
+     */
+    public Lock lock(String id){
+        ReentrantLock lock = stripe(id);
+        acquisitions.increment();
+        if(!lock.tryLock()){
+            contended.increment();
+            lock.lock();
+        }
+        return lock;
+    }
+
+    public ReentrantLock stripe(String id){
+        if (id == null) {
+            throw new NullPointerException();
+        }
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & mask];
+    }
+
+    public int getStripeCount(){
+        return stripes.length;
+    }
+
+    public long getAcquisitionCount(){
+        return acquisitions.sum();
+    }
+
+    public long getContendedCount(){
+        return contended.sum();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.utils;
+
+import org.slj.mqtt.sn.utils.tree.MqttTopicTree;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * A runtime wide dictionary of topic paths. Topics arrive as new String instances on every message (from the wire
+ * or from a backend connector) and are then held by registrations, subscriptions and every queued message; interning
+ * them here means each distinct topic is held in memory once, however many sessions and messages refer to it.
+ *
+ * Each interned topic is given an integer handle, and carries its tokenised (level by level) form and its modified
+ * form, each computed once on first use rather than on every message.
+ *
+ * Interning is weak; a topic is held by the dictionary only while something else (a registration, subscription or
+ * queued message) holds the canonical instance, after which it is purged along with its handle. Topics which embed
+ * a per-device id therefore come and go with their devices rather than being pinned. The dictionary is also bounded;
+ * while full, topics not already known are returned as supplied (uninterned).
+ */
+public class TopicDictionary {
+
+    public static final int NO_HANDLE = -1;
+
+    //-- marks a topic whose modified form is the topic itself, so the entry never holds its own canonical instance
+    private static final Object UNMODIFIED = new Object();
+
+    private final int maxTopics;
+    private final Map<Object, TopicReference> topics;
+    private final Map<Integer, TopicReference> handles;
+    private final ReferenceQueue<String> collected = new ReferenceQueue<>();
+    private final AtomicInteger nextHandle = new AtomicInteger();
+
+    /**
+     * @param maxTopics - the maximum number of distinct topics interned at any one time, 0 disables interning
+     */
+    public TopicDictionary(int maxTopics) {
+        this.maxTopics = maxTopics;
+        int initialCapacity = Math.min(Math.max(16, maxTopics), 1024);
+        this.topics = new ConcurrentHashMap<>(initialCapacity);
+        this.handles = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    /**
+     * @return the canonical instance of the topic path, or the topic path supplied where it is not (and cannot
+     * currently be) interned
+     */
+    public String intern(String topicPath){
+        TopicReference reference = lookup(topicPath);
+        String canonical = reference == null ? null : reference.get();
+        return canonical == null ? topicPath : canonical;
+    }
+
+    /**
+     * @return the handle of the (interned) topic path, or {@link #NO_HANDLE} where it cannot be interned. A handle
+     * identifies the topic for as long as the canonical instance is held
+     */
+    public int getHandle(String topicPath){
+        TopicReference reference = lookup(topicPath);
+        return reference == null ? NO_HANDLE : reference.handle;
+    }
+
+    /**
+     * @return the canonical topic path for the handle, or null where the topic is no longer held
+     */
+    public String getTopicPath(int handle){
+        TopicReference reference = handles.get(handle);
+        return reference == null ? null : reference.get();
+    }
+
+    /**
+     * @return the levels of the topic path, tokenised once per interned topic; the array is shared and must not
+     * be modified
+     */
+    public String[] getSegments(String topicPath){
+        TopicReference reference = lookup(topicPath);
+        if(reference == null) return MqttTopicTree.tokenize(topicPath);
+        String[] segments = reference.segments;
+        if(segments == null){
+            reference.segments = segments = MqttTopicTree.tokenize(topicPath);
+        }
+        return segments;
+    }
+
+    /**
+     * Apply a context independent modification to the topic path, caching the (interned) result against the topic
+     * so the modifier is applied once per interned topic.
+     * @return the modified form of the topic path
+     */
+    public String getModified(String topicPath, UnaryOperator<String> modifier){
+        TopicReference reference = lookup(topicPath);
+        String canonical = reference == null ? null : reference.get();
+        if(canonical == null) return modifier.apply(topicPath);
+        Object modified = reference.modified;
+        if(modified == UNMODIFIED) return canonical;
+        if(modified != null) return (String) modified;
+        String result = modifier.apply(canonical);
+        if(canonical.equals(result)){
+            reference.modified = UNMODIFIED;
+            return canonical;
+        }
+        result = intern(result);
+        reference.modified = result;
+        return result;
+    }
+
+    /**
+     * @return the number of topics currently interned
+     */
+    public int size(){
+        purgeCollected();
+        return topics.size();
+    }
+
+    public int getMaxTopics(){
+        return maxTopics;
+    }
+
+    public void clear(){
+        topics.clear();
+        handles.clear();
+    }
+
+    protected TopicReference lookup(String topicPath){
+        if(topicPath == null || maxTopics <= 0) return null;
+        purgeCollected();
+        Lookup key = new Lookup(topicPath);
+        while(true){
+            TopicReference reference = topics.get(key);
+            if(reference != null){
+                if(reference.get() != null) return reference;
+                //-- collected but not yet purged
+                remove(reference);
+                continue;
+            }
+            if(topics.size() >= maxTopics) return null;
+            reference = new TopicReference(topicPath, nextHandle.getAndIncrement() & Integer.MAX_VALUE, collected);
+            TopicReference existing = topics.putIfAbsent(reference, reference);
+            if(existing == null){
+                handles.put(reference.handle, reference);
+                return reference;
+            }
+            if(existing.get() != null) return existing;
+            remove(existing);
+        }
+    }
+
+    private void purgeCollected(){
+        TopicReference reference;
+        while((reference = (TopicReference) collected.poll()) != null){
+            remove(reference);
+        }
+    }
+
+    private void remove(TopicReference reference){
+        topics.remove(reference, reference);
+        handles.remove(reference.handle, reference);
+    }
+
+    /**
+     * Weakly refers to the canonical topic path, holding the state cached against the topic. Equal to another
+     * reference (or lookup) of the same topic path while the topic is held, and only to itself once collected.
+     */
+    protected static final class TopicReference extends WeakReference<String> {
+
+        private final int hash;
+        private final int handle;
+        private volatile String[] segments;
+        private volatile Object modified;
+
+        TopicReference(String topicPath, int handle, ReferenceQueue<String> queue) {
+            super(topicPath, queue);
+            this.hash = topicPath.hashCode();
+            this.handle = handle;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TopicReference)) return false;
+            String topicPath = get();
+            return topicPath != null && topicPath.equals(((TopicReference) o).get());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A topic path to find in the dictionary, without creating a reference
+     */
+    private static final class Lookup {
+
+        private final String topicPath;
+
+        Lookup(String topicPath) {
+            this.topicPath = topicPath;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TopicReference && topicPath.equals(((TopicReference) o).get());
+        }
+
+        @Override
+        public int hashCode() {
+            return topicPath.hashCode();
+        }
+    }
+}
@@ -45,6 +45,7 @@ public class TopicPath {
     static final String WILDCARD = "#";
     static final String WILDSEG = "+";
     static final String PATHSEP = "/";
+    static final String SHARE_PREFIX = "$share/";
 
     private Topic topic;
 
@@ -78,6 +79,33 @@ public class TopicPath {
         return i == msgTokens.size();
     }
 
+    /**
+     * A shared subscription takes the form $share/{ShareName}/{filter}; each message matching the filter is
+     * delivered to only one of the subscribers sharing the same name and filter
+     */
+    public static boolean isShared(String topicPath){
+        if(topicPath == null || !topicPath.startsWith(SHARE_PREFIX)) return false;
+        int sep = topicPath.indexOf(PATHSEP, SHARE_PREFIX.length());
+        return sep > SHARE_PREFIX.length() && sep < topicPath.length() - 1 &&
+                !isWild(topicPath.substring(SHARE_PREFIX.length(), sep));
+    }
+
+    /**
+     * @return the share name of a shared subscription, or null if the topic path is not a shared subscription
+     */
+    public static String getShareName(String topicPath){
+        if(!isShared(topicPath)) return null;
+        return topicPath.substring(SHARE_PREFIX.length(), topicPath.indexOf(PATHSEP, SHARE_PREFIX.length()));
+    }
+
+    /**
+     * @return the topic filter of a shared subscription, or the topic path supplied if it is not a shared subscription
+     */
+    public static String getSharedFilter(String topicPath){
+        if(!isShared(topicPath)) return topicPath;
+        return topicPath.substring(topicPath.indexOf(PATHSEP, SHARE_PREFIX.length()) + 1);
+    }
+
     public static boolean isWild(String topicPath){
         return topicPath != null &&
                 topicPath.contains(WILDCARD) ||
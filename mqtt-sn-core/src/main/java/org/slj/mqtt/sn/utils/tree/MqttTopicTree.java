@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.utils.tree;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A topic tree purpose built for MQTT subscription matching. Topic filters are stored one level per node, where the
+ * single level ('+') and multi level ('#') wildcards occupy dedicated slots on each node rather than being looked up
+ * as ordinary children, and paths are segmented by scanning for the separator character (no regular expressions).
+ *
+ * Reads are lock free; child maps are concurrent and the members at each level are held in copy-on-write arrays
+ * which are swapped whole, so a search always sees a consistent set of members at each level. Writers are serialised
+ * amongst themselves and prune empty branches on removal.
+ *
+ * Matching follows the MQTT rules; '#' matches the parent level and any number of levels beneath it, '+' matches
+ * exactly one (possibly empty) level, and wildcards at the first level do not match topics beginning with '$'.
+ */
+public class MqttTopicTree<T> {
+
+    public static final char PATH_SEP = '/';
+    public static final char SINGLE_LEVEL_WILDCARD = '+';
+    public static final char MULTI_LEVEL_WILDCARD = '#';
+    public static final char SYSTEM_PREFIX = '$';
+
+    private static final int DEFAULT_MAX_PATH_SIZE = 1024;
+    private static final int DEFAULT_MAX_PATH_SEGMENTS = 1024;
+    private static final int DEFAULT_MAX_MEMBERS_AT_LEVEL = 1024 * 10;
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Node root = new Node(null, null);
+    private final Object writeLock = new Object();
+    private long maxPathSize = DEFAULT_MAX_PATH_SIZE;
+    private long maxPathSegments = DEFAULT_MAX_PATH_SEGMENTS;
+    private long maxMembersAtLevel = DEFAULT_MAX_MEMBERS_AT_LEVEL;
+
+    public long getMaxPathSize() {
+        return maxPathSize;
+    }
+
+    public void setMaxPathSize(long maxPathSize) {
+        this.maxPathSize = maxPathSize;
+    }
+
+    public long getMaxPathSegments() {
+        return maxPathSegments;
+    }
+
+    public void setMaxPathSegments(long maxPathSegments) {
+        this.maxPathSegments = maxPathSegments;
+    }
+
+    public long getMaxMembersAtLevel() {
+        return maxMembersAtLevel;
+    }
+
+    public void setMaxMembersAtLevel(long maxMembersAtLevel) {
+        this.maxMembersAtLevel = maxMembersAtLevel;
+    }
+
+    /**
+     * Add the member at the topic filter supplied, the filter is assumed to have been validated as a legal
+     * subscription topic prior to calling. Where an equal member already exists at the filter it is replaced
+     * by the member supplied, allowing members to carry state (for example a granted QoS) which can be updated.
+     * @return true if the member was added, false if it already existed at the filter (and was replaced)
+     */
+    public boolean addSubscription(final String topicFilter, final T member) throws TriesTreeLimitExceededException {
+        if(topicFilter == null) throw new NullPointerException("unable to add <null> path to tree");
+        if(member == null) throw new NullPointerException("unable to add <null> member to tree");
+        if(topicFilter.length() > maxPathSize)
+            throw new TriesTreeLimitExceededException("cannot add paths lengths exceeding the configured max '"+maxPathSize+"' - ("+topicFilter.length()+")");
+
+        synchronized (writeLock){
+            Node node = root;
+            int start = 0, segments = 0;
+            while(start <= topicFilter.length()){
+                if(++segments > maxPathSegments)
+                    throw new TriesTreeLimitExceededException("cannot add paths exceeding the configured max segments '"+maxPathSegments+"'");
+                int end = segmentEnd(topicFilter, start);
+                node = node.getOrCreateChild(topicFilter.substring(start, end));
+                start = end + 1;
+            }
+            return node.addMember(member);
+        }
+    }
+
+    /**
+     * Remove the member from the topic filter supplied, pruning any branches which are left empty.
+     * @return true if the member was removed, false if it did not exist at the filter
+     */
+    public boolean removeSubscription(final String topicFilter, final T member){
+        if(topicFilter == null) throw new NullPointerException("unable to remove <null> path from tree");
+        synchronized (writeLock){
+            Node node = root;
+            int start = 0;
+            while(start <= topicFilter.length()){
+                int end = segmentEnd(topicFilter, start);
+                node = node.getChild(topicFilter, start, end);
+                if(node == null) return false;
+                start = end + 1;
+            }
+            boolean removed = node.removeMember(member);
+            if(removed){
+                while(node != root && node.isEmpty()){
+                    node.parent.removeChild(node);
+                    node = node.parent;
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Collect the members of every filter matching the topic into the collection supplied (which may be reused
+     * by the caller across searches). A member held at several matching filters is offered once per filter, so
+     * use a {@link Set} where distinct members are required.
+     * @return the collection supplied
+     */
+    public <C extends Collection<? super T>> C searchMembers(final String topic, final C collector){
+        visitMembers(topic, collector::add);
+        return collector;
+    }
+
+    /**
+     * Offer the members of every filter matching the topic to the visitor, once per matching filter.
+     */
+    public void visitMembers(final String topic, final Consumer<? super T> visitor){
+        if(topic == null) throw new NullPointerException("unable to search <null> path");
+        boolean system = topic.length() > 0 && topic.charAt(0) == SYSTEM_PREFIX;
+        search(root, topic, 0, system, visitor);
+    }
+
+    /**
+     * Offer the members of every filter matching the topic to the visitor, once per matching filter; the topic is
+     * supplied already tokenised (see {@link #tokenize(String)}), so repeated searches of the same topic need not
+     * split it again.
+     */
+    public void visitMembers(final String[] segments, final Consumer<? super T> visitor){
+        if(segments == null) throw new NullPointerException("unable to search <null> path");
+        boolean system = segments[0].length() > 0 && segments[0].charAt(0) == SYSTEM_PREFIX;
+        search(root, segments, 0, system, visitor);
+    }
+
+    /**
+     * The inverse of {@link #visitMembers(String, Consumer)} for trees holding concrete topics rather than filters
+     * (for example retained messages); offer the members of every stored topic matched by the filter supplied.
+     * Only literal levels are traversed, so members stored against wildcard paths are never offered.
+     */
+    public void visitMatching(final String topicFilter, final Consumer<? super T> visitor){
+        if(topicFilter == null) throw new NullPointerException("unable to search <null> filter");
+        match(root, topicFilter, 0, visitor);
+    }
+
+    public Set<T> searchMembers(final String topic){
+        return searchMembers(topic, new HashSet<>());
+    }
+
+    public boolean hasMembers(final String topic){
+        return !searchMembers(topic, new ArrayList<>(4)).isEmpty();
+    }
+
+    /**
+     * @return the distinct topic filters at which members are held
+     */
+    public Set<String> getDistinctPaths(){
+        Set<String> paths = new HashSet<>();
+        collectPaths(root, paths);
+        return paths;
+    }
+
+    public int getBranchCount(){
+        return root.childCount();
+    }
+
+    private void search(Node node, String topic, int start, boolean system, Consumer<? super T> visitor){
+        //-- wildcards never match a leading '$' level
+        boolean wildcards = !system || node != root;
+        if(wildcards){
+            Node multi = node.multi;
+            if(multi != null) multi.collect(visitor);
+        }
+        if(start > topic.length()){
+            node.collect(visitor);
+            return;
+        }
+        int end = segmentEnd(topic, start);
+        Node child = node.getLiteralChild(topic.substring(start, end));
+        if(child != null) search(child, topic, end + 1, system, visitor);
+        if(wildcards){
+            Node single = node.single;
+            if(single != null) search(single, topic, end + 1, system, visitor);
+        }
+    }
+
+    private void search(Node node, String[] segments, int level, boolean system, Consumer<? super T> visitor){
+        //-- wildcards never match a leading '$' level
+        boolean wildcards = !system || node != root;
+        if(wildcards){
+            Node multi = node.multi;
+            if(multi != null) multi.collect(visitor);
+        }
+        if(level == segments.length){
+            node.collect(visitor);
+            return;
+        }
+        Node child = node.getLiteralChild(segments[level]);
+        if(child != null) search(child, segments, level + 1, system, visitor);
+        if(wildcards){
+            Node single = node.single;
+            if(single != null) search(single, segments, level + 1, system, visitor);
+        }
+    }
+
+    private void match(Node node, String topicFilter, int start, Consumer<? super T> visitor){
+        if(start > topicFilter.length()){
+            node.collect(visitor);
+            return;
+        }
+        int end = segmentEnd(topicFilter, start);
+        String segment = topicFilter.substring(start, end);
+        if(isWildcard(segment, MULTI_LEVEL_WILDCARD)){
+            //-- '#' includes the parent level
+            if(node != root) node.collect(visitor);
+            node.forEachLiteralChild(c -> {
+                if(node != root || !c.isSystem()) collectAll(c, visitor);
+            });
+        } else if(isWildcard(segment, SINGLE_LEVEL_WILDCARD)){
+            node.forEachLiteralChild(c -> {
+                if(node != root || !c.isSystem()) match(c, topicFilter, end + 1, visitor);
+            });
+        } else {
+            Node child = node.getLiteralChild(segment);
+            if(child != null) match(child, topicFilter, end + 1, visitor);
+        }
+    }
+
+    private void collectAll(Node node, Consumer<? super T> visitor){
+        node.collect(visitor);
+        node.forEachLiteralChild(c -> collectAll(c, visitor));
+    }
+
+    private void collectPaths(Node node, Set<String> paths){
+        if(node != root && node.members.length > 0){
+            paths.add(node.toPath());
+        }
+        node.forEachChild(c -> collectPaths(c, paths));
+    }
+
+    /**
+     * Split a topic into its levels by the same rules as the tree; empty levels (leading, trailing or repeated
+     * separators) are retained.
+     */
+    public static String[] tokenize(final String topic){
+        if(topic == null) throw new NullPointerException("unable to tokenize <null> path");
+        int count = 1;
+        for (int i = 0; i < topic.length(); i++){
+            if(topic.charAt(i) == PATH_SEP) count++;
+        }
+        String[] segments = new String[count];
+        int start = 0;
+        for (int i = 0; i < count; i++){
+            int end = segmentEnd(topic, start);
+            segments[i] = topic.substring(start, end);
+            start = end + 1;
+        }
+        return segments;
+    }
+
+    /**
+     * Test a single topic filter against a topic using the same rules as the tree, without tokenising either.
+     */
+    public static boolean matches(final String topicFilter, final String topic){
+        if(topic.length() > 0 && topic.charAt(0) == SYSTEM_PREFIX &&
+                topicFilter.length() > 0 && (topicFilter.charAt(0) == SINGLE_LEVEL_WILDCARD ||
+                topicFilter.charAt(0) == MULTI_LEVEL_WILDCARD)){
+            return false;
+        }
+        int fStart = 0, tStart = 0;
+        while(true){
+            int fEnd = segmentEnd(topicFilter, fStart);
+            int fLength = fEnd - fStart;
+            if(fLength == 1 && topicFilter.charAt(fStart) == MULTI_LEVEL_WILDCARD) return true;
+            if(tStart > topic.length()) return false;
+            int tEnd = segmentEnd(topic, tStart);
+            if(!(fLength == 1 && topicFilter.charAt(fStart) == SINGLE_LEVEL_WILDCARD)){
+                if(fLength != tEnd - tStart ||
+                        !topicFilter.regionMatches(fStart, topic, tStart, fLength)) return false;
+            }
+            fStart = fEnd + 1;
+            tStart = tEnd + 1;
+            if(fStart > topicFilter.length()) return tStart > topic.length();
+        }
+    }
+
+    private static int segmentEnd(String path, int start){
+        int end = path.indexOf(PATH_SEP, start);
+        return end == -1 ? path.length() : end;
+    }
+
+    private static boolean isWildcard(String segment, char wildcard){
+        return segment.length() == 1 && segment.charAt(0) == wildcard;
+    }
+
+    private class Node {
+
+        private final Node parent;
+        private final String segment;
+        private volatile Map<String, Node> children;
+        private volatile Node single;
+        private volatile Node multi;
+        private volatile Object[] members = EMPTY;
+
+        Node(Node parent, String segment){
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        Node getChild(String path, int start, int end){
+            String segment = path.substring(start, end);
+            if(isWildcard(segment, SINGLE_LEVEL_WILDCARD)) return single;
+            if(isWildcard(segment, MULTI_LEVEL_WILDCARD)) return multi;
+            return getLiteralChild(segment);
+        }
+
+        Node getLiteralChild(String segment){
+            Map<String, Node> children = this.children;
+            return children == null ? null : children.get(segment);
+        }
+
+        //-- writers only
+        Node getOrCreateChild(String segment){
+            if(isWildcard(segment, SINGLE_LEVEL_WILDCARD)){
+                if(single == null) single = new Node(this, segment);
+                return single;
+            }
+            if(isWildcard(segment, MULTI_LEVEL_WILDCARD)){
+                if(multi == null) multi = new Node(this, segment);
+                return multi;
+            }
+            if(children == null) children = new ConcurrentHashMap<>(4);
+            return children.computeIfAbsent(segment, s -> new Node(this, s));
+        }
+
+        //-- writers only
+        void removeChild(Node child){
+            if(single == child) single = null;
+            else if(multi == child) multi = null;
+            else if(children != null) children.remove(child.segment, child);
+        }
+
+        //-- writers only
+        boolean addMember(T member) throws TriesTreeLimitExceededException {
+            Object[] current = members;
+            for (int i = 0; i < current.length; i++){
+                if(current[i].equals(member)){
+                    Object[] updated = current.clone();
+                    updated[i] = member;
+                    members = updated;
+                    return false;
+                }
+            }
+            if(current.length + 1 > maxMembersAtLevel){
+                throw new TriesTreeLimitExceededException("member limit exceeded at level");
+            }
+            Object[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = member;
+            members = updated;
+            return true;
+        }
+
+        //-- writers only
+        boolean removeMember(T member){
+            Object[] current = members;
+            for (int i = 0; i < current.length; i++){
+                if(current[i].equals(member)){
+                    Object[] updated = new Object[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    members = updated;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        void collect(Consumer<? super T> visitor){
+            Object[] current = members;
+            for (int i = 0; i < current.length; i++){
+                visitor.accept((T) current[i]);
+            }
+        }
+
+        boolean isEmpty(){
+            return members.length == 0 && single == null && multi == null &&
+                    (children == null || children.isEmpty());
+        }
+
+        int childCount(){
+            return (children == null ? 0 : children.size()) +
+                    (single == null ? 0 : 1) + (multi == null ? 0 : 1);
+        }
+
+        boolean isSystem(){
+            return segment.length() > 0 && segment.charAt(0) == SYSTEM_PREFIX;
+        }
+
+        void forEachLiteralChild(Consumer<Node> consumer){
+            Map<String, Node> children = this.children;
+            if(children != null) children.values().forEach(consumer);
+        }
+
+        void forEachChild(Consumer<Node> consumer){
+            Map<String, Node> children = this.children;
+            if(children != null) children.values().forEach(consumer);
+            Node single = this.single;
+            if(single != null) consumer.accept(single);
+            Node multi = this.multi;
+            if(multi != null) consumer.accept(multi);
+        }
+
+        String toPath(){
+            StringBuilder sb = new StringBuilder(segment);
+            Node node = parent;
+            while(node != null && node != root){
+                sb.insert(0, PATH_SEP).insert(0, node.segment);
+                node = node.parent;
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -25,10 +25,18 @@
 package org.slj.mqtt.sn.test;
 
 import org.slj.mqtt.sn.impl.AbstractMqttsnRuntime;
+import org.slj.mqtt.sn.impl.MqttsnFilesystemStorageService;
+import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
 import org.slj.mqtt.sn.net.NetworkAddress;
+import org.slj.mqtt.sn.spi.IMqttsnObjectReaderWriter;
+import org.slj.mqtt.sn.spi.IMqttsnStorageService;
+import org.slj.mqtt.sn.spi.MqttsnException;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 
 public class MqttsnTestRuntime extends AbstractMqttsnRuntime {
 
@@ -36,6 +44,23 @@ public class MqttsnTestRuntime extends AbstractMqttsnRuntime {
     public static String TEST_CLIENT_ID = "testClientId-";
     public static NetworkAddress TEST_ADDRESS = NetworkAddress.localhost(10001);
 
+    /**
+     * @return storage rooted in a new temporary directory, so tests neither share a workspace nor depend on the
+     * working directory
+     */
+    public static IMqttsnStorageService createTemporaryStorageService() throws IOException {
+        File root = Files.createTempDirectory("mqtt-sn-test").toFile();
+        //-- the storage service expects its default folder to exist beneath the root
+        new File(root, IMqttsnStorageService.DEFAULT_FOLDER_NAME).mkdirs();
+        return new MqttsnFilesystemStorageService(IMqttsnObjectReaderWriter.DEFAULT, root, "test");
+    }
+
+    public IMqttsnSession createSession(String clientId) throws MqttsnException {
+        IMqttsnContext context = getRegistry().getContextFactory().createInitialApplicationContext(
+                getRegistry().getContextFactory().createInitialNetworkContext(TEST_ADDRESS), clientId, 1);
+        return getRegistry().getSessionRegistry().getSession(context, true);
+    }
+
     @Override
     public void close() throws IOException {
     }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.IntegerDataRef;
+import org.slj.mqtt.sn.model.MqttsnClientState;
+import org.slj.mqtt.sn.model.MqttsnContext;
+import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.model.session.impl.MqttsnSessionBeanImpl;
+
+public class ConflationTests {
+
+    @Test
+    public void testNewValueReplacesUndeliveredInPlace() {
+
+        MqttsnSessionBeanImpl bean = new MqttsnSessionBeanImpl(new MqttsnContext("client"), MqttsnClientState.ASLEEP);
+        IMqttsnQueuedPublishMessage first = message("setpoint", 1);
+        IMqttsnDataRef firstRef = first.getDataRefId();
+        bean.offerConflated(first);
+        bean.offer(message("other", 2));
+
+        Assert.assertEquals("second value should be merged", firstRef, bean.conflate(message("setpoint", 3)));
+        Assert.assertNull("unindexed topic should not be merged", bean.conflate(message("other", 4)));
+        Assert.assertEquals("merged message should not grow the queue", 2, bean.getQueueSize());
+
+        IMqttsnQueuedPublishMessage polled = bean.poll();
+        Assert.assertSame("merged message should keep its position", first, polled);
+        Assert.assertEquals("merged message should carry the latest value", 3, polled.getDataRefId().getId());
+    }
+
+    @Test
+    public void testPolledMessageIsNeverModified() {
+
+        MqttsnSessionBeanImpl bean = new MqttsnSessionBeanImpl(new MqttsnContext("client"), MqttsnClientState.ASLEEP);
+        bean.offerConflated(message("setpoint", 1));
+        IMqttsnQueuedPublishMessage polled = bean.poll();
+
+        Assert.assertNull("a polled message may be inflight and should not be merged into",
+                bean.conflate(message("setpoint", 2)));
+        Assert.assertEquals("polled message should be unchanged", 1, polled.getDataRefId().getId());
+    }
+
+    private static IMqttsnQueuedPublishMessage message(String topicPath, int ref){
+        return new MqttsnQueuedPublishMessageImpl(new IntegerDataRef(ref), new PublishData(topicPath, 1, false));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.impl.ram.MqttsnInMemoryMessageRegistry;
+import org.slj.mqtt.sn.impl.ram.MqttsnOffHeapMessageRegistry;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.spi.IMqttsnMessageRegistry;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.spi.MqttsnExpectationFailedException;
+import org.slj.mqtt.sn.test.MqttsnTestRuntime;
+import org.slj.mqtt.sn.test.MqttsnTestRuntimeRegistry;
+
+import java.io.IOException;
+
+public class DeduplicationTests {
+
+    private MqttsnTestRuntime runtime;
+
+    public <T extends IMqttsnMessageRegistry> T start(T messageRegistry) throws MqttsnException, IOException {
+        MqttsnTestRuntimeRegistry registry = MqttsnTestRuntimeRegistry.defaultConfiguration(
+                MqttsnTestRuntime.createTemporaryStorageService(),
+                new MqttsnOptions().withMessageRegistryDeduplication(true), false);
+        registry.withServiceReplaceIfExists(IMqttsnMessageRegistry.class, messageRegistry);
+        runtime = new MqttsnTestRuntime();
+        runtime.start(registry);
+        return messageRegistry;
+    }
+
+    @After
+    public void tearDown() throws MqttsnException, IOException {
+        if(runtime != null){
+            try {
+                runtime.stop();
+            } finally {
+                runtime.close();
+            }
+        }
+    }
+
+    @Test
+    public void testEqualContentIsShared() throws MqttsnException, IOException {
+
+        IMqttsnMessageRegistry messageRegistry = start(new MqttsnInMemoryMessageRegistry());
+        IMqttsnDataRef first = messageRegistry.add(new byte[]{1, 2, 3});
+        IMqttsnDataRef second = messageRegistry.add(new byte[]{1, 2, 3});
+        IMqttsnDataRef other = messageRegistry.add(new byte[]{1, 2, 4});
+
+        Assert.assertSame("equal content should return the existing ref", first, second);
+        Assert.assertNotEquals("different content should be stored separately", first, other);
+        Assert.assertEquals("shared content should be stored once", 2, messageRegistry.size());
+    }
+
+    @Test
+    public void testHashCollisionIsNotShared() throws MqttsnException, IOException {
+
+        IMqttsnMessageRegistry messageRegistry = start(new MqttsnInMemoryMessageRegistry(){
+            @Override
+            protected long hash(byte[] data) {
+                //-- every payload collides
+                return 0;
+            }
+        });
+        IMqttsnDataRef first = messageRegistry.add(new byte[]{1});
+        IMqttsnDataRef second = messageRegistry.add(new byte[]{2});
+
+        Assert.assertNotEquals("colliding content should not be shared", first, second);
+        Assert.assertArrayEquals("first payload should be intact", new byte[]{1}, messageRegistry.get(first));
+        Assert.assertArrayEquals("second payload should be intact", new byte[]{2}, messageRegistry.get(second));
+    }
+
+    @Test
+    public void testSharingExtendsExpiry() throws Exception {
+
+        IMqttsnMessageRegistry messageRegistry = start(new MqttsnInMemoryMessageRegistry());
+        long now = System.currentTimeMillis();
+        IMqttsnDataRef shortLived = messageRegistry.add(new byte[]{1}, now + 50);
+        IMqttsnDataRef extended = messageRegistry.add(new byte[]{1}, now + 60000);
+        IMqttsnDataRef unshared = messageRegistry.add(new byte[]{2}, now + 50);
+        Assert.assertSame("equal content should be shared", shortLived, extended);
+
+        Thread.sleep(100);
+        messageRegistry.tidy();
+        Assert.assertArrayEquals("the later expiry should keep the shared message alive",
+                new byte[]{1}, messageRegistry.get(extended));
+        try {
+            messageRegistry.get(unshared);
+            Assert.fail("the unshared message should have expired");
+        } catch(MqttsnExpectationFailedException e){
+            //-- expected
+        }
+    }
+
+    @Test
+    public void testSharedContentIsReferenceCounted() throws MqttsnException, IOException {
+
+        MqttsnOffHeapMessageRegistry messageRegistry = start(new MqttsnOffHeapMessageRegistry());
+        IMqttsnDataRef first = messageRegistry.add(new byte[]{1, 2, 3});
+        IMqttsnDataRef second = messageRegistry.add(new byte[]{1, 2, 3});
+        Assert.assertSame("equal content should be shared", first, second);
+
+        //-- each add was given its own reference
+        messageRegistry.release(first);
+        Assert.assertArrayEquals("the shared message should be held by the second reference",
+                new byte[]{1, 2, 3}, messageRegistry.get(second));
+        messageRegistry.release(second);
+        Assert.assertEquals("the last release should free the message", 0, messageRegistry.getUsedBytes());
+
+        IMqttsnDataRef third = messageRegistry.add(new byte[]{1, 2, 3});
+        Assert.assertNotEquals("freed content should not be shared", first, third);
+        Assert.assertArrayEquals("a new copy should be stored", new byte[]{1, 2, 3}, messageRegistry.get(third));
+    }
+}
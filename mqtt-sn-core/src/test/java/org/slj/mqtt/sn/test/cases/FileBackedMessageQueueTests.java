@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.impl.MqttsnBinaryReaderWriter;
+import org.slj.mqtt.sn.impl.ram.MqttsnFileBackedInMemoryMessageQueue;
+import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.model.MqttsnQueueAcceptException;
+import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.IMqttsnMessageQueue;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.test.MqttsnTestRuntime;
+import org.slj.mqtt.sn.test.MqttsnTestRuntimeRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FileBackedMessageQueueTests {
+
+    private MqttsnTestRuntime runtime;
+    private MqttsnFileBackedInMemoryMessageQueue queue;
+
+    public void start(int maxMessages, int diskThreshold) throws MqttsnException, IOException {
+        MqttsnOptions options = new MqttsnOptions().
+                withMaxMessagesInQueue(maxMessages).
+                withMessageQueueDiskStorageThreshold(diskThreshold);
+        queue = new MqttsnFileBackedInMemoryMessageQueue(new MqttsnBinaryReaderWriter());
+        MqttsnTestRuntimeRegistry registry = MqttsnTestRuntimeRegistry.defaultConfiguration(
+                MqttsnTestRuntime.createTemporaryStorageService(), options, false);
+        registry.withServiceReplaceIfExists(IMqttsnMessageQueue.class, queue);
+        runtime = new MqttsnTestRuntime();
+        runtime.start(registry);
+    }
+
+    @After
+    public void tearDown() throws MqttsnException, IOException {
+        if(runtime != null){
+            try {
+                runtime.stop();
+            } finally {
+                runtime.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOverflowPreservesOrder() throws MqttsnException, MqttsnQueueAcceptException, IOException {
+
+        start(30, 50);
+        IMqttsnSession session = runtime.createSession("client");
+        for (int i = 0; i < 25; i++){
+            queue.offer(session, message(i));
+        }
+        Assert.assertEquals("overflowed messages should be counted", 25, queue.queueSize(session));
+
+        //-- draining a few takes memory back under the threshold; new messages must still queue behind the disk
+        List<Integer> received = new ArrayList<>();
+        for (int i = 0; i < 3; i++){
+            received.add(take(session));
+        }
+        for (int i = 25; i < 30; i++){
+            queue.offer(session, message(i));
+        }
+
+        Integer next;
+        while((next = take(session)) != null){
+            received.add(next);
+        }
+        Assert.assertEquals("every message should be delivered", 30, received.size());
+        for (int i = 0; i < received.size(); i++){
+            Assert.assertEquals("messages should be delivered in the order they were queued",
+                    Integer.valueOf(i), received.get(i));
+        }
+        Assert.assertEquals("queue should be empty", 0, queue.queueSize(session));
+    }
+
+    @Test
+    public void testConcurrentOfferAndDrain() throws Exception {
+
+        final int SESSIONS = 4;
+        final int PER_SESSION = 300;
+        start(1000, 5);
+
+        final List<IMqttsnSession> sessions = new ArrayList<>();
+        for (int s = 0; s < SESSIONS; s++){
+            sessions.add(runtime.createSession("client-" + s));
+        }
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(SESSIONS);
+        for (int s = 0; s < SESSIONS; s++){
+            final IMqttsnSession session = sessions.get(s);
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < PER_SESSION; i++){
+                        queue.offer(session, message(i));
+                    }
+                } catch(Throwable e){
+                    error.set(e);
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+
+        //-- drain every session alongside the producers, each session must be received complete and in order
+        int[] expected = new int[SESSIONS];
+        long deadline = System.currentTimeMillis() + 30000;
+        int total = 0;
+        while(total < SESSIONS * PER_SESSION && System.currentTimeMillis() < deadline && error.get() == null){
+            for (int s = 0; s < SESSIONS; s++){
+                Integer next = take(sessions.get(s));
+                if(next != null){
+                    Assert.assertEquals("session messages should be delivered in order",
+                            Integer.valueOf(expected[s]++), next);
+                    total++;
+                }
+            }
+        }
+
+        Assert.assertTrue("producers should complete", latch.await(30, TimeUnit.SECONDS));
+        Assert.assertNull("producers should not fail", error.get());
+        Assert.assertEquals("every message should be delivered", SESSIONS * PER_SESSION, total);
+        for (IMqttsnSession session : sessions){
+            Assert.assertEquals("queue should be empty", 0, queue.queueSize(session));
+        }
+    }
+
+    private Integer take(IMqttsnSession session) throws MqttsnException {
+        IMqttsnQueuedPublishMessage head = queue.peek(session);
+        if(head == null) return null;
+        IMqttsnQueuedPublishMessage polled = queue.poll(session);
+        Assert.assertEquals("poll should return the peeked message",
+                head.getData().getTopicPath(), polled.getData().getTopicPath());
+        return Integer.valueOf(polled.getData().getTopicPath().substring(2));
+    }
+
+    private IMqttsnQueuedPublishMessage message(int i) throws MqttsnException {
+        return new MqttsnQueuedPublishMessageImpl(
+                runtime.getRegistry().getMessageRegistry().add(new byte[]{(byte) i}),
+                new PublishData("t/" + i, 1, false));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.impl.ram.MqttsnOffHeapMessageRegistry;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.model.MqttsnWaitToken;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.IMqttsnMessageQueue;
+import org.slj.mqtt.sn.spi.IMqttsnMessageRegistry;
+import org.slj.mqtt.sn.test.MqttsnTestRuntime;
+import org.slj.mqtt.sn.test.MqttsnTestRuntimeRegistry;
+
+public class MessageQueueExpiryTests {
+
+    private static final int EXPIRY = 60000;
+
+    private MqttsnTestRuntime runtime;
+    private MqttsnOffHeapMessageRegistry messageRegistry;
+    private IMqttsnMessageQueue queue;
+
+    @Before
+    public void setup() throws Exception {
+        messageRegistry = new MqttsnOffHeapMessageRegistry();
+        MqttsnTestRuntimeRegistry registry = MqttsnTestRuntimeRegistry.defaultConfiguration(
+                MqttsnTestRuntime.createTemporaryStorageService(),
+                new MqttsnOptions().withMessageExpiry(EXPIRY), false);
+        registry.withServiceReplaceIfExists(IMqttsnMessageRegistry.class, messageRegistry);
+        runtime = new MqttsnTestRuntime();
+        runtime.start(registry);
+        queue = runtime.getRegistry().getMessageQueue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try {
+            runtime.stop();
+        } finally {
+            runtime.close();
+        }
+    }
+
+    @Test
+    public void testTidyDiscardsExpiredEntries() throws Exception {
+
+        IMqttsnSession first = runtime.createSession("first");
+        IMqttsnSession second = runtime.createSession("second");
+        IMqttsnSession third = runtime.createSession("third");
+        long past = System.currentTimeMillis() - EXPIRY * 2;
+
+        offer(first, "a/1", past);
+        offer(first, "a/2", past);
+        offer(first, "a/3", System.currentTimeMillis());
+        offer(second, "b/1", past);
+        offer(third, "c/1", System.currentTimeMillis());
+
+        //-- the state thread may already have tidied the queue, so only the outcome is asserted
+        queue.tidy();
+        Assert.assertEquals("expired entries should be discarded from the head", 1, queue.queueSize(first));
+        Assert.assertEquals("the unexpired entry should remain", "a/3", queue.peek(first).getData().getTopicPath());
+        Assert.assertEquals("a session holding only expired entries should be emptied", 0, queue.queueSize(second));
+        Assert.assertEquals("a session with nothing due should be untouched", 1, queue.queueSize(third));
+        Assert.assertEquals("expired entries should release their data", 2, messageRegistry.size());
+    }
+
+    @Test
+    public void testExpiredEntryFailsWaitingPublisher() throws Exception {
+
+        IMqttsnSession session = runtime.createSession("client");
+        IMqttsnDataRef ref = messageRegistry.add(new byte[]{1});
+        MqttsnWaitToken token = queue.offerWithToken(session,
+                message(ref, "a/1", System.currentTimeMillis() - EXPIRY * 2));
+        messageRegistry.release(ref);
+
+        queue.tidy();
+        Assert.assertEquals("the expired entry should be discarded", 0, queue.queueSize(session));
+        Assert.assertTrue("the waiting publisher should be released with an error", token.isError());
+    }
+
+    private void offer(IMqttsnSession session, String topicPath, long created) throws Exception {
+        IMqttsnDataRef ref = messageRegistry.add(topicPath.getBytes());
+        try {
+            queue.offer(session, message(ref, topicPath, created));
+        } finally {
+            //-- the queue now holds the only reference
+            messageRegistry.release(ref);
+        }
+    }
+
+    private static MqttsnQueuedPublishMessageImpl message(IMqttsnDataRef ref, String topicPath, long created) {
+        MqttsnQueuedPublishMessageImpl message = new MqttsnQueuedPublishMessageImpl(ref,
+                new PublishData(topicPath, 1, false));
+        message.setCreated(created);
+        return message;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.utils.tree.MqttTopicTree;
+import org.slj.mqtt.sn.utils.tree.TriesTreeLimitExceededException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class MqttTopicTreeTests {
+
+    @Test
+    public void testWildcardMatching() throws TriesTreeLimitExceededException {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.addSubscription("sport/tennis/player1", "exact");
+        tree.addSubscription("sport/tennis/+", "single");
+        tree.addSubscription("sport/#", "multi");
+        tree.addSubscription("+/+", "two-levels");
+        tree.addSubscription("#", "all");
+
+        Assert.assertEquals("all but two-levels should match", 4, tree.searchMembers("sport/tennis/player1").size());
+        Assert.assertEquals("multi level wildcard should match the parent level", 2, tree.searchMembers("sport").size());
+        Assert.assertTrue("single level wildcard should match an empty level", tree.searchMembers("sport/").contains("two-levels"));
+        Assert.assertEquals("only root wildcard should match", 1, tree.searchMembers("foo/bar/baz").size());
+        Assert.assertEquals("wildcards should not match system topics at the first level", 0, tree.searchMembers("$SYS/foo").size());
+    }
+
+    @Test
+    public void testRemovalPrunesTree() throws TriesTreeLimitExceededException {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.addSubscription("a/b/c", "foo");
+        tree.addSubscription("a/+/c", "foo");
+        Assert.assertFalse("duplicate member should not be added", tree.addSubscription("a/b/c", "foo"));
+        Assert.assertEquals("distinct filters should be returned", 2, tree.getDistinctPaths().size());
+        Assert.assertTrue("member should be removed", tree.removeSubscription("a/b/c", "foo"));
+        Assert.assertTrue("member should be removed", tree.removeSubscription("a/+/c", "foo"));
+        Assert.assertFalse("member should no longer exist", tree.removeSubscription("a/+/c", "foo"));
+        Assert.assertEquals("empty branches should be pruned", 0, tree.getBranchCount());
+        Assert.assertFalse("nothing should match", tree.hasMembers("a/b/c"));
+    }
+
+    @Test
+    public void testReusableCollector() throws TriesTreeLimitExceededException {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.addSubscription("a/b", "foo");
+        tree.addSubscription("a/+", "bar");
+        List<String> collector = new ArrayList<>();
+        tree.searchMembers("a/b", collector);
+        Assert.assertEquals("both filters should be collected", 2, collector.size());
+        collector.clear();
+        tree.searchMembers("a/c", collector);
+        Assert.assertEquals("only the wildcard filter should be collected", 1, collector.size());
+    }
+
+    @Test
+    public void testSingleFilterMatching() {
+        Assert.assertTrue("exact filter should match", MqttTopicTree.matches("a/b", "a/b"));
+        Assert.assertFalse("longer topic should not match", MqttTopicTree.matches("a/b", "a/b/c"));
+        Assert.assertFalse("shorter topic should not match", MqttTopicTree.matches("a/b/c", "a/b"));
+        Assert.assertTrue("single level wildcard should match", MqttTopicTree.matches("a/+/c", "a/b/c"));
+        Assert.assertTrue("single level wildcard should match an empty level", MqttTopicTree.matches("a/+", "a/"));
+        Assert.assertTrue("multi level wildcard should match the parent level", MqttTopicTree.matches("a/#", "a"));
+        Assert.assertFalse("prefix should not match", MqttTopicTree.matches("a/bc", "a/b"));
+        Assert.assertFalse("wildcards should not match system topics", MqttTopicTree.matches("#", "$SYS/a"));
+    }
+
+    @Test
+    public void testTokenisedSearchMatchesPathSearch() throws TriesTreeLimitExceededException {
+
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        String[] filters = {"a/b", "a/+", "a/#", "+/b", "#", "a//b", "a/b/", "$SYS/#", "$SYS/+", "+/+/+"};
+        for (String filter : filters){
+            tree.addSubscription(filter, filter);
+        }
+        String[] topics = {"a/b", "a", "a/b/c", "a//b", "a/b/", "/b", "$SYS/x", "", "x/y/z"};
+        for (String topic : topics){
+            Set<String> tokenised = new HashSet<>();
+            tree.visitMembers(MqttTopicTree.tokenize(topic), tokenised::add);
+            Assert.assertEquals("tokenised search should match path search for " + topic,
+                    tree.searchMembers(topic), tokenised);
+        }
+    }
+
+    @Test
+    public void testVisitMatchingTopics() throws TriesTreeLimitExceededException {
+        MqttTopicTree<String> tree = new MqttTopicTree<>();
+        tree.addSubscription("a", "a");
+        tree.addSubscription("a/b", "a/b");
+        tree.addSubscription("a/b/c", "a/b/c");
+        tree.addSubscription("$SYS/a", "$SYS/a");
+        Set<String> matched = new HashSet<>();
+        tree.visitMatching("a/#", matched::add);
+        Assert.assertEquals("multi level wildcard should include the parent level", 3, matched.size());
+        matched.clear();
+        tree.visitMatching("+/b", matched::add);
+        Assert.assertEquals("single level wildcard should match one level", 1, matched.size());
+        matched.clear();
+        tree.visitMatching("#", matched::add);
+        Assert.assertFalse("wildcards should not match system topics", matched.contains("$SYS/a"));
+    }
+
+    @Test(expected = TriesTreeLimitExceededException.class)
+    public void testMaxMembersAtLevel() throws TriesTreeLimitExceededException {
+        MqttTopicTree<Integer> tree = new MqttTopicTree<>();
+        tree.setMaxMembersAtLevel(10);
+        for (int i = 0; i <= 10; i++){
+            tree.addSubscription("a/b", i);
+        }
+    }
+}
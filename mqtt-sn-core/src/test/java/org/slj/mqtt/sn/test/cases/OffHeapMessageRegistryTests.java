@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.impl.MqttsnBinaryReaderWriter;
+import org.slj.mqtt.sn.impl.ram.MqttsnFileBackedInMemoryMessageQueue;
+import org.slj.mqtt.sn.impl.ram.MqttsnInMemoryMessageStateService;
+import org.slj.mqtt.sn.impl.ram.MqttsnOffHeapMessageRegistry;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.InflightMessage;
+import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.model.RequeueableInflightMessage;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.IMqttsnMessageQueue;
+import org.slj.mqtt.sn.spi.IMqttsnMessageRegistry;
+import org.slj.mqtt.sn.spi.IMqttsnMessageStateService;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.spi.MqttsnExpectationFailedException;
+import org.slj.mqtt.sn.test.MqttsnTestRuntime;
+import org.slj.mqtt.sn.test.MqttsnTestRuntimeRegistry;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OffHeapMessageRegistryTests {
+
+    private MqttsnTestRuntime runtime;
+    private WindowedOffHeapMessageRegistry messageRegistry;
+
+    public void start(MqttsnOptions options) throws MqttsnException, IOException {
+        messageRegistry = new WindowedOffHeapMessageRegistry();
+        MqttsnTestRuntimeRegistry registry = MqttsnTestRuntimeRegistry.defaultConfiguration(
+                MqttsnTestRuntime.createTemporaryStorageService(), options, false);
+        registry.withServiceReplaceIfExists(IMqttsnMessageRegistry.class, messageRegistry);
+        registry.withServiceReplaceIfExists(IMqttsnMessageQueue.class,
+                new MqttsnFileBackedInMemoryMessageQueue(new MqttsnBinaryReaderWriter()));
+        registry.withServiceReplaceIfExists(IMqttsnMessageStateService.class, new InflightStateService());
+        runtime = new MqttsnTestRuntime();
+        runtime.start(registry);
+    }
+
+    @After
+    public void tearDown() throws MqttsnException, IOException {
+        if(runtime != null){
+            try {
+                runtime.stop();
+            } finally {
+                runtime.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLastReleaseFrees() throws MqttsnException, IOException {
+
+        start(new MqttsnOptions());
+        IMqttsnDataRef ref = messageRegistry.add(new byte[]{1, 2, 3});
+        messageRegistry.retain(ref);
+        messageRegistry.retain(ref);
+        messageRegistry.release(ref);
+        messageRegistry.release(ref);
+        Assert.assertArrayEquals("data should be held by the remaining reference",
+                new byte[]{1, 2, 3}, messageRegistry.get(ref));
+
+        messageRegistry.release(ref);
+        Assert.assertEquals("off-heap memory should be freed", 0, messageRegistry.getUsedBytes());
+        Assert.assertEquals("message should be removed", 0, messageRegistry.size());
+
+        //-- a surplus release must be a no-op, not take the count negative
+        messageRegistry.release(ref);
+        Assert.assertEquals("off-heap memory should remain free", 0, messageRegistry.getUsedBytes());
+    }
+
+    @Test(expected = MqttsnExpectationFailedException.class)
+    public void testRetainAfterFreeThrows() throws MqttsnException, IOException {
+
+        start(new MqttsnOptions());
+        IMqttsnDataRef ref = messageRegistry.add(new byte[]{1});
+        messageRegistry.release(ref);
+        messageRegistry.retain(ref);
+    }
+
+    @Test
+    public void testRetainBetweenLastReleaseAndRemoveFails() throws MqttsnException, IOException {
+
+        start(new MqttsnOptions());
+        IMqttsnDataRef ref = messageRegistry.add(new byte[]{1});
+        messageRegistry.retainOnRemove = true;
+        messageRegistry.release(ref);
+        Assert.assertNotNull("remove should have been reached", messageRegistry.retainOnRemoveResult);
+        Assert.assertFalse("a released message must not be revived before it is removed",
+                messageRegistry.retainOnRemoveResult);
+        Assert.assertEquals("off-heap memory should be freed", 0, messageRegistry.getUsedBytes());
+    }
+
+    @Test
+    public void testConcurrentRetainAndRelease() throws Exception {
+
+        final int THREADS = 8;
+        final int PER_THREAD = 10000;
+        start(new MqttsnOptions());
+        final IMqttsnDataRef ref = messageRegistry.add(new byte[]{1});
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int t = 0; t < THREADS; t++){
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < PER_THREAD; i++){
+                        messageRegistry.retain(ref);
+                        messageRegistry.release(ref);
+                    }
+                } catch(Throwable e){
+                    error.set(e);
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+
+        Assert.assertTrue("threads should complete", latch.await(30, TimeUnit.SECONDS));
+        Assert.assertNull("balanced retain / release should never fail", error.get());
+        Assert.assertArrayEquals("the creator reference should still hold the data",
+                new byte[]{1}, messageRegistry.get(ref));
+        messageRegistry.release(ref);
+        Assert.assertEquals("off-heap memory should be freed", 0, messageRegistry.getUsedBytes());
+    }
+
+    @Test
+    public void testRetainRacingLastRelease() throws Exception {
+
+        final int ROUNDS = 2000;
+        start(new MqttsnOptions());
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicInteger revived = new AtomicInteger();
+        for (int i = 0; i < ROUNDS; i++){
+            final IMqttsnDataRef ref = messageRegistry.add(new byte[]{(byte) i});
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread retainer = new Thread(() -> {
+                try {
+                    barrier.await();
+                    try {
+                        messageRegistry.retain(ref);
+                    } catch(MqttsnExpectationFailedException e){
+                        //-- lost the race, the message was already freed
+                        return;
+                    }
+                    //-- a successful retain must always be backed by live data, get throws once freed
+                    messageRegistry.get(ref);
+                    revived.incrementAndGet();
+                    messageRegistry.release(ref);
+                } catch(Throwable e){
+                    error.set(e);
+                }
+            });
+            retainer.start();
+            barrier.await();
+            messageRegistry.release(ref);
+            retainer.join();
+            Assert.assertNull("a retain which succeeds must never see freed data", error.get());
+        }
+        Assert.assertEquals("every message should be freed exactly once", 0, messageRegistry.getUsedBytes());
+        Assert.assertEquals("every message should be removed", 0, messageRegistry.size());
+    }
+
+    @Test
+    public void testQueueClearReleasesMemoryAndOverflow() throws Exception {
+
+        start(new MqttsnOptions().
+                withMaxMessagesInQueue(20).
+                withMessageQueueDiskStorageThreshold(25));
+        IMqttsnSession session = runtime.createSession("client");
+        for (int i = 0; i < 15; i++){
+            IMqttsnDataRef ref = messageRegistry.add(new byte[]{(byte) i});
+            runtime.getRegistry().getMessageQueue().offer(session,
+                    new MqttsnQueuedPublishMessageImpl(ref, new PublishData("t/" + i, 1, false)));
+            messageRegistry.release(ref);
+        }
+        Assert.assertEquals("every message should be queued", 15,
+                runtime.getRegistry().getMessageQueue().queueSize(session));
+        Assert.assertEquals("queued data should be held", 15, messageRegistry.size());
+
+        runtime.getRegistry().getMessageQueue().clear(session);
+        Assert.assertEquals("the queue should be empty", 0,
+                runtime.getRegistry().getMessageQueue().queueSize(session));
+        Assert.assertEquals("memory and overflowed messages should release their data", 0, messageRegistry.size());
+        Assert.assertEquals("off-heap memory should be freed", 0, messageRegistry.getUsedBytes());
+    }
+
+    @Test
+    public void testStateClearReleasesInflight() throws Exception {
+
+        start(new MqttsnOptions());
+        IMqttsnSession session = runtime.createSession("client");
+        InflightStateService state = (InflightStateService) runtime.getRegistry().getMessageStateService();
+        for (int i = 1; i <= 3; i++){
+            IMqttsnDataRef ref = messageRegistry.add(new byte[]{(byte) i});
+            messageRegistry.retain(ref);
+            messageRegistry.release(ref);
+            state.add(session.getContext(), i, new RequeueableInflightMessage(
+                    new MqttsnQueuedPublishMessageImpl(ref, new PublishData("t/" + i, 1, false)),
+                    runtime.getRegistry().getMessageFactory().createPingreq(null)));
+        }
+        Assert.assertEquals("inflight data should be held", 3, messageRegistry.size());
+
+        state.clear(session.getContext());
+        Assert.assertEquals("discarded inflight messages should release their data", 0, messageRegistry.size());
+        Assert.assertEquals("off-heap memory should be freed", 0, messageRegistry.getUsedBytes());
+    }
+
+    /**
+     * Retains from within remove, deterministically landing a retain in the window between the last
+     * release and the message being removed.
+     */
+    static class WindowedOffHeapMessageRegistry extends MqttsnOffHeapMessageRegistry {
+
+        volatile boolean retainOnRemove = false;
+        volatile Boolean retainOnRemoveResult = null;
+
+        @Override
+        public boolean remove(IMqttsnDataRef messageId) throws MqttsnException {
+            if(retainOnRemove){
+                retainOnRemove = false;
+                try {
+                    retain(messageId);
+                    retainOnRemoveResult = Boolean.TRUE;
+                } catch(MqttsnExpectationFailedException e){
+                    retainOnRemoveResult = Boolean.FALSE;
+                }
+            }
+            return super.remove(messageId);
+        }
+    }
+
+    static class InflightStateService extends MqttsnInMemoryMessageStateService {
+
+        InflightStateService() {
+            super(false);
+        }
+
+        void add(IMqttsnContext context, Integer packetId, InflightMessage message) {
+            addInflightMessage(context, packetId, message);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.utils.PriorityLaneQueue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class PriorityLaneQueueTests {
+
+    @Test
+    public void testHigherPriorityLaneServedFirst() {
+
+        PriorityLaneQueue<Integer> queue = new PriorityLaneQueue<>(2, i -> i < 0 ? 0 : 1);
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(-1);
+
+        Assert.assertEquals("size should be maintained", 3, queue.size());
+        Assert.assertEquals("priority lane should be peeked first", Integer.valueOf(-1), queue.peek());
+        Assert.assertEquals("priority lane should be polled first", Integer.valueOf(-1), queue.poll());
+        Assert.assertEquals("lanes should be FIFO", Integer.valueOf(1), queue.poll());
+        Assert.assertEquals("lanes should be FIFO", Integer.valueOf(2), queue.poll());
+        Assert.assertNull("queue should be empty", queue.poll());
+        Assert.assertTrue("queue should be empty", queue.isEmpty());
+    }
+
+    @Test
+    public void testRemoveSpecificElement() {
+
+        PriorityLaneQueue<Integer> queue = new PriorityLaneQueue<>(2, i -> i < 0 ? 0 : 1);
+        queue.offer(1);
+        queue.offer(-1);
+
+        Assert.assertTrue("element should be removed from its lane", queue.remove(1));
+        Assert.assertFalse("element should only be removed once", queue.remove(1));
+        Assert.assertEquals("size should be maintained", 1, queue.size());
+        Assert.assertEquals("remaining element should be intact", Integer.valueOf(-1), queue.poll());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+
+        final int THREADS = 8;
+        final int PER_THREAD = 10000;
+        final PriorityLaneQueue<Integer> queue = new PriorityLaneQueue<>(3, i -> i % 3);
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+
+        for (int t = 0; t < THREADS; t++){
+            final int offset = t * PER_THREAD;
+            new Thread(() -> {
+                for (int i = 0; i < PER_THREAD; i++){
+                    queue.offer(offset + i);
+                }
+                latch.countDown();
+            }).start();
+        }
+
+        Assert.assertTrue("producers should complete", latch.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals("size should account for every offer", THREADS * PER_THREAD, queue.size());
+
+        Set<Integer> seen = new HashSet<>();
+        Integer i;
+        while((i = queue.poll()) != null){
+            seen.add(i);
+        }
+        Assert.assertEquals("every element should be consumed exactly once", THREADS * PER_THREAD, seen.size());
+        Assert.assertEquals("size should return to zero", 0, queue.size());
+    }
+
+    @Test
+    public void testConcurrentOfferAndPoll() throws InterruptedException {
+
+        final int THREADS = 4;
+        final int PER_THREAD = 20000;
+        final int LANES = 3;
+        final PriorityLaneQueue<Integer> queue = new PriorityLaneQueue<>(LANES, i -> i % LANES);
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        final AtomicBoolean negative = new AtomicBoolean();
+
+        for (int t = 0; t < THREADS; t++){
+            final int offset = t * PER_THREAD;
+            new Thread(() -> {
+                for (int i = 0; i < PER_THREAD; i++){
+                    queue.offer(offset + i);
+                }
+                latch.countDown();
+            }).start();
+        }
+
+        //-- consume alongside the producers; within a lane, each producer's elements must stay in order
+        int[][] last = new int[THREADS][LANES];
+        for (int[] l : last) Arrays.fill(l, -1);
+        Set<Integer> seen = new HashSet<>();
+        long deadline = System.currentTimeMillis() + 30000;
+        while(seen.size() < THREADS * PER_THREAD && System.currentTimeMillis() < deadline){
+            if(queue.size() < 0) negative.set(true);
+            Integer i = queue.poll();
+            if(i == null) continue;
+            int producer = i / PER_THREAD;
+            int lane = i % LANES;
+            Assert.assertTrue("lanes should be FIFO per producer", i > last[producer][lane]);
+            last[producer][lane] = i;
+            Assert.assertTrue("every element should be consumed exactly once", seen.add(i));
+        }
+
+        Assert.assertTrue("producers should complete", latch.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals("every element should be consumed", THREADS * PER_THREAD, seen.size());
+        Assert.assertFalse("size should never be observed below zero", negative.get());
+        Assert.assertEquals("size should return to zero", 0, queue.size());
+        Assert.assertTrue("queue should be empty", queue.isEmpty());
+    }
+
+    @Test
+    public void testPriorityLaneServedFirstUnderConcurrentOffers() throws InterruptedException {
+
+        final PriorityLaneQueue<Integer> queue = new PriorityLaneQueue<>(2, i -> i < 0 ? 0 : 1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            int i = 0;
+            while(running.get()){
+                queue.offer(i++);
+                if(i == 1000) started.countDown();
+            }
+        });
+        producer.start();
+        try {
+            Assert.assertTrue("producer should start", started.await(30, TimeUnit.SECONDS));
+            for (int i = 1; i <= 1000; i++){
+                queue.offer(-i);
+                Assert.assertEquals("the priority lane should be polled ahead of the flooded lane",
+                        Integer.valueOf(-i), queue.poll());
+            }
+        } finally {
+            running.set(false);
+            producer.join();
+        }
+        queue.clear();
+        Assert.assertEquals("size should return to zero once drained", 0, queue.size());
+    }
+}
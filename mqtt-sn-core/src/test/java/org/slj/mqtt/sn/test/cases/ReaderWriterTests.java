@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.impl.MqttsnBinaryReaderWriter;
+import org.slj.mqtt.sn.impl.MqttsnVMObjectReaderWriter;
+import org.slj.mqtt.sn.model.IntegerDataRef;
+import org.slj.mqtt.sn.model.MqttsnClientCredentials;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.IMqttsnObjectReaderWriter;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+public class ReaderWriterTests {
+
+    private IMqttsnObjectReaderWriter readerWriter;
+
+    @Before
+    public void setup(){
+        readerWriter = new MqttsnBinaryReaderWriter();
+    }
+
+    @Test
+    public void testQueuedPublishRoundTrip() throws MqttsnException {
+
+        MqttsnQueuedPublishMessageImpl message = new MqttsnQueuedPublishMessageImpl(new IntegerDataRef(1034),
+                new PublishData("some/topic/path", 2, true));
+        message.setGrantedQoS(1);
+        message.setRetryCount(3);
+        message.setPacketId(65535);
+
+        MqttsnQueuedPublishMessageImpl read = readerWriter.load(MqttsnQueuedPublishMessageImpl.class,
+                readerWriter.write(message));
+
+        Assert.assertEquals("data ref should match", message.getDataRefId(), read.getDataRefId());
+        Assert.assertEquals("created should match", message.getCreated(), read.getCreated());
+        Assert.assertEquals("retry count should match", 3, read.getRetryCount());
+        Assert.assertEquals("packet id should match", 65535, read.getPacketId());
+        Assert.assertEquals("granted qos should match", 1, read.getGrantedQoS());
+        Assert.assertEquals("topic should match", "some/topic/path", read.getData().getTopicPath());
+        Assert.assertEquals("qos should match", 2, read.getData().getQos());
+        Assert.assertTrue("retained should match", read.getData().isRetained());
+    }
+
+    @Test
+    public void testBinaryIsSmallerThanSerialization() throws MqttsnException {
+
+        MqttsnQueuedPublishMessageImpl message = new MqttsnQueuedPublishMessageImpl(new IntegerDataRef(1),
+                new PublishData("some/topic/path", 1, false));
+        int binary = readerWriter.write(message).length;
+        int serialized = new MqttsnVMObjectReaderWriter().write(message).length;
+        Assert.assertTrue("binary encoding should be smaller than java serialization", binary * 10 < serialized);
+    }
+
+    @Test
+    public void testEncodingNeverContainsNewLine() throws MqttsnException {
+
+        //-- 10 encodes to a newline byte in both the data ref and the payload
+        MqttsnQueuedPublishMessageImpl message = new MqttsnQueuedPublishMessageImpl(new IntegerDataRef(5),
+                new PublishData("a\nb}c", 1, false, new byte[]{ 0x0A, 0x7D, 0x0A }));
+        message.setPacketId(10);
+        byte[] arr = readerWriter.write(message);
+        for (byte b : arr){
+            Assert.assertNotEquals("encoded record should not contain a newline", 0x0A, b);
+        }
+        MqttsnQueuedPublishMessageImpl read = readerWriter.load(MqttsnQueuedPublishMessageImpl.class, arr);
+        Assert.assertEquals("topic should survive escaping", "a\nb}c", read.getData().getTopicPath());
+        Assert.assertEquals("packet id should survive escaping", 10, read.getPacketId());
+        Assert.assertArrayEquals("payload should survive escaping", new byte[]{ 0x0A, 0x7D, 0x0A }, read.getData().getData());
+    }
+
+    @Test
+    public void testUnknownTypeUsesDelegate() throws MqttsnException {
+
+        MqttsnClientCredentials credentials = new MqttsnClientCredentials(true);
+        credentials.addCredentials("user", "pass");
+        MqttsnClientCredentials read = readerWriter.load(MqttsnClientCredentials.class,
+                readerWriter.write(credentials));
+        Assert.assertEquals("credentials should survive delegation", 1, read.getCredentials().size());
+    }
+
+    @Test(expected = MqttsnException.class)
+    public void testUnsupportedVersionRejected() throws MqttsnException {
+
+        byte[] arr = readerWriter.write(new IntegerDataRef(1));
+        arr[0] = (byte) (MqttsnBinaryReaderWriter.VERSION + 1);
+        readerWriter.load(IntegerDataRef.class, arr);
+    }
+
+    @Test
+    public void testLegacyRecordsLoadedByLegacyReader() throws MqttsnException {
+
+        IMqttsnObjectReaderWriter legacy = new MqttsnVMObjectReaderWriter();
+        readerWriter = new MqttsnBinaryReaderWriter(new MqttsnVMObjectReaderWriter(), legacy);
+        MqttsnQueuedPublishMessageImpl message = new MqttsnQueuedPublishMessageImpl(new IntegerDataRef(7),
+                new PublishData("some/topic/path", 1, false));
+
+        MqttsnQueuedPublishMessageImpl read = readerWriter.load(MqttsnQueuedPublishMessageImpl.class,
+                legacy.write(message));
+        Assert.assertEquals("a legacy record should be loaded by the legacy reader", "some/topic/path",
+                read.getData().getTopicPath());
+        read = readerWriter.load(MqttsnQueuedPublishMessageImpl.class, readerWriter.write(message));
+        Assert.assertEquals("binary records should still be loaded", message.getDataRefId(), read.getDataRefId());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.impl.ram.MqttsnOffHeapMessageRegistry;
+import org.slj.mqtt.sn.impl.ram.MqttsnSharedLogMessageQueue;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.model.MqttsnQueueAcceptException;
+import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.IMqttsnMessageQueue;
+import org.slj.mqtt.sn.spi.IMqttsnMessageRegistry;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.test.MqttsnTestRuntime;
+import org.slj.mqtt.sn.test.MqttsnTestRuntimeRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SharedLogMessageQueueTests {
+
+    private MqttsnTestRuntime runtime;
+    private MqttsnSharedLogMessageQueue queue;
+    private MqttsnOffHeapMessageRegistry messageRegistry;
+
+    @Before
+    public void setup() throws MqttsnException, IOException {
+        queue = new MqttsnSharedLogMessageQueue();
+        messageRegistry = new MqttsnOffHeapMessageRegistry();
+        MqttsnTestRuntimeRegistry registry = MqttsnTestRuntimeRegistry.defaultConfiguration(
+                MqttsnTestRuntime.createTemporaryStorageService(), new MqttsnOptions(), false);
+        registry.withServiceReplaceIfExists(IMqttsnMessageQueue.class, queue);
+        registry.withServiceReplaceIfExists(IMqttsnMessageRegistry.class, messageRegistry);
+        runtime = new MqttsnTestRuntime();
+        runtime.start(registry);
+    }
+
+    @After
+    public void tearDown() throws MqttsnException, IOException {
+        try {
+            runtime.stop();
+        } finally {
+            runtime.close();
+        }
+    }
+
+    @Test
+    public void testFanOutIsAppendedOnce() throws MqttsnException, MqttsnQueueAcceptException {
+
+        List<IMqttsnSession> sessions = createSessions(20);
+        IMqttsnDataRef ref = runtime.getRegistry().getMessageRegistry().add(new byte[]{1});
+        PublishData data = new PublishData("a/b", 1, false);
+        List<IMqttsnQueuedPublishMessage> messages = new ArrayList<>();
+        for (int i = 0; i < sessions.size(); i++){
+            messages.add(message(ref, data, i % 3));
+        }
+
+        Assert.assertEquals("every session should accept the message", 20, queue.offerAll(sessions, messages));
+        Assert.assertEquals("the message should be held once", 1, queue.getLogSize());
+        for (int i = 0; i < sessions.size(); i++){
+            Assert.assertEquals("each session should see the message", 1, queue.queueSize(sessions.get(i)));
+            IMqttsnQueuedPublishMessage polled = queue.poll(sessions.get(i));
+            Assert.assertEquals("each session should receive the shared data", ref, polled.getDataRefId());
+            Assert.assertEquals("each session should keep its own granted QoS", i % 3, polled.getGrantedQoS());
+        }
+    }
+
+    @Test
+    public void testCursorAdvancesInOrder() throws MqttsnException, MqttsnQueueAcceptException {
+
+        IMqttsnSession session = runtime.createSession("client");
+        for (int i = 0; i < 20; i++){
+            queue.offer(session, message(runtime.getRegistry().getMessageRegistry().add(new byte[]{(byte) i}),
+                    new PublishData("t/" + i, 1, false), 1));
+        }
+        Assert.assertEquals("all messages should be queued", 20, queue.queueSize(session));
+
+        IMqttsnQueuedPublishMessage peeked = queue.peek(session);
+        Assert.assertSame("peek should not advance the cursor", peeked, queue.peek(session));
+        for (int i = 0; i < 20; i++){
+            IMqttsnQueuedPublishMessage polled = queue.poll(session);
+            Assert.assertEquals("messages should be delivered in order", "t/" + i, polled.getData().getTopicPath());
+            Assert.assertEquals("the cursor should advance", 19 - i, queue.queueSize(session));
+        }
+        Assert.assertNull("the cursor should be exhausted", queue.poll(session));
+    }
+
+    @Test
+    public void testLastReaderReclaimsEntry() throws MqttsnException, MqttsnQueueAcceptException {
+
+        IMqttsnSession first = runtime.createSession("first");
+        IMqttsnSession second = runtime.createSession("second");
+        IMqttsnSession third = runtime.createSession("third");
+        IMqttsnDataRef ref = runtime.getRegistry().getMessageRegistry().add(new byte[]{1});
+        PublishData data = new PublishData("a/b", 1, false);
+        queue.offer(first, message(ref, data, 1));
+        queue.offer(second, message(ref, data, 1));
+        queue.offer(third, message(ref, data, 1));
+
+        queue.poll(first);
+        Assert.assertEquals("the entry should be held while other sessions are due it", 1, queue.getLogSize());
+        queue.clear(second);
+        Assert.assertEquals("clearing a session should release its cursor", 1, queue.getLogSize());
+        queue.poll(third);
+        Assert.assertEquals("the last reader should reclaim the entry", 0, queue.getLogSize());
+    }
+
+    @Test
+    public void testNegativeQoSIsNotShared() throws MqttsnException, MqttsnQueueAcceptException {
+
+        IMqttsnSession session = runtime.createSession("client");
+        IMqttsnDataRef ref = runtime.getRegistry().getMessageRegistry().add(new byte[]{1});
+        queue.offer(session, message(ref, new PublishData("a/b", 1, false), -1));
+        queue.offer(session, message(ref, new PublishData("a/c", 1, false), 1));
+
+        Assert.assertEquals("a QoS which cannot be packed should not enter the log", 1, queue.getLogSize());
+        IMqttsnQueuedPublishMessage polled = queue.poll(session);
+        Assert.assertEquals("the unshared message should be delivered first", "a/b", polled.getData().getTopicPath());
+        Assert.assertEquals("the unshared message should be unchanged", -1, polled.getGrantedQoS());
+        Assert.assertEquals("the shared message should follow", 1, queue.poll(session).getGrantedQoS());
+    }
+
+    @Test
+    public void testClearAllReleasesData() throws MqttsnException, MqttsnQueueAcceptException {
+
+        List<IMqttsnSession> sessions = createSessions(3);
+        IMqttsnDataRef shared = messageRegistry.add(new byte[]{1});
+        IMqttsnDataRef unshared = messageRegistry.add(new byte[]{2});
+        PublishData data = new PublishData("a/b", 1, false);
+        for (IMqttsnSession session : sessions){
+            queue.offer(session, message(shared, data, 1));
+        }
+        queue.offer(sessions.get(0), message(unshared, new PublishData("a/c", 1, false), -1));
+        //-- the queue now holds the only references
+        messageRegistry.release(shared);
+        messageRegistry.release(unshared);
+        queue.peek(sessions.get(1));
+        Assert.assertEquals("queued data should be held", 2, messageRegistry.size());
+
+        queue.clearAll();
+        Assert.assertEquals("the log should be emptied", 0, queue.getLogSize());
+        Assert.assertEquals("every queued reference should be released", 0, messageRegistry.size());
+    }
+
+    private List<IMqttsnSession> createSessions(int count) throws MqttsnException {
+        List<IMqttsnSession> sessions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            sessions.add(runtime.createSession("client-" + i));
+        }
+        return sessions;
+    }
+
+    private static IMqttsnQueuedPublishMessage message(IMqttsnDataRef ref, PublishData data, int grantedQoS){
+        MqttsnQueuedPublishMessageImpl impl = new MqttsnQueuedPublishMessageImpl(ref, data);
+        impl.setGrantedQoS(grantedQoS);
+        return impl;
+    }
+}
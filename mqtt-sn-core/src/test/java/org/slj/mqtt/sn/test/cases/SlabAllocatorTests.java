@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.utils.SlabAllocator;
+
+import java.util.Random;
+
+public class SlabAllocatorTests {
+
+    @Test
+    public void testAllocateReadAndFree() {
+
+        SlabAllocator allocator = new SlabAllocator(4096, 1024 * 1024);
+        byte[] large = new byte[10000];
+        new Random(1).nextBytes(large);
+
+        SlabAllocator.Slot small = allocator.allocate(new byte[]{1, 2, 3});
+        SlabAllocator.Slot dedicated = allocator.allocate(large);
+
+        Assert.assertArrayEquals("small payload should round trip", new byte[]{1, 2, 3}, small.read());
+        Assert.assertArrayEquals("payload larger than a slab should round trip", large, dedicated.read());
+        Assert.assertEquals("usage should be rounded to the size class", 64 + 10000, allocator.getUsedBytes());
+
+        allocator.free(small);
+        allocator.free(dedicated);
+        Assert.assertEquals("usage should return to zero", 0, allocator.getUsedBytes());
+        Assert.assertEquals("slab should remain reserved for reuse", 4096, allocator.getReservedBytes());
+    }
+
+    @Test
+    public void testFreedSlotsAreReused() {
+
+        SlabAllocator allocator = new SlabAllocator(4096, 4096);
+        for (int i = 0; i < 1000; i++){
+            allocator.free(allocator.allocate(new byte[100]));
+        }
+        Assert.assertEquals("a single slab should be reserved", 4096, allocator.getReservedBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReservationLimit() {
+
+        SlabAllocator allocator = new SlabAllocator(4096, 4096);
+        allocator.allocate(new byte[8192]);
+    }
+}
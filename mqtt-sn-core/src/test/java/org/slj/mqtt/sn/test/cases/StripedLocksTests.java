@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.utils.StripedLocks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+public class StripedLocksTests {
+
+    @Test
+    public void testStripeCountRoundedToPowerOfTwo() {
+
+        Assert.assertEquals("stripe count should be rounded up", 16, new StripedLocks(10).getStripeCount());
+        Assert.assertEquals("power of two should be kept", 16, new StripedLocks(16).getStripeCount());
+        Assert.assertEquals("single stripe should be allowed", 1, new StripedLocks(1).getStripeCount());
+    }
+
+    @Test
+    public void testSameIdSharesStripe() {
+
+        StripedLocks locks = new StripedLocks();
+        Assert.assertSame("an id should always map to the same stripe",
+                locks.stripe("client-1"), locks.stripe(new String("client-1")));
+    }
+
+    @Test
+    public void testMutualExclusionPerId() throws InterruptedException {
+
+        final int THREADS = 8;
+        final int PER_THREAD = 20000;
+        final StripedLocks locks = new StripedLocks(4);
+        final String[] ids = {"client-a", "client-b", "client-c"};
+        final int[] counters = new int[ids.length];
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+
+        for (int t = 0; t < THREADS; t++){
+            new Thread(() -> {
+                for (int i = 0; i < PER_THREAD; i++){
+                    int idx = i % ids.length;
+                    Lock lock = locks.lock(ids[idx]);
+                    try {
+                        //-- deliberately non-atomic, any lost update means the lock did not exclude
+                        counters[idx] = counters[idx] + 1;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                latch.countDown();
+            }).start();
+        }
+
+        Assert.assertTrue("threads should complete", latch.await(30, TimeUnit.SECONDS));
+        int total = 0;
+        for (int i = 0; i < ids.length; i++){
+            Lock lock = locks.lock(ids[i]);
+            try {
+                total += counters[i];
+            } finally {
+                lock.unlock();
+            }
+        }
+        Assert.assertEquals("no update should be lost", THREADS * PER_THREAD, total);
+        Assert.assertEquals("every acquisition should be counted",
+                THREADS * PER_THREAD + ids.length, locks.getAcquisitionCount());
+        Assert.assertTrue("contended acquisitions should be a subset",
+                locks.getContendedCount() <= locks.getAcquisitionCount());
+    }
+
+    @Test
+    public void testContentionCounted() throws InterruptedException {
+
+        final StripedLocks locks = new StripedLocks();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            Lock lock = locks.lock("client");
+            try {
+                acquired.countDown();
+                release.await();
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        });
+        holder.start();
+        Assert.assertTrue("holder should acquire", acquired.await(30, TimeUnit.SECONDS));
+
+        Thread waiter = new Thread(() -> locks.lock("client").unlock());
+        waiter.start();
+        while(!locks.stripe("client").hasQueuedThreads()){
+            Thread.sleep(1);
+        }
+        release.countDown();
+        holder.join();
+        waiter.join();
+        Assert.assertEquals("the waiting acquisition should be counted as contended", 1, locks.getContendedCount());
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.impl.ram.MqttsnInMemoryMessageQueue;
+import org.slj.mqtt.sn.impl.ram.MqttsnInMemorySubscriptionRegistry;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.MqttsnClientState;
+import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.spi.IMqttsnMessageQueue;
+import org.slj.mqtt.sn.spi.IMqttsnSubscriptionRegistry;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.test.MqttsnTestRuntime;
+import org.slj.mqtt.sn.test.MqttsnTestRuntimeRegistry;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Matching behaviour of the in-memory subscription registry; granted QoS resolution, shared subscription
+ * member selection and the per-topic match cache.
+ */
+public class SubscriptionMatchingTests {
+
+    private MqttsnTestRuntime runtime;
+    private CountingSubscriptionRegistry subscriptionRegistry;
+    private DepthMessageQueue messageQueue;
+
+    public void start(MqttsnOptions options) throws MqttsnException, IOException {
+        subscriptionRegistry = new CountingSubscriptionRegistry();
+        messageQueue = new DepthMessageQueue();
+        MqttsnTestRuntimeRegistry registry = MqttsnTestRuntimeRegistry.defaultConfiguration(
+                MqttsnTestRuntime.createTemporaryStorageService(), options, false);
+        registry.withServiceReplaceIfExists(IMqttsnSubscriptionRegistry.class, subscriptionRegistry);
+        registry.withServiceReplaceIfExists(IMqttsnMessageQueue.class, messageQueue);
+        runtime = new MqttsnTestRuntime();
+        runtime.start(registry);
+    }
+
+    @After
+    public void tearDown() throws MqttsnException, IOException {
+        if(runtime != null){
+            try {
+                runtime.stop();
+            } finally {
+                runtime.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOverlappingSubscriptionsGrantMaximumQoS() throws Exception {
+
+        start(new MqttsnOptions());
+        IMqttsnSession first = runtime.createSession("first");
+        IMqttsnSession second = runtime.createSession("second");
+        subscriptionRegistry.subscribe(first, "a/+", 0);
+        subscriptionRegistry.subscribe(first, "a/#", 2);
+        subscriptionRegistry.subscribe(first, "a/b", 1);
+        subscriptionRegistry.subscribe(second, "a/b", 1);
+
+        Map<IMqttsnContext, Integer> matches = subscriptionRegistry.matches("a/b");
+        Assert.assertEquals("each recipient should be matched once", 2, matches.size());
+        Assert.assertEquals("the highest overlapping QoS should be granted", Integer.valueOf(2), matches.get(first.getContext()));
+        Assert.assertEquals("a single subscription should grant its own QoS", Integer.valueOf(1), matches.get(second.getContext()));
+
+        subscriptionRegistry.unsubscribe(first, "a/#");
+        Assert.assertEquals("removing the highest subscription should lower the granted QoS",
+                Integer.valueOf(1), subscriptionRegistry.matches("a/b").get(first.getContext()));
+        Assert.assertEquals("the remaining wildcard should grant its own QoS",
+                Integer.valueOf(0), subscriptionRegistry.matches("a/c").get(first.getContext()));
+    }
+
+    @Test
+    public void testResubscribeReplacesGrantedQoS() throws Exception {
+
+        start(new MqttsnOptions());
+        IMqttsnSession session = runtime.createSession("client");
+        Assert.assertTrue("new subscription should be added", subscriptionRegistry.subscribe(session, "a/b", 2));
+        Assert.assertEquals("granted QoS should be matched", Integer.valueOf(2),
+                subscriptionRegistry.matches("a/b").get(session.getContext()));
+        Assert.assertFalse("same subscription should not be added", subscriptionRegistry.subscribe(session, "a/b", 0));
+        Assert.assertEquals("resubscribing should replace the granted QoS", Integer.valueOf(0),
+                subscriptionRegistry.matches("a/b").get(session.getContext()));
+    }
+
+    @Test
+    public void testSharedSubscriptionDeliversToOneMemberInTurn() throws Exception {
+
+        start(new MqttsnOptions());
+        IMqttsnSession direct = runtime.createSession("direct");
+        IMqttsnSession[] members = createShare("$share/group/a/b", 3);
+        subscriptionRegistry.subscribe(direct, "a/b", 1);
+
+        Map<IMqttsnContext, Integer> selections = new HashMap<>();
+        for (int i = 0; i < 6; i++){
+            Map<IMqttsnContext, Integer> matches = subscriptionRegistry.matches("a/b");
+            Assert.assertEquals("the direct subscriber and one member should be matched", 2, matches.size());
+            Assert.assertTrue("the direct subscriber should always be matched", matches.containsKey(direct.getContext()));
+            for (IMqttsnSession member : members){
+                if(matches.containsKey(member.getContext())){
+                    selections.merge(member.getContext(), 1, Integer::sum);
+                }
+            }
+        }
+        for (IMqttsnSession member : members){
+            Assert.assertEquals("members should be selected in turn", Integer.valueOf(2), selections.get(member.getContext()));
+        }
+    }
+
+    @Test
+    public void testSharedSubscriptionPassesOverUnavailableMembers() throws Exception {
+
+        start(new MqttsnOptions().withMaxMessagesInQueue(10));
+        IMqttsnSession[] members = createShare("$share/group/a/b", 3);
+        runtime.getRegistry().getSessionRegistry().modifyClientState(members[0], MqttsnClientState.ASLEEP);
+        messageQueue.depths.put(members[1].getContext().getId(), 10L);
+
+        for (int i = 0; i < 6; i++){
+            Assert.assertTrue("only the available member should be selected",
+                    subscriptionRegistry.matches("a/b").containsKey(members[2].getContext()));
+        }
+
+        //-- with no member available, the next in turn is still used rather than dropping the message
+        runtime.getRegistry().getSessionRegistry().modifyClientState(members[2], MqttsnClientState.ASLEEP);
+        Assert.assertEquals("a member should be selected even when none are available", 1,
+                subscriptionRegistry.matches("a/b").size());
+    }
+
+    @Test
+    public void testSharedSubscriptionLeastQueueDepth() throws Exception {
+
+        start(new MqttsnOptions().withSharedSubscriptionLeastQueueDepth(true));
+        IMqttsnSession[] members = createShare("$share/group/a/b", 3);
+        messageQueue.depths.put(members[0].getContext().getId(), 5L);
+        messageQueue.depths.put(members[1].getContext().getId(), 1L);
+        messageQueue.depths.put(members[2].getContext().getId(), 3L);
+
+        for (int i = 0; i < 6; i++){
+            Assert.assertTrue("the member with the shallowest queue should be selected",
+                    subscriptionRegistry.matches("a/b").containsKey(members[1].getContext()));
+        }
+    }
+
+    @Test
+    public void testMatchCacheInvalidatesOnlyAffectedTopics() throws Exception {
+
+        start(new MqttsnOptions().withSubscriptionMatchCacheSize(100));
+        IMqttsnSession first = runtime.createSession("first");
+        IMqttsnSession second = runtime.createSession("second");
+        subscriptionRegistry.subscribe(first, "a/b", 1);
+        subscriptionRegistry.subscribe(first, "c/d", 1);
+
+        subscriptionRegistry.matches("a/b");
+        subscriptionRegistry.matches("a/b");
+        subscriptionRegistry.matches("c/d");
+        Assert.assertEquals("repeated topics should be served from the cache", 2, subscriptionRegistry.searches);
+
+        subscriptionRegistry.subscribe(second, "a/+", 2);
+        Assert.assertEquals("an unaffected topic should remain cached", 1, subscriptionRegistry.matches("c/d").size());
+        Assert.assertEquals("an unaffected topic should not be searched again", 2, subscriptionRegistry.searches);
+        Assert.assertEquals("an affected topic should see the new subscription", Integer.valueOf(2),
+                subscriptionRegistry.matches("a/b").get(second.getContext()));
+        Assert.assertEquals("an affected topic should be searched again", 3, subscriptionRegistry.searches);
+
+        subscriptionRegistry.unsubscribe(second, "a/+");
+        Assert.assertNull("an affected topic should no longer see the removed subscription",
+                subscriptionRegistry.matches("a/b").get(second.getContext()));
+        Assert.assertEquals("an affected topic should be searched again", 4, subscriptionRegistry.searches);
+    }
+
+    @Test
+    public void testMatchCacheOutlivesChangeLog() throws Exception {
+
+        start(new MqttsnOptions().withSubscriptionMatchCacheSize(100));
+        IMqttsnSession session = runtime.createSession("client");
+        subscriptionRegistry.subscribe(session, "a/b", 1);
+        subscriptionRegistry.matches("a/b");
+        for (int i = 0; i < 300; i++){
+            subscriptionRegistry.subscribe(session, "other/" + i, 1);
+        }
+        Assert.assertEquals("the topic should still match", 1, subscriptionRegistry.matches("a/b").size());
+        Assert.assertEquals("an entry older than the change log should be searched again", 2, subscriptionRegistry.searches);
+        subscriptionRegistry.matches("a/b");
+        Assert.assertEquals("the refreshed entry should be served from the cache", 2, subscriptionRegistry.searches);
+    }
+
+    @Test
+    public void testMatchCacheBoundKeepsRecentlyUsed() throws Exception {
+
+        start(new MqttsnOptions().withSubscriptionMatchCacheSize(2));
+        IMqttsnSession session = runtime.createSession("client");
+        subscriptionRegistry.subscribe(session, "#", 1);
+        subscriptionRegistry.matches("a");
+        subscriptionRegistry.matches("b");
+        subscriptionRegistry.matches("a");
+        Assert.assertEquals(2, subscriptionRegistry.searches);
+
+        subscriptionRegistry.matches("c");
+        Assert.assertEquals(3, subscriptionRegistry.searches);
+        subscriptionRegistry.matches("a");
+        Assert.assertEquals("a recently used topic should survive eviction", 3, subscriptionRegistry.searches);
+        subscriptionRegistry.matches("b");
+        Assert.assertEquals("the unused topic should have been evicted", 4, subscriptionRegistry.searches);
+    }
+
+    @Test
+    public void testMatchCacheConcurrentChanges() throws Exception {
+
+        start(new MqttsnOptions().withSubscriptionMatchCacheSize(16));
+        IMqttsnSession reader = runtime.createSession("reader");
+        subscriptionRegistry.subscribe(reader, "a/#", 1);
+        IMqttsnSession[] writers = new IMqttsnSession[4];
+        for (int i = 0; i < writers.length; i++){
+            writers[i] = runtime.createSession("writer-" + i);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[writers.length];
+        for (int i = 0; i < threads.length; i++){
+            IMqttsnSession writer = writers[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    while(running.get()){
+                        subscriptionRegistry.subscribe(writer, "a/b", 1);
+                        subscriptionRegistry.matches("a/b");
+                        subscriptionRegistry.unsubscribe(writer, "a/b");
+                        subscriptionRegistry.matches("a/" + writer.getContext().getId());
+                    }
+                } catch(Throwable t){
+                    error.set(t);
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < 2000; i++){
+            Assert.assertTrue("the stable subscriber should always be matched",
+                    subscriptionRegistry.matches("a/b").containsKey(reader.getContext()));
+        }
+        running.set(false);
+        for (Thread thread : threads){
+            thread.join();
+        }
+        Assert.assertNull("matching should not fail under concurrent changes", error.get());
+        Assert.assertEquals("once changes stop the cache should reflect the tree", 1,
+                subscriptionRegistry.matches("a/b").size());
+    }
+
+    @Test
+    public void testMatchCacheDisabled() throws Exception {
+
+        start(new MqttsnOptions().withSubscriptionMatchCacheSize(0));
+        IMqttsnSession session = runtime.createSession("client");
+        subscriptionRegistry.subscribe(session, "a/b", 1);
+        subscriptionRegistry.matches("a/b");
+        subscriptionRegistry.matches("a/b");
+        Assert.assertEquals("every match should search the tree", 2, subscriptionRegistry.searches);
+    }
+
+    private IMqttsnSession[] createShare(String share, int count) throws Exception {
+        IMqttsnSession[] members = new IMqttsnSession[count];
+        for (int i = 0; i < count; i++){
+            members[i] = runtime.createSession("member-" + i);
+            subscriptionRegistry.subscribe(members[i], share, 1);
+        }
+        return members;
+    }
+
+    static class CountingSubscriptionRegistry extends MqttsnInMemorySubscriptionRegistry {
+
+        volatile int searches = 0;
+
+        @Override
+        protected Matches matchFromTree(String topicPath) throws MqttsnException {
+            searches++;
+            return super.matchFromTree(topicPath);
+        }
+    }
+
+    static class DepthMessageQueue extends MqttsnInMemoryMessageQueue {
+
+        final Map<String, Long> depths = new ConcurrentHashMap<>();
+
+        @Override
+        public long queueSize(IMqttsnSession session) throws MqttsnException {
+            Long depth = depths.get(session.getContext().getId());
+            return depth != null ? depth : super.queueSize(session);
+        }
+    }
+}
@@ -29,7 +29,6 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.slj.mqtt.sn.MqttsnConstants;
-import org.slj.mqtt.sn.impl.MqttsnFilesystemStorageService;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.model.INetworkContext;
 import org.slj.mqtt.sn.model.session.IMqttsnSession;
@@ -53,10 +52,10 @@ public class SubscriptionTests {
     private MqttsnTestRuntime runtime;
 
     @Before
-    public void setup() throws MqttsnException {
-        MqttsnFilesystemStorageService storageService = new MqttsnFilesystemStorageService();
+    public void setup() throws MqttsnException, IOException {
         MqttsnTestRuntimeRegistry registry =
-                MqttsnTestRuntimeRegistry.defaultConfiguration(storageService, MqttsnTestRuntime.TEST_OPTIONS, false);
+                MqttsnTestRuntimeRegistry.defaultConfiguration(MqttsnTestRuntime.createTemporaryStorageService(),
+                        MqttsnTestRuntime.TEST_OPTIONS, false);
         runtime = new MqttsnTestRuntime();
         runtime.start(registry);
     }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.model.MqttsnClientState;
+import org.slj.mqtt.sn.model.MqttsnContext;
+import org.slj.mqtt.sn.model.MqttsnOptions;
+import org.slj.mqtt.sn.model.session.impl.MqttsnSessionBeanImpl;
+import org.slj.mqtt.sn.model.session.impl.MqttsnTopicRegistrationImpl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TopicAliasTests {
+
+    @Test
+    public void testPredefinedTopicByAlias() {
+
+        MqttsnOptions options = new MqttsnOptions().
+                withPredefinedTopic("a/b", 5).
+                withPredefinedTopic("c/d", 1);
+
+        Assert.assertEquals("alias should resolve", "a/b", options.getPredefinedTopicPath(5));
+        Assert.assertEquals("alias should resolve", "c/d", options.getPredefinedTopicPath(1));
+        Assert.assertNull("an unused alias inside the table should not resolve", options.getPredefinedTopicPath(2));
+        Assert.assertNull("an alias beyond the table should not resolve", options.getPredefinedTopicPath(99));
+        Assert.assertNull("a negative alias should not resolve", options.getPredefinedTopicPath(-1));
+    }
+
+    @Test
+    public void testPredefinedTopicMovedToNewAlias() {
+
+        MqttsnOptions options = new MqttsnOptions().
+                withPredefinedTopic("a/b", 5).
+                withPredefinedTopic("a/b", 7);
+
+        Assert.assertNull("the previous alias should be cleared", options.getPredefinedTopicPath(5));
+        Assert.assertEquals("the new alias should resolve", "a/b", options.getPredefinedTopicPath(7));
+        Assert.assertEquals("the path should map to the new alias", Integer.valueOf(7),
+                options.getPredefinedTopics().get("a/b"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPredefinedTopicsReadOnly() {
+
+        new MqttsnOptions().getPredefinedTopics().put("a/b", 1);
+    }
+
+    @Test
+    public void testPredefinedTopicsCopiedOnWrite() throws InterruptedException {
+
+        final int ALIASES = 2000;
+        final MqttsnOptions options = new MqttsnOptions().withPredefinedTopic("t/1", 1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        //-- readers see a complete table at all times; an alias once added never reads back as missing
+        Thread reader = new Thread(() -> {
+            while(running.get()){
+                if(!"t/1".equals(options.getPredefinedTopicPath(1))){
+                    failure.set("existing alias was not visible while the table was rebuilt");
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 2; i <= ALIASES; i++){
+                options.withPredefinedTopic("t/" + i, i);
+                if(!("t/" + i).equals(options.getPredefinedTopicPath(i))){
+                    failure.set("new alias was not visible after it was added");
+                }
+            }
+        } finally {
+            running.set(false);
+            reader.join();
+        }
+        Assert.assertNull(failure.get(), failure.get());
+        for (int i = 1; i <= ALIASES; i++){
+            Assert.assertEquals("every alias should resolve", "t/" + i, options.getPredefinedTopicPath(i));
+        }
+    }
+
+    @Test
+    public void testSessionAliasIndex() {
+
+        MqttsnSessionBeanImpl bean = new MqttsnSessionBeanImpl(
+                new MqttsnContext("client"), MqttsnClientState.ACTIVE);
+        bean.addTopicRegistration(new MqttsnTopicRegistrationImpl("a/b", 10, true));
+        bean.addTopicRegistration(new MqttsnTopicRegistrationImpl("c/d", 3, true));
+        bean.addTopicRegistration(new MqttsnTopicRegistrationImpl("e/f", 7, true));
+
+        Assert.assertEquals("alias above the base should resolve", "a/b", bean.getTopicRegistration(10).getTopicPath());
+        Assert.assertEquals("alias lowering the base should resolve", "c/d", bean.getTopicRegistration(3).getTopicPath());
+        Assert.assertEquals("alias inside the range should resolve", "e/f", bean.getTopicRegistration(7).getTopicPath());
+        Assert.assertNull("alias below the base should not resolve", bean.getTopicRegistration(1));
+        Assert.assertNull("alias above the range should not resolve", bean.getTopicRegistration(11));
+
+        Assert.assertFalse("re-registering should replace", bean.addTopicRegistration(
+                new MqttsnTopicRegistrationImpl("a/b", 12, true)));
+        Assert.assertNull("the previous alias should be cleared", bean.getTopicRegistration(10));
+        Assert.assertEquals("the new alias should resolve", "a/b", bean.getTopicRegistration(12).getTopicPath());
+
+        Assert.assertTrue("registration should be removed", bean.removeTopicRegistration(
+                new MqttsnTopicRegistrationImpl("c/d", 3, true)));
+        Assert.assertNull("removed alias should not resolve", bean.getTopicRegistration(3));
+
+        bean.clearRegistrations();
+        Assert.assertNull("cleared alias should not resolve", bean.getTopicRegistration(7));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.test.cases;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.utils.TopicDictionary;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TopicDictionaryTests {
+
+    @Test
+    public void testEqualTopicsShareInstance() {
+
+        TopicDictionary dictionary = new TopicDictionary(10);
+        String first = dictionary.intern(new String("a/b"));
+        String second = dictionary.intern(new String("a/b"));
+
+        Assert.assertSame("equal topics should share the canonical instance", first, second);
+        Assert.assertEquals("each distinct topic should be held once", 1, dictionary.size());
+    }
+
+    @Test
+    public void testBoundedDictionary() {
+
+        TopicDictionary dictionary = new TopicDictionary(2);
+        String a = dictionary.intern(new String("a"));
+        String b = dictionary.intern(new String("b"));
+        String c = new String("c");
+
+        Assert.assertSame("once full, unknown topics should be returned as supplied", c, dictionary.intern(c));
+        Assert.assertEquals("the dictionary should not grow beyond its bound", 2, dictionary.size());
+        Assert.assertSame("known topics should still be interned once full", a, dictionary.intern(new String("a")));
+        Assert.assertSame(b, dictionary.intern(new String("b")));
+    }
+
+    @Test
+    public void testDisabledDictionary() {
+
+        TopicDictionary dictionary = new TopicDictionary(0);
+        String a = new String("a");
+
+        Assert.assertSame("a disabled dictionary should return topics as supplied", a, dictionary.intern(a));
+        Assert.assertEquals("a disabled dictionary should hold nothing", 0, dictionary.size());
+        Assert.assertNull("null should be passed through", dictionary.intern(null));
+    }
+
+    @Test
+    public void testUnusedTopicsAreReleased() throws InterruptedException {
+
+        TopicDictionary dictionary = new TopicDictionary(100);
+        String held = dictionary.intern(new String("device/held"));
+        for (int i = 0; i < 100; i++){
+            dictionary.intern("device/" + i);
+        }
+        Assert.assertEquals(100, dictionary.size());
+        Assert.assertTrue("topics no longer held should be released", awaitSize(dictionary, 1));
+        Assert.assertSame("a topic still held should remain interned", held, dictionary.intern(new String("device/held")));
+
+        String next = new String("device/next");
+        Assert.assertSame("interning should resume once space is released", next, dictionary.intern(next));
+        Assert.assertSame(next, dictionary.intern(new String("device/next")));
+    }
+
+    @Test
+    public void testHandles() {
+
+        TopicDictionary dictionary = new TopicDictionary(10);
+        String a = dictionary.intern(new String("a/b"));
+        String b = dictionary.intern(new String("a/c"));
+        int handle = dictionary.getHandle(new String("a/b"));
+
+        Assert.assertEquals("equal topics should share a handle", handle, dictionary.getHandle(a));
+        Assert.assertNotEquals("distinct topics should have distinct handles", handle, dictionary.getHandle(b));
+        Assert.assertSame("a handle should resolve to the canonical instance", a, dictionary.getTopicPath(handle));
+        Assert.assertEquals("a disabled dictionary should not hand out handles", TopicDictionary.NO_HANDLE,
+                new TopicDictionary(0).getHandle("a/b"));
+    }
+
+    @Test
+    public void testSegmentsAreCached() {
+
+        TopicDictionary dictionary = new TopicDictionary(10);
+        String topic = dictionary.intern(new String("a//b/"));
+        String[] segments = dictionary.getSegments(topic);
+
+        Assert.assertArrayEquals("empty levels should be retained", new String[]{"a", "", "b", ""}, segments);
+        Assert.assertSame("an interned topic should be tokenised once", segments, dictionary.getSegments(new String("a//b/")));
+        Assert.assertArrayEquals("a topic which is not interned is still tokenised", new String[]{"x", "y"},
+                new TopicDictionary(0).getSegments("x/y"));
+    }
+
+    @Test
+    public void testModifiedFormIsCached() {
+
+        TopicDictionary dictionary = new TopicDictionary(10);
+        AtomicInteger calls = new AtomicInteger();
+        String topic = dictionary.intern(new String("a/b"));
+        String modified = dictionary.getModified(new String("a/b"), t -> {
+            calls.incrementAndGet();
+            return "prefix/" + t;
+        });
+
+        Assert.assertEquals("prefix/a/b", modified);
+        Assert.assertSame("the modified form should be cached", modified, dictionary.getModified(topic, t -> {
+            calls.incrementAndGet();
+            return "prefix/" + t;
+        }));
+        Assert.assertEquals("the modifier should be applied once per topic", 1, calls.get());
+        Assert.assertSame("the modified form should itself be interned", modified, dictionary.intern(new String("prefix/a/b")));
+
+        String other = dictionary.intern(new String("c/d"));
+        Assert.assertSame("an unmodified topic should return its canonical instance", other,
+                dictionary.getModified(new String("c/d"), t -> t));
+    }
+
+    private static boolean awaitSize(TopicDictionary dictionary, int size) throws InterruptedException {
+        for (int i = 0; i < 50 && dictionary.size() > size; i++){
+            System.gc();
+            Thread.sleep(20);
+        }
+        return dictionary.size() == size;
+    }
+}
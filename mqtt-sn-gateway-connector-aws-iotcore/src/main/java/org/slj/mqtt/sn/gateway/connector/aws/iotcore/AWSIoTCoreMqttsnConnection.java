@@ -27,6 +27,7 @@ package org.slj.mqtt.sn.gateway.connector.aws.iotcore;
 import com.amazonaws.services.iot.client.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slj.mqtt.sn.MqttsnConstants;
 import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendConnection;
 import org.slj.mqtt.sn.gateway.spi.*;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
@@ -34,7 +35,6 @@ import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.spi.IMqttsnMessage;
 import org.slj.mqtt.sn.utils.TopicPath;
-import org.slj.mqtt.sn.wire.version1_2.payload.MqttsnSubscribe;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -166,7 +166,8 @@ public class AWSIoTCoreMqttsnConnection
             throws MqttsnConnectorException {
         try {
             if(isConnected()){
-                int QoS = ((MqttsnSubscribe)message).getQoS();
+                //-- upstream (batch) subscriptions carry no device message, they are made at the maximum QoS
+                int QoS = message == null ? MqttsnConstants.QoS2 : backendService.getRegistry().getCodec().getQoS(message, true);
                 logger.info("subscribing connection to {} -> {}", topicPath, QoS);
                 client.subscribe(new AWSIotTopic(topicPath.toString(), AWSIotQos.valueOf(awsSafeQoS(QoS))){
                     @Override
@@ -27,7 +27,7 @@ package org.slj.mqtt.sn.gateway.connector.google.iotcore;
 import io.jsonwebtoken.JwtBuilder;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.joda.time.DateTime;
@@ -133,20 +133,20 @@ public class GoogleIoTCoreMqttsnConnection extends PahoMqttsnBrokerConnection {
     }
 
     @Override
-    protected void onClientConnected(MqttClient client){
+    protected void onClientConnected(MqttAsyncClient client){
         try {
             ///devices/{gateway_ID}/errors
             {
                 String topic = String.format("/devices/%s/errors", getGoogleIoTGatewayId(options));
                 logger.info("subscribing to Google gateway error topic {}", topic);
-                client.subscribe(topic, 0);
+                client.subscribe(topic, 0).waitForCompletion(getTimeToWait());
             }
 
             ///devices/{gateway_ID}/config
             {
                 String topic = String.format("/devices/%s/config", getGoogleIoTGatewayId(options));
                 logger.info("subscribing to Google gateway error topic {}", topic);
-                client.subscribe(topic, 0);
+                client.subscribe(topic, 0).waitForCompletion(getTimeToWait());
             }
         } catch(Exception e){
             logger.error("error subscribing to error topic", e);
@@ -30,32 +30,50 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slj.mqtt.sn.MqttsnConstants;
 import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendConnection;
+import org.slj.mqtt.sn.gateway.spi.BrokerPublishOperation;
+import org.slj.mqtt.sn.gateway.spi.ConnectResult;
 import org.slj.mqtt.sn.gateway.spi.PublishResult;
 import org.slj.mqtt.sn.gateway.spi.Result;
 import org.slj.mqtt.sn.gateway.spi.SubscribeResult;
 import org.slj.mqtt.sn.gateway.spi.UnsubscribeResult;
+import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnAsyncConnectorConnection;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.spi.IMqttsnMessage;
 import org.slj.mqtt.sn.utils.TopicPath;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author simonjohnson
  *
  * Really simple backend connection to an MQTT broker using the PAHO client library. A single connection is managed by the runtime
- * and will be connected either eagerly on startup or lazily according to configuration
+ * and will be connected either eagerly on startup or lazily according to configuration.
+ *
+ * The connection uses the asynchronous PAHO client so publishes are pipelined; up to the configured maximum inflight
+ * publishes may await acknowledgement from the broker at once, after which publishers block until a slot frees up.
+ * The blocking operations simply wait on their asynchronous counterparts.
  */
-public class PahoMqttsnBrokerConnection extends AbstractMqttsnBackendConnection implements MqttCallback {
+public class PahoMqttsnBrokerConnection extends AbstractMqttsnBackendConnection
+        implements IMqttsnAsyncConnectorConnection, MqttCallback {
 
     private Logger logger = LoggerFactory.getLogger(PahoMqttsnBrokerConnection.class.getName());
-    private volatile MqttClient client = null;
+    private volatile MqttAsyncClient client = null;
     protected MqttsnConnectorOptions options;
+    private final Semaphore inflight;
 
     public PahoMqttsnBrokerConnection(MqttsnConnectorOptions options) {
         this.options = options;
+        this.inflight = new Semaphore(getMaxInflight(options));
     }
 
     public void connect() throws MqttsnConnectorException {
@@ -73,7 +91,7 @@ public class PahoMqttsnBrokerConnection extends AbstractMqttsnBackendConnection
                     MqttConnectOptions connectOptions = createConnectOptions(options);
                     try {
                         logger.info("connecting client with options [{}]", options);
-                        client.connect(connectOptions);
+                        client.connect(connectOptions).waitForCompletion(getTimeToWait());
                         if(client.isConnected()){
                             onClientConnected(client);
                         }
@@ -88,7 +106,7 @@ public class PahoMqttsnBrokerConnection extends AbstractMqttsnBackendConnection
     /**
      * hook method called on successful initial connection
      */
-    protected void onClientConnected(MqttClient client){
+    protected void onClientConnected(MqttAsyncClient client){
 
     }
 
@@ -99,6 +117,7 @@ public class PahoMqttsnBrokerConnection extends AbstractMqttsnBackendConnection
         if(options.getUsername() != null) connectOptions.setUserName(options.getUsername());
         connectOptions.setKeepAliveInterval(options.getKeepAlive());
         connectOptions.setConnectionTimeout(options.getConnectionTimeout());
+        connectOptions.setMaxInflight(getMaxInflight(options));
         return connectOptions;
     }
 
@@ -117,22 +136,35 @@ public class PahoMqttsnBrokerConnection extends AbstractMqttsnBackendConnection
         return String.format("%s://%s:%s", protocol, options.getHostName(), options.getPort());
     }
 
-    protected MqttClient createClient(MqttsnConnectorOptions options) throws MqttsnConnectorException {
+    protected MqttAsyncClient createClient(MqttsnConnectorOptions options) throws MqttsnConnectorException {
         try {
             String clientId = createClientId(options);
             String connectionStr = createConnectionString(options);
             logger.info("creating new paho client with host [{}] and clientId [{}]", connectionStr, clientId);
-            MqttClient client = new MqttClient(connectionStr, clientId, new MemoryPersistence());
+            MqttAsyncClient client = new MqttAsyncClient(connectionStr, clientId, new MemoryPersistence());
             client.setCallback(this);
-            client.setTimeToWait(options.getConnectionTimeout() * 1000);
             return client;
         } catch(MqttException e){
             throw new MqttsnConnectorException(e);
         }
     }
 
+    protected long getTimeToWait(){
+        return options.getConnectionTimeout() * 1000L;
+    }
+
+    protected static int getMaxInflight(MqttsnConnectorOptions options){
+        return Math.max(1, options.getMaxInflight());
+    }
+
+    @Override
+    public int getMaxInflight() {
+        return getMaxInflight(options);
+    }
+
     @Override
     public boolean isConnected() {
+        MqttAsyncClient client = this.client;
         return client != null && client.isConnected();
     }
 
@@ -161,44 +193,284 @@ public class PahoMqttsnBrokerConnection extends AbstractMqttsnBackendConnection
 
     @Override
     public SubscribeResult subscribe(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) throws MqttsnConnectorException {
+        return await(subscribeAsync(context, topicPath, message));
+    }
+
+    @Override
+    public UnsubscribeResult unsubscribe(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) throws MqttsnConnectorException {
+        return await(unsubscribeAsync(context, topicPath, message));
+    }
+
+    @Override
+    public PublishResult publish(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
+        return await(publishAsync(context, topicPath, qos, retained, payload, message));
+    }
+
+    @Override
+    public CompletableFuture<ConnectResult> connectAsync(IMqttsnContext context, IMqttsnMessage message) {
+        try {
+            //-- device connects are not broker operations, so subclasses complete them inline
+            return CompletableFuture.completedFuture(connect(context, message));
+        } catch(MqttsnConnectorException e){
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<SubscribeResult> subscribeAsync(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) {
+        CompletableFuture<SubscribeResult> future = new CompletableFuture<>();
         try {
             int QoS = message == null ? MqttsnConstants.QoS2 : backendService.getRegistry().getCodec().getQoS(message, true);
-            if(isConnected()) {
+            MqttAsyncClient client = this.client;
+            if(client != null && client.isConnected()) {
                 logger.info("subscribing connection to [{}] -> [{}]", topicPath, QoS);
-                client.subscribe(topicPath.toString(), QoS);
-                return new SubscribeResult(QoS);
+                client.subscribe(topicPath.toString(), QoS, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        //-- the broker may downgrade (or refuse with 0x80) the QoS requested
+                        int[] granted = token.getGrantedQos();
+                        int grantedQoS = granted != null && granted.length > 0 ? granted[0] : QoS;
+                        future.complete(grantedQoS == 0x80 ?
+                                new SubscribeResult(Result.STATUS.ERROR, MqttsnConstants.RETURN_CODE_REJECTED_CONGESTION, "broker refused subscription") :
+                                new SubscribeResult(grantedQoS));
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable t) {
+                        future.completeExceptionally(new MqttsnConnectorException(t));
+                    }
+                });
+            } else {
+                future.complete(new SubscribeResult(Result.STATUS.NOOP));
             }
-            return new SubscribeResult(Result.STATUS.NOOP);
-        } catch(MqttException e){
+        } catch(Exception e){
+            future.completeExceptionally(new MqttsnConnectorException(e));
+        }
+        return future;
+    }
+
+    /**
+     * Carries the whole batch in a single SUBSCRIBE, each filter at QoS 2.
+     */
+    @Override
+    public List<SubscribeResult> subscribeBatch(List<TopicPath> topicPaths) throws MqttsnConnectorException {
+        List<SubscribeResult> results = new ArrayList<>(topicPaths.size());
+        MqttAsyncClient client = this.client;
+        if(client == null || !client.isConnected()){
+            for (int i = 0; i < topicPaths.size(); i++){
+                results.add(new SubscribeResult(Result.STATUS.NOOP));
+            }
+            return results;
+        }
+        String[] filters = new String[topicPaths.size()];
+        int[] qos = new int[topicPaths.size()];
+        for (int i = 0; i < filters.length; i++){
+            filters[i] = topicPaths.get(i).toString();
+            qos[i] = MqttsnConstants.QoS2;
+        }
+        CompletableFuture<int[]> future = new CompletableFuture<>();
+        try {
+            logger.info("subscribing connection to batch of [{}] filters", filters.length);
+            client.subscribe(filters, qos, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    future.complete(token.getGrantedQos());
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable t) {
+                    future.completeExceptionally(new MqttsnConnectorException(t));
+                }
+            });
+        } catch(Exception e){
             throw new MqttsnConnectorException(e);
         }
+        int[] granted = await(future);
+        for (int i = 0; i < filters.length; i++){
+            int grantedQoS = granted != null && i < granted.length ? granted[i] : MqttsnConstants.QoS2;
+            results.add(grantedQoS == 0x80 ?
+                    new SubscribeResult(Result.STATUS.ERROR, MqttsnConstants.RETURN_CODE_REJECTED_CONGESTION, "broker refused subscription") :
+                    new SubscribeResult(grantedQoS));
+        }
+        return results;
     }
 
     @Override
-    public UnsubscribeResult unsubscribe(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) throws MqttsnConnectorException {
+    public CompletableFuture<UnsubscribeResult> unsubscribeAsync(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) {
+        CompletableFuture<UnsubscribeResult> future = new CompletableFuture<>();
         try {
             logger.info("unsubscribing connection from [{}]", topicPath);
-            if(isConnected()){
-                client.unsubscribe(topicPath.toString());
-                return new UnsubscribeResult(Result.STATUS.SUCCESS);
+            MqttAsyncClient client = this.client;
+            if(client != null && client.isConnected()){
+                client.unsubscribe(topicPath.toString(), null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        future.complete(new UnsubscribeResult(Result.STATUS.SUCCESS));
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable t) {
+                        future.completeExceptionally(new MqttsnConnectorException(t));
+                    }
+                });
+            } else {
+                future.complete(new UnsubscribeResult(Result.STATUS.NOOP));
             }
-            return new UnsubscribeResult(Result.STATUS.NOOP);
-        } catch(MqttException e){
-            throw new MqttsnConnectorException(e);
+        } catch(Exception e){
+            future.completeExceptionally(new MqttsnConnectorException(e));
         }
+        return future;
     }
 
     @Override
-    public PublishResult publish(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
+    public CompletableFuture<PublishResult> publishAsync(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) {
+        CompletableFuture<PublishResult> future = new CompletableFuture<>();
+        MqttAsyncClient client = this.client;
+        if(client == null || !client.isConnected()){
+            future.complete(new PublishResult(Result.STATUS.NOOP));
+            return future;
+        }
+        boolean acquired = false;
         try {
-           if(isConnected()){
-               client.publish(topicPath.toString(), payload, qos, retained);
-               return new PublishResult(Result.STATUS.SUCCESS);
-           }
-            return new PublishResult(Result.STATUS.NOOP);
+            //-- the window is bounded locally as well as on the client, so a full window applies back pressure
+            //-- to the publisher instead of failing the publish
+            if(!inflight.tryAcquire(getTimeToWait(), TimeUnit.MILLISECONDS)){
+                future.completeExceptionally(new MqttsnConnectorException("inflight window full, publish timed out"));
+                return future;
+            }
+            acquired = true;
+            client.publish(topicPath.toString(), payload, qos, retained, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    inflight.release();
+                    future.complete(new PublishResult(Result.STATUS.SUCCESS));
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable t) {
+                    inflight.release();
+                    future.completeExceptionally(new MqttsnConnectorException(t));
+                }
+            });
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(new MqttsnConnectorException(e));
         } catch(Exception e){
+            if(acquired) inflight.release();
+            future.completeExceptionally(new MqttsnConnectorException(e));
+        }
+        return future;
+    }
+
+    /**
+     * Waits for the whole batch against a single deadline rather than per publish.
+     */
+    @Override
+    public List<PublishResult> publishBatch(List<BrokerPublishOperation> operations) throws MqttsnConnectorException {
+        List<CompletableFuture<PublishResult>> futures = publishBatchAsync(operations);
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).
+                    get(getTimeToWait(), TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
             throw new MqttsnConnectorException(e);
+        } catch(ExecutionException e){
+            //-- individual failures are reported per operation below
+        } catch(TimeoutException e){
+            throw new MqttsnConnectorException("timed out waiting for broker acknowledgement", e);
+        }
+        List<PublishResult> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<PublishResult> future : futures){
+            try {
+                results.add(future.join());
+            } catch(CompletionException e){
+                results.add(new PublishResult(Result.STATUS.ERROR, e.getCause().getMessage()));
+            }
         }
+        return results;
+    }
+
+    /**
+     * Hands the whole batch to the client in one pass; the connection is checked once and inflight slots are
+     * claimed a window at a time rather than per publish.
+     */
+    @Override
+    public List<CompletableFuture<PublishResult>> publishBatchAsync(List<BrokerPublishOperation> operations) {
+        List<CompletableFuture<PublishResult>> futures = new ArrayList<>(operations.size());
+        MqttAsyncClient client = this.client;
+        if(client == null || !client.isConnected()){
+            CompletableFuture<PublishResult> noop = CompletableFuture.completedFuture(new PublishResult(Result.STATUS.NOOP));
+            for (int i = 0; i < operations.size(); i++){
+                futures.add(noop);
+            }
+            return futures;
+        }
+        int window = getMaxInflight();
+        int acquired = 0;
+        try {
+            for (BrokerPublishOperation op : operations){
+                if(acquired == 0){
+                    int wanted = Math.min(window, operations.size() - futures.size());
+                    if(!inflight.tryAcquire(wanted, getTimeToWait(), TimeUnit.MILLISECONDS)){
+                        break;
+                    }
+                    acquired = wanted;
+                }
+                CompletableFuture<PublishResult> future = new CompletableFuture<>();
+                futures.add(future);
+                try {
+                    client.publish(op.getTopicPath().toString(), op.getPayload(), op.getQos(), op.isRetained(),
+                            null, new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken token) {
+                            inflight.release();
+                            future.complete(new PublishResult(Result.STATUS.SUCCESS));
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken token, Throwable t) {
+                            inflight.release();
+                            future.completeExceptionally(new MqttsnConnectorException(t));
+                        }
+                    });
+                } catch(Exception e){
+                    inflight.release();
+                    future.completeExceptionally(new MqttsnConnectorException(e));
+                }
+                acquired--;
+            }
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        } finally {
+            if(acquired > 0) inflight.release(acquired);
+        }
+        //-- anything not handed to the client (window timed out or interrupted) fails individually
+        while(futures.size() < operations.size()){
+            futures.add(failed(new MqttsnConnectorException("inflight window full, publish timed out")));
+        }
+        return futures;
+    }
+
+    protected <T> T await(CompletableFuture<T> future) throws MqttsnConnectorException {
+        try {
+            return future.get(getTimeToWait(), TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new MqttsnConnectorException(e);
+        } catch(ExecutionException e){
+            if(e.getCause() instanceof MqttsnConnectorException){
+                throw (MqttsnConnectorException) e.getCause();
+            }
+            throw new MqttsnConnectorException(e.getCause());
+        } catch(TimeoutException e){
+            throw new MqttsnConnectorException("timed out waiting for broker acknowledgement", e);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
     }
 
     @Override
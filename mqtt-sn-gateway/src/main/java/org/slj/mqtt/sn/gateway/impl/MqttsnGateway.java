@@ -24,6 +24,8 @@
 
 package org.slj.mqtt.sn.gateway.impl;
 
+import org.slj.mqtt.sn.gateway.spi.PublishResult;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRetainedStore;
 import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRuntimeRegistry;
 import org.slj.mqtt.sn.impl.AbstractMqttsnRuntime;
 import org.slj.mqtt.sn.model.IMqttsnContext;
@@ -41,8 +43,18 @@ public class MqttsnGateway extends AbstractMqttsnRuntime {
         //-- notify the backend of confirmed message
         registerPublishReceivedListener((context, topicPath, qos, retained, data, message) -> {
             try {
-                ((IMqttsnGatewayRuntimeRegistry) registry).
+                PublishResult result = ((IMqttsnGatewayRuntimeRegistry) registry).
                         getBackendService().publish(context, topicPath, qos, retained, data, message);
+                if(result.isError()){
+                    logger.warn("backend publish to {} failed, {}", topicPath, result.getMessage());
+                } else if(retained){
+                    //-- device publishes update the local retained store directly, the broker will not echo them back;
+                    //-- only a publish the backend accepted is retained, so later subscribers never see a value it refused
+                    IMqttsnGatewayRetainedStore retainedStore = ((IMqttsnGatewayRuntimeRegistry) registry).getRetainedStore();
+                    if(retainedStore != null){
+                        retainedStore.retain(topicPath.toString(), qos, data);
+                    }
+                }
             } catch (MqttsnException e) {
                 logger.error("error publishing message to backend", e);
             }
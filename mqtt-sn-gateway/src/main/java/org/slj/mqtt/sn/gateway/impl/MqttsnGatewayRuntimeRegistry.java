@@ -46,6 +46,8 @@ public class MqttsnGatewayRuntimeRegistry extends AbstractMqttsnRuntimeRegistry
                     new MqttsnGatewayRuntimeRegistry(storageService, options).
                 withGatewaySessionService(new MqttsnGatewaySessionService()).
                 withExpansionHandler(new MqttsnGatewayExpansionHandler()).
+                withRetainedStore(new MqttsnGatewayRetainedStore()).
+                withPayloadCodec(new MqttsnGatewayPayloadCodec()).
                 withGatewayAdvertiseService(new MqttsnGatewayAdvertiseService()).
                 withMessageHandler(new MqttsnGatewayMessageHandler()).
                 withMessageRegistry(new MqttsnInMemoryMessageRegistry()).
@@ -53,8 +55,10 @@ public class MqttsnGatewayRuntimeRegistry extends AbstractMqttsnRuntimeRegistry
                 withWillRegistry(new MqttsnInMemoryWillRegistry()).
                 withTopicModifier(new MqttsnDefaultTopicModifier()).
 //                withMessageQueue(new MqttsnInMemoryMessageQueue()).
-                withMessageQueue(new MqttsnFileBackedInMemoryMessageQueue(
-                        new MqttsnJacksonReaderWriter())).
+                withMessageQueue(options.isSharedLogMessageQueue() ?
+                        new MqttsnSharedLogMessageQueue() :
+                        new MqttsnFileBackedInMemoryMessageQueue(new MqttsnBinaryReaderWriter(
+                                new MqttsnVMObjectReaderWriter(), new MqttsnJacksonReaderWriter()))).
                 withContextFactory(new MqttsnContextFactory()).
                 withSessionRegistry(new MqttsnSessionRegistry()).
                 withSecurityService(new MqttsnSecurityService()).
@@ -101,6 +105,16 @@ public class MqttsnGatewayRuntimeRegistry extends AbstractMqttsnRuntimeRegistry
         return this;
     }
 
+    public MqttsnGatewayRuntimeRegistry withRetainedStore(IMqttsnGatewayRetainedStore retainedStore){
+        withService(retainedStore);
+        return this;
+    }
+
+    public MqttsnGatewayRuntimeRegistry withPayloadCodec(IMqttsnGatewayPayloadCodec payloadCodec){
+        withService(payloadCodec);
+        return this;
+    }
+
     @Override
     public IMqttsnGatewaySessionService getGatewaySessionService() {
         return getService(IMqttsnGatewaySessionService.class);
@@ -129,4 +143,14 @@ public class MqttsnGatewayRuntimeRegistry extends AbstractMqttsnRuntimeRegistry
     public IMqttsnGatewayExpansionHandler getExpansionHandler() {
         return getService(IMqttsnGatewayExpansionHandler.class);
     }
+
+    @Override
+    public IMqttsnGatewayRetainedStore getRetainedStore() {
+        return getOptionalService(IMqttsnGatewayRetainedStore.class).orElse(null);
+    }
+
+    @Override
+    public IMqttsnGatewayPayloadCodec getPayloadCodec() {
+        return getOptionalService(IMqttsnGatewayPayloadCodec.class).orElse(null);
+    }
 }
\ No newline at end of file
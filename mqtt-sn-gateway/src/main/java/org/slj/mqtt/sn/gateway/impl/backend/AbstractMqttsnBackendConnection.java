@@ -39,16 +39,33 @@ import org.slj.mqtt.sn.utils.TopicPath;
 public abstract class AbstractMqttsnBackendConnection implements IMqttsnConnectorConnection {
 
     protected IMqttsnBackendService backendService;
+    protected volatile IMqttsnContext context;
 
     public void setBrokerService(IMqttsnBackendService backendService){
         this.backendService = backendService;
     }
 
+    /**
+     * Bind the connection to a single device, messages it receives are then delivered to that device only
+     */
+    public void setContext(IMqttsnContext context){
+        this.context = context;
+    }
+
+    public IMqttsnContext getContext(){
+        return context;
+    }
+
     public void receive(String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException {
         if(backendService == null){
             throw new MqttsnException("backendService not available to connection, receive will fail");
         }
-        backendService.receive(topicPath, qos, retained, payload);
+        IMqttsnContext context = this.context;
+        if(context != null){
+            backendService.receive(context, topicPath, qos, retained, payload);
+        } else {
+            backendService.receive(topicPath, qos, retained, payload);
+        }
     }
 
     @Override
@@ -27,8 +27,11 @@ package org.slj.mqtt.sn.gateway.impl.backend;
 import org.slj.mqtt.sn.cloud.MqttsnConnectorDescriptor;
 import org.slj.mqtt.sn.gateway.spi.*;
 import org.slj.mqtt.sn.gateway.spi.connector.*;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayPayloadCodec;
 import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRuntimeRegistry;
 import org.slj.mqtt.sn.impl.AbstractMqttsnBackoffThreadService;
+import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
+import org.slj.mqtt.sn.impl.metrics.MqttsnCountingMetric;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.spi.*;
 import org.slj.mqtt.sn.utils.TopicPath;
@@ -81,7 +84,7 @@ public abstract class AbstractMqttsnBackendService
         if(!connection.isConnected()){
             throw new MqttsnConnectorException("underlying broker connection was not connected");
         }
-        PublishResult result = connection.publish(context, topic, qos, retained, payload, message);
+        PublishResult result = connection.publish(context, topic, qos, retained, encodePayload(topic, payload), message);
         return result;
     }
 
@@ -115,6 +118,14 @@ public abstract class AbstractMqttsnBackendService
         }
     }
 
+    /**
+     * @return the payload as it should be published to the backend, encoded by the payload codec where one is bound
+     */
+    protected byte[] encodePayload(TopicPath topic, byte[] payload){
+        IMqttsnGatewayPayloadCodec codec = getRegistry().getPayloadCodec();
+        return codec == null ? payload : codec.encode(topic.toString(), payload);
+    }
+
     @Override
     public void receive(String topicPath, int qos, boolean retained, byte[] payload) {
         registry.getRuntime().async(() -> {
@@ -126,6 +137,35 @@ public abstract class AbstractMqttsnBackendService
         });
     }
 
+    @Override
+    public void receive(IMqttsnContext context, String topicPath, int qos, boolean retained, byte[] payload) {
+        registry.getRuntime().async(() -> {
+            try {
+                getRegistry().getExpansionHandler().receiveToSession(context, topicPath, qos, retained, payload);
+            } catch(Exception e){
+                logger.error("error receiving to session;", e);
+            }
+        });
+    }
+
+    /**
+     * Register the metrics the backend and expansion handler report against.
+     */
+    protected void registerConnectorMetrics(){
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH,
+                "The number of mqtt application messages published through the backend connector.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_ERROR,
+                "The number of errors received during mqtt application messages published through the backend connector.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_RECEIVE,
+                "The number of mqtt application messages received through the backend connector.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        registry.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_CONNECTOR_EXPANSION,
+                "The number of mqtt application messages received into sessions.",
+                IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+    }
+
     @Override
     public IMqttsnGatewayRuntimeRegistry getRegistry() {
         return (IMqttsnGatewayRuntimeRegistry) registry;
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.impl.backend;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the publish rate of a broker connection by additive increase / multiplicative decrease (AIMD).
+ *
+ * Completed publishes are reported with their acknowledgement latency. While the broker acknowledges within the
+ * latency target, the permitted rate is raised by a fixed step at the end of each window in which publishes were
+ * made; an error, or an acknowledgement slower than the target, cuts the rate by the decrease factor. At most one
+ * cut is made per window, so a burst of failures from a single throttling event only cuts the rate once.
+ */
+public class MqttsnAdaptiveRateController {
+
+    private static final Logger logger = LoggerFactory.getLogger(MqttsnAdaptiveRateController.class.getName());
+    static final long WINDOW = 1000;
+
+    private final String name;
+    private final double minRate;
+    private final double increase;
+    private final double decrease;
+    private final long latencyTarget;
+    private final RateLimiter limiter;
+    private volatile double maxRate;
+    private volatile double rate;
+
+    //-- guarded by this
+    private long windowStart;
+    private long lastDecrease;
+
+    public MqttsnAdaptiveRateController(String name, double minRate, double maxRate,
+                                        double increase, double decrease, long latencyTarget) {
+        this.name = name;
+        this.minRate = Math.max(minRate, 0.1d);
+        this.maxRate = Math.max(maxRate, this.minRate);
+        this.increase = increase;
+        this.decrease = Math.min(Math.max(decrease, 0.01d), 1d);
+        this.latencyTarget = latencyTarget;
+        //-- start optimistic, the first sign of congestion brings the rate down
+        this.rate = this.maxRate;
+        this.limiter = RateLimiter.create(rate);
+        this.windowStart = System.currentTimeMillis();
+    }
+
+    public void acquire(int permits){
+        limiter.acquire(permits);
+    }
+
+    /**
+     * Report the outcome of a publish (or batch of publishes) handed to the connection
+     * @param errors - the number of publishes which failed or timed out
+     * @param latency - the time (in milliseconds) from hand off to the last acknowledgement
+     */
+    public void complete(int errors, long latency){
+        complete(errors, latency, System.currentTimeMillis());
+    }
+
+    /**
+     * Report the outcome of a publish (or batch of publishes) completed at the time given
+     * @param errors - the number of publishes which failed or timed out
+     * @param latency - the time (in milliseconds) from hand off to the last acknowledgement
+     * @param now - the time (in milliseconds) the outcome was known
+     */
+    public synchronized void complete(int errors, long latency, long now){
+        if(errors > 0 || latency > latencyTarget){
+            if(now - lastDecrease >= WINDOW){
+                setRate(Math.max(minRate, rate * decrease));
+                lastDecrease = now;
+                logger.warn("backend {} congested ({} errors, {}ms latency), rate reduced to {}/s", name, errors, latency, (int) rate);
+            }
+            windowStart = now;
+        } else {
+            if(now - windowStart >= WINDOW){
+                if(now - lastDecrease >= WINDOW && rate < maxRate){
+                    setRate(Math.min(maxRate, rate + increase));
+                    logger.debug("backend {} healthy, rate increased to {}/s", name, (int) rate);
+                }
+                windowStart = now;
+            }
+        }
+    }
+
+    /**
+     * Lower (or raise) the ceiling, for example when the connector advertises its own limit.
+     */
+    public synchronized void setMaxRate(double maxRate){
+        this.maxRate = Math.max(maxRate, minRate);
+        if(rate > this.maxRate){
+            setRate(this.maxRate);
+        }
+    }
+
+    public double getRate(){
+        return rate;
+    }
+
+    public double getMaxRate(){
+        return maxRate;
+    }
+
+    private void setRate(double rate){
+        this.rate = rate;
+        limiter.setRate(rate);
+    }
+}
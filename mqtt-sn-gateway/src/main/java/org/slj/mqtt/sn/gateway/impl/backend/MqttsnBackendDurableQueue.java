@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.impl.backend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slj.mqtt.sn.gateway.spi.BrokerPublishOperation;
+import org.slj.mqtt.sn.model.MqttsnContext;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A durable FIFO of publish operations awaiting the broker, held in a directory of numbered append-only segment files.
+ *
+ * Each record is written as [length][crc32][body]. Appends are group committed; the first appender to reach the
+ * commit writes (and forces to disk) everything buffered so far, so concurrent appenders share a single fsync and
+ * every append returns only once its record is on disk. Segments roll once they exceed the segment size.
+ *
+ * Draining a record does not remove it. Each drained operation carries a receipt which is acknowledged once the
+ * broker has accepted the publish (or the gateway has given up on it). The checkpoint only ever advances to the
+ * first record not yet acknowledged, and a segment is deleted only once the checkpoint has moved past it. Following
+ * a crash or shutdown, anything drained but unacknowledged is read again, so records are redelivered at least once
+ * rather than lost. A torn record at the tail of a segment is truncated on open.
+ */
+public class MqttsnBackendDurableQueue implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MqttsnBackendDurableQueue.class.getName());
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String CHECKPOINT = "checkpoint";
+    static final int HEADER_SIZE = 8;
+
+    private final File dir;
+    private final long segmentSize;
+    private final long maxBytes;
+
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    //-- appenders (guarded by buffer)
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long appended;
+
+    //-- committer (guarded by commitLock)
+    private final Object commitLock = new Object();
+    private long committed;
+    private FileChannel tail;
+    private long tailLength;
+
+    //-- visible to the drainer, the tail segment and its committed length are published together
+    private volatile long[] committedTail;
+
+    //-- drainer (guarded by readLock)
+    private final Object readLock = new Object();
+    private FileChannel head;
+    private long headSegment;
+    private long readOffset;
+    private long[] checkpointed;
+
+    //-- records drained but not yet acknowledged, by receipt in drain order (guarded by itself)
+    private final TreeMap<Long, Pending> pending = new TreeMap<>();
+    private long lastReceipt;
+    private int unacknowledged;
+
+    public MqttsnBackendDurableQueue(File dir, long segmentSize, long maxBytes) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Open the queue, recovering any records left on disk from a previous run.
+     */
+    public void open() throws IOException {
+        dir.mkdirs();
+        long[] checkpoint = readCheckpoint();
+        long[] segments = listSegments();
+        for (long segment : segments){
+            if(segment < checkpoint[0]){
+                java.nio.file.Files.deleteIfExists(getSegmentFile(segment).toPath());
+            }
+        }
+        segments = listSegments();
+        if(segments.length == 0){
+            segments = new long[] { checkpoint[0] };
+        } else if(segments[0] != checkpoint[0]){
+            //-- the checkpointed segment is gone, start from the beginning of the oldest remaining
+            checkpoint = new long[] { segments[0], 0 };
+        }
+
+        for (int i = 0; i < segments.length; i++){
+            recover(segments[i], i == 0 ? checkpoint[1] : 0);
+        }
+
+        headSegment = segments[0];
+        readOffset = checkpoint[1];
+        checkpointed = checkpoint;
+        head = openSegment(headSegment);
+
+        long tailSegment = segments[segments.length - 1];
+        tail = headSegment == tailSegment ? head : openSegment(tailSegment);
+        tailLength = tail.size();
+        committedTail = new long[] { tailSegment, tailLength };
+        if(count.get() > 0){
+            logger.info("recovered {} publish operations ({} bytes) from durable backend queue {}",
+                    count.get(), bytes.get(), dir);
+        }
+    }
+
+    /**
+     * Append an operation, returning once it is durable.
+     * @return false if the queue is at capacity and the operation was not appended
+     */
+    public boolean append(BrokerPublishOperation op) throws IOException {
+        byte[] record = encode(op);
+        long seq;
+        synchronized (buffer){
+            if(bytes.get() + record.length > maxBytes){
+                return false;
+            }
+            buffer.write(record);
+            seq = ++appended;
+            bytes.addAndGet(record.length);
+            count.incrementAndGet();
+        }
+        commit(seq);
+        return true;
+    }
+
+    /**
+     * Return up to max committed operations from the head of the queue. Each is given a receipt (see
+     * {@link BrokerPublishOperation#getDurableReceipt()}) which must be passed to {@link #acknowledge(long)} once the
+     * operation is resolved; until then the record remains on disk and is read again after a restart.
+     */
+    public List<BrokerPublishOperation> drain(int max) throws IOException {
+        List<BrokerPublishOperation> ops = new ArrayList<>(Math.min(max, Math.max(count.get(), 0)));
+        synchronized (readLock){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(ops.size() < max){
+                long[] committedTail = this.committedTail;
+                long limit = headSegment == committedTail[0] ? committedTail[1] : head.size();
+                if(readOffset + HEADER_SIZE > limit){
+                    if(headSegment < committedTail[0]){
+                        nextSegment();
+                        continue;
+                    }
+                    break;
+                }
+                header.clear();
+                readFully(head, header, readOffset);
+                header.flip();
+                int length = header.getInt();
+                long crc = header.getInt() & 0xFFFFFFFFL;
+                if(length < 0 || readOffset + HEADER_SIZE + length > limit){
+                    logger.error("corrupt record in durable backend queue segment {} at {}, skipping segment", headSegment, readOffset);
+                    readOffset = limit;
+                    continue;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(head, body, readOffset + HEADER_SIZE);
+                long start = readOffset;
+                readOffset += HEADER_SIZE + length;
+                bytes.addAndGet(-(HEADER_SIZE + length));
+                count.decrementAndGet();
+                if(crc(body.array()) != crc){
+                    logger.error("checksum mismatch in durable backend queue segment {}, record discarded", headSegment);
+                    continue;
+                }
+                BrokerPublishOperation op = decode(body.array());
+                synchronized (pending){
+                    op.setDurableReceipt(++lastReceipt);
+                    pending.put(lastReceipt, new Pending(headSegment, start));
+                    unacknowledged++;
+                }
+                ops.add(op);
+            }
+            //-- persist what has been acknowledged since the last step
+            checkpoint();
+        }
+        return ops;
+    }
+
+    /**
+     * Mark a drained operation as resolved, so the checkpoint may advance past it once every operation drained
+     * before it is also resolved. Receipts which are unknown (for example drained before a restart) are ignored.
+     */
+    public void acknowledge(long receipt){
+        synchronized (pending){
+            Pending p = pending.get(receipt);
+            if(p == null || p.acknowledged) return;
+            p.acknowledged = true;
+            unacknowledged--;
+            //-- the watermark only moves past a contiguous run of acknowledged records
+            Map.Entry<Long, Pending> first;
+            while((first = pending.firstEntry()) != null && first.getValue().acknowledged){
+                pending.pollFirstEntry();
+            }
+        }
+    }
+
+    /**
+     * @return the number of operations drained but not yet acknowledged
+     */
+    public int getUnacknowledged(){
+        synchronized (pending){
+            return unacknowledged;
+        }
+    }
+
+    /**
+     * Persist the position of the first record not yet acknowledged (or the drain position, when everything drained
+     * has been acknowledged) and delete the segments wholly before it. Called as the queue is drained and on close;
+     * acknowledgements made since the last checkpoint are simply redelivered should the process die first.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (readLock){
+            if(head == null) return;
+            long[] position;
+            synchronized (pending){
+                Map.Entry<Long, Pending> first = pending.firstEntry();
+                position = first == null ? new long[] { headSegment, readOffset } :
+                        new long[] { first.getValue().segment, first.getValue().offset };
+            }
+            if(Arrays.equals(position, checkpointed)) return;
+            writeCheckpoint(position);
+            for (long segment = checkpointed[0]; segment < position[0]; segment++){
+                java.nio.file.Files.deleteIfExists(getSegmentFile(segment).toPath());
+            }
+            checkpointed = position;
+        }
+    }
+
+    public int size(){
+        return Math.max(count.get(), 0);
+    }
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    public long getBytes(){
+        return bytes.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (readLock){
+            checkpoint();
+            synchronized (commitLock){
+                try {
+                    if(tail != null && tail != head) tail.close();
+                    if(head != null) head.close();
+                } finally {
+                    tail = null;
+                    head = null;
+                }
+            }
+        }
+    }
+
+    private void commit(long seq) throws IOException {
+        synchronized (commitLock){
+            if(committed >= seq) return;
+            if(tail == null) throw new IOException("durable backend queue is closed");
+            byte[] data;
+            long upTo;
+            synchronized (buffer){
+                data = buffer.toByteArray();
+                buffer.reset();
+                upTo = appended;
+            }
+            if(tailLength > 0 && tailLength + data.length > segmentSize){
+                roll();
+            }
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            long position = tailLength;
+            while(bb.hasRemaining()){
+                position += tail.write(bb, position);
+            }
+            tail.force(false);
+            tailLength = position;
+            committedTail = new long[] { committedTail[0], position };
+            committed = upTo;
+        }
+    }
+
+    private void roll() throws IOException {
+        long next = committedTail[0] + 1;
+        FileChannel channel = openSegment(next);
+        if(tail != head) tail.close();
+        tail = channel;
+        tailLength = 0;
+        //-- the previous segment is complete, so a drainer that sees the new tail reads it to its end
+        committedTail = new long[] { next, 0 };
+    }
+
+    /**
+     * Move the drain position to the next segment; the previous one is deleted by the checkpoint once every record
+     * drained from it has been acknowledged.
+     */
+    private void nextSegment() throws IOException {
+        if(head != tail) head.close();
+        headSegment++;
+        readOffset = 0;
+        synchronized (commitLock){
+            head = headSegment == committedTail[0] ? tail : openSegment(headSegment);
+        }
+    }
+
+    /**
+     * Count the valid records in a segment from the given offset, truncating it at the first torn or corrupt record.
+     */
+    private void recover(long segment, long offset) throws IOException {
+        try (FileChannel channel = openSegment(segment)){
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(offset + HEADER_SIZE <= size){
+                header.clear();
+                readFully(channel, header, offset);
+                header.flip();
+                int length = header.getInt();
+                long crc = header.getInt() & 0xFFFFFFFFL;
+                if(length < 0 || offset + HEADER_SIZE + length > size) break;
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(channel, body, offset + HEADER_SIZE);
+                if(crc(body.array()) != crc) break;
+                offset += HEADER_SIZE + length;
+                count.incrementAndGet();
+                bytes.addAndGet(HEADER_SIZE + length);
+            }
+            if(offset < size){
+                logger.warn("truncating durable backend queue segment {} from {} to {} bytes", segment, size, offset);
+                channel.truncate(offset);
+            }
+        }
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        File f = new File(dir, CHECKPOINT);
+        if(f.exists() && f.length() >= 16){
+            try (DataInputStream dis = new DataInputStream(new FileInputStream(f))){
+                return new long[] { dis.readLong(), dis.readLong() };
+            }
+        }
+        return new long[] { 0, 0 };
+    }
+
+    private void writeCheckpoint(long[] position) throws IOException {
+        File f = new File(dir, CHECKPOINT);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")){
+            raf.seek(0);
+            raf.writeLong(position[0]);
+            raf.writeLong(position[1]);
+        }
+    }
+
+    private long[] listSegments(){
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if(files == null) return new long[0];
+        long[] segments = new long[files.length];
+        for (int i = 0; i < files.length; i++){
+            String name = files[i].getName();
+            segments[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File getSegmentFile(long segment){
+        return new File(dir, String.format("%s%012d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(getSegmentFile(segment).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if(read < 0) throw new EOFException("unexpected end of durable backend queue segment");
+            position += read;
+        }
+    }
+
+    private static long crc(byte[] data){
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    static byte[] encode(BrokerPublishOperation op) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                HEADER_SIZE + 32 + (op.getPayload() == null ? 0 : op.getPayload().length));
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0);
+        dos.writeInt(0);
+        String contextId = op.getContext() == null ? null : op.getContext().getId();
+        dos.writeBoolean(contextId != null);
+        if(contextId != null) dos.writeUTF(contextId);
+        byte[] topic = op.getTopicPath().toString().getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(topic.length);
+        dos.write(topic);
+        dos.writeByte(op.getQos());
+        dos.writeBoolean(op.isRetained());
+        byte[] payload = op.getPayload() == null ? new byte[0] : op.getPayload();
+        dos.writeInt(payload.length);
+        dos.write(payload);
+        dos.flush();
+        byte[] record = baos.toByteArray();
+        int length = record.length - HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, length);
+        ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+        return record;
+    }
+
+    static BrokerPublishOperation decode(byte[] body) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(body));
+        String contextId = dis.readBoolean() ? dis.readUTF() : null;
+        byte[] topic = new byte[dis.readInt()];
+        dis.readFully(topic);
+        int qos = dis.readByte();
+        boolean retained = dis.readBoolean();
+        byte[] payload = new byte[dis.readInt()];
+        dis.readFully(payload);
+        //-- the originating message does not survive the queue, connections see a context rebuilt from its id only
+        return new BrokerPublishOperation(contextId == null ? null : new MqttsnContext(contextId),
+                new TopicPath(new String(topic, StandardCharsets.UTF_8)), qos, retained, payload, null);
+    }
+
+    /**
+     * The position of a drained record awaiting acknowledgement
+     */
+    private static final class Pending {
+
+        private final long segment;
+        private final long offset;
+        private boolean acknowledged;
+
+        Pending(long segment, long offset){
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.impl.backend;
+
+import org.slj.mqtt.sn.gateway.spi.*;
+import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnAsyncConnectorConnection;
+import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnConnectorConnection;
+import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.spi.IMqttsnMessage;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Presents a blocking connection through the asynchronous API. Each operation runs to completion on the calling
+ * thread and the future returned is already complete, so a blocking connector behaves exactly as it did before
+ * (an inflight window of one).
+ */
+public class MqttsnBlockingConnectorAdapter implements IMqttsnAsyncConnectorConnection {
+
+    private final IMqttsnConnectorConnection connection;
+
+    protected MqttsnBlockingConnectorAdapter(IMqttsnConnectorConnection connection){
+        this.connection = connection;
+    }
+
+    /**
+     * @return the connection itself where it already supports the asynchronous API, else a blocking adapter over it
+     */
+    public static IMqttsnAsyncConnectorConnection adapt(IMqttsnConnectorConnection connection){
+        if(connection instanceof IMqttsnAsyncConnectorConnection){
+            return (IMqttsnAsyncConnectorConnection) connection;
+        }
+        return new MqttsnBlockingConnectorAdapter(connection);
+    }
+
+    public IMqttsnConnectorConnection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public CompletableFuture<ConnectResult> connectAsync(IMqttsnContext context, IMqttsnMessage message) {
+        try {
+            return CompletableFuture.completedFuture(connection.connect(context, message));
+        } catch(MqttsnConnectorException e){
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<SubscribeResult> subscribeAsync(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) {
+        try {
+            return CompletableFuture.completedFuture(connection.subscribe(context, topicPath, message));
+        } catch(MqttsnConnectorException e){
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<UnsubscribeResult> unsubscribeAsync(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) {
+        try {
+            return CompletableFuture.completedFuture(connection.unsubscribe(context, topicPath, message));
+        } catch(MqttsnConnectorException e){
+            return failed(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<PublishResult> publishAsync(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) {
+        try {
+            return CompletableFuture.completedFuture(connection.publish(context, topicPath, qos, retained, payload, message));
+        } catch(MqttsnConnectorException e){
+            return failed(e);
+        }
+    }
+
+    /**
+     * The batch is handed to the blocking connection as a whole, so a connection with a native batch publish
+     * keeps the benefit of it.
+     */
+    @Override
+    public List<CompletableFuture<PublishResult>> publishBatchAsync(List<BrokerPublishOperation> operations) {
+        List<CompletableFuture<PublishResult>> futures = new ArrayList<>(operations.size());
+        try {
+            for (PublishResult result : connection.publishBatch(operations)){
+                futures.add(CompletableFuture.completedFuture(result));
+            }
+        } catch(MqttsnConnectorException e){
+            futures.clear();
+            for (int i = 0; i < operations.size(); i++){
+                futures.add(failed(e));
+            }
+        }
+        return futures;
+    }
+
+    @Override
+    public List<PublishResult> publishBatch(List<BrokerPublishOperation> operations) throws MqttsnConnectorException {
+        return connection.publishBatch(operations);
+    }
+
+    @Override
+    public List<SubscribeResult> subscribeBatch(List<TopicPath> topicPaths) throws MqttsnConnectorException {
+        return connection.subscribeBatch(topicPaths);
+    }
+
+    @Override
+    public int getMaxInflight() {
+        return 1;
+    }
+
+    @Override
+    public boolean isConnected() throws MqttsnConnectorException {
+        return connection.isConnected();
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+
+    @Override
+    public DisconnectResult disconnect(IMqttsnContext context, IMqttsnMessage message) throws MqttsnConnectorException {
+        return connection.disconnect(context, message);
+    }
+
+    @Override
+    public ConnectResult connect(IMqttsnContext context, IMqttsnMessage message) throws MqttsnConnectorException {
+        return connection.connect(context, message);
+    }
+
+    @Override
+    public SubscribeResult subscribe(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) throws MqttsnConnectorException {
+        return connection.subscribe(context, topicPath, message);
+    }
+
+    @Override
+    public UnsubscribeResult unsubscribe(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) throws MqttsnConnectorException {
+        return connection.unsubscribe(context, topicPath, message);
+    }
+
+    @Override
+    public PublishResult publish(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
+        return connection.publish(context, topicPath, qos, retained, payload, message);
+    }
+
+    @Override
+    public boolean canAccept(IMqttsnContext context, TopicPath topicPath, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
+        return connection.canAccept(context, topicPath, payload, message);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.impl.backend;
+
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.utils.TopicPath;
+import org.slj.mqtt.sn.utils.tree.MqttTopicTree;
+import org.slj.mqtt.sn.utils.tree.TriesTreeLimitExceededException;
+
+import java.util.*;
+
+/**
+ * Decides which topic filters an aggregated broker connection needs to be subscribed to. Every filter subscribed
+ * by a device is reference counted by the devices holding it, but only the minimal covering set is subscribed
+ * upstream; a filter matched in full by another filter (for example many 'a/b/+/c' under an existing 'a/#') is
+ * never sent to the broker. When a covering filter is no longer referenced, the filters it was covering are
+ * promoted in its place.
+ *
+ * Each change yields a {@link Plan} which should be applied to the connection in order; subscribe first, then
+ * unsubscribe, so nothing goes unmatched in between. Upstream subscriptions are assumed to be made at the maximum
+ * QoS so that a covering filter never downgrades the QoS of a filter it covers.
+ */
+public class MqttsnUpstreamSubscriptionPlanner {
+
+    private final Map<String, Reference> filters = new HashMap<>();
+    private final Set<String> covering = new HashSet<>();
+    private MqttTopicTree<String> coveringTree = new MqttTopicTree<>();
+
+    /**
+     * Reference the filter on behalf of the device.
+     */
+    public synchronized Plan subscribe(IMqttsnContext context, String topicFilter) {
+        Plan plan = new Plan();
+        Reference reference = filters.get(topicFilter);
+        if(reference == null){
+            reference = new Reference();
+            filters.put(topicFilter, reference);
+            cover(topicFilter, plan);
+        }
+        reference.contexts.add(context);
+        reference.touched = System.currentTimeMillis();
+        return plan;
+    }
+
+    /**
+     * Release the device's reference to the filter.
+     */
+    public synchronized Plan unsubscribe(IMqttsnContext context, String topicFilter) {
+        Reference reference = filters.get(topicFilter);
+        if(reference == null || !reference.contexts.remove(context) || !reference.contexts.isEmpty()){
+            return new Plan();
+        }
+        return remove(Collections.singletonList(topicFilter));
+    }
+
+    /**
+     * Drop any filter no longer present in the set supplied (for example where a session was cleared or expired
+     * without unsubscribing), unless it has been referenced since the time given.
+     */
+    public synchronized Plan reconcile(Set<String> liveFilters, long referencedBefore) {
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, Reference> filter : filters.entrySet()){
+            if(!liveFilters.contains(filter.getKey()) &&
+                    filter.getValue().touched < referencedBefore){
+                stale.add(filter.getKey());
+            }
+        }
+        return remove(stale);
+    }
+
+    /**
+     * Replace all state with the references supplied, recomputing the covering set.
+     */
+    public synchronized void reset(Map<String, Set<IMqttsnContext>> references) {
+        filters.clear();
+        covering.clear();
+        coveringTree = new MqttTopicTree<>();
+        Plan ignored = new Plan();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Set<IMqttsnContext>> filter : references.entrySet()){
+            Reference reference = new Reference();
+            reference.contexts.addAll(filter.getValue());
+            reference.touched = now;
+            filters.put(filter.getKey(), reference);
+            cover(filter.getKey(), ignored);
+        }
+    }
+
+    /**
+     * @return the filters the broker connection should be subscribed to
+     */
+    public synchronized List<String> getCoveringFilters() {
+        return new ArrayList<>(covering);
+    }
+
+    public synchronized int getCoveringCount() {
+        return covering.size();
+    }
+
+    public synchronized int getFilterCount() {
+        return filters.size();
+    }
+
+    private Plan remove(Collection<String> removed) {
+        Plan plan = new Plan();
+        List<String> dropped = new ArrayList<>();
+        for (String topicFilter : removed){
+            filters.remove(topicFilter);
+            if(covering.remove(topicFilter)){
+                coveringTree.removeSubscription(topicFilter, topicFilter);
+                dropped.add(topicFilter);
+            }
+        }
+        if(!dropped.isEmpty()){
+            //-- whatever the dropped filters were covering must now be covered by something else
+            for (String topicFilter : filters.keySet()){
+                if(!covering.contains(topicFilter) && coveredByAny(dropped, topicFilter)){
+                    cover(topicFilter, plan);
+                }
+            }
+            plan.unsubscribe.addAll(dropped);
+        }
+        return plan;
+    }
+
+    private void cover(String topicFilter, Plan plan) {
+        if(isCovered(topicFilter)) return;
+        if(TopicPath.isWild(topicFilter)){
+            //-- a literal filter can only cover itself, so only a wildcard filter can supersede others
+            List<String> superseded = new ArrayList<>();
+            for (String existing : covering){
+                if(covers(topicFilter, existing)){
+                    superseded.add(existing);
+                }
+            }
+            for (String existing : superseded){
+                covering.remove(existing);
+                coveringTree.removeSubscription(existing, existing);
+                if(!plan.subscribe.remove(existing)){
+                    plan.unsubscribe.add(existing);
+                }
+            }
+        }
+        try {
+            coveringTree.addSubscription(topicFilter, topicFilter);
+        } catch(TriesTreeLimitExceededException e){
+            throw new IllegalArgumentException("unable to plan subscription to " + topicFilter, e);
+        }
+        covering.add(topicFilter);
+        plan.subscribe.add(topicFilter);
+    }
+
+    private boolean isCovered(String topicFilter) {
+        //-- searching the filter as though it were a topic finds every candidate, which is then checked exactly
+        //-- (a '+' level in the tree would otherwise be taken to match a '#' level in the filter)
+        for (String candidate : coveringTree.searchMembers(topicFilter, new ArrayList<>(2))){
+            if(covers(candidate, topicFilter)) return true;
+        }
+        return false;
+    }
+
+    private static boolean coveredByAny(List<String> filters, String topicFilter) {
+        for (String filter : filters){
+            if(covers(filter, topicFilter)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if every topic matched by the filter is also matched by the covering filter
+     */
+    public static boolean covers(String coveringFilter, String topicFilter) {
+        if(coveringFilter.equals(topicFilter)) return true;
+        if(topicFilter.length() > 0 && topicFilter.charAt(0) == MqttTopicTree.SYSTEM_PREFIX &&
+                coveringFilter.length() > 0 && (coveringFilter.charAt(0) == MqttTopicTree.SINGLE_LEVEL_WILDCARD ||
+                coveringFilter.charAt(0) == MqttTopicTree.MULTI_LEVEL_WILDCARD)){
+            return false;
+        }
+        int c = 0, t = 0;
+        while(c <= coveringFilter.length()){
+            int cEnd = segmentEnd(coveringFilter, c);
+            if(isLevel(coveringFilter, c, cEnd, MqttTopicTree.MULTI_LEVEL_WILDCARD)){
+                return true;
+            }
+            if(t > topicFilter.length()){
+                return false;
+            }
+            int tEnd = segmentEnd(topicFilter, t);
+            if(isLevel(coveringFilter, c, cEnd, MqttTopicTree.SINGLE_LEVEL_WILDCARD)){
+                if(isLevel(topicFilter, t, tEnd, MqttTopicTree.MULTI_LEVEL_WILDCARD)){
+                    return false;
+                }
+            } else if(cEnd - c != tEnd - t ||
+                    !coveringFilter.regionMatches(c, topicFilter, t, cEnd - c)){
+                return false;
+            }
+            c = cEnd + 1;
+            t = tEnd + 1;
+        }
+        return t > topicFilter.length();
+    }
+
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf(MqttTopicTree.PATH_SEP, start);
+        return end == -1 ? path.length() : end;
+    }
+
+    private static boolean isLevel(String path, int start, int end, char wildcard) {
+        return end - start == 1 && path.charAt(start) == wildcard;
+    }
+
+    private static class Reference {
+        private final Set<IMqttsnContext> contexts = new HashSet<>(4);
+        private long touched;
+    }
+
+    /**
+     * The changes to make to the broker connection; subscribe to these filters, then unsubscribe from those.
+     */
+    public static class Plan {
+
+        private final List<String> subscribe = new ArrayList<>(1);
+        private final List<String> unsubscribe = new ArrayList<>(1);
+
+        public List<String> getSubscribe() {
+            return subscribe;
+        }
+
+        public List<String> getUnsubscribe() {
+            return unsubscribe;
+        }
+
+        public boolean isEmpty() {
+            return subscribe.isEmpty() && unsubscribe.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{subscribe=" + subscribe + ", unsubscribe=" + unsubscribe + '}';
+        }
+    }
+}
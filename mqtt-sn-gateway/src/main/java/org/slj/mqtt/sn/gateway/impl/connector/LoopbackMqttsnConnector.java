@@ -28,6 +28,9 @@ import org.slj.mqtt.sn.cloud.MqttsnConnectorDescriptor;
 import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnConnector;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRuntimeRegistry;
+import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
+import org.slj.mqtt.sn.spi.MqttsnException;
 
 public class LoopbackMqttsnConnector
         extends AbstractMqttsnConnector<LoopbackMqttsnConnectorConnection>
@@ -43,14 +46,32 @@ public class LoopbackMqttsnConnector
         DESCRIPTOR.setDeveloper("Simon Johnson");
     }
 
+    protected final MqttsnEmbeddedBroker broker = new MqttsnEmbeddedBroker();
+
     public LoopbackMqttsnConnector(MqttsnConnectorDescriptor descriptor, MqttsnConnectorOptions options) {
         super(descriptor, options);
     }
 
+    @Override
+    public void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
+        super.start(runtime);
+        broker.start((IMqttsnGatewayRuntimeRegistry) runtime);
+    }
+
+    @Override
+    public void stop() throws MqttsnException {
+        broker.stop();
+        super.stop();
+    }
+
+    public MqttsnEmbeddedBroker getBroker() {
+        return broker;
+    }
+
     @Override
     public LoopbackMqttsnConnectorConnection createConnection(MqttsnConnectorOptions options, String clientId) throws MqttsnConnectorException {
         try {
-            LoopbackMqttsnConnectorConnection connection = new LoopbackMqttsnConnectorConnection(options, clientId);
+            LoopbackMqttsnConnectorConnection connection = new LoopbackMqttsnConnectorConnection(options, clientId, broker);
             connection.connect();
             return connection;
         } catch(Exception e){
@@ -60,7 +81,8 @@ public class LoopbackMqttsnConnector
 
     @Override
     public String getConnectionString() {
-        return "java@localhost";
+        int port = broker.getListenerPort();
+        return port > 0 ? "java@localhost, tcp://localhost:" + port : "java@localhost";
     }
 }
 
@@ -25,17 +25,22 @@
 package org.slj.mqtt.sn.gateway.impl.connector;
 
 import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendConnection;
+import org.slj.mqtt.sn.gateway.spi.BrokerPublishOperation;
 import org.slj.mqtt.sn.gateway.spi.PublishResult;
 import org.slj.mqtt.sn.gateway.spi.Result;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.spi.IMqttsnMessage;
+import org.slj.mqtt.sn.spi.MqttsnException;
 import org.slj.mqtt.sn.utils.TopicPath;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author simonjohnson
  *
@@ -45,12 +50,18 @@ public class LoopbackMqttsnConnectorConnection extends AbstractMqttsnBackendConn
     private Logger logger = LoggerFactory.getLogger(LoopbackMqttsnConnectorConnection.class.getName());
     protected MqttsnConnectorOptions options;
     protected final String clientId;
+    protected final MqttsnEmbeddedBroker broker;
 
     volatile boolean connected = false;
 
     public LoopbackMqttsnConnectorConnection(MqttsnConnectorOptions options, String clientId) {
+        this(options, clientId, null);
+    }
+
+    public LoopbackMqttsnConnectorConnection(MqttsnConnectorOptions options, String clientId, MqttsnEmbeddedBroker broker) {
         this.options = options;
         this.clientId = clientId;
+        this.broker = broker;
     }
 
     public void connect() throws MqttsnConnectorException {
@@ -72,7 +83,7 @@ public class LoopbackMqttsnConnectorConnection extends AbstractMqttsnBackendConn
     public PublishResult publish(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
         try {
             if(connected){
-                receive(topicPath.toString(), qos, retained, payload);
+                route(topicPath.toString(), qos, retained, payload);
                 return new PublishResult(Result.STATUS.SUCCESS);
             }
             return new PublishResult(Result.STATUS.ERROR);
@@ -80,4 +91,38 @@ public class LoopbackMqttsnConnectorConnection extends AbstractMqttsnBackendConn
             throw new MqttsnConnectorException(e);
         }
     }
+
+    @Override
+    public List<PublishResult> publishBatch(List<BrokerPublishOperation> operations) throws MqttsnConnectorException {
+        List<PublishResult> results = new ArrayList<>(operations.size());
+        if(!connected){
+            PublishResult error = new PublishResult(Result.STATUS.ERROR);
+            for (int i = 0; i < operations.size(); i++){
+                results.add(error);
+            }
+            return results;
+        }
+        PublishResult success = new PublishResult(Result.STATUS.SUCCESS);
+        for (BrokerPublishOperation op : operations){
+            try {
+                route(op.getTopicPath().toString(), op.getQos(), op.isRetained(), op.getPayload());
+                results.add(success);
+            } catch(Exception e){
+                results.add(new PublishResult(Result.STATUS.ERROR, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Route the message through the embedded broker when it is running, else hand it straight back to the gateway.
+     */
+    protected void route(String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException {
+        MqttsnEmbeddedBroker broker = this.broker;
+        if(broker != null && broker.running()){
+            broker.publish(topicPath, qos, retained, payload);
+        } else {
+            receive(topicPath, qos, retained, payload);
+        }
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.impl.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRetainedStore;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRuntimeRegistry;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.utils.tree.MqttTopicTree;
+import org.slj.mqtt.sn.utils.tree.TriesTreeLimitExceededException;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The broker engine behind the loopback connector, allowing the gateway to act as an edge broker with no upstream.
+ *
+ * Messages published by devices are routed in-process and on the publishing thread; device recipients are resolved
+ * by the gateway's own subscription registry and queued by the expansion handler (so retained messages are held by
+ * the gateway retained store and the payload is registered once in the message registry and shared by every queue),
+ * with no copy of the payload made along the way.
+ *
+ * Optionally an MQTT 3.1.1 listener is started so local applications can connect over TCP. Their subscriptions are
+ * held in a topic tree of their own and they receive the same payload instances the devices do; messages they
+ * publish are routed to devices and to one another exactly as a device publish is.
+ */
+public class MqttsnEmbeddedBroker {
+
+    private static final Logger logger = LoggerFactory.getLogger(MqttsnEmbeddedBroker.class.getName());
+
+    private final MqttTopicTree<MqttsnEmbeddedBrokerClient.Subscription> subscriptions = new MqttTopicTree<>();
+    private final Map<String, MqttsnEmbeddedBrokerClient> clients = new ConcurrentHashMap<>();
+    private volatile IMqttsnGatewayRuntimeRegistry registry;
+    private volatile Listener listener;
+
+    public synchronized void start(IMqttsnGatewayRuntimeRegistry registry) throws MqttsnException {
+        this.registry = registry;
+        MqttsnGatewayOptions options = (MqttsnGatewayOptions) registry.getOptions();
+        if(options.getEmbeddedBrokerPort() > 0 && listener == null){
+            try {
+                ServerSocket socket = new ServerSocket();
+                socket.setReuseAddress(true);
+                socket.bind(new InetSocketAddress(InetAddress.getByName(
+                        options.getEmbeddedBrokerBindAddress()), options.getEmbeddedBrokerPort()));
+                listener = new Listener(socket, options.getEmbeddedBrokerMaxConnections());
+                listener.start();
+            } catch(IOException e){
+                throw new MqttsnException("unable to start embedded broker listener;", e);
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        Listener listener = this.listener;
+        this.listener = null;
+        if(listener != null){
+            listener.close();
+        }
+        for (MqttsnEmbeddedBrokerClient client : clients.values()){
+            client.close();
+        }
+        registry = null;
+    }
+
+    public boolean running() {
+        return registry != null;
+    }
+
+    /**
+     * @return the local port the MQTT listener is bound to, or -1 where it is not running
+     */
+    public int getListenerPort() {
+        Listener listener = this.listener;
+        return listener == null ? -1 : listener.serverSocket.getLocalPort();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Route a message to every matching device session and MQTT client.
+     */
+    public void publish(String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException {
+        IMqttsnGatewayRuntimeRegistry registry = this.registry;
+        if(registry == null){
+            throw new MqttsnException("embedded broker is not running");
+        }
+        registry.getExpansionHandler().receiveToSessions(topicPath, qos, retained, payload);
+        if(!clients.isEmpty()){
+            //-- retained is only set on messages sent as the result of a new subscription
+            subscriptions.visitMembers(topicPath, s ->
+                    s.getClient().deliver(topicPath, Math.min(qos, s.getGrantedQoS()), false, payload));
+        }
+    }
+
+    protected boolean subscribe(MqttsnEmbeddedBrokerClient.Subscription subscription, String topicFilter) {
+        try {
+            subscriptions.addSubscription(topicFilter, subscription);
+            return true;
+        } catch(TriesTreeLimitExceededException e){
+            logger.warn("unable to add embedded broker subscription to {}; {}", topicFilter, e.getMessage());
+            return false;
+        }
+    }
+
+    protected void unsubscribe(MqttsnEmbeddedBrokerClient.Subscription subscription, String topicFilter) {
+        subscriptions.removeSubscription(topicFilter, subscription);
+    }
+
+    protected List<PublishData> retained(String topicFilter) throws MqttsnException {
+        IMqttsnGatewayRuntimeRegistry registry = this.registry;
+        IMqttsnGatewayRetainedStore retainedStore = registry == null ? null : registry.getRetainedStore();
+        return retainedStore == null ? Collections.emptyList() : retainedStore.search(topicFilter);
+    }
+
+    /**
+     * Register the client under its client identifier, taking over (and closing) any existing connection with the same identifier.
+     */
+    protected void connected(MqttsnEmbeddedBrokerClient client) {
+        MqttsnEmbeddedBrokerClient existing = clients.put(client.getClientId(), client);
+        if(existing != null && existing != client){
+            logger.info("embedded broker client {} taken over by new connection", client.getClientId());
+            existing.close();
+        }
+    }
+
+    protected void disconnected(MqttsnEmbeddedBrokerClient client) {
+        if(client.getClientId() != null){
+            clients.remove(client.getClientId(), client);
+        }
+        Listener listener = this.listener;
+        if(listener != null){
+            listener.closed(client);
+        }
+    }
+
+    protected int getMaxQueued() {
+        IMqttsnGatewayRuntimeRegistry registry = this.registry;
+        return registry == null ? MqttsnGatewayOptions.DEFAULT_EMBEDDED_BROKER_MAX_QUEUED :
+                ((MqttsnGatewayOptions) registry.getOptions()).getEmbeddedBrokerMaxQueued();
+    }
+
+    private class Listener extends Thread {
+
+        private final ServerSocket serverSocket;
+        private final int maxConnections;
+        private final Map<MqttsnEmbeddedBrokerClient, Boolean> connections = new ConcurrentHashMap<>();
+        private volatile boolean closed = false;
+
+        Listener(ServerSocket serverSocket, int maxConnections){
+            this.serverSocket = serverSocket;
+            this.maxConnections = maxConnections;
+            setDaemon(true);
+            setName("mqtt-sn-embedded-broker-listener");
+        }
+
+        void closed(MqttsnEmbeddedBrokerClient client){
+            connections.remove(client);
+        }
+
+        void close(){
+            closed = true;
+            try {
+                serverSocket.close();
+            } catch(IOException e){
+                logger.warn("error closing embedded broker listener;", e);
+            }
+            for (MqttsnEmbeddedBrokerClient client : connections.keySet()){
+                client.close();
+            }
+        }
+
+        public void run(){
+            logger.info("embedded broker accepting {} mqtt connections on {}",
+                    maxConnections, serverSocket.getLocalSocketAddress());
+            while(!closed){
+                try {
+                    Socket socket = serverSocket.accept();
+                    if(connections.size() >= maxConnections){
+                        logger.warn("embedded broker connection limit reached, disconnecting socket");
+                        socket.close();
+                    } else {
+                        MqttsnEmbeddedBrokerClient client = new MqttsnEmbeddedBrokerClient(MqttsnEmbeddedBroker.this, socket);
+                        connections.put(client, Boolean.TRUE);
+                        client.start();
+                    }
+                } catch(IOException e){
+                    if(!closed){
+                        logger.error("error encountered accepting embedded broker connection;", e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.impl.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slj.mqtt.sn.MqttsnSpecificationValidator;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single MQTT 3.1.1 connection to the embedded broker. Packets are read on this thread; everything sent to the
+ * client (acknowledgements and messages) goes through a bounded queue drained by a writer thread, so a slow client
+ * never holds up the thread routing a message to it. Messages beyond the queue bound are dropped for this client.
+ *
+ * Each connection is treated as a clean session; subscriptions live for the life of the connection and messages
+ * are delivered at QoS 0 or 1 (QoS 2 subscriptions are granted QoS 1). Inbound QoS 1 and 2 are acknowledged per
+ * the specification, with QoS 2 duplicates suppressed until released.
+ */
+public class MqttsnEmbeddedBrokerClient extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(MqttsnEmbeddedBrokerClient.class.getName());
+
+    static final int CONNECT = 1, CONNACK = 2, PUBLISH = 3, PUBACK = 4, PUBREC = 5, PUBREL = 6, PUBCOMP = 7,
+            SUBSCRIBE = 8, SUBACK = 9, UNSUBSCRIBE = 10, UNSUBACK = 11, PINGREQ = 12, PINGRESP = 13, DISCONNECT = 14;
+    static final int PROTOCOL_LEVEL = 4;
+    static final int MAX_PACKET_SIZE = 1024 * 1024;
+    static final int CONNECT_TIMEOUT = 10000;
+    static final int CONTROL_TIMEOUT = 5000;
+
+    private static final AtomicInteger connectionCount = new AtomicInteger();
+    private static final Outbound CLOSE = new Outbound(null, 0, false, null, null);
+
+    private final MqttsnEmbeddedBroker broker;
+    private final Socket socket;
+    private final BlockingQueue<Outbound> outbound;
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Set<Integer> awaitingRelease = new HashSet<>();
+    private final Writer writer;
+    private volatile String clientId;
+    private volatile boolean closed = false;
+    private PublishData will;
+    private boolean cleanDisconnect = false;
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    public MqttsnEmbeddedBrokerClient(MqttsnEmbeddedBroker broker, Socket socket){
+        this.broker = broker;
+        this.socket = socket;
+        this.outbound = new ArrayBlockingQueue<>(Math.max(1, broker.getMaxQueued()));
+        int id = connectionCount.incrementAndGet();
+        this.writer = new Writer(id);
+        setDaemon(true);
+        setName("mqtt-sn-embedded-broker-client-" + id);
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Queue a message to the client; called on the routing thread so never blocks.
+     */
+    public void deliver(String topicPath, int qos, boolean retained, byte[] payload) {
+        if(closed || clientId == null) return;
+        if(!outbound.offer(new Outbound(topicPath, Math.min(qos, 1), retained, payload, null))){
+            int count = dropped.incrementAndGet();
+            if(count % 1000 == 1){
+                logger.warn("embedded broker client {} is not keeping up, dropped {} messages", clientId, count);
+            }
+        }
+    }
+
+    /**
+     * Close the connection immediately, discarding anything waiting to be written.
+     */
+    public void close() {
+        closed = true;
+        outbound.clear();
+        outbound.offer(CLOSE);
+        try {
+            socket.close();
+        } catch(IOException e){
+            logger.debug("error closing embedded broker client socket;", e);
+        }
+    }
+
+    public void run() {
+        writer.start();
+        try {
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int header = in.read();
+            if(header == -1) return;
+            if(header >> 4 != CONNECT){
+                throw new IOException("expected CONNECT as first packet");
+            }
+            if(!connect(in, readRemainingLength(in))) return;
+            while(!closed){
+                header = in.read();
+                if(header == -1) break;
+                int remaining = readRemainingLength(in);
+                switch(header >> 4){
+                    case PUBLISH:
+                        publish(in, header, remaining);
+                        break;
+                    case PUBREL:
+                        int releasedId = in.readUnsignedShort();
+                        skip(in, remaining - 2);
+                        awaitingRelease.remove(releasedId);
+                        control(PUBCOMP << 4, releasedId);
+                        break;
+                    case SUBSCRIBE:
+                        subscribe(in, remaining);
+                        break;
+                    case UNSUBSCRIBE:
+                        unsubscribe(in, remaining);
+                        break;
+                    case PINGREQ:
+                        skip(in, remaining);
+                        send(new byte[]{ (byte) (PINGRESP << 4), 0 });
+                        break;
+                    case PUBACK:
+                    case PUBREC:
+                    case PUBCOMP:
+                        //-- nothing is held awaiting acknowledgement
+                        skip(in, remaining);
+                        break;
+                    case DISCONNECT:
+                        cleanDisconnect = true;
+                        return;
+                    default:
+                        throw new IOException("unexpected packet type " + (header >> 4));
+                }
+            }
+        } catch(SocketTimeoutException e){
+            logger.info("embedded broker client {} keep alive expired", clientId);
+        } catch(EOFException e){
+            logger.debug("embedded broker client {} closed connection", clientId);
+        } catch(IOException e){
+            if(!closed){
+                logger.warn("embedded broker client {} connection error; {}", clientId, e.getMessage());
+            }
+        } finally {
+            disconnected();
+        }
+    }
+
+    protected boolean connect(DataInputStream in, int remaining) throws IOException {
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(readFully(in, remaining)));
+        String protocol = readString(body);
+        int level = body.readUnsignedByte();
+        int flags = body.readUnsignedByte();
+        int keepAlive = body.readUnsignedShort();
+        if(!"MQTT".equals(protocol) || level != PROTOCOL_LEVEL){
+            send(new byte[]{ (byte) (CONNACK << 4), 2, 0, 1 });
+            return false;
+        }
+        boolean cleanSession = (flags & 0x02) != 0;
+        String id = readString(body);
+        if((flags & 0x04) != 0){
+            String willTopic = readString(body);
+            byte[] willMessage = readFully(body, body.readUnsignedShort());
+            if(!MqttsnSpecificationValidator.isValidPublishTopic(willTopic)){
+                throw new IOException("invalid will topic " + willTopic);
+            }
+            will = new PublishData(willTopic, (flags >> 3) & 0x03, (flags & 0x20) != 0, willMessage);
+        }
+        if(id.isEmpty()){
+            if(!cleanSession){
+                send(new byte[]{ (byte) (CONNACK << 4), 2, 0, 2 });
+                return false;
+            }
+            id = "embedded-" + UUID.randomUUID();
+        }
+        clientId = id;
+        socket.setSoTimeout(keepAlive > 0 ? keepAlive * 1500 : 0);
+        broker.connected(this);
+        send(new byte[]{ (byte) (CONNACK << 4), 2, 0, 0 });
+        logger.info("embedded broker client {} connected from {}", clientId, socket.getRemoteSocketAddress());
+        return true;
+    }
+
+    protected void publish(DataInputStream in, int header, int remaining) throws IOException {
+        int qos = (header >> 1) & 0x03;
+        boolean retained = (header & 0x01) != 0;
+        if(qos > 2){
+            throw new IOException("invalid publish qos " + qos);
+        }
+        int topicLength = in.readUnsignedShort();
+        String topicPath = new String(readFully(in, topicLength), StandardCharsets.UTF_8);
+        int consumed = 2 + topicLength;
+        int packetId = 0;
+        if(qos > 0){
+            packetId = in.readUnsignedShort();
+            consumed += 2;
+        }
+        //-- the payload is read straight into its own array which is then shared by every recipient
+        byte[] payload = readFully(in, remaining - consumed);
+        if(!MqttsnSpecificationValidator.isValidPublishTopic(topicPath)){
+            throw new IOException("invalid publish topic " + topicPath);
+        }
+        if(qos < 2 || !awaitingRelease.contains(packetId)){
+            try {
+                broker.publish(topicPath, qos, retained, payload);
+            } catch(MqttsnException e){
+                logger.error("embedded broker unable to route message from {} to {};", clientId, topicPath, e);
+            }
+        }
+        if(qos == 1){
+            control(PUBACK << 4, packetId);
+        } else if(qos == 2){
+            awaitingRelease.add(packetId);
+            control(PUBREC << 4, packetId);
+        }
+    }
+
+    protected void subscribe(DataInputStream in, int remaining) throws IOException {
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(readFully(in, remaining)));
+        int packetId = body.readUnsignedShort();
+        List<String> filters = new ArrayList<>(1);
+        List<Integer> granted = new ArrayList<>(1);
+        while(body.available() > 0){
+            String filter = readString(body);
+            int requested = body.readUnsignedByte();
+            int qos = 0x80;
+            if(requested <= 2 && MqttsnSpecificationValidator.isValidSubscriptionTopic(filter)){
+                Subscription subscription = new Subscription(this, Math.min(requested, 1));
+                if(broker.subscribe(subscription, filter)){
+                    subscriptions.put(filter, subscription);
+                    qos = subscription.getGrantedQoS();
+                }
+            }
+            filters.add(filter);
+            granted.add(qos);
+        }
+        byte[] suback = new byte[4 + granted.size()];
+        suback[0] = (byte) (SUBACK << 4);
+        suback[1] = (byte) (2 + granted.size());
+        suback[2] = (byte) (packetId >> 8);
+        suback[3] = (byte) packetId;
+        for (int i = 0; i < granted.size(); i++){
+            suback[4 + i] = granted.get(i).byteValue();
+        }
+        send(suback);
+        for (int i = 0; i < filters.size(); i++){
+            if(granted.get(i) == 0x80) continue;
+            try {
+                for (PublishData retained : broker.retained(filters.get(i))){
+                    deliver(retained.getTopicPath(), Math.min(retained.getQos(), granted.get(i)), true, retained.getData());
+                }
+            } catch(MqttsnException e){
+                logger.warn("embedded broker unable to replay retained messages to {};", clientId, e);
+            }
+        }
+    }
+
+    protected void unsubscribe(DataInputStream in, int remaining) throws IOException {
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(readFully(in, remaining)));
+        int packetId = body.readUnsignedShort();
+        while(body.available() > 0){
+            String filter = readString(body);
+            Subscription subscription = subscriptions.remove(filter);
+            if(subscription != null){
+                broker.unsubscribe(subscription, filter);
+            }
+        }
+        control(UNSUBACK << 4, packetId);
+    }
+
+    protected void disconnected() {
+        closed = true;
+        for (Map.Entry<String, Subscription> subscription : subscriptions.entrySet()){
+            broker.unsubscribe(subscription.getValue(), subscription.getKey());
+        }
+        subscriptions.clear();
+        broker.disconnected(this);
+        if(clientId != null){
+            logger.info("embedded broker client {} disconnected", clientId);
+            if(will != null && !cleanDisconnect){
+                try {
+                    broker.publish(will.getTopicPath(), will.getQos(), will.isRetained(), will.getData());
+                } catch(MqttsnException e){
+                    logger.warn("embedded broker unable to publish will for {};", clientId, e);
+                }
+            }
+        }
+        //-- let the writer finish what is queued (for example a refused CONNACK) then close the socket
+        if(!outbound.offer(CLOSE)){
+            outbound.clear();
+            outbound.offer(CLOSE);
+        }
+    }
+
+    private void control(int header, int packetId) throws IOException {
+        send(new byte[]{ (byte) header, 2, (byte) (packetId >> 8), (byte) packetId });
+    }
+
+    private void send(byte[] packet) throws IOException {
+        try {
+            if(!outbound.offer(new Outbound(null, 0, false, null, packet), CONTROL_TIMEOUT, TimeUnit.MILLISECONDS)){
+                throw new IOException("timed out queuing packet to client");
+            }
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted queuing packet to client");
+        }
+    }
+
+    static int readRemainingLength(DataInputStream in) throws IOException {
+        int value = 0, multiplier = 1, encoded;
+        do {
+            encoded = in.readUnsignedByte();
+            value += (encoded & 0x7F) * multiplier;
+            multiplier *= 128;
+            if(multiplier > 128 * 128 * 128 * 128){
+                throw new IOException("malformed remaining length");
+            }
+        } while((encoded & 0x80) != 0);
+        if(value > MAX_PACKET_SIZE){
+            throw new IOException("packet size " + value + " exceeds the embedded broker limit");
+        }
+        return value;
+    }
+
+    static void writeRemainingLength(OutputStream out, int length) throws IOException {
+        do {
+            int encoded = length % 128;
+            length /= 128;
+            if(length > 0) encoded |= 0x80;
+            out.write(encoded);
+        } while(length > 0);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readFully(in, in.readUnsignedShort()), StandardCharsets.UTF_8);
+    }
+
+    static byte[] readFully(DataInputStream in, int length) throws IOException {
+        if(length < 0) throw new IOException("malformed packet");
+        byte[] buf = new byte[length];
+        in.readFully(buf);
+        return buf;
+    }
+
+    static void skip(DataInputStream in, int length) throws IOException {
+        if(length < 0) throw new IOException("malformed packet");
+        while(length > 0){
+            int skipped = in.skipBytes(length);
+            if(skipped <= 0) throw new EOFException();
+            length -= skipped;
+        }
+    }
+
+    private class Writer extends Thread {
+
+        private int packetId = 0;
+
+        Writer(int id){
+            setDaemon(true);
+            setName("mqtt-sn-embedded-broker-writer-" + id);
+        }
+
+        public void run() {
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                while(true){
+                    Outbound next = outbound.take();
+                    if(next == CLOSE){
+                        out.flush();
+                        break;
+                    }
+                    if(next.control != null){
+                        out.write(next.control);
+                    } else {
+                        write(out, next);
+                    }
+                    //-- flush once whatever has queued up behind this packet has been written
+                    if(outbound.isEmpty()){
+                        out.flush();
+                    }
+                }
+            } catch(IOException e){
+                if(!closed){
+                    logger.warn("embedded broker client {} write error; {}", clientId, e.getMessage());
+                }
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            } finally {
+                closed = true;
+                try {
+                    socket.close();
+                } catch(IOException e){
+                    logger.debug("error closing embedded broker client socket;", e);
+                }
+            }
+        }
+
+        private void write(DataOutputStream out, Outbound message) throws IOException {
+            byte[] topic = message.topicPath.getBytes(StandardCharsets.UTF_8);
+            int remaining = 2 + topic.length + (message.qos > 0 ? 2 : 0) + message.payload.length;
+            out.write((PUBLISH << 4) | (message.qos << 1) | (message.retained ? 1 : 0));
+            writeRemainingLength(out, remaining);
+            out.writeShort(topic.length);
+            out.write(topic);
+            if(message.qos > 0){
+                packetId = packetId % 0xFFFF + 1;
+                out.writeShort(packetId);
+            }
+            out.write(message.payload);
+        }
+    }
+
+    private static class Outbound {
+
+        private final String topicPath;
+        private final int qos;
+        private final boolean retained;
+        private final byte[] payload;
+        private final byte[] control;
+
+        Outbound(String topicPath, int qos, boolean retained, byte[] payload, byte[] control){
+            this.topicPath = topicPath;
+            this.qos = qos;
+            this.retained = retained;
+            this.payload = payload;
+            this.control = control;
+        }
+    }
+
+    /**
+     * A client's membership of a topic filter in the broker's subscription tree. Equal by client so a resubscription
+     * to the same filter replaces the granted QoS in place.
+     */
+    public static class Subscription {
+
+        private final MqttsnEmbeddedBrokerClient client;
+        private final int grantedQoS;
+
+        Subscription(MqttsnEmbeddedBrokerClient client, int grantedQoS){
+            this.client = client;
+            this.grantedQoS = grantedQoS;
+        }
+
+        public MqttsnEmbeddedBrokerClient getClient() {
+            return client;
+        }
+
+        public int getGrantedQoS() {
+            return grantedQoS;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Subscription && ((Subscription) o).client == client;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(client);
+        }
+    }
+}
@@ -27,17 +27,29 @@ package org.slj.mqtt.sn.gateway.impl.gateway;
 import org.slj.mqtt.sn.PublishData;
 import org.slj.mqtt.sn.gateway.spi.GatewayMetrics;
 import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayExpansionHandler;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayPayloadCodec;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRetainedStore;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRuntimeRegistry;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.model.IMqttsnDataRef;
 import org.slj.mqtt.sn.model.MqttsnDeadLetterQueueBean;
-import org.slj.mqtt.sn.model.MqttsnQueueAcceptException;
+import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
 import org.slj.mqtt.sn.model.session.IMqttsnSession;
 import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
 import org.slj.mqtt.sn.spi.AbstractMqttsnService;
+import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
 import org.slj.mqtt.sn.spi.MqttsnException;
 import org.slj.mqtt.sn.spi.MqttsnIllegalFormatException;
 
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 
 /**
@@ -46,12 +58,48 @@ import java.util.Set;
  * devices all subscribed to the same topics, this could yield high levels of object creation,
  * so care needs to be taken when coding these objects to ensure they are memory efficient both in size and shared
  * references.
+ *
+ * Large recipient sets are split into shards by session and expanded in parallel on a fork-join pool; each shard is
+ * queued as a single batch so flush scheduling and metric updates are paid per batch rather than per recipient.
  */
 public class MqttsnGatewayExpansionHandler extends AbstractMqttsnService implements IMqttsnGatewayExpansionHandler {
 
+    private ForkJoinPool pool;
+
+    @Override
+    public synchronized void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
+        super.start(runtime);
+        int parallelism = getOptions().getExpansionParallelism();
+        if(parallelism > 1){
+            pool = new ForkJoinPool(parallelism, p -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                t.setName("mqtt-sn-expansion-thread-" + t.getPoolIndex());
+                return t;
+            }, null, false);
+        }
+    }
+
+    @Override
+    public synchronized void stop() throws MqttsnException {
+        super.stop();
+        if(pool != null){
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
     @Override
     public void receiveToSessions(String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException {
-        Set<IMqttsnContext> recipients = null;
+        //-- every queued message refers to the topic, so hold the canonical instance rather than the one received
+        topicPath = getRegistry().getTopicDictionary().intern(topicPath);
+        payload = decodePayload(topicPath, payload);
+        if(retained){
+            IMqttsnGatewayRetainedStore retainedStore = ((IMqttsnGatewayRuntimeRegistry) getRegistry()).getRetainedStore();
+            if(retainedStore != null){
+                retainedStore.retain(topicPath, qos, payload);
+            }
+        }
+        Map<IMqttsnContext, Integer> recipients = null;
         try {
             recipients = getRegistry().getSubscriptionRegistry().matches(topicPath);
         } catch(MqttsnIllegalFormatException e){
@@ -61,45 +109,125 @@ public class MqttsnGatewayExpansionHandler extends AbstractMqttsnService impleme
         logger.debug("receiving broker side message into [{}] sessions", recipients.size());
 
         IMqttsnDataRef dataId = getRegistry().getMessageRegistry().add(payload);
-        int successfulExpansion = 0;
         PublishData data = new PublishData(topicPath, qos, retained);
+        int payloadLength = payload.length;
+        int successfulExpansion;
+
+        ForkJoinPool pool = this.pool;
+        if(pool != null && recipients.size() >= getOptions().getExpansionParallelThreshold()){
+            List<List<Map.Entry<IMqttsnContext, Integer>>> shards = shard(recipients, pool.getParallelism());
+            List<ForkJoinTask<Integer>> tasks = new ArrayList<>(shards.size());
+            for (List<Map.Entry<IMqttsnContext, Integer>> shard : shards){
+                tasks.add(pool.submit(() -> expand(shard, dataId, data, payloadLength)));
+            }
+            successfulExpansion = 0;
+            for (ForkJoinTask<Integer> task : tasks){
+                try {
+                    successfulExpansion += task.join();
+                } catch(RuntimeException e){
+                    logger.error("error expanding shard to sessions", e);
+                }
+            }
+        } else {
+            successfulExpansion = expand(recipients.entrySet(), dataId, data, payloadLength);
+        }
 
-        for (IMqttsnContext context : recipients){
+        logger.debug("broker side message accepted by [{}] of [{}] sessions", successfulExpansion, recipients.size());
+        getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_EXPANSION).increment(recipients.size());
+        getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_RECEIVE).increment(1);
+
+        //-- each queue now holds its own reference; with deduplication the ref may be shared with messages
+        //-- already queued, so it is released rather than removed even when nobody accepted the message
+        registry.getMessageRegistry().release(dataId);
+    }
+
+    @Override
+    public void receiveToSession(IMqttsnContext context, String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException {
+        topicPath = getRegistry().getTopicDictionary().intern(topicPath);
+        payload = decodePayload(topicPath, payload);
+        IMqttsnSession session = getRegistry().getSessionRegistry().getSession(context, false);
+        if(session == null){
+            logger.warn("detected <null> session state for broker connection ({})", context);
+            return;
+        }
+        IMqttsnDataRef dataId = getRegistry().getMessageRegistry().add(payload);
+        try {
+            int accepted = expand(Collections.singletonMap(context, qos).entrySet(), dataId,
+                    new PublishData(topicPath, qos, retained), payload.length);
+            getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_EXPANSION).increment(accepted);
+            getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_RECEIVE).increment(1);
+        } finally {
+            //-- the queue holds its own reference if it accepted the message
+            registry.getMessageRegistry().release(dataId);
+        }
+    }
+
+    /**
+     * Queue the message to each recipient as a single batch.
+     * @return the number of recipients whose queue accepted the message
+     */
+    protected int expand(Collection<Map.Entry<IMqttsnContext, Integer>> recipients,
+                         IMqttsnDataRef dataId, PublishData data, int payloadLength){
+
+        List<IMqttsnSession> sessions = new ArrayList<>(recipients.size());
+        List<IMqttsnQueuedPublishMessage> messages = new ArrayList<>(recipients.size());
+        for (Map.Entry<IMqttsnContext, Integer> recipient : recipients){
+            IMqttsnContext context = recipient.getKey();
             try {
                 IMqttsnSession session = getRegistry().getSessionRegistry().getSession(context, false);
-                int grantedQos = registry.getSubscriptionRegistry().getQos(session, topicPath);
-                grantedQos = Math.min(grantedQos,qos);
+                int grantedQos = Math.min(recipient.getValue(), data.getQos());
                 MqttsnQueuedPublishMessageImpl impl = new MqttsnQueuedPublishMessageImpl(dataId, data);
                 impl.setGrantedQoS(grantedQos);
                 if(session != null){
                     if(session.getMaxPacketSize() != 0 &&
-                            payload.length + 9 > session.getMaxPacketSize()){
-                        logger.warn("payload exceeded max size ({}) bytes configured by client, ignore this client [{}]", payload.length, context);
+                            payloadLength + 9 > session.getMaxPacketSize()){
+                        logger.warn("payload exceeded max size ({}) bytes configured by client, ignore this client [{}]", payloadLength, context);
                         getRegistry().getDeadLetterQueue().add(
                                 MqttsnDeadLetterQueueBean.REASON.MAX_SIZE_EXCEEDED,
                                 context, impl);
                     } else {
-                        try {
-                            registry.getMessageQueue().offer(session, impl);
-                            successfulExpansion++;
-                        } catch(MqttsnQueueAcceptException e){
-                            //-- the queue was full nothing to be done here
-                        }
+                        sessions.add(session);
+                        messages.add(impl);
                     }
                 } else {
                     logger.warn("detected <null> session state for subscription ({})", context);
                 }
             } catch(MqttsnException e){
                 logger.warn("detected issue for session receipt.. ignore client ({})", context);
-            } finally {
-                getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_EXPANSION).increment(1);
             }
         }
+        if(sessions.isEmpty()) return 0;
+        try {
+            return registry.getMessageQueue().offerAll(sessions, messages);
+        } catch(MqttsnException e){
+            logger.warn("detected issue queuing batch of [{}] sessions", sessions.size(), e);
+            return 0;
+        }
+    }
 
-        getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_RECEIVE).increment(1);
-
-        if(successfulExpansion == 0){
-            registry.getMessageRegistry().remove(dataId);
+    /**
+     * Partition the recipients by session so a given session always falls in the same shard.
+     */
+    protected static List<List<Map.Entry<IMqttsnContext, Integer>>> shard(
+            Map<IMqttsnContext, Integer> recipients, int count){
+        List<List<Map.Entry<IMqttsnContext, Integer>>> shards = new ArrayList<>(count);
+        int capacity = recipients.size() / count + 1;
+        for (int i = 0; i < count; i++){
+            shards.add(new ArrayList<>(capacity));
+        }
+        for (Map.Entry<IMqttsnContext, Integer> recipient : recipients.entrySet()){
+            int idx = (recipient.getKey().getId().hashCode() & Integer.MAX_VALUE) % count;
+            shards.get(idx).add(recipient);
         }
+        return shards;
+    }
+
+    protected byte[] decodePayload(String topicPath, byte[] payload){
+        IMqttsnGatewayPayloadCodec codec = ((IMqttsnGatewayRuntimeRegistry) getRegistry()).getPayloadCodec();
+        return codec == null ? payload : codec.decode(topicPath, payload);
+    }
+
+    protected MqttsnGatewayOptions getOptions(){
+        return (MqttsnGatewayOptions) registry.getOptions();
     }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.impl.gateway;
+
+import org.slj.mqtt.sn.MqttsnConstants;
+import org.slj.mqtt.sn.gateway.spi.GatewayMetrics;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayPayloadCodec;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnPayloadCompressionRule;
+import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
+import org.slj.mqtt.sn.impl.metrics.MqttsnCountingMetric;
+import org.slj.mqtt.sn.spi.AbstractMqttsnService;
+import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.utils.tree.MqttTopicTree;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses payloads according to the {@link MqttsnPayloadCompressionRule}s configured on the options; the first rule
+ * whose filter matches the topic applies and topics matching no rule pass through untouched. A payload is only sent
+ * compressed where the compressed form is smaller.
+ *
+ * Compressed payloads are sent as a one byte frame header ({@link #FRAME_DEFLATE}) followed by a standard zlib
+ * stream, so any consumer of the broker can recognise them and inflate the remainder. Where a preset dictionary was
+ * used, the stream carries the dictionary's Adler-32 id and the same dictionary must be supplied to inflate it. A
+ * payload sent as it is is only framed ({@link #FRAME_NONE}) when it happens to begin with a frame header byte, so
+ * everything the codec publishes can be told apart. The header bytes can never begin a UTF-8 text payload.
+ *
+ * Payloads received from the backend on topics a rule compresses are decoded only when they carry a frame header;
+ * anything else (including a publisher's own zlib payloads) is delivered exactly as received.
+ */
+public class MqttsnGatewayPayloadCodec extends AbstractMqttsnService implements IMqttsnGatewayPayloadCodec {
+
+    /**
+     * Frame header marking a payload sent as it is, whose own first byte would otherwise be read as a header
+     */
+    public static final byte FRAME_NONE = (byte) 0xC0;
+
+    /**
+     * Frame header marking a payload deflated by the codec, the zlib stream follows
+     */
+    public static final byte FRAME_DEFLATE = (byte) 0xC1;
+
+    private static final int TRAINING_SEQUENCE_LENGTH = 8;
+
+    private volatile MqttsnPayloadCompressionRule[] rules = new MqttsnPayloadCompressionRule[0];
+    private volatile Map<Integer, byte[]> dictionaries = Collections.emptyMap();
+    private ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    @Override
+    public synchronized void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
+        super.start(runtime);
+        MqttsnGatewayOptions options = (MqttsnGatewayOptions) runtime.getOptions();
+        int level = options.getPayloadCompressionLevel();
+        deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+        Map<Integer, byte[]> dictionaries = new HashMap<>();
+        for (MqttsnPayloadCompressionRule rule : options.getPayloadCompressionRules()){
+            if(rule.getCompression() == MqttsnPayloadCompressionRule.Compression.DEFLATE_DICTIONARY){
+                Adler32 adler = new Adler32();
+                adler.update(rule.getDictionary());
+                dictionaries.put((int) adler.getValue(), rule.getDictionary());
+            }
+            logger.info("payload compression rule {}", rule);
+        }
+        this.dictionaries = dictionaries;
+        rules = options.getPayloadCompressionRules().toArray(new MqttsnPayloadCompressionRule[0]);
+        if(runtime.getMetrics() != null){
+            runtime.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_PAYLOAD_BYTES,
+                    "The number of payload bytes published by devices towards the backend.",
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+            runtime.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_PAYLOAD_BYTES_ENCODED,
+                    "The number of payload bytes published to the backend once encoded.",
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        }
+    }
+
+    @Override
+    public byte[] encode(String topicPath, byte[] payload) {
+        byte[] encoded = payload;
+        MqttsnPayloadCompressionRule rule;
+        if(payload != null && payload.length > 0 && (rule = match(topicPath)) != null){
+            if(payload.length >= rule.getMinimumSize()){
+                encoded = deflate(payload, rule);
+            }
+            if(encoded == payload && isFramed(payload)){
+                encoded = frame(FRAME_NONE, payload, payload.length);
+            }
+        }
+        if(payload != null && registry.getMetrics() != null){
+            registry.getMetrics().getMetric(GatewayMetrics.BACKEND_PAYLOAD_BYTES).increment(payload.length);
+            registry.getMetrics().getMetric(GatewayMetrics.BACKEND_PAYLOAD_BYTES_ENCODED).increment(encoded.length);
+        }
+        return encoded;
+    }
+
+    @Override
+    public byte[] decode(String topicPath, byte[] payload) {
+        if(payload == null || !isFramed(payload) || match(topicPath) == null){
+            return payload;
+        }
+        if(payload[0] == FRAME_NONE){
+            return Arrays.copyOfRange(payload, 1, payload.length);
+        }
+        return inflate(topicPath, payload);
+    }
+
+    protected MqttsnPayloadCompressionRule match(String topicPath){
+        for (MqttsnPayloadCompressionRule rule : rules){
+            if(MqttTopicTree.matches(rule.getTopicFilter(), topicPath)){
+                return rule.getCompression() == MqttsnPayloadCompressionRule.Compression.NONE ? null : rule;
+            }
+        }
+        return null;
+    }
+
+    protected byte[] deflate(byte[] payload, MqttsnPayloadCompressionRule rule){
+        if(payload.length < 3) return payload;
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if(rule.getCompression() == MqttsnPayloadCompressionRule.Compression.DEFLATE_DICTIONARY){
+            deflater.setDictionary(rule.getDictionary());
+        }
+        deflater.setInput(payload);
+        deflater.finish();
+        //-- output (with its header) is bounded by the input, anything which does not fit is not worth sending compressed
+        byte[] buf = new byte[payload.length - 1];
+        buf[0] = FRAME_DEFLATE;
+        int length = 1;
+        while(!deflater.finished() && length < buf.length){
+            length += deflater.deflate(buf, length, buf.length - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(buf, length) : payload;
+    }
+
+    protected static byte[] frame(byte header, byte[] payload, int length){
+        byte[] framed = new byte[length + 1];
+        framed[0] = header;
+        System.arraycopy(payload, 0, framed, 1, length);
+        return framed;
+    }
+
+    protected byte[] inflate(String topicPath, byte[] payload){
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(payload, 1, payload.length - 1);
+        byte[] buf = new byte[Math.min(MqttsnConstants.MAX_PUBLISH_LENGTH, payload.length * 4)];
+        int length = 0;
+        try {
+            while(!inflater.finished()){
+                if(length == buf.length){
+                    if(buf.length == MqttsnConstants.MAX_PUBLISH_LENGTH){
+                        logger.warn("inflated payload on {} exceeds the maximum publish size, delivering as received", topicPath);
+                        return payload;
+                    }
+                    buf = Arrays.copyOf(buf, Math.min(MqttsnConstants.MAX_PUBLISH_LENGTH, buf.length * 2));
+                }
+                int inflated = inflater.inflate(buf, length, buf.length - length);
+                if(inflated == 0){
+                    if(inflater.needsDictionary()){
+                        byte[] dictionary = dictionaries.get(inflater.getAdler());
+                        if(dictionary == null){
+                            logger.warn("payload on {} was deflated against an unknown dictionary, delivering as received", topicPath);
+                            return payload;
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if(inflater.needsInput()){
+                        logger.warn("deflated payload on {} was truncated, delivering as received", topicPath);
+                        return payload;
+                    }
+                }
+                length += inflated;
+            }
+            return inflater.getRemaining() == 0 ? Arrays.copyOf(buf, length) : payload;
+        } catch(DataFormatException e){
+            logger.warn("deflated payload on {} was corrupt, delivering as received", topicPath);
+            return payload;
+        }
+    }
+
+    protected static boolean isFramed(byte[] payload){
+        return payload.length > 0 && (payload[0] == FRAME_NONE || payload[0] == FRAME_DEFLATE);
+    }
+
+    /**
+     * Build a preset dictionary from typical payloads, for use with a
+     * {@link MqttsnPayloadCompressionRule.Compression#DEFLATE_DICTIONARY} rule. The dictionary is made of the byte
+     * sequences (for example JSON field names and the structure around them) common to many of the samples; the most
+     * common are placed last, where deflate can reference them most cheaply.
+     * @param samples - payloads representative of those published on the topics the rule will cover
+     * @param maxSize - the maximum size of the dictionary in bytes
+     */
+    public static byte[] trainDictionary(Collection<byte[]> samples, int maxSize){
+        //-- count the number of samples in which each short sequence occurs
+        Map<ByteBuffer, Integer> sequences = new HashMap<>();
+        for (byte[] sample : samples){
+            Set<ByteBuffer> seen = new HashSet<>();
+            for (int i = 0; i + TRAINING_SEQUENCE_LENGTH <= sample.length; i++){
+                ByteBuffer sequence = ByteBuffer.wrap(sample, i, TRAINING_SEQUENCE_LENGTH).slice();
+                if(seen.add(sequence)) sequences.merge(sequence, 1, Integer::sum);
+            }
+        }
+
+        //-- join overlapping common sequences back into the runs they came from, and count those in turn; a run is
+        //-- cut where its sequences are much rarer than its most common, which keeps varying values (timestamps,
+        //-- readings) out of the runs
+        int threshold = Math.max(2, samples.size() / 10);
+        Map<ByteBuffer, Integer> runs = new HashMap<>();
+        for (byte[] sample : samples){
+            Set<ByteBuffer> seen = new HashSet<>();
+            int i = 0;
+            while(i + TRAINING_SEQUENCE_LENGTH <= sample.length){
+                int start = i, max = 0, count;
+                while(i + TRAINING_SEQUENCE_LENGTH <= sample.length && (count = count(sequences, sample, i)) >= threshold){
+                    max = Math.max(max, count);
+                    i++;
+                }
+                for (int p = start; p < i; ){
+                    if(count(sequences, sample, p) * 2 < max){
+                        p++;
+                        continue;
+                    }
+                    int from = p;
+                    while(p < i && count(sequences, sample, p) * 2 >= max){
+                        p++;
+                    }
+                    ByteBuffer run = ByteBuffer.wrap(sample, from, p - 1 + TRAINING_SEQUENCE_LENGTH - from).slice();
+                    if(seen.add(run)) runs.merge(run, 1, Integer::sum);
+                }
+                i++;
+            }
+        }
+
+        //-- take the runs saving the most, skipping any already contained in one taken
+        List<Map.Entry<ByteBuffer, Integer>> ranked = new ArrayList<>(runs.entrySet());
+        ranked.sort((a, b) -> Long.compare(
+                (long) b.getValue() * b.getKey().remaining(), (long) a.getValue() * a.getKey().remaining()));
+        List<byte[]> taken = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<ByteBuffer, Integer> entry : ranked){
+            byte[] run = new byte[entry.getKey().remaining()];
+            entry.getKey().duplicate().get(run);
+            if(size + run.length > maxSize || contained(taken, run)) continue;
+            taken.add(run);
+            size += run.length;
+        }
+        byte[] dictionary = new byte[size];
+        int offset = size;
+        for (byte[] run : taken){
+            offset -= run.length;
+            System.arraycopy(run, 0, dictionary, offset, run.length);
+        }
+        return dictionary;
+    }
+
+    private static int count(Map<ByteBuffer, Integer> sequences, byte[] sample, int offset){
+        Integer count = sequences.get(ByteBuffer.wrap(sample, offset, TRAINING_SEQUENCE_LENGTH).slice());
+        return count == null ? 0 : count;
+    }
+
+    private static boolean contained(List<byte[]> taken, byte[] run){
+        for (byte[] existing : taken){
+            outer:
+            for (int i = 0; i + run.length <= existing.length; i++){
+                for (int j = 0; j < run.length; j++){
+                    if(existing[i + j] != run[j]) continue outer;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
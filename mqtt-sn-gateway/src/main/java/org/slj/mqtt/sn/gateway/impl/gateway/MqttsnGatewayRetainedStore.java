@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.impl.gateway;
+
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.gateway.spi.GatewayMetrics;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRetainedStore;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
+import org.slj.mqtt.sn.impl.metrics.MqttsnCountingMetric;
+import org.slj.mqtt.sn.impl.metrics.MqttsnSnapshotMetric;
+import org.slj.mqtt.sn.spi.AbstractMqttsnService;
+import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.utils.tree.MqttTopicTree;
+import org.slj.mqtt.sn.utils.tree.TriesTreeLimitExceededException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds retained messages in memory, indexed by the same topic tree used for subscription matching, so the set
+ * of retained messages matching a (wildcard) subscription is found by walking only the branches the filter can
+ * reach rather than testing every retained topic.
+ */
+public class MqttsnGatewayRetainedStore extends AbstractMqttsnService implements IMqttsnGatewayRetainedStore {
+
+    private volatile MqttTopicTree<Retained> tree;
+    private final AtomicInteger size = new AtomicInteger();
+
+    @Override
+    public synchronized void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
+        super.start(runtime);
+        tree = new MqttTopicTree<>();
+        if(runtime.getMetrics() != null){
+            runtime.getMetrics().registerMetric(new MqttsnSnapshotMetric(GatewayMetrics.GATEWAY_RETAINED_STORE_SIZE,
+                    "The number of retained messages held by the gateway.",
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> size.get()));
+            runtime.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.GATEWAY_RETAINED_REPLAY,
+                    "The number of retained messages replayed by the gateway to new subscriptions.",
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+        }
+    }
+
+    @Override
+    public void retain(String topicPath, int qos, byte[] payload) throws MqttsnException {
+        Retained retained = new Retained(new PublishData(topicPath, qos, true, payload));
+        //-- the tree serialises its writers, the size is guarded here so the bound and count stay in step
+        synchronized (size){
+            if(payload == null || payload.length == 0){
+                if(tree.removeSubscription(topicPath, retained)){
+                    size.decrementAndGet();
+                    logger.debug("cleared retained message on {}", topicPath);
+                }
+                return;
+            }
+            try {
+                if(size.get() >= getMaxRetainedMessages()){
+                    //-- replacing an existing topic is always allowed, only new topics are bounded
+                    if(!tree.searchMembers(topicPath, new ArrayList<>(1)).contains(retained)){
+                        logger.warn("retained store full ({}), unable to retain message on {}", size.get(), topicPath);
+                        return;
+                    }
+                }
+                if(tree.addSubscription(topicPath, retained)){
+                    size.incrementAndGet();
+                }
+            } catch(TriesTreeLimitExceededException e){
+                throw new MqttsnException(e);
+            }
+        }
+    }
+
+    @Override
+    public List<PublishData> search(String topicFilter) {
+        List<PublishData> matches = new ArrayList<>();
+        tree.visitMatching(topicFilter, r -> matches.add(r.data));
+        return matches;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void clear() {
+        synchronized (size){
+            tree = new MqttTopicTree<>();
+            size.set(0);
+        }
+    }
+
+    protected int getMaxRetainedMessages(){
+        return ((MqttsnGatewayOptions) registry.getOptions()).getMaxRetainedMessages();
+    }
+
+    /**
+     * One message is retained per topic, so members are equal on topic alone and a new message replaces the old.
+     */
+    private static final class Retained {
+
+        private final PublishData data;
+
+        Retained(PublishData data){
+            this.data = data;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return data.getTopicPath().equals(((Retained) o).data.getTopicPath());
+        }
+
+        @Override
+        public int hashCode() {
+            return data.getTopicPath().hashCode();
+        }
+    }
+}
@@ -26,16 +26,21 @@ package org.slj.mqtt.sn.gateway.impl.gateway;
 
 import org.slj.mqtt.sn.MqttsnConstants;
 import org.slj.mqtt.sn.MqttsnSpecificationValidator;
+import org.slj.mqtt.sn.PublishData;
 import org.slj.mqtt.sn.gateway.spi.*;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRetainedStore;
 import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRuntimeRegistry;
 import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewaySessionService;
 import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
 import org.slj.mqtt.sn.impl.AbstractMqttsnBackoffThreadService;
 import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.MqttsnQueueAcceptException;
 import org.slj.mqtt.sn.model.MqttsnClientState;
 import org.slj.mqtt.sn.model.TopicInfo;
 import org.slj.mqtt.sn.model.session.IMqttsnSession;
 import org.slj.mqtt.sn.model.session.IMqttsnWillData;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
 import org.slj.mqtt.sn.spi.IMqttsnMessage;
 import org.slj.mqtt.sn.spi.MqttsnException;
 import org.slj.mqtt.sn.spi.MqttsnIllegalFormatException;
@@ -44,6 +49,7 @@ import org.slj.mqtt.sn.utils.TopicPath;
 
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 public class MqttsnGatewaySessionService extends AbstractMqttsnBackoffThreadService
         implements IMqttsnGatewaySessionService {
@@ -128,7 +134,12 @@ public class MqttsnGatewaySessionService extends AbstractMqttsnBackoffThreadServ
             IMqttsnMessage willPublish = getRegistry().getCodec().createMessageFactory().createPublish(data.getQos(), false, data.isRetained(),
                     "ab", data.getData());
             try {
-                getRegistry().getBackendService().publish(session.getContext(), data.getTopicPath(), data.getQos(), data.isRetained(), data.getData(), willPublish);
+                PublishResult result = getRegistry().getBackendService().publish(session.getContext(), data.getTopicPath(), data.getQos(), data.isRetained(), data.getData(), willPublish);
+                if(result.isError()){
+                    logger.warn("backend rejected will message for {}, {}", session.getContext(), result.getMessage());
+                } else if(data.isRetained() && getRegistry().getRetainedStore() != null){
+                    getRegistry().getRetainedStore().retain(data.getTopicPath().toString(), data.getQos(), data.getData());
+                }
                 //per the MQTT spec, once published the will message should be discarded
                 getRegistry().getWillRegistry().clear(session);
             } catch(MqttsnException e){
@@ -219,7 +230,7 @@ public class MqttsnGatewaySessionService extends AbstractMqttsnBackoffThreadServ
                     return new SubscribeResult(Result.STATUS.ERROR, MqttsnConstants.RETURN_CODE_INVALID_TOPIC_ID,
                             "invalid topic format");
                 }
-                if(!TopicPath.isWild(topicPath)){
+                if(!TopicPath.isWild(topicPath) && !TopicPath.isShared(topicPath)){
                     TopicInfo lookupInfo = registry.getTopicRegistry().lookup(session, topicPath);
                     if(lookupInfo == null || info.getType() == MqttsnConstants.TOPIC_TYPE.NORMAL){
                         info = registry.getTopicRegistry().register(session, topicPath);
@@ -244,9 +255,20 @@ public class MqttsnGatewaySessionService extends AbstractMqttsnBackoffThreadServ
                 }
 
                 //-- ensure we call subscribe on the backend first - else the aggreating gw will never know we need to subscribe
+                //-- the broker is subscribed to the filter of a shared subscription, the share is resolved locally
                 SubscribeResult result = getRegistry().
-                        getBackendService().subscribe(context, new TopicPath(topicPath), message);
+                        getBackendService().subscribe(context, new TopicPath(TopicPath.getSharedFilter(topicPath)), message);
+                if(result.isError()){
+                    //-- the broker refused (e.g. its ACL for this device), so the device must not be subscribed locally
+                    logger.warn("{} backend refused subscription to {}; {}", context, topicPath, result.getMessage());
+                    return result;
+                }
+                if(result.hasGrantedQoS()){
+                    QoS = Math.min(result.getGrantedQoS(), QoS);
+                }
 
+                //-- where the broker was resubscribed it will send the retained messages itself
+                boolean replayRetained = result.getStatus() == Result.STATUS.NOOP;
                 try {
                     if(getRegistry().getSubscriptionRegistry().subscribe(session, topicPath, QoS)){
                         result.setTopicInfo(info);
@@ -256,6 +278,9 @@ public class MqttsnGatewaySessionService extends AbstractMqttsnBackoffThreadServ
                         result.setTopicInfo(info);
                         result.setGrantedQoS(QoS);
                     }
+                    if(replayRetained){
+                        replayRetained(session, topicPath, QoS);
+                    }
                 } catch(MqttsnIllegalFormatException e){
                     logger.warn("error in topic format", e);
                     result = new SubscribeResult(Result.STATUS.ERROR, MqttsnConstants.RETURN_CODE_INVALID_TOPIC_ID, "invalid topic format");
@@ -265,6 +290,34 @@ public class MqttsnGatewaySessionService extends AbstractMqttsnBackoffThreadServ
         }
     }
 
+    /**
+     * Enqueue the locally retained messages matching a new subscription straight onto the session queue.
+     * Per the MQTT specification retained messages are not sent to shared subscriptions.
+     */
+    protected void replayRetained(IMqttsnSession session, String topicPath, int grantedQoS) throws MqttsnException {
+        IMqttsnGatewayRetainedStore retainedStore = getRegistry().getRetainedStore();
+        if(retainedStore == null || TopicPath.isShared(topicPath)) return;
+        List<PublishData> retained = retainedStore.search(topicPath);
+        for (PublishData data : retained){
+            IMqttsnDataRef dataRef = getRegistry().getMessageRegistry().add(data.getData());
+            try {
+                MqttsnQueuedPublishMessageImpl impl = new MqttsnQueuedPublishMessageImpl(dataRef,
+                        new PublishData(data.getTopicPath(), data.getQos(), true));
+                impl.setGrantedQoS(Math.min(data.getQos(), grantedQoS));
+                getRegistry().getMessageQueue().offer(session, impl);
+                getRegistry().getMetrics().getMetric(GatewayMetrics.GATEWAY_RETAINED_REPLAY).increment(1);
+            } catch(MqttsnQueueAcceptException e){
+                logger.warn("unable to replay retained message {} to {}, queue full", data.getTopicPath(), session.getContext());
+            } finally {
+                //-- the queue holds its own reference
+                getRegistry().getMessageRegistry().release(dataRef);
+            }
+        }
+        if(!retained.isEmpty()){
+            logger.debug("replayed {} retained messages to {} for {}", retained.size(), session.getContext(), topicPath);
+        }
+    }
+
     @Override
     public UnsubscribeResult unsubscribe(IMqttsnSession session, TopicInfo info, IMqttsnMessage message) throws MqttsnException {
 
@@ -280,7 +333,7 @@ public class MqttsnGatewaySessionService extends AbstractMqttsnBackoffThreadServ
                     return new UnsubscribeResult(Result.STATUS.ERROR, MqttsnConstants.RETURN_CODE_INVALID_TOPIC_ID,
                             "invalid topic format");
                 }
-                if(!TopicPath.isWild(topicPath)){
+                if(!TopicPath.isWild(topicPath) && !TopicPath.isShared(topicPath)){
                     TopicInfo lookupInfo = registry.getTopicRegistry().lookup(session, topicPath);
                     if(lookupInfo == null || info.getType() == MqttsnConstants.TOPIC_TYPE.NORMAL){
                         info = registry.getTopicRegistry().register(session, topicPath);
@@ -296,7 +349,7 @@ public class MqttsnGatewaySessionService extends AbstractMqttsnBackoffThreadServ
                         "no topic found by specification");
             } else {
                 if(registry.getSubscriptionRegistry().unsubscribe(session, topicPath)){
-                    UnsubscribeResult result = getRegistry().getBackendService().unsubscribe(context, new TopicPath(topicPath), message);
+                    UnsubscribeResult result = getRegistry().getBackendService().unsubscribe(context, new TopicPath(TopicPath.getSharedFilter(topicPath)), message);
                     return result;
                 } else {
                     return new UnsubscribeResult(Result.STATUS.NOOP);
@@ -28,41 +28,79 @@ import com.google.common.util.concurrent.RateLimiter;
 import org.slj.mqtt.sn.cloud.MqttsnConnectorDescriptor;
 import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendConnection;
 import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendService;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnAdaptiveRateController;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnBackendDurableQueue;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnBlockingConnectorAdapter;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnUpstreamSubscriptionPlanner;
 import org.slj.mqtt.sn.gateway.spi.*;
+import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnAsyncConnectorConnection;
 import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnConnectorConnection;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
 import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
 import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
-import org.slj.mqtt.sn.impl.metrics.MqttsnCountingMetric;
 import org.slj.mqtt.sn.impl.metrics.MqttsnSnapshotMetric;
 import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.model.session.IMqttsnSubscription;
 import org.slj.mqtt.sn.spi.IMqttsnMessage;
 import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
 import org.slj.mqtt.sn.spi.MqttsnException;
-import org.slj.mqtt.sn.spi.MqttsnIllegalFormatException;
 import org.slj.mqtt.sn.utils.MqttsnUtils;
 import org.slj.mqtt.sn.utils.TopicPath;
 
-import java.util.Queue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A single broker connection is maintained and used for all connecting gateway side
- * devices
+ * devices. Publishes are queued and sent to the broker in batches by one or more publisher lanes; where more than one lane
+ * is configured, each additional lane publishes on its own broker connection and messages are partitioned across
+ * lanes by topic, so order is preserved per topic while distinct topics are published concurrently.
+ *
+ * When the durable queue is enabled, publishes which cannot be queued in memory (the queue is full or the broker is
+ * unreachable) are held on disk instead and fed back to the publisher lanes at a controlled rate once the
+ * connection is healthy again.
+ *
+ * Device subscriptions are aggregated upstream; the connection is subscribed only to the minimal set of filters covering
+ * every device subscription, see {@link MqttsnUpstreamSubscriptionPlanner}.
  */
 public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
 
     private volatile IMqttsnConnectorConnection connection;
     private volatile boolean stopped = false;
-    private Thread publishingThread = null;
-    private final Object monitor = new Object();
-    private final Queue<BrokerPublishOperation> queue = new LinkedBlockingQueue<>();
+    private PublishLane[] lanes = new PublishLane[0];
     private volatile RateLimiter rateLimiter = null;
+    private volatile MqttsnBackendDurableQueue durableQueue = null;
     private static final long PUBLISH_THREAD_MAX_WAIT = 10000;
     private static final long MANAGED_CONNECTION_VALIDATION_TIME = 10000;
     private static final long MAX_ERROR_RETRIES = 5;
+    private static final long DURABLE_QUEUE_DRAIN_INTERVAL = 100;
+    private static final long SUBSCRIPTION_RECONCILE_INTERVAL = 60000;
+    static final String DURABLE_QUEUE_DIR = "_backend-outbound-queue";
+    private final MqttsnUpstreamSubscriptionPlanner planner = new MqttsnUpstreamSubscriptionPlanner();
+    private final Object subscriptionLock = new Object();
+    private volatile boolean plannerSeeded = false;
+    private volatile long lastReconcile = System.currentTimeMillis();
     private volatile boolean metricsLoaded = false;
 
     public MqttsnAggregatingGateway(){
@@ -76,6 +114,13 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
                     getMaxBrokerPublishesPerSecond();
             rateLimiter = limiter == 0d ? null : RateLimiter.create(limiter);
             stopped = false;
+            int laneCount = Math.max(1, ((MqttsnGatewayOptions)runtime.getOptions()).getBackendPublishLanes());
+            lanes = new PublishLane[laneCount];
+            for (int i = 0; i < laneCount; i++){
+                lanes[i] = new PublishLane(i);
+            }
+            initRateControllers();
+            initDurableQueue();
             connectOnStartup();
             initPublisher();
         }
@@ -90,6 +135,11 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
         } else {
             rateLimiter = null;
         }
+        for (PublishLane lane : lanes){
+            if(lane.rateController != null){
+                lane.rateController.setMaxRate(getAdaptiveRateCeiling());
+            }
+        }
         return super.initializeConnector(descriptor, options);
     }
 
@@ -100,12 +150,14 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
             super.stop();
             try {
                 close(connection);
+                for (PublishLane lane : lanes){
+                    lane.close();
+                }
             } catch(MqttsnConnectorException e){
                 logger.warn("error encountered shutting down broker connector;", e);
             } finally {
-                synchronized (monitor){
-                    monitor.notifyAll();
-                }
+                pokeQueue();
+                closeDurableQueue();
             }
         }
     }
@@ -122,21 +174,34 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
 
         if(registry.getMetrics() != null && !metricsLoaded){
 
-            registry.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH,
-                    "The number of mqtt application messages published through the backend connector.",
-                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
-            registry.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_ERROR,
-                    "The number of errors received during mqtt application messages published through the backend connector.",
-                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
-            registry.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_RECEIVE,
-                    "The number of mqtt application messages received through the backend connector.",
-                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
-            registry.getMetrics().registerMetric(new MqttsnCountingMetric(GatewayMetrics.BACKEND_CONNECTOR_EXPANSION,
-                    "The number of mqtt application messages received into sessions.",
-                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS));
+            registerConnectorMetrics();
+            registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(GatewayMetrics.BACKEND_UPSTREAM_SUBSCRIPTIONS,
+                    "The number of topic filters the backend connection is subscribed to, covering every device subscription.",
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> getUpstreamSubscriptionCount()));
             registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_QUEUE_SIZE,
                     "The number of mqtt application messages waiting to be published to the backend.",
-                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> queue.size()));
+                    IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> getQueuedCount()));
+            if(durableQueue != null){
+                registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(GatewayMetrics.BACKEND_DURABLE_QUEUE_SIZE,
+                        "The number of mqtt application messages held in the durable backend queue.",
+                        IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> {
+                            MqttsnBackendDurableQueue durableQueue = this.durableQueue;
+                            return durableQueue == null ? 0 : durableQueue.size();
+                        }));
+            }
+            if(((MqttsnGatewayOptions) registry.getOptions()).isBackendAdaptiveRate()){
+                registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_RATE,
+                        "The number of mqtt application messages per second currently permitted to the backend by adaptive rate control.",
+                        IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> getAdaptiveRate()));
+            }
+            if(lanes.length > 1){
+                for (PublishLane lane : lanes){
+                    registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(
+                            GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_QUEUE_SIZE + "_LANE_" + lane.index,
+                            "The number of mqtt application messages waiting to be published to the backend on publisher lane " + lane.index + ".",
+                            IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> lane.size()));
+                }
+            }
             metricsLoaded = true;
         }
     }
@@ -155,6 +220,9 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
     @Override
     public PublishResult publish(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
         try {
+            //-- encode on the way in, so the queues (and the durable queue on disk) hold what is sent, and the
+            //-- connection is asked whether it can accept the payload it will actually publish
+            payload = encodePayload(topicPath, payload);
             if(isConnected(context)){
                 if(!connection.canAccept(context, topicPath, payload, message)){
                     logger.warn("unable to accept publish {}", topicPath);
@@ -163,24 +231,30 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
                 }
             }
 
-            if(queue.size() >= ((MqttsnGatewayOptions) registry.getOptions()).getMaxBackendQueueSize()){
-                logger.warn("queuing message for publish {} failed, backend queue at capacity {}", topicPath, queue.size());
+            //-- the backend queue size bounds the messages queued across all lanes
+            int queued = getQueuedCount();
+            boolean full = queued >= ((MqttsnGatewayOptions) registry.getOptions()).getMaxBackendQueueSize();
+            MqttsnBackendDurableQueue durableQueue = this.durableQueue;
+            if(durableQueue != null && (full || !durableQueue.isEmpty() || !isConnected(context))){
+                //-- once anything is held on disk later publishes queue behind it, so order is kept until it drains
+                if(durableQueue.append(new BrokerPublishOperation(context, topicPath, qos, retained, payload, message))){
+                    logger.debug("queuing message for publish {} on durable queue, queue contains {}", topicPath, durableQueue.size());
+                    return new PublishResult(Result.STATUS.SUCCESS,"queued for sending on durable queue");
+                }
+                logger.warn("queuing message for publish {} failed, durable backend queue at capacity {} bytes", topicPath, durableQueue.getBytes());
+                return new PublishResult(Result.STATUS.ERROR,"backend queue is full.");
+            }
+            if(full){
+                logger.warn("queuing message for publish {} failed, backend queue at capacity {}", topicPath, queued);
                 return new PublishResult(Result.STATUS.ERROR,"backend queue is full.");
             } else {
-                BrokerPublishOperation op = new BrokerPublishOperation();
-                op.context = context;
-                op.topicPath = topicPath;
-                op.initialMessage = message;
-                op.payload = payload;
-                op.retained = retained;
-                op.qos = qos;
-                queue.add(op);
-
-                logger.debug("queuing message for publish {}, queue contains {}", topicPath, queue.size());
-
-                synchronized (monitor){
-                    monitor.notifyAll();
-                }
+                BrokerPublishOperation op = new BrokerPublishOperation(context, topicPath, qos, retained, payload, message);
+                PublishLane lane = getLane(topicPath);
+                lane.add(op);
+
+                logger.debug("queuing message for publish {} on lane {}, queue contains {}", topicPath, lane.index, lane.size());
+
+                lane.poke();
                 return new PublishResult(Result.STATUS.SUCCESS,"queued for sending on publishing thread");
             }
 
@@ -202,6 +276,26 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
                 } else {
                     initConnection();
                 }
+                for (PublishLane lane : lanes){
+                    lane.validate();
+                }
+                if(connection != null && connection.isConnected() &&
+                        System.currentTimeMillis() - lastReconcile > SUBSCRIPTION_RECONCILE_INTERVAL){
+                    reconcileSubscriptions();
+                }
+                //-- drain the durable queue in steps so a recovered broker is not hit with the whole backlog at once
+                MqttsnBackendDurableQueue durableQueue = this.durableQueue;
+                if(durableQueue != null){
+                    if(!durableQueue.isEmpty() && connection != null && connection.isConnected()){
+                        drainDurableQueue();
+                        return DURABLE_QUEUE_DRAIN_INTERVAL;
+                    }
+                    //-- records drained by an earlier step are checkpointed as the broker acknowledges them
+                    durableQueue.checkpoint();
+                    if(durableQueue.getUnacknowledged() > 0){
+                        return DURABLE_QUEUE_DRAIN_INTERVAL;
+                    }
+                }
             }
         } catch(Exception e){
             logger.error("error occurred monitoring connections;", e);
@@ -216,65 +310,108 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
         return connection;
     }
 
-    private void initPublisher(){
-        publishingThread = new Thread(() -> {
-            int errorCount = 0;
-            do {
-                try {
-                    if(connection != null && connection.isConnected()) {
-                        BrokerPublishOperation op = queue.poll();
-                        if(op != null){
-                            if(connection.canAccept(op.context, op.topicPath, op.payload, op.initialMessage)){
-                                if(rateLimiter != null) rateLimiter.acquire();
-                                logger.debug("de-queuing message to broker from queue, {} remaining", queue.size());
-                                PublishResult res = super.publish(op.context, op.topicPath, op.qos, op.retained, op.payload, op.initialMessage);
-                                if(res.isError()){
-                                    if(++errorCount < MAX_ERROR_RETRIES){
-                                        logger.warn("error sending message to backend, {} - requeue", queue.size());
-                                        queue.offer(op);
-                                    }
-                                    else {
-                                        logger.warn("error sending message to backend, retries exhausted - discard");
-                                        getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_ERROR).increment(1);
-                                        errorCount = 0;
-                                    }
-                                } else {
-                                    errorCount = 0;
-                                    getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH).increment(1);
-                                }
-                            } else {
-                                logger.warn("unable to accept publish operation from queue - discard");
-                            }
-                        }
-                    } else {
-                        errorCount++;
-                    }
+    protected void initRateControllers(){
+        MqttsnGatewayOptions options = (MqttsnGatewayOptions) registry.getOptions();
+        if(options.isBackendAdaptiveRate()){
+            for (PublishLane lane : lanes){
+                lane.rateController = new MqttsnAdaptiveRateController("lane-" + lane.index,
+                        options.getBackendAdaptiveRateMin(), getAdaptiveRateCeiling(),
+                        options.getBackendAdaptiveRateIncrease(), options.getBackendAdaptiveRateDecrease(),
+                        options.getBackendAdaptiveLatencyTarget());
+            }
+        }
+    }
 
-                    if(errorCount > 0){
-                        //exponential back off to allow the connection to reestablish
-                        Thread.sleep(
-                                MqttsnUtils.getExponentialBackoff(errorCount, true));
-                    }
-                    if(running && !stopped) {
-                        synchronized (monitor){
-                            while(running && queue.peek() == null){
-                                monitor.wait(PUBLISH_THREAD_MAX_WAIT);
-                            }
-                        }
-                    }
-                }
-                catch(InterruptedException e){
-                    Thread.currentThread().interrupt();
-                    logger.warn("backend publishing thread interrupted;");
+    /**
+     * The configured adaptive ceiling (and any static limit in place) applies across all lanes, so the adaptive
+     * rate of each lane is capped by an even share of it.
+     */
+    protected double getAdaptiveRateCeiling(){
+        double ceiling = ((MqttsnGatewayOptions) registry.getOptions()).getBackendAdaptiveRateMax();
+        RateLimiter rateLimiter = this.rateLimiter;
+        if(rateLimiter != null){
+            ceiling = Math.min(ceiling, rateLimiter.getRate());
+        }
+        return ceiling / Math.max(1, lanes.length);
+    }
+
+    public long getAdaptiveRate(){
+        double rate = 0;
+        for (PublishLane lane : lanes){
+            if(lane.rateController != null){
+                rate += lane.rateController.getRate();
+            }
+        }
+        return (long) rate;
+    }
+
+    protected void initDurableQueue() throws MqttsnException {
+        MqttsnGatewayOptions options = (MqttsnGatewayOptions) registry.getOptions();
+        if(options.isBackendDurableQueue() && durableQueue == null){
+            File dir = new File(registry.getStorageService().getWorkspaceRoot(), DURABLE_QUEUE_DIR);
+            MqttsnBackendDurableQueue queue = new MqttsnBackendDurableQueue(dir,
+                    options.getBackendDurableQueueSegmentSize(), options.getBackendDurableQueueMaxSize());
+            try {
+                queue.open();
+            } catch(IOException e){
+                throw new MqttsnException("unable to open durable backend queue;", e);
+            }
+            durableQueue = queue;
+        }
+    }
+
+    protected void drainDurableQueue() throws IOException {
+        MqttsnGatewayOptions options = (MqttsnGatewayOptions) registry.getOptions();
+        int step = Math.max(1, (int) (options.getBackendDurableQueueDrainRate() * DURABLE_QUEUE_DRAIN_INTERVAL / 1000));
+        int max = Math.min(step, options.getMaxBackendQueueSize() - getQueuedCount());
+        if(max > 0){
+            List<BrokerPublishOperation> ops = durableQueue.drain(max);
+            for (BrokerPublishOperation op : ops){
+                getLane(op.getTopicPath()).add(op);
+            }
+            if(!ops.isEmpty()){
+                logger.debug("moved {} messages from durable queue to publisher, {} remaining", ops.size(), durableQueue.size());
+                pokeQueue();
+            }
+        }
+    }
+
+    /**
+     * Anything still queued in memory is moved to the durable queue so it survives the restart. Operations read from
+     * the durable queue are left out, they have not been acknowledged and so are read again from disk.
+     */
+    protected void closeDurableQueue(){
+        MqttsnBackendDurableQueue durableQueue = this.durableQueue;
+        if(durableQueue != null){
+            this.durableQueue = null;
+            try {
+                List<BrokerPublishOperation> remaining = new ArrayList<>();
+                for (PublishLane lane : lanes){
+                    lane.drainTo(remaining);
                 }
-                catch(Exception e){
-                    logger.error("error publishing via queue publisher;", e);
+                remaining.removeIf(op -> op.getDurableReceipt() != 0);
+                for (int i = 0; i < remaining.size(); i++){
+                    if(!durableQueue.append(remaining.get(i))){
+                        logger.warn("durable backend queue at capacity on shutdown, {} messages discarded", remaining.size() - i);
+                        break;
+                    }
                 }
-            } while(running && !stopped);
-        }, "mqtt-sn-backend-publisher");
-        publishingThread.setDaemon(true);
-        publishingThread.setPriority(Thread.MIN_PRIORITY);
-        publishingThread.start();
+                durableQueue.close();
+            } catch(IOException e){
+                logger.warn("error encountered closing durable backend queue;", e);
+            }
+        }
+    }
+
+    private void initPublisher(){
+        for (PublishLane lane : lanes){
+            lane.start();
+        }
+    }
+
+    protected PublishLane getLane(TopicPath topicPath){
+        if(lanes.length == 1) return lanes[0];
+        return lanes[(topicPath.toString().hashCode() & Integer.MAX_VALUE) % lanes.length];
     }
 
     protected void initConnection() throws MqttsnConnectorException {
@@ -286,19 +423,20 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
                     connection = getRegistry().getConnector().createConnection(registry.getOptions().getContextId());
                     if(connection instanceof AbstractMqttsnBackendConnection){
                         ((AbstractMqttsnBackendConnection)connection).setBrokerService(this);
-                        //-- ensure we subscribe the connection to any existing subscriptions
+                        //-- ensure we subscribe the connection to the filters covering any existing subscriptions
                         try {
-                            Set<String> paths = getRegistry().getSubscriptionRegistry().readAllSubscribedTopicPaths();
-                            if(paths!= null){
-                                logger.info("new aggregated connection subscribing to {} existing topics..", paths.size());
-                                paths.forEach(path -> {
-                                    try {
-                                        connection.subscribe(null, new TopicPath(path), null);
-                                    } catch (MqttsnConnectorException e) {
-                                        e.printStackTrace();
-                                        logger.warn("error subscribing to {} existing topics..", e);
-                                    }
-                                });
+                            if(!plannerSeeded){
+                                planner.reset(readSubscriptionReferences());
+                                plannerSeeded = true;
+                            }
+                            List<String> filters = planner.getCoveringFilters();
+                            if(!filters.isEmpty()){
+                                logger.info("new aggregated connection subscribing to {} filters covering {} existing topics..",
+                                        filters.size(), planner.getFilterCount());
+                                int failed = subscribeAll(connection, filters);
+                                if(failed > 0){
+                                    logger.warn("error subscribing to {} of {} existing filters..", failed, filters.size());
+                                }
                             }
                         } catch (MqttsnException e) {
                             logger.warn("error subscribing to {} existing topics..", e);
@@ -312,35 +450,133 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
 
     @Override
     public SubscribeResult subscribe(IMqttsnContext context, TopicPath topic, IMqttsnMessage message) throws MqttsnConnectorException {
-
-        try {
-            if(!getRegistry().getSubscriptionRegistry().
-                    hasSubscription(topic.toString())) {
-                return super.subscribe(context, topic, message);
-            } else {
-                logger.info("subscription already existed, not need to subscribe again");
+        synchronized (subscriptionLock){
+            MqttsnUpstreamSubscriptionPlanner.Plan plan = planner.subscribe(context, topic.toString());
+            if(plan.isEmpty()){
+                logger.info("subscription to {} already covered upstream, no need to subscribe again", topic);
                 return new SubscribeResult(Result.STATUS.NOOP);
             }
-        } catch(MqttsnIllegalFormatException | MqttsnException e){
-            throw new MqttsnConnectorException(e);
+            try {
+                apply(getConnection(context), plan);
+            } catch(MqttsnConnectorException e){
+                //-- nothing was unsubscribed, so releasing the reference restores the previous upstream state
+                planner.unsubscribe(context, topic.toString());
+                throw e;
+            }
+            return new SubscribeResult(Result.STATUS.SUCCESS);
         }
     }
 
     @Override
     public UnsubscribeResult unsubscribe(IMqttsnContext context, TopicPath topic, IMqttsnMessage message) throws MqttsnConnectorException {
-        try {
-            //-- only need to unsubscribe if we will NO LONGER have any subscriptions
-            if(getRegistry().getSubscriptionRegistry().
-                    hasSubscription(topic.toString())) {
-                return super.unsubscribe(context, topic, message);
-            } else {
-                logger.info("more subscriptions existed, do not unsubscribe");
+        synchronized (subscriptionLock){
+            try {
+                //-- the device may still hold the same filter as (or as well as) a shared subscription
+                if(isStillSubscribed(context, topic.toString())){
+                    return new UnsubscribeResult(Result.STATUS.NOOP);
+                }
+            } catch(MqttsnException e){
+                throw new MqttsnConnectorException(e);
+            }
+            MqttsnUpstreamSubscriptionPlanner.Plan plan = planner.unsubscribe(context, topic.toString());
+            if(plan.isEmpty()){
+                logger.info("other subscriptions still covered by {}, do not unsubscribe", topic);
                 return new UnsubscribeResult(Result.STATUS.NOOP);
             }
-        } catch(MqttsnIllegalFormatException | MqttsnException e){
-            throw new MqttsnConnectorException(e);
+            apply(getConnection(context), plan);
+            return new UnsubscribeResult(Result.STATUS.SUCCESS);
+        }
+    }
+
+    /**
+     * Subscribe to the filters the plan adds before unsubscribing from those it removes, so nothing goes unmatched in
+     * between. If a subscribe fails nothing is unsubscribed.
+     */
+    protected void apply(IMqttsnConnectorConnection connection, MqttsnUpstreamSubscriptionPlanner.Plan plan) throws MqttsnConnectorException {
+        logger.info("applying upstream subscription plan {}", plan);
+        if(!plan.getSubscribe().isEmpty() && subscribeAll(connection, plan.getSubscribe()) > 0){
+            throw new MqttsnConnectorException("broker did not accept subscription to " + plan.getSubscribe());
+        }
+        for (String filter : plan.getUnsubscribe()){
+            UnsubscribeResult result = connection.unsubscribe(null, new TopicPath(filter), null);
+            if(result.isError()){
+                logger.warn("error unsubscribing upstream from {}; {}", filter, result.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Subscribe to the filters in batches.
+     * @return the number of filters which could not be subscribed
+     */
+    protected int subscribeAll(IMqttsnConnectorConnection connection, List<String> filters) throws MqttsnConnectorException {
+        int batchSize = Math.max(1, ((MqttsnGatewayOptions) registry.getOptions()).getBackendSubscribeBatchSize());
+        int failed = 0;
+        for (int i = 0; i < filters.size(); i += batchSize){
+            List<TopicPath> batch = new ArrayList<>(Math.min(batchSize, filters.size() - i));
+            for (int j = i; j < Math.min(i + batchSize, filters.size()); j++){
+                batch.add(new TopicPath(filters.get(j)));
+            }
+            List<SubscribeResult> results = connection.subscribeBatch(batch);
+            for (int j = 0; j < results.size(); j++){
+                if(results.get(j).isError()){
+                    failed++;
+                    logger.warn("error subscribing upstream to {}; {}", batch.get(j), results.get(j).getMessage());
+                }
+            }
+        }
+        return failed;
+    }
+
+    protected boolean isStillSubscribed(IMqttsnContext context, String topicFilter) throws MqttsnException {
+        IMqttsnSession session = getRegistry().getSessionRegistry().getSession(context, false);
+        if(session != null){
+            for (IMqttsnSubscription subscription : getRegistry().getSubscriptionRegistry().readSubscriptions(session)){
+                if(topicFilter.equals(TopicPath.getSharedFilter(subscription.getTopicPath().toString()))){
+                    return true;
+                }
+            }
         }
+        return false;
+    }
 
+    /**
+     * The upstream filter (shared subscriptions resolved to their filter) of every subscription, against the devices holding it.
+     */
+    protected Map<String, Set<IMqttsnContext>> readSubscriptionReferences() throws MqttsnException {
+        Map<String, Set<IMqttsnContext>> references = new HashMap<>();
+        Iterator<IMqttsnSession> sessions = getRegistry().getSessionRegistry().iterator();
+        while(sessions.hasNext()){
+            IMqttsnSession session = sessions.next();
+            for (IMqttsnSubscription subscription : getRegistry().getSubscriptionRegistry().readSubscriptions(session)){
+                references.computeIfAbsent(TopicPath.getSharedFilter(subscription.getTopicPath().toString()),
+                        k -> new HashSet<>()).add(session.getContext());
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Drop upstream any filter whose subscribers have gone without unsubscribing (for example an expired session).
+     */
+    protected void reconcileSubscriptions() throws MqttsnException {
+        long referencedBefore = lastReconcile;
+        lastReconcile = System.currentTimeMillis();
+        Set<String> live = new HashSet<>();
+        for (String path : getRegistry().getSubscriptionRegistry().readAllSubscribedTopicPaths()){
+            live.add(TopicPath.getSharedFilter(path));
+        }
+        synchronized (subscriptionLock){
+            MqttsnUpstreamSubscriptionPlanner.Plan plan = planner.reconcile(live, referencedBefore);
+            IMqttsnConnectorConnection connection = this.connection;
+            if(!plan.isEmpty() && connection != null){
+                apply(connection, plan);
+            }
+        }
+    }
+
+    public int getUpstreamSubscriptionCount() {
+        return planner.getCoveringCount();
     }
 
     @Override
@@ -352,7 +588,11 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
     }
 
     public int getQueuedCount() {
-        return queue.size();
+        int size = 0;
+        for (PublishLane lane : lanes){
+            size += lane.size();
+        }
+        return size;
     }
 
     public void reinit() throws MqttsnConnectorException {
@@ -363,8 +603,8 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
     }
 
     public void pokeQueue() {
-        synchronized (monitor){
-            monitor.notifyAll();
+        for (PublishLane lane : lanes){
+            lane.poke();
         }
     }
 
@@ -373,12 +613,363 @@ public class MqttsnAggregatingGateway extends AbstractMqttsnBackendService {
         return "gateway-backend-managed-connector";
     }
 
-    static class BrokerPublishOperation {
-        public IMqttsnContext context;
-        public TopicPath topicPath;
-        public byte[] payload;
-        public boolean retained;
-        public int qos;
-        public IMqttsnMessage initialMessage;
+    /**
+     * Drains its own queue on its own thread. The first lane publishes on the managed (subscribed) connection, the
+     * others each hold a publish-only connection to the broker which is created on demand.
+     *
+     * When a publish fails its topic is held: the failed operation is retried ahead of anything queued later on the
+     * same topic, which waits behind it, and the topic is published one operation at a time until everything held
+     * has been acknowledged or discarded. Publishes already handed to the broker when the failure is reported cannot
+     * be recalled, but nothing dispatched after it overtakes the retry.
+     */
+    protected class PublishLane {
+
+        private final int index;
+        private final BlockingQueue<BrokerPublishOperation> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong sequence = new AtomicLong();
+        //-- topics with a failed publish, against the operations held on them in lane order, and the retry (if any)
+        //-- currently with the broker for each (guarded by held)
+        private final Map<String, Deque<BrokerPublishOperation>> held = new LinkedHashMap<>();
+        private final Map<String, BrokerPublishOperation> retrying = new HashMap<>();
+        private final AtomicInteger heldCount = new AtomicInteger();
+        private final Object monitor = new Object();
+        private volatile IMqttsnConnectorConnection laneConnection;
+        private Thread publishingThread;
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile MqttsnAdaptiveRateController rateController;
+        //-- publisher thread only
+        private IMqttsnConnectorConnection adaptedFor;
+        private IMqttsnAsyncConnectorConnection adapted;
+
+        PublishLane(int index){
+            this.index = index;
+        }
+
+        IMqttsnConnectorConnection getConnection() throws MqttsnConnectorException {
+            if(index == 0) return connection;
+            if(laneConnection == null && connection != null && !stopped){
+                synchronized (this){
+                    if(laneConnection == null){
+                        laneConnection = getRegistry().getConnector().createConnection(
+                                registry.getOptions().getContextId() + "-" + index);
+                        if(laneConnection instanceof AbstractMqttsnBackendConnection){
+                            ((AbstractMqttsnBackendConnection)laneConnection).setBrokerService(MqttsnAggregatingGateway.this);
+                        }
+                    }
+                }
+            }
+            return laneConnection;
+        }
+
+        void validate() throws MqttsnConnectorException {
+            IMqttsnConnectorConnection laneConnection = this.laneConnection;
+            if(laneConnection != null && !laneConnection.isConnected()){
+                logger.warn("detected invalid connection to broker on publisher lane {}, dropping stale connection.", index);
+                close();
+            }
+        }
+
+        void close() throws MqttsnConnectorException {
+            IMqttsnConnectorConnection laneConnection = this.laneConnection;
+            this.laneConnection = null;
+            if(laneConnection != null && laneConnection.isConnected()){
+                laneConnection.close();
+            }
+        }
+
+        void poke(){
+            synchronized (monitor){
+                monitor.notifyAll();
+            }
+        }
+
+        void add(BrokerPublishOperation op){
+            op.setSequence(sequence.incrementAndGet());
+            queue.add(op);
+        }
+
+        /**
+         * @return the number of operations queued or held for a retry
+         */
+        int size(){
+            return queue.size() + heldCount.get();
+        }
+
+        /**
+         * Move every operation queued or held for a retry into the list, in lane order.
+         */
+        void drainTo(List<BrokerPublishOperation> ops){
+            List<BrokerPublishOperation> remaining = new ArrayList<>();
+            synchronized (held){
+                for (Deque<BrokerPublishOperation> deque : held.values()){
+                    remaining.addAll(deque);
+                }
+                held.clear();
+                retrying.clear();
+                heldCount.set(0);
+            }
+            queue.drainTo(remaining);
+            remaining.sort(Comparator.comparingLong(BrokerPublishOperation::getSequence));
+            ops.addAll(remaining);
+        }
+
+        void start(){
+            publishingThread = new Thread(this::publishLoop,
+                    lanes.length == 1 ? "mqtt-sn-backend-publisher" : "mqtt-sn-backend-publisher-" + index);
+            publishingThread.setDaemon(true);
+            publishingThread.setPriority(Thread.MIN_PRIORITY);
+            publishingThread.start();
+        }
+
+        private void publishLoop(){
+            MqttsnGatewayOptions options = (MqttsnGatewayOptions) registry.getOptions();
+            int batchSize = Math.max(1, options.getBackendPublishBatchSize());
+            long linger = options.getBackendPublishBatchLingerMillis();
+            List<BrokerPublishOperation> batch = new ArrayList<>(batchSize);
+            do {
+                try {
+                    IMqttsnAsyncConnectorConnection connection = getAsyncConnection();
+                    if(connection != null && connection.isConnected()) {
+                        drain(batch, batchSize, linger);
+                        Iterator<BrokerPublishOperation> itr = batch.iterator();
+                        while(itr.hasNext()){
+                            BrokerPublishOperation op = itr.next();
+                            if(!connection.canAccept(op.getContext(), op.getTopicPath(), op.getPayload(), op.getInitialMessage())){
+                                logger.warn("unable to accept publish operation from queue - discard");
+                                itr.remove();
+                                resolved(op);
+                            }
+                        }
+                        if(!batch.isEmpty()){
+                            //-- an adaptive rate is per lane (each has its own connection), otherwise the limiter
+                            //-- is shared so the configured rate applies across all lanes
+                            if(rateController != null) rateController.acquire(batch.size());
+                            else if(rateLimiter != null) rateLimiter.acquire(batch.size());
+                            logger.debug("de-queuing batch of {} to broker from lane {}, {} remaining", batch.size(), index, queue.size());
+                            //-- asynchronous connections return once the batch is handed off (blocking only when
+                            //-- their inflight window is full), so publishes are pipelined rather than waiting on each ack
+                            publish(connection, new ArrayList<>(batch));
+                            batch.clear();
+                        }
+                    } else {
+                        failures.incrementAndGet();
+                    }
+
+                    int errorCount = failures.get();
+                    if(errorCount > 0){
+                        //exponential back off to allow the connection to reestablish
+                        Thread.sleep(
+                                MqttsnUtils.getExponentialBackoff(errorCount, true));
+                    }
+                    if(running && !stopped) {
+                        synchronized (monitor){
+                            while(running && queue.peek() == null && !hasRetry()){
+                                monitor.wait(PUBLISH_THREAD_MAX_WAIT);
+                            }
+                        }
+                    }
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    logger.warn("backend publishing thread interrupted;");
+                }
+                catch(Exception e){
+                    failures.incrementAndGet();
+                    logger.error("error publishing via queue publisher;", e);
+                }
+            } while(running && !stopped);
+        }
+
+        /**
+         * Take the retries which are due, then up to batchSize operations from the queue; when a linger is configured,
+         * wait up to that long for a partial batch to fill before returning it. Queued operations on a held topic are
+         * set aside behind its retry rather than published.
+         */
+        private void drain(List<BrokerPublishOperation> batch, int batchSize, long linger) throws InterruptedException {
+            int retries = takeRetries(batch, batchSize);
+            queue.drainTo(batch, batchSize - batch.size());
+            if(linger > 0 && !batch.isEmpty() && batch.size() < batchSize){
+                long deadline = System.currentTimeMillis() + linger;
+                long remaining;
+                while(batch.size() < batchSize &&
+                        (remaining = deadline - System.currentTimeMillis()) > 0){
+                    BrokerPublishOperation op = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if(op == null) break;
+                    batch.add(op);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            }
+            holdBehindRetries(batch, retries);
+        }
+
+        /**
+         * @return the number of retries added to the batch, at most one per held topic
+         */
+        private int takeRetries(List<BrokerPublishOperation> batch, int batchSize){
+            int taken = 0;
+            synchronized (held){
+                for (Map.Entry<String, Deque<BrokerPublishOperation>> entry : held.entrySet()){
+                    if(batch.size() >= batchSize) break;
+                    if(!retrying.containsKey(entry.getKey()) && !entry.getValue().isEmpty()){
+                        BrokerPublishOperation op = entry.getValue().poll();
+                        heldCount.decrementAndGet();
+                        retrying.put(entry.getKey(), op);
+                        batch.add(op);
+                        taken++;
+                    }
+                }
+            }
+            return taken;
+        }
+
+        private void holdBehindRetries(List<BrokerPublishOperation> batch, int from){
+            synchronized (held){
+                if(held.isEmpty()) return;
+                Iterator<BrokerPublishOperation> itr = batch.listIterator(from);
+                while(itr.hasNext()){
+                    BrokerPublishOperation op = itr.next();
+                    if(held.containsKey(op.getTopicPath().toString())){
+                        itr.remove();
+                        hold(op);
+                    }
+                }
+            }
+        }
+
+        private boolean hasRetry(){
+            synchronized (held){
+                for (Map.Entry<String, Deque<BrokerPublishOperation>> entry : held.entrySet()){
+                    if(!retrying.containsKey(entry.getKey()) && !entry.getValue().isEmpty()) return true;
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Hold the operation on its topic, in lane order (a publish already in flight when an earlier one failed may
+         * fail later still).
+         */
+        private void hold(BrokerPublishOperation op){
+            Deque<BrokerPublishOperation> deque = held.computeIfAbsent(op.getTopicPath().toString(), k -> new ArrayDeque<>());
+            if(deque.isEmpty() || deque.peekLast().getSequence() < op.getSequence()){
+                deque.addLast(op);
+            } else {
+                List<BrokerPublishOperation> ordered = new ArrayList<>(deque);
+                ordered.add(op);
+                ordered.sort(Comparator.comparingLong(BrokerPublishOperation::getSequence));
+                deque.clear();
+                deque.addAll(ordered);
+            }
+            heldCount.incrementAndGet();
+        }
+
+        /**
+         * A publish has been acknowledged or discarded; once the last operation held on its topic is resolved the
+         * topic is released, and an operation read from the durable queue is acknowledged there.
+         */
+        private void resolved(BrokerPublishOperation op){
+            MqttsnBackendDurableQueue durableQueue = MqttsnAggregatingGateway.this.durableQueue;
+            if(durableQueue != null && op.getDurableReceipt() != 0){
+                durableQueue.acknowledge(op.getDurableReceipt());
+            }
+            String topic = op.getTopicPath().toString();
+            boolean next = false;
+            synchronized (held){
+                if(retrying.remove(topic, op)){
+                    Deque<BrokerPublishOperation> deque = held.get(topic);
+                    if(deque == null || deque.isEmpty()) held.remove(topic);
+                    else next = true;
+                }
+            }
+            //-- the next operation held on the topic can now be published
+            if(next) poke();
+        }
+
+        private void publish(IMqttsnAsyncConnectorConnection connection, List<BrokerPublishOperation> batch){
+            long start = System.currentTimeMillis();
+            if(batch.size() == 1){
+                BrokerPublishOperation op = batch.get(0);
+                connection.publishAsync(op.getContext(), op.getTopicPath(), op.getQos(),
+                        op.isRetained(), op.getPayload(), op.getInitialMessage()).
+                        whenComplete((res, t) -> {
+                            boolean failed = failed(op, res, t);
+                            if(!failed) succeeded(1);
+                            measured(start, failed ? 1 : 0);
+                        });
+            } else {
+                List<CompletableFuture<PublishResult>> futures = connection.publishBatchAsync(batch);
+                CompletableFuture<?>[] all = futures.toArray(new CompletableFuture<?>[0]);
+                CompletableFuture.allOf(all).whenComplete((v, e) -> {
+                    int success = 0;
+                    for (int i = 0; i < batch.size(); i++){
+                        CompletableFuture<PublishResult> future = futures.get(i);
+                        PublishResult res = null;
+                        Throwable t = null;
+                        try {
+                            res = future.join();
+                        } catch(CompletionException ex){
+                            t = ex.getCause();
+                        } catch(CancellationException ex){
+                            t = ex;
+                        }
+                        if(failed(batch.get(i), res, t)) continue;
+                        success++;
+                    }
+                    succeeded(success);
+                    measured(start, batch.size() - success);
+                });
+            }
+        }
+
+        /**
+         * Called once the broker has acknowledged (or failed) a publish, on the calling thread for blocking connections
+         * and on the client callback thread for asynchronous ones.
+         */
+        private boolean failed(BrokerPublishOperation op, PublishResult res, Throwable t){
+            if(t != null || res.isError()){
+                if(op.incrementRetries() < MAX_ERROR_RETRIES){
+                    logger.warn("error sending message to backend, {} - hold for retry", size(), t);
+                    //-- with an adaptive rate, publish errors slow the lane down rather than putting it to sleep
+                    if(rateController == null) failures.incrementAndGet();
+                    synchronized (held){
+                        retrying.remove(op.getTopicPath().toString(), op);
+                        hold(op);
+                    }
+                    poke();
+                }
+                else {
+                    logger.warn("error sending message to backend, retries exhausted - discard");
+                    getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_ERROR).increment(1);
+                    resolved(op);
+                }
+                return true;
+            }
+            resolved(op);
+            return false;
+        }
+
+        private void succeeded(int count){
+            if(count > 0){
+                failures.set(0);
+                getRegistry().getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH).increment(count);
+            }
+        }
+
+        private void measured(long start, int errors){
+            MqttsnAdaptiveRateController rateController = this.rateController;
+            if(rateController != null){
+                rateController.complete(errors, System.currentTimeMillis() - start);
+            }
+        }
+
+        private IMqttsnAsyncConnectorConnection getAsyncConnection() throws MqttsnConnectorException {
+            IMqttsnConnectorConnection connection = getConnection();
+            if(connection == null) return null;
+            if(adapted == null || adaptedFor != connection){
+                adapted = MqttsnBlockingConnectorAdapter.adapt(connection);
+                adaptedFor = connection;
+            }
+            return adapted;
+        }
     }
 }
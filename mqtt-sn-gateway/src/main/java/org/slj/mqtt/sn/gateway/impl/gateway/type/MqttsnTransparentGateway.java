@@ -24,56 +24,537 @@
 
 package org.slj.mqtt.sn.gateway.impl.gateway.type;
 
-import org.slj.mqtt.sn.cloud.MqttsnConnectorDescriptor;
+import org.slj.mqtt.sn.MqttsnConstants;
+import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendConnection;
 import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendService;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnBlockingConnectorAdapter;
+import org.slj.mqtt.sn.gateway.spi.*;
+import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnAsyncConnectorConnection;
 import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnConnectorConnection;
 import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
-import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.impl.metrics.IMqttsnMetrics;
+import org.slj.mqtt.sn.impl.metrics.MqttsnSnapshotMetric;
 import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.MqttsnClientState;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.spi.IMqttsnMessage;
+import org.slj.mqtt.sn.spi.IMqttsnRuntimeRegistry;
 import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
- * TODO finish ME
+ * Transparent mode - each device is given its own broker connection, so the broker sees (and can apply its ACLs to)
+ * every device individually. Connections are pooled by context; they are established lazily on a small, fixed set
+ * of threads when a device first needs one, and evicted when the device's session expires, or once it has been asleep
+ * or disconnected for longer than the idle timeout. When the pool is full the least recently used idle connection
+ * is evicted to make room.
+ *
+ * Operations are queued against the device's connection and run in order once it is established. Connects and
+ * subscribes wait (up to the response timeout) for the broker's answer on that connection, so a broker refusing the
+ * device (for example by its ACLs) reaches the device, along with the QoS the broker granted. Publishes and
+ * unsubscribes do not block the calling thread; their results are optimistic and failures are reported in the log
+ * and metrics.
  */
 public class MqttsnTransparentGateway extends AbstractMqttsnBackendService {
 
+    private final Map<IMqttsnContext, PooledConnection> pool = new ConcurrentHashMap<>();
+    private volatile ExecutorService executor;
+    private volatile boolean metricsLoaded = false;
+
+    public MqttsnTransparentGateway(){
+    }
+
+    @Override
+    public void start(IMqttsnRuntimeRegistry runtime) throws MqttsnException {
+        if(!running){
+            super.start(runtime);
+            int threads = Math.max(1, ((MqttsnGatewayOptions) runtime.getOptions()).getTransparentConnectThreadCount());
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "mqtt-sn-transparent-connect-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            if(registry.getMetrics() != null && !metricsLoaded){
+                registerConnectorMetrics();
+                registry.getMetrics().registerMetric(new MqttsnSnapshotMetric(GatewayMetrics.BACKEND_CONNECTOR_POOL_SIZE,
+                        "The number of broker connections held open on behalf of devices.",
+                        IMqttsnMetrics.DEFAULT_MAX_SAMPLES, IMqttsnMetrics.DEFAULT_SAMPLES_TIME_MILLIS, () -> pool.size()));
+                metricsLoaded = true;
+            }
+        }
+    }
+
+    @Override
+    public void stop() throws MqttsnException {
+        if(running){
+            super.stop();
+            try {
+                closeAll();
+            } finally {
+                ExecutorService executor = this.executor;
+                if(executor != null){
+                    executor.shutdown();
+                    try {
+                        executor.awaitTermination(5, TimeUnit.SECONDS);
+                    } catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public ConnectResult connect(IMqttsnContext context, IMqttsnMessage message) throws MqttsnConnectorException {
+        PooledConnection pooled = acquire(context);
+        if(pooled == null){
+            return new ConnectResult(Result.STATUS.ERROR,
+                    MqttsnConstants.RETURN_CODE_REJECTED_CONGESTION, "broker connection pool exhausted");
+        }
+        ConnectResult result = await(context, "connect", request(pooled, c -> c.connectAsync(context, message)),
+                (code, reason) -> new ConnectResult(Result.STATUS.ERROR, code, reason));
+        if(result.isError() && pool.remove(context, pooled)){
+            //-- the device is refused, so it has no use for the connection
+            pooled.close();
+        }
+        return result;
+    }
+
+    @Override
+    public DisconnectResult disconnect(IMqttsnContext context, IMqttsnMessage message) throws MqttsnConnectorException {
+        //-- a device going to sleep keeps its connection so it can wake without a broker round trip
+        long duration = message == null ? 0 : getRegistry().getCodec().getDuration(message);
+        if(duration == 0){
+            evict(context);
+        }
+        return new DisconnectResult(Result.STATUS.SUCCESS);
+    }
+
+    @Override
+    public PublishResult publish(IMqttsnContext context, TopicPath topic, int qos, boolean retained, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
+        PooledConnection pooled = acquire(context);
+        if(pooled == null){
+            return new PublishResult(Result.STATUS.ERROR,
+                    MqttsnConstants.RETURN_CODE_REJECTED_CONGESTION, "broker connection pool exhausted");
+        }
+        byte[] encoded = encodePayload(topic, payload);
+        pooled.submit(c -> c.publishAsync(context, topic, qos, retained, encoded, message).whenComplete((r, t) -> {
+            if(t != null || r.isError()){
+                logger.warn("{} broker publish to {} failed; {}", context, topic, t != null ? t.getMessage() : r.getMessage());
+                if(registry.getMetrics() != null){
+                    registry.getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH_ERROR).increment(1);
+                }
+            } else if(registry.getMetrics() != null){
+                registry.getMetrics().getMetric(GatewayMetrics.BACKEND_CONNECTOR_PUBLISH).increment(1);
+            }
+        }));
+        return new PublishResult(Result.STATUS.SUCCESS, "queued for publish");
+    }
+
     @Override
-    public boolean initializeConnector(MqttsnConnectorDescriptor descriptor, MqttsnConnectorOptions options) throws MqttsnException {
+    public SubscribeResult subscribe(IMqttsnContext context, TopicPath topic, IMqttsnMessage message) throws MqttsnConnectorException {
+        PooledConnection pooled = acquire(context);
+        if(pooled == null){
+            return new SubscribeResult(Result.STATUS.ERROR,
+                    MqttsnConstants.RETURN_CODE_REJECTED_CONGESTION, "broker connection pool exhausted");
+        }
+        return await(context, "subscribe to " + topic, request(pooled, c -> c.subscribeAsync(context, topic, message)),
+                (code, reason) -> new SubscribeResult(Result.STATUS.ERROR, code, reason));
+    }
+
+    @Override
+    public UnsubscribeResult unsubscribe(IMqttsnContext context, TopicPath topic, IMqttsnMessage message) throws MqttsnConnectorException {
+        PooledConnection pooled = acquire(context);
+        if(pooled == null){
+            return new UnsubscribeResult(Result.STATUS.ERROR,
+                    MqttsnConstants.RETURN_CODE_REJECTED_CONGESTION, "broker connection pool exhausted");
+        }
+        pooled.submit(c -> c.unsubscribeAsync(context, topic, message).whenComplete((r, t) -> {
+            if(t != null || r.isError()){
+                logger.warn("{} broker unsubscribe from {} failed; {}", context, topic, t != null ? t.getMessage() : r.getMessage());
+            }
+        }));
+        return new UnsubscribeResult(Result.STATUS.SUCCESS);
+    }
+
+    /**
+     * Queue the call against the device's connection, the future completes with the connection's result, or
+     * exceptionally if the operation is dropped because the connection could not be established or was evicted.
+     */
+    protected <T extends Result> CompletableFuture<T> request(PooledConnection pooled,
+                              Function<IMqttsnAsyncConnectorConnection, CompletableFuture<T>> call){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        pooled.submit(new Operation() {
+            @Override
+            public void run(IMqttsnAsyncConnectorConnection connection) {
+                try {
+                    call.apply(connection).whenComplete((r, t) -> {
+                        if(t != null) future.completeExceptionally(t);
+                        else future.complete(r);
+                    });
+                } catch(RuntimeException e){
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void dropped() {
+                future.completeExceptionally(
+                        new MqttsnConnectorException("broker connection unavailable for " + pooled.context));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Wait up to the response timeout for the broker's answer; no answer, or a failure, yields an error result
+     * created by the factory given
+     */
+    protected <T extends Result> T await(IMqttsnContext context, String operation, CompletableFuture<T> future,
+                                         BiFunction<Integer, String, T> error){
+        int timeout = ((MqttsnGatewayOptions) registry.getOptions()).getTransparentResponseTimeout();
+        String reason;
+        try {
+            T result = future.get(timeout, TimeUnit.MILLISECONDS);
+            if(result.isError()){
+                logger.warn("{} broker {} refused; {}", context, operation, result.getMessage());
+            }
+            return result;
+        } catch(TimeoutException e){
+            reason = "broker did not answer within " + timeout + "ms";
+        } catch(ExecutionException e){
+            reason = e.getCause() == null ? e.getMessage() : e.getCause().getMessage();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            reason = "interrupted waiting for broker";
+        }
+        logger.warn("{} broker {} failed; {}", context, operation, reason);
+        return error.apply(MqttsnConstants.RETURN_CODE_SERVER_UNAVAILABLE, reason);
+    }
+
+    /**
+     * Return the device's pooled connection, creating (and starting to establish) one if needed. If the pool is
+     * full the least recently used connection belonging to a device that is not currently active is evicted; if
+     * there is none, NULL is returned.
+     */
+    protected PooledConnection acquire(IMqttsnContext context) throws MqttsnConnectorException {
+        if(!running || executor == null){
+            throw new MqttsnConnectorException("transparent backend is not running");
+        }
+        PooledConnection pooled = pool.get(context);
+        if(pooled != null && !pooled.failed){
+            pooled.touch();
+            return pooled;
+        }
+        if(pooled != null){
+            pool.remove(context, pooled);
+        }
+        int max = ((MqttsnGatewayOptions) registry.getOptions()).getTransparentMaxBrokerConnections();
+        if(pool.size() >= max && !evictLeastRecentlyUsed()){
+            logger.warn("{} unable to acquire broker connection, pool at capacity {}", context, max);
+            return null;
+        }
+        PooledConnection created = new PooledConnection(context);
+        pooled = pool.putIfAbsent(context, created);
+        if(pooled == null){
+            pooled = created;
+            executor.execute(() -> establish(created));
+        }
+        return pooled;
+    }
+
+    protected void establish(PooledConnection pooled) {
+        try {
+            IMqttsnConnectorConnection connection =
+                    getRegistry().getConnector().createConnection(pooled.context.getId());
+            if(connection instanceof AbstractMqttsnBackendConnection){
+                ((AbstractMqttsnBackendConnection) connection).setBrokerService(this);
+                ((AbstractMqttsnBackendConnection) connection).setContext(pooled.context);
+            }
+            logger.info("{} established broker connection, pool size {}", pooled.context, pool.size());
+            pooled.ready(MqttsnBlockingConnectorAdapter.adapt(connection));
+        } catch(Exception e){
+            logger.error("{} unable to establish broker connection;", pooled.context, e);
+            pooled.ready(null);
+            pool.remove(pooled.context, pooled);
+        }
+    }
+
+    protected boolean evictLeastRecentlyUsed() {
+        PooledConnection oldest = null;
+        for (PooledConnection pooled : pool.values()){
+            if(!isActive(pooled.context) &&
+                    (oldest == null || pooled.lastUsed < oldest.lastUsed)){
+                oldest = pooled;
+            }
+        }
+        if(oldest != null && pool.remove(oldest.context, oldest)){
+            logger.info("{} evicting least recently used broker connection", oldest.context);
+            oldest.close();
+            return true;
+        }
         return false;
     }
 
+    protected void evict(IMqttsnContext context) {
+        PooledConnection pooled = pool.remove(context);
+        if(pooled != null){
+            logger.info("{} evicting broker connection", context);
+            pooled.close();
+        }
+    }
+
+    protected boolean isActive(IMqttsnContext context) {
+        try {
+            IMqttsnSession session = registry.getSessionRegistry().getSession(context, false);
+            if(session == null) return false;
+            MqttsnClientState state = session.getClientState();
+            return state == MqttsnClientState.ACTIVE || state == MqttsnClientState.AWAKE;
+        } catch(MqttsnException e){
+            return false;
+        }
+    }
+
     @Override
     protected long doWork() {
-        return 0;
+        long idleTimeout = TimeUnit.SECONDS.toMillis(
+                ((MqttsnGatewayOptions) registry.getOptions()).getTransparentIdleTimeout());
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> itr = pool.values().iterator();
+        while(itr.hasNext()){
+            PooledConnection pooled = itr.next();
+            try {
+                IMqttsnSession session = registry.getSessionRegistry().getSession(pooled.context, false);
+                boolean expired = session == null;
+                boolean idle = !expired && !isActive(pooled.context) && now - pooled.lastUsed > idleTimeout;
+                if(expired || idle){
+                    logger.info("{} evicting {} broker connection", pooled.context, expired ? "expired" : "idle");
+                    itr.remove();
+                    pooled.close();
+                }
+            } catch(MqttsnException e){
+                logger.warn("error checking broker connection for {};", pooled.context, e);
+            }
+        }
+        return 1000;
     }
 
     @Override
     protected String getDaemonName() {
-        return null;
+        return "gateway-backend-transparent-connector";
     }
 
     @Override
     protected void close(IMqttsnConnectorConnection connection) throws MqttsnConnectorException {
-
+        if(connection != null && connection.isConnected()){
+            connection.close();
+        }
     }
 
     @Override
     protected IMqttsnConnectorConnection getConnectionInternal(IMqttsnContext context) throws MqttsnConnectorException {
-        return null;
+        PooledConnection pooled = pool.get(context);
+        IMqttsnAsyncConnectorConnection connection = pooled == null ? null : pooled.connection;
+        if(connection == null){
+            throw new MqttsnConnectorException("no broker connection established for " + context);
+        }
+        return connection;
     }
 
     @Override
     public boolean isConnected(IMqttsnContext context) throws MqttsnConnectorException {
-        return false;
+        if(context == null){
+            return running;
+        }
+        PooledConnection pooled = pool.get(context);
+        IMqttsnAsyncConnectorConnection connection = pooled == null ? null : pooled.connection;
+        return connection != null && connection.isConnected();
     }
 
     @Override
     public void reinit() throws MqttsnConnectorException {
-
+        closeAll();
     }
 
     @Override
     public void pokeQueue() throws MqttsnConnectorException {
+        //-- nothing is queued locally, operations are dispatched to the per device connections
+    }
+
+    @Override
+    public int getQueuedCount() {
+        int size = 0;
+        for (PooledConnection pooled : pool.values()){
+            size += pooled.pendingCount();
+        }
+        return size;
+    }
+
+    public int getPoolSize() {
+        return pool.size();
+    }
+
+    protected void closeAll() {
+        Iterator<PooledConnection> itr = pool.values().iterator();
+        while(itr.hasNext()){
+            PooledConnection pooled = itr.next();
+            itr.remove();
+            pooled.close();
+        }
+    }
+
+    /**
+     * A device's broker connection. Operations submitted before the connection is established are held and then
+     * run in order; operations are always run on the connect executor so a blocking connector never stalls the caller.
+     */
+    protected class PooledConnection {
+
+        private final IMqttsnContext context;
+        private final Queue<Operation> pending = new ArrayDeque<>();
+        private volatile IMqttsnAsyncConnectorConnection connection;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean failed = false;
+        private boolean established = false;
+        private boolean draining = false;
+        private boolean closed = false;
+
+        PooledConnection(IMqttsnContext context){
+            this.context = context;
+        }
+
+        void touch(){
+            lastUsed = System.currentTimeMillis();
+        }
+
+        synchronized int pendingCount(){
+            return pending.size();
+        }
+
+        void submit(Operation operation){
+            touch();
+            synchronized (this){
+                if(!closed && !failed){
+                    pending.add(operation);
+                    operation = null;
+                }
+            }
+            if(operation != null){
+                logger.warn("{} broker connection unavailable, dropping operation", context);
+                operation.dropped();
+                return;
+            }
+            schedule();
+        }
+
+        void ready(IMqttsnAsyncConnectorConnection connection){
+            List<Operation> dropped = new ArrayList<>();
+            synchronized (this){
+                established = true;
+                if(connection == null){
+                    failed = true;
+                    dropped.addAll(pending);
+                    pending.clear();
+                } else {
+                    this.connection = connection;
+                    if(closed){
+                        //-- evicted while connecting
+                        dropped.addAll(pending);
+                        pending.clear();
+                        pending.add(c -> closeQuietly());
+                    }
+                }
+            }
+            if(!dropped.isEmpty()){
+                logger.warn("{} dropping {} operations, broker connection {}", context, dropped.size(),
+                        connection == null ? "failed" : "evicted");
+                for (Operation operation : dropped){
+                    operation.dropped();
+                }
+            }
+            schedule();
+        }
+
+        void close(){
+            synchronized (this){
+                if(closed) return;
+                closed = true;
+                if(!established) return;
+                pending.add(c -> closeQuietly());
+            }
+            schedule();
+        }
+
+        private void schedule(){
+            synchronized (this){
+                if(!established || failed || draining || pending.isEmpty()) return;
+                draining = true;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch(Exception e){
+                //-- executor shut down, run inline so the connection is still closed
+                drain();
+            }
+        }
+
+        private void drain(){
+            while(true){
+                Operation operation;
+                synchronized (this){
+                    operation = pending.poll();
+                    if(operation == null){
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    operation.run(connection);
+                } catch(Exception e){
+                    logger.warn("{} error dispatching operation to broker connection;", context, e);
+                }
+            }
+        }
+
+        private void closeQuietly(){
+            try {
+                MqttsnTransparentGateway.this.close(connection);
+            } catch(Exception e){
+                logger.warn("{} error closing broker connection;", context, e);
+            }
+        }
+    }
+
+    /**
+     * Work to be run against a device's broker connection once it is established
+     */
+    @FunctionalInterface
+    protected interface Operation {
+
+        void run(IMqttsnAsyncConnectorConnection connection);
 
+        /**
+         * Called instead of run when the operation is discarded because the connection failed or was evicted
+         */
+        default void dropped(){
+        }
     }
 }
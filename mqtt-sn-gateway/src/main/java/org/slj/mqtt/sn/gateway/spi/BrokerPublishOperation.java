@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.spi;
+
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.spi.IMqttsnMessage;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+/**
+ * A publish destined for the broker, as queued by the backend and handed to a connection (singly or in batches).
+ */
+public class BrokerPublishOperation {
+
+    private final IMqttsnContext context;
+    private final TopicPath topicPath;
+    private final int qos;
+    private final boolean retained;
+    private final byte[] payload;
+    private final IMqttsnMessage initialMessage;
+    private int retries;
+    private long sequence;
+    private long durableReceipt;
+
+    public BrokerPublishOperation(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained,
+                                  byte[] payload, IMqttsnMessage initialMessage) {
+        this.context = context;
+        this.topicPath = topicPath;
+        this.qos = qos;
+        this.retained = retained;
+        this.payload = payload;
+        this.initialMessage = initialMessage;
+    }
+
+    public IMqttsnContext getContext() {
+        return context;
+    }
+
+    public TopicPath getTopicPath() {
+        return topicPath;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    public boolean isRetained() {
+        return retained;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public IMqttsnMessage getInitialMessage() {
+        return initialMessage;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public int incrementRetries() {
+        return ++retries;
+    }
+
+    /**
+     * @return the position of the operation in its publisher lane, assigned as it is queued so an operation which is
+     * held back for a retry can be put back in order
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the receipt the durable queue drained the operation under, to be acknowledged once the operation is
+     * resolved; 0 when the operation was not read from the durable queue
+     */
+    public long getDurableReceipt() {
+        return durableReceipt;
+    }
+
+    public void setDurableReceipt(long durableReceipt) {
+        this.durableReceipt = durableReceipt;
+    }
+
+    @Override
+    public String toString() {
+        return "BrokerPublishOperation{" +
+                "topicPath=" + topicPath +
+                ", qos=" + qos +
+                ", retained=" + retained +
+                ", size=" + (payload == null ? "<null>" : payload.length) +
+                ", retries=" + retries +
+                '}';
+    }
+}
@@ -30,7 +30,15 @@ public interface GatewayMetrics {
     String BACKEND_CONNECTOR_PUBLISH_ERROR = "BACKEND_CONNECTOR_PUBLISH_ERROR";
     String BACKEND_CONNECTOR_PUBLISH_RECEIVE = "BACKEND_CONNECTOR_PUBLISH_RECEIVE";
     String BACKEND_CONNECTOR_PUBLISH_QUEUE_SIZE = "BACKEND_CONNECTOR_PUBLISH_QUEUE_SIZE";
+    String BACKEND_CONNECTOR_PUBLISH_RATE = "BACKEND_CONNECTOR_PUBLISH_RATE";
     String BACKEND_CONNECTOR_EXPANSION = "BACKEND_CONNECTOR_EXPANSION";
+    String BACKEND_DURABLE_QUEUE_SIZE = "BACKEND_DURABLE_QUEUE_SIZE";
+    String BACKEND_CONNECTOR_POOL_SIZE = "BACKEND_CONNECTOR_POOL_SIZE";
+    String BACKEND_UPSTREAM_SUBSCRIPTIONS = "BACKEND_UPSTREAM_SUBSCRIPTIONS";
+    String BACKEND_PAYLOAD_BYTES = "BACKEND_PAYLOAD_BYTES";
+    String BACKEND_PAYLOAD_BYTES_ENCODED = "BACKEND_PAYLOAD_BYTES_ENCODED";
+    String GATEWAY_RETAINED_STORE_SIZE = "GATEWAY_RETAINED_STORE_SIZE";
+    String GATEWAY_RETAINED_REPLAY = "GATEWAY_RETAINED_REPLAY";
 
 
 }
@@ -30,6 +30,7 @@ public class SubscribeResult extends Result {
 
     private TopicInfo topicInfo;
     private int grantedQoS;
+    private boolean grantedQoSKnown;
 
     public SubscribeResult(STATUS status, int returnCode, String message) {
         super(status);
@@ -45,17 +46,27 @@ public class SubscribeResult extends Result {
         super(STATUS.SUCCESS);
         this.topicInfo = info;
         this.grantedQoS = grantedQoS;
+        this.grantedQoSKnown = true;
     }
 
     public SubscribeResult(int grantedQoS) {
         super(STATUS.SUCCESS);
         this.grantedQoS = grantedQoS;
+        this.grantedQoSKnown = true;
     }
 
     public int getGrantedQoS() {
         return grantedQoS;
     }
 
+    /**
+     * @return true when a granted QoS has been supplied (for example by the broker), false when the result
+     * carries the default of 0 only because nobody reported one
+     */
+    public boolean hasGrantedQoS() {
+        return grantedQoSKnown;
+    }
+
     @Override
     public String toString() {
         return "SubscribeResult{" +
@@ -69,6 +80,7 @@ public class SubscribeResult extends Result {
 
     public void setGrantedQoS(int grantedQoS) {
         this.grantedQoS = grantedQoS;
+        this.grantedQoSKnown = true;
     }
 
     public TopicInfo getTopicInfo() {
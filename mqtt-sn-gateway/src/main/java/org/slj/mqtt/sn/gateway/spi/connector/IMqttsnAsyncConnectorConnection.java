@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.spi.connector;
+
+import org.slj.mqtt.sn.gateway.spi.BrokerPublishOperation;
+import org.slj.mqtt.sn.gateway.spi.ConnectResult;
+import org.slj.mqtt.sn.gateway.spi.PublishResult;
+import org.slj.mqtt.sn.gateway.spi.SubscribeResult;
+import org.slj.mqtt.sn.gateway.spi.UnsubscribeResult;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.spi.IMqttsnMessage;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A connection whose operations return as soon as they are handed to the broker client, with the result of the
+ * operation delivered later through the future. This allows the backend to pipeline publishes rather than waiting
+ * for each broker acknowledgement in turn. Implementations bound the number of operations awaiting acknowledgement
+ * (the inflight window); once the window is full, further calls block until an acknowledgement frees a slot.
+ *
+ * Connections which only support the blocking API can be used wherever this API is expected by way of the
+ * {@link org.slj.mqtt.sn.gateway.impl.backend.MqttsnBlockingConnectorAdapter}.
+ */
+public interface IMqttsnAsyncConnectorConnection extends IMqttsnConnectorConnection {
+
+    CompletableFuture<ConnectResult> connectAsync(IMqttsnContext context, IMqttsnMessage message);
+
+    CompletableFuture<SubscribeResult> subscribeAsync(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message);
+
+    CompletableFuture<UnsubscribeResult> unsubscribeAsync(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message);
+
+    CompletableFuture<PublishResult> publishAsync(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message);
+
+    /**
+     * Publish a batch of operations, returning one future per operation in the same order. By default each operation
+     * is published in turn using {@link #publishAsync}.
+     */
+    default List<CompletableFuture<PublishResult>> publishBatchAsync(List<BrokerPublishOperation> operations){
+        List<CompletableFuture<PublishResult>> results = new ArrayList<>(operations.size());
+        for (BrokerPublishOperation op : operations){
+            results.add(publishAsync(op.getContext(), op.getTopicPath(), op.getQos(),
+                    op.isRetained(), op.getPayload(), op.getInitialMessage()));
+        }
+        return results;
+    }
+
+    /**
+     * @return the maximum number of operations which may be awaiting acknowledgement from the broker at once
+     */
+    int getMaxInflight();
+}
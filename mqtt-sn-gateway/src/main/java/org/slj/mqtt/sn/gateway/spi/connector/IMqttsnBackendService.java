@@ -58,6 +58,8 @@ public interface IMqttsnBackendService extends IMqttsnService  {
 
     void receive(String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException;
 
+    void receive(IMqttsnContext context, String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException;
+
     void reinit() throws MqttsnConnectorException;
 
     int getQueuedCount();
@@ -24,12 +24,15 @@
 
 package org.slj.mqtt.sn.gateway.spi.connector;
 
+import org.slj.mqtt.sn.MqttsnConstants;
 import org.slj.mqtt.sn.gateway.spi.*;
 import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.spi.IMqttsnMessage;
 import org.slj.mqtt.sn.utils.TopicPath;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
 
 public interface IMqttsnConnectorConnection extends Closeable {
 
@@ -47,5 +50,48 @@ public interface IMqttsnConnectorConnection extends Closeable {
 
     PublishResult publish(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException;
 
+    /**
+     * Publish a batch of operations, returning one result per operation in the same order. Connections able to hand
+     * several messages to the broker in one go should override this; by default each operation is published in turn,
+     * an operation which fails yielding an error result rather than failing the rest of the batch.
+     */
+    default List<PublishResult> publishBatch(List<BrokerPublishOperation> operations) throws MqttsnConnectorException {
+        List<PublishResult> results = new ArrayList<>(operations.size());
+        for (BrokerPublishOperation op : operations){
+            try {
+                results.add(publish(op.getContext(), op.getTopicPath(), op.getQos(),
+                        op.isRetained(), op.getPayload(), op.getInitialMessage()));
+            } catch(MqttsnConnectorException e){
+                results.add(new PublishResult(Result.STATUS.ERROR, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Subscribe to a batch of topic filters at the maximum QoS, returning one result per filter in the same order.
+     * Connections able to carry several filters in a single SUBSCRIBE should override this; by default each filter is
+     * subscribed in turn, a filter which fails yielding an error result rather than failing the rest of the batch.
+     * Filters are subscribed on behalf of the gateway rather than a device, so subscribe is called with no context or
+     * message; implementations must then subscribe at the maximum QoS they support.
+     */
+    default List<SubscribeResult> subscribeBatch(List<TopicPath> topicPaths) throws MqttsnConnectorException {
+        List<SubscribeResult> results = new ArrayList<>(topicPaths.size());
+        for (TopicPath topicPath : topicPaths){
+            try {
+                results.add(subscribe(null, topicPath, null));
+            } catch(MqttsnConnectorException e){
+                results.add(new SubscribeResult(Result.STATUS.ERROR, MqttsnConstants.RETURN_CODE_SERVER_UNAVAILABLE, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param payload - the payload as it will be published, that is once encoded by any payload codec bound to the
+     *                gateway, so limits applied here (for example a broker's maximum message size) see what the
+     *                broker will receive
+     * @return true if the connection is able to publish the message
+     */
     boolean canAccept(IMqttsnContext context, TopicPath topicPath, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException;
 }
@@ -32,8 +32,10 @@ public class MqttsnConnectorOptions {
     public static final int DEFAULT_MQTT_TLS_PORT = 8883;
     public static final String DEFAULT_MQTT_PROTOCOL = "tcp";
     public static final String DEFAULT_MQTT_TLS_PROTOCOL = "ssl";
+    public static final int DEFAULT_MAX_INFLIGHT = 100;
     private int keepAlive = DEFAULT_KEEPALIVE;
     private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private int maxInflight = DEFAULT_MAX_INFLIGHT;
     private int port = DEFAULT_MQTT_PORT;
     private String protocol;
     private String username;
@@ -105,6 +107,11 @@ public class MqttsnConnectorOptions {
         return this;
     }
 
+    public MqttsnConnectorOptions withMaxInflight(int maxInflight){
+        this.maxInflight = maxInflight;
+        return this;
+    }
+
     public MqttsnConnectorOptions withHostName(String hostName){
         this.hostName = hostName;
         return this;
@@ -127,6 +134,10 @@ public class MqttsnConnectorOptions {
         return keepAlive;
     }
 
+    public int getMaxInflight() {
+        return maxInflight;
+    }
+
     public int getConnectionTimeout() {
         return connectionTimeout;
     }
@@ -175,6 +186,7 @@ public class MqttsnConnectorOptions {
                 ", password='" + password + '\'' +
                 ", keepAlive=" + keepAlive +
                 ", connectionTimeout=" + connectionTimeout +
+                ", maxInflight=" + maxInflight +
                 ", hostName='" + hostName + '\'' +
                 ", port=" + port +
                 ", protocol='" + protocol + '\'' +
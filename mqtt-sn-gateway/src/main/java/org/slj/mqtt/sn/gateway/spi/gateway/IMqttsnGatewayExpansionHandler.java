@@ -24,6 +24,7 @@
 
 package org.slj.mqtt.sn.gateway.spi.gateway;
 
+import org.slj.mqtt.sn.model.IMqttsnContext;
 import org.slj.mqtt.sn.spi.IMqttsnService;
 import org.slj.mqtt.sn.spi.MqttsnException;
 import org.slj.mqtt.sn.spi.MqttsnService;
@@ -32,4 +33,10 @@ import org.slj.mqtt.sn.spi.MqttsnService;
 public interface IMqttsnGatewayExpansionHandler extends IMqttsnService {
 
     void receiveToSessions(String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException ;
+
+    /**
+     * Queue a message received on a broker connection held for a single device (transparent mode) to that device's
+     * session only; the broker has already matched it against the device's own subscriptions.
+     */
+    void receiveToSession(IMqttsnContext context, String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException ;
 }
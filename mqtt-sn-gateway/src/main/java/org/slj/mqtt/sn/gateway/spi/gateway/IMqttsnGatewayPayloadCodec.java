@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.spi.gateway;
+
+import org.slj.mqtt.sn.spi.IMqttsnService;
+
+/**
+ * When bound in, transforms application payloads on the way to and from the backend; payloads published by devices are
+ * encoded (for example compressed) before they are handed to the backend, and payloads received from the backend are
+ * decoded before they are expanded into device sessions.
+ */
+public interface IMqttsnGatewayPayloadCodec extends IMqttsnService {
+
+    /**
+     * @return the payload to publish to the backend on the topic, which is the payload supplied where no transform applies
+     */
+    byte[] encode(String topicPath, byte[] payload);
+
+    /**
+     * @return the payload to deliver to devices, which is the payload supplied where it was not encoded by this codec
+     */
+    byte[] decode(String topicPath, byte[] payload);
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.spi.gateway;
+
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.spi.IMqttsnService;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+import java.util.List;
+
+/**
+ * When bound in, holds the last retained message published to each topic (from either the backend or a device) so the
+ * gateway can replay retained messages to new subscriptions locally, without a round trip to the broker.
+ */
+public interface IMqttsnGatewayRetainedStore extends IMqttsnService {
+
+    /**
+     * Retain the message against its topic, replacing any message previously retained there. Per the MQTT specification
+     * a retained message with an empty payload clears the topic.
+     */
+    void retain(String topicPath, int qos, byte[] payload) throws MqttsnException;
+
+    /**
+     * @return the retained messages held against every topic matched by the (possibly wildcard) filter supplied
+     */
+    List<PublishData> search(String topicFilter) throws MqttsnException;
+
+    int size();
+
+    void clear();
+}
@@ -42,6 +42,10 @@ public interface IMqttsnGatewayRuntimeRegistry extends IMqttsnRuntimeRegistry {
 
     IMqttsnGatewayExpansionHandler getExpansionHandler();
 
+    IMqttsnGatewayRetainedStore getRetainedStore();
+
+    IMqttsnGatewayPayloadCodec getPayloadCodec();
+
     IMqttsnGatewayRuntimeRegistry withConnector(IMqttsnConnector connector);
 
 }
@@ -26,6 +26,8 @@ package org.slj.mqtt.sn.gateway.spi.gateway;
 
 import org.slj.mqtt.sn.model.MqttsnOptions;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 public final class MqttsnGatewayOptions extends MqttsnOptions {
@@ -56,10 +58,187 @@ public final class MqttsnGatewayOptions extends MqttsnOptions {
      */
     public static final int DEFAULT_MAX_BACKEND_QUEUE_SIZE = 10000;
 
+    /**
+     * When enabled, session queues are backed by a single shared log, so a message expanded to many sessions is
+     * held once with a cursor per session (session queues are then held in memory only, without overflow to disk)
+     */
+    public static final boolean DEFAULT_SHARED_LOG_MESSAGE_QUEUE = false;
+
+    /**
+     * The maximum number of topics against which the gateway will hold a retained message locally
+     */
+    public static final int DEFAULT_MAX_RETAINED_MESSAGES = 10000;
+
+    /**
+     * The number of workers used to expand a message received from the backend to a large recipient set,
+     * by default one per available processor (1 expands on the receiving thread only)
+     */
+    public static final int DEFAULT_EXPANSION_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Recipient sets of at least this size are split across the expansion workers, smaller sets are expanded
+     * on the receiving thread
+     */
+    public static final int DEFAULT_EXPANSION_PARALLEL_THRESHOLD = 1000;
+
+    /**
+     * The number of publisher lanes (each with its own broker connection) used by the aggregating gateway to
+     * publish to the backend, messages are partitioned across lanes by topic so per-topic order is preserved
+     */
+    public static final int DEFAULT_BACKEND_PUBLISH_LANES = 1;
+
+    /**
+     * The maximum number of queued publishes a publisher lane hands to its broker connection in a single batch
+     */
+    public static final int DEFAULT_BACKEND_PUBLISH_BATCH_SIZE = 100;
+
+    /**
+     * How long (in milliseconds) a publisher lane waits for a partial batch to fill before sending it, 0 sends
+     * whatever is queued immediately
+     */
+    public static final long DEFAULT_BACKEND_PUBLISH_BATCH_LINGER_MILLIS = 0;
+
+    /**
+     * The maximum number of topic filters carried in a single subscribe to the backend, when subscribing a new
+     * aggregated connection to the existing subscriptions
+     */
+    public static final int DEFAULT_BACKEND_SUBSCRIBE_BATCH_SIZE = 100;
+
+    /**
+     * When enabled, publishes which cannot be queued in memory (the backend queue is full or the broker is
+     * unreachable) are appended to a durable disk queue and drained to the broker once the connection is healthy
+     */
+    public static final boolean DEFAULT_BACKEND_DURABLE_QUEUE = false;
+
+    /**
+     * The size (in bytes) at which the durable backend queue rolls onto a new segment file
+     */
+    public static final long DEFAULT_BACKEND_DURABLE_QUEUE_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The maximum size (in bytes) the durable backend queue may grow to before publishes are refused
+     */
+    public static final long DEFAULT_BACKEND_DURABLE_QUEUE_MAX_SIZE = 512 * 1024 * 1024;
+
+    /**
+     * The number of publishes per second moved from the durable backend queue to the broker once the connection
+     * is healthy again
+     */
+    public static final int DEFAULT_BACKEND_DURABLE_QUEUE_DRAIN_RATE = 500;
+
+    /**
+     * When enabled, each publisher lane adapts its publish rate to the broker, raising it additively while
+     * acknowledgements are timely and cutting it multiplicatively on errors or slow acknowledgements
+     */
+    public static final boolean DEFAULT_BACKEND_ADAPTIVE_RATE = false;
+
+    /**
+     * The floor (publishes per second) below which the adaptive rate of each publisher lane is never cut
+     */
+    public static final double DEFAULT_BACKEND_ADAPTIVE_RATE_MIN = 10d;
+
+    /**
+     * The ceiling (publishes per second) for the adaptive rate, further capped by any static broker rate limit.
+     * The ceiling applies across all publisher lanes, each lane adapting up to an even share of it
+     */
+    public static final double DEFAULT_BACKEND_ADAPTIVE_RATE_MAX = 10000d;
+
+    /**
+     * The number of publishes per second the adaptive rate is raised by after each healthy second
+     */
+    public static final double DEFAULT_BACKEND_ADAPTIVE_RATE_INCREASE = 50d;
+
+    /**
+     * The factor the adaptive rate is multiplied by when the broker reports errors or slows down
+     */
+    public static final double DEFAULT_BACKEND_ADAPTIVE_RATE_DECREASE = 0.5d;
+
+    /**
+     * Broker acknowledgements slower than this (in milliseconds) are treated as congestion by the adaptive rate
+     */
+    public static final long DEFAULT_BACKEND_ADAPTIVE_LATENCY_TARGET = 500;
+
+    /**
+     * In transparent mode, the maximum number of broker connections (one per device) held open at once
+     */
+    public static final int DEFAULT_TRANSPARENT_MAX_BROKER_CONNECTIONS = 1000;
+
+    /**
+     * In transparent mode, the time (in seconds) a sleeping or disconnected device's broker connection is kept
+     * open after its last use
+     */
+    public static final int DEFAULT_TRANSPARENT_IDLE_TIMEOUT = 60;
+
+    /**
+     * In transparent mode, the number of threads used to establish broker connections in the background
+     */
+    public static final int DEFAULT_TRANSPARENT_CONNECT_THREAD_COUNT = 2;
+
+    /**
+     * In transparent mode, the time (in milliseconds) a device's connect or subscribe waits for the broker to answer
+     * on the device's own connection (including establishing that connection) before it is failed
+     */
+    public static final int DEFAULT_TRANSPARENT_RESPONSE_TIMEOUT = 10000;
+
+    /**
+     * The port on which the embedded broker (loopback connector) accepts MQTT 3.1.1 connections from local
+     * applications, 0 disables the listener
+     */
+    public static final int DEFAULT_EMBEDDED_BROKER_PORT = 0;
+
+    /**
+     * By default the embedded broker listener only accepts connections from the local host
+     */
+    public static final String DEFAULT_EMBEDDED_BROKER_BIND_ADDRESS = "127.0.0.1";
+
+    /**
+     * The maximum number of MQTT connections the embedded broker listener will accept at once
+     */
+    public static final int DEFAULT_EMBEDDED_BROKER_MAX_CONNECTIONS = 100;
+
+    /**
+     * The number of messages which may be waiting to be written to an MQTT connection of the embedded broker,
+     * beyond which further messages to that connection are dropped
+     */
+    public static final int DEFAULT_EMBEDDED_BROKER_MAX_QUEUED = 1000;
+
+    /**
+     * The deflate level (1 fastest - 9 smallest) used where a payload compression rule applies
+     */
+    public static final int DEFAULT_PAYLOAD_COMPRESSION_LEVEL = 6;
+
     private int maxConnectedClients = DEFAULT_MAX_CONNECTED_CLIENTS;
     private double maxBrokerPublishesPerSecond = DEFAULT_MAX_BROKER_PUBLISHES_PER_SECOND;
 
     private int maxBackendQueueSize = DEFAULT_MAX_BACKEND_QUEUE_SIZE;
+    private int maxRetainedMessages = DEFAULT_MAX_RETAINED_MESSAGES;
+    private boolean sharedLogMessageQueue = DEFAULT_SHARED_LOG_MESSAGE_QUEUE;
+    private int expansionParallelism = DEFAULT_EXPANSION_PARALLELISM;
+    private int expansionParallelThreshold = DEFAULT_EXPANSION_PARALLEL_THRESHOLD;
+    private int backendPublishLanes = DEFAULT_BACKEND_PUBLISH_LANES;
+    private int backendPublishBatchSize = DEFAULT_BACKEND_PUBLISH_BATCH_SIZE;
+    private long backendPublishBatchLingerMillis = DEFAULT_BACKEND_PUBLISH_BATCH_LINGER_MILLIS;
+    private int backendSubscribeBatchSize = DEFAULT_BACKEND_SUBSCRIBE_BATCH_SIZE;
+    private boolean backendDurableQueue = DEFAULT_BACKEND_DURABLE_QUEUE;
+    private long backendDurableQueueSegmentSize = DEFAULT_BACKEND_DURABLE_QUEUE_SEGMENT_SIZE;
+    private long backendDurableQueueMaxSize = DEFAULT_BACKEND_DURABLE_QUEUE_MAX_SIZE;
+    private int backendDurableQueueDrainRate = DEFAULT_BACKEND_DURABLE_QUEUE_DRAIN_RATE;
+    private boolean backendAdaptiveRate = DEFAULT_BACKEND_ADAPTIVE_RATE;
+    private double backendAdaptiveRateMin = DEFAULT_BACKEND_ADAPTIVE_RATE_MIN;
+    private double backendAdaptiveRateMax = DEFAULT_BACKEND_ADAPTIVE_RATE_MAX;
+    private double backendAdaptiveRateIncrease = DEFAULT_BACKEND_ADAPTIVE_RATE_INCREASE;
+    private double backendAdaptiveRateDecrease = DEFAULT_BACKEND_ADAPTIVE_RATE_DECREASE;
+    private long backendAdaptiveLatencyTarget = DEFAULT_BACKEND_ADAPTIVE_LATENCY_TARGET;
+    private int transparentMaxBrokerConnections = DEFAULT_TRANSPARENT_MAX_BROKER_CONNECTIONS;
+    private int transparentIdleTimeout = DEFAULT_TRANSPARENT_IDLE_TIMEOUT;
+    private int transparentConnectThreadCount = DEFAULT_TRANSPARENT_CONNECT_THREAD_COUNT;
+    private int transparentResponseTimeout = DEFAULT_TRANSPARENT_RESPONSE_TIMEOUT;
+    private int embeddedBrokerPort = DEFAULT_EMBEDDED_BROKER_PORT;
+    private String embeddedBrokerBindAddress = DEFAULT_EMBEDDED_BROKER_BIND_ADDRESS;
+    private int embeddedBrokerMaxConnections = DEFAULT_EMBEDDED_BROKER_MAX_CONNECTIONS;
+    private int embeddedBrokerMaxQueued = DEFAULT_EMBEDDED_BROKER_MAX_QUEUED;
+    private int payloadCompressionLevel = DEFAULT_PAYLOAD_COMPRESSION_LEVEL;
+    private List<MqttsnPayloadCompressionRule> payloadCompressionRules = new ArrayList<>();
 
     private int gatewayAdvertiseTime = DEFAULT_GATEWAY_ADVERTISE_TIME;
     private int gatewayId = DEFAULT_GATEWAY_ID;
@@ -108,6 +287,118 @@ public final class MqttsnGatewayOptions extends MqttsnOptions {
         return maxBackendQueueSize;
     }
 
+    public int getMaxRetainedMessages() {
+        return maxRetainedMessages;
+    }
+
+    public boolean isSharedLogMessageQueue() {
+        return sharedLogMessageQueue;
+    }
+
+    public int getExpansionParallelism() {
+        return expansionParallelism;
+    }
+
+    public int getExpansionParallelThreshold() {
+        return expansionParallelThreshold;
+    }
+
+    public int getBackendPublishLanes() {
+        return backendPublishLanes;
+    }
+
+    public int getBackendPublishBatchSize() {
+        return backendPublishBatchSize;
+    }
+
+    public long getBackendPublishBatchLingerMillis() {
+        return backendPublishBatchLingerMillis;
+    }
+
+    public int getBackendSubscribeBatchSize() {
+        return backendSubscribeBatchSize;
+    }
+
+    public boolean isBackendDurableQueue() {
+        return backendDurableQueue;
+    }
+
+    public long getBackendDurableQueueSegmentSize() {
+        return backendDurableQueueSegmentSize;
+    }
+
+    public long getBackendDurableQueueMaxSize() {
+        return backendDurableQueueMaxSize;
+    }
+
+    public int getBackendDurableQueueDrainRate() {
+        return backendDurableQueueDrainRate;
+    }
+
+    public boolean isBackendAdaptiveRate() {
+        return backendAdaptiveRate;
+    }
+
+    public double getBackendAdaptiveRateMin() {
+        return backendAdaptiveRateMin;
+    }
+
+    public double getBackendAdaptiveRateMax() {
+        return backendAdaptiveRateMax;
+    }
+
+    public double getBackendAdaptiveRateIncrease() {
+        return backendAdaptiveRateIncrease;
+    }
+
+    public double getBackendAdaptiveRateDecrease() {
+        return backendAdaptiveRateDecrease;
+    }
+
+    public long getBackendAdaptiveLatencyTarget() {
+        return backendAdaptiveLatencyTarget;
+    }
+
+    public int getTransparentMaxBrokerConnections() {
+        return transparentMaxBrokerConnections;
+    }
+
+    public int getTransparentIdleTimeout() {
+        return transparentIdleTimeout;
+    }
+
+    public int getTransparentConnectThreadCount() {
+        return transparentConnectThreadCount;
+    }
+
+    public int getTransparentResponseTimeout() {
+        return transparentResponseTimeout;
+    }
+
+    public int getEmbeddedBrokerPort() {
+        return embeddedBrokerPort;
+    }
+
+    public String getEmbeddedBrokerBindAddress() {
+        return embeddedBrokerBindAddress;
+    }
+
+    public int getEmbeddedBrokerMaxConnections() {
+        return embeddedBrokerMaxConnections;
+    }
+
+    public int getEmbeddedBrokerMaxQueued() {
+        return embeddedBrokerMaxQueued;
+    }
+
+    public int getPayloadCompressionLevel() {
+        return payloadCompressionLevel;
+    }
+
+    public List<MqttsnPayloadCompressionRule> getPayloadCompressionRules() {
+        return payloadCompressionRules;
+    }
+
     public MqttsnGatewayOptions withAllowedClientId(String clientId){
         super.getClientCredentials().addAllowedClientId(clientId, clientId);
         return this;
@@ -118,6 +409,150 @@ public final class MqttsnGatewayOptions extends MqttsnOptions {
         return this;
     }
 
+    public MqttsnGatewayOptions withMaxRetainedMessages(int maxRetainedMessages){
+        this.maxRetainedMessages = maxRetainedMessages;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withSharedLogMessageQueue(boolean sharedLogMessageQueue){
+        this.sharedLogMessageQueue = sharedLogMessageQueue;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withExpansionParallelism(int expansionParallelism){
+        this.expansionParallelism = expansionParallelism;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withExpansionParallelThreshold(int expansionParallelThreshold){
+        this.expansionParallelThreshold = expansionParallelThreshold;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendPublishLanes(int backendPublishLanes){
+        this.backendPublishLanes = backendPublishLanes;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendPublishBatchSize(int backendPublishBatchSize){
+        this.backendPublishBatchSize = backendPublishBatchSize;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendPublishBatchLingerMillis(long backendPublishBatchLingerMillis){
+        this.backendPublishBatchLingerMillis = backendPublishBatchLingerMillis;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendSubscribeBatchSize(int backendSubscribeBatchSize){
+        this.backendSubscribeBatchSize = backendSubscribeBatchSize;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendDurableQueue(boolean backendDurableQueue){
+        this.backendDurableQueue = backendDurableQueue;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendDurableQueueSegmentSize(long backendDurableQueueSegmentSize){
+        this.backendDurableQueueSegmentSize = backendDurableQueueSegmentSize;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendDurableQueueMaxSize(long backendDurableQueueMaxSize){
+        this.backendDurableQueueMaxSize = backendDurableQueueMaxSize;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendDurableQueueDrainRate(int backendDurableQueueDrainRate){
+        this.backendDurableQueueDrainRate = backendDurableQueueDrainRate;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendAdaptiveRate(boolean backendAdaptiveRate){
+        this.backendAdaptiveRate = backendAdaptiveRate;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendAdaptiveRateMin(double backendAdaptiveRateMin){
+        this.backendAdaptiveRateMin = backendAdaptiveRateMin;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendAdaptiveRateMax(double backendAdaptiveRateMax){
+        this.backendAdaptiveRateMax = backendAdaptiveRateMax;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendAdaptiveRateIncrease(double backendAdaptiveRateIncrease){
+        this.backendAdaptiveRateIncrease = backendAdaptiveRateIncrease;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendAdaptiveRateDecrease(double backendAdaptiveRateDecrease){
+        this.backendAdaptiveRateDecrease = backendAdaptiveRateDecrease;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withBackendAdaptiveLatencyTarget(long backendAdaptiveLatencyTarget){
+        this.backendAdaptiveLatencyTarget = backendAdaptiveLatencyTarget;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withTransparentMaxBrokerConnections(int transparentMaxBrokerConnections){
+        this.transparentMaxBrokerConnections = transparentMaxBrokerConnections;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withTransparentIdleTimeout(int transparentIdleTimeout){
+        this.transparentIdleTimeout = transparentIdleTimeout;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withTransparentConnectThreadCount(int transparentConnectThreadCount){
+        this.transparentConnectThreadCount = transparentConnectThreadCount;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withTransparentResponseTimeout(int transparentResponseTimeout){
+        this.transparentResponseTimeout = transparentResponseTimeout;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withEmbeddedBrokerPort(int embeddedBrokerPort){
+        this.embeddedBrokerPort = embeddedBrokerPort;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withEmbeddedBrokerBindAddress(String embeddedBrokerBindAddress){
+        this.embeddedBrokerBindAddress = embeddedBrokerBindAddress;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withEmbeddedBrokerMaxConnections(int embeddedBrokerMaxConnections){
+        this.embeddedBrokerMaxConnections = embeddedBrokerMaxConnections;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withEmbeddedBrokerMaxQueued(int embeddedBrokerMaxQueued){
+        this.embeddedBrokerMaxQueued = embeddedBrokerMaxQueued;
+        return this;
+    }
+
+    public MqttsnGatewayOptions withPayloadCompressionLevel(int payloadCompressionLevel){
+        this.payloadCompressionLevel = payloadCompressionLevel;
+        return this;
+    }
+
+    /**
+     * Add a rule describing how payloads published on matching topics are compressed; where more than one rule
+     * matches a topic, the rule added first applies.
+     */
+    public MqttsnGatewayOptions withPayloadCompressionRule(MqttsnPayloadCompressionRule rule){
+        payloadCompressionRules.add(rule);
+        return this;
+    }
+
     public void withPerformanceProfile(MqttsnGatewayPerformanceProfile profile){
         withMaxConnectedClients(profile.getMaxConnectedClients());
         withMaxMessagesInQueue(profile.getMaxSessionQueueSize());
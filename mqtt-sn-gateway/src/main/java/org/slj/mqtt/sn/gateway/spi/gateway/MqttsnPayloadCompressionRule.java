@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.spi.gateway;
+
+/**
+ * Describes how payloads published on topics matching a filter are compressed before they are sent to the backend.
+ * Payloads smaller than the minimum size are sent as they are, since the compressed form would save little or nothing.
+ */
+public class MqttsnPayloadCompressionRule {
+
+    public enum Compression {
+        /** payloads are sent as they are */
+        NONE,
+        /** payloads are deflated (zlib format) */
+        DEFLATE,
+        /** payloads are deflated (zlib format) against a preset dictionary trained on typical payloads */
+        DEFLATE_DICTIONARY
+    }
+
+    private final String topicFilter;
+    private final Compression compression;
+    private final int minimumSize;
+    private final byte[] dictionary;
+
+    public MqttsnPayloadCompressionRule(String topicFilter, Compression compression, int minimumSize) {
+        this(topicFilter, compression, minimumSize, null);
+    }
+
+    public MqttsnPayloadCompressionRule(String topicFilter, Compression compression, int minimumSize, byte[] dictionary) {
+        if(topicFilter == null || compression == null){
+            throw new IllegalArgumentException("topic filter and compression must be supplied");
+        }
+        if(compression == Compression.DEFLATE_DICTIONARY && (dictionary == null || dictionary.length == 0)){
+            throw new IllegalArgumentException("dictionary compression requires a dictionary");
+        }
+        this.topicFilter = topicFilter;
+        this.compression = compression;
+        this.minimumSize = minimumSize;
+        this.dictionary = dictionary;
+    }
+
+    public String getTopicFilter() {
+        return topicFilter;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getMinimumSize() {
+        return minimumSize;
+    }
+
+    public byte[] getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public String toString() {
+        return "MqttsnPayloadCompressionRule{" +
+                "topicFilter='" + topicFilter + '\'' +
+                ", compression=" + compression +
+                ", minimumSize=" + minimumSize +
+                ", dictionary=" + (dictionary == null ? 0 : dictionary.length) +
+                '}';
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test;
+
+import org.slj.mqtt.sn.codec.MqttsnCodecs;
+import org.slj.mqtt.sn.gateway.impl.MqttsnGateway;
+import org.slj.mqtt.sn.gateway.impl.MqttsnGatewayRuntimeRegistry;
+import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnBackendService;
+import org.slj.mqtt.sn.gateway.spi.connector.IMqttsnConnector;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRuntimeRegistry;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.impl.MqttsnFilesystemStorageService;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.net.NetworkAddress;
+import org.slj.mqtt.sn.utils.TopicPath;
+import org.slj.mqtt.sn.spi.IMqttsnObjectReaderWriter;
+import org.slj.mqtt.sn.spi.IMqttsnStorageService;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.function.BooleanSupplier;
+
+public class MqttsnGatewayTestRuntime extends MqttsnGateway {
+
+    public static NetworkAddress TEST_ADDRESS = NetworkAddress.localhost(10001);
+
+    /**
+     * @return storage rooted in a new temporary directory, so tests neither share a workspace nor depend on the
+     * working directory
+     */
+    public static IMqttsnStorageService createTemporaryStorageService() throws IOException {
+        return createStorageService(Files.createTempDirectory("mqtt-sn-gateway-test").toFile());
+    }
+
+    /**
+     * @return storage rooted in the directory given, so a restarted gateway can find what an earlier one left behind
+     */
+    public static IMqttsnStorageService createStorageService(File root) {
+        //-- the storage service expects its default folder to exist beneath the root
+        new File(root, IMqttsnStorageService.DEFAULT_FOLDER_NAME).mkdirs();
+        return new MqttsnFilesystemStorageService(IMqttsnObjectReaderWriter.DEFAULT, root, "test");
+    }
+
+    public static MqttsnGatewayTestRuntime start(MqttsnGatewayOptions options, IMqttsnConnector connector,
+                                                 IMqttsnBackendService backendService) throws MqttsnException, IOException {
+        return start(createTemporaryStorageService(), options, connector, backendService);
+    }
+
+    public static MqttsnGatewayTestRuntime start(IMqttsnStorageService storageService, MqttsnGatewayOptions options,
+                                                 IMqttsnConnector connector, IMqttsnBackendService backendService) throws MqttsnException {
+        return start(MqttsnGatewayRuntimeRegistry.defaultConfiguration(storageService, options), connector, backendService);
+    }
+
+    /**
+     * Start a gateway on a registry the test has already configured, for example with services replaced
+     */
+    public static MqttsnGatewayTestRuntime start(MqttsnGatewayRuntimeRegistry registry, IMqttsnConnector connector,
+                                                 IMqttsnBackendService backendService) throws MqttsnException {
+        registry.withConnector(connector);
+        registry.withBackendService(backendService);
+        registry.withCodec(MqttsnCodecs.MQTTSN_CODEC_VERSION_1_2);
+        MqttsnGatewayTestRuntime runtime = new MqttsnGatewayTestRuntime();
+        runtime.start(registry);
+        return runtime;
+    }
+
+    /**
+     * Wait (up to the timeout) for a condition met on another thread
+     * @return the final value of the condition
+     */
+    public static boolean await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(!condition.getAsBoolean()){
+            if(System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    public IMqttsnGatewayRuntimeRegistry getGatewayRegistry(){
+        return (IMqttsnGatewayRuntimeRegistry) getRegistry();
+    }
+
+    public IMqttsnSession createSession(String clientId) throws MqttsnException {
+        IMqttsnContext context = getRegistry().getContextFactory().createInitialApplicationContext(
+                getRegistry().getContextFactory().createInitialNetworkContext(TEST_ADDRESS), clientId, 1);
+        return getRegistry().getSessionRegistry().getSession(context, true);
+    }
+
+    /**
+     * Hand the gateway a publish as though it had been confirmed from the device, notifying the received listeners
+     */
+    public void receiveFromDevice(IMqttsnContext context, String topicPath, int qos, boolean retained, byte[] data){
+        messageReceived(context, new TopicPath(topicPath), qos, retained, data, null);
+    }
+}
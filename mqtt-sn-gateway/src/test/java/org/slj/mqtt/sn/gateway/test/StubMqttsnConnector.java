@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test;
+
+import org.slj.mqtt.sn.MqttsnConstants;
+import org.slj.mqtt.sn.cloud.MqttsnConnectorDescriptor;
+import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendConnection;
+import org.slj.mqtt.sn.gateway.impl.connector.AbstractMqttsnConnector;
+import org.slj.mqtt.sn.gateway.spi.BrokerPublishOperation;
+import org.slj.mqtt.sn.gateway.spi.PublishResult;
+import org.slj.mqtt.sn.gateway.spi.Result;
+import org.slj.mqtt.sn.gateway.spi.SubscribeResult;
+import org.slj.mqtt.sn.gateway.spi.UnsubscribeResult;
+import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
+import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.spi.IMqttsnMessage;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records what the gateway asks of the broker, with no broker behind it. Publishes and subscribes to chosen
+ * topics can be made to fail, connections for chosen clients can be refused or held, and every connection can be
+ * marked disconnected.
+ */
+public class StubMqttsnConnector extends AbstractMqttsnConnector<StubMqttsnConnector.StubConnection> {
+
+    public static final MqttsnConnectorDescriptor DESCRIPTOR = new MqttsnConnectorDescriptor();
+    static {
+        DESCRIPTOR.setClassName(StubMqttsnConnector.class.getName());
+        DESCRIPTOR.setName("Stub Connector");
+    }
+
+    private final List<StubConnection> connections = new CopyOnWriteArrayList<>();
+    private final List<Publish> published = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> publishFailures = new ConcurrentHashMap<>();
+    private final List<Integer> batches = new CopyOnWriteArrayList<>();
+    private final AtomicInteger batchFailures = new AtomicInteger();
+    private volatile CountDownLatch paused;
+    private final Set<String> subscribeFailures = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> grantedQoS = new ConcurrentHashMap<>();
+    private final Set<String> refusedConnections = ConcurrentHashMap.newKeySet();
+    private volatile CountDownLatch connectionsPaused;
+    private volatile boolean connected = true;
+    private volatile int maxPayloadSize = Integer.MAX_VALUE;
+
+    public StubMqttsnConnector() {
+        super(DESCRIPTOR, new MqttsnConnectorOptions());
+    }
+
+    @Override
+    public StubConnection createConnection(MqttsnConnectorOptions options, String clientId) throws MqttsnConnectorException {
+        CountDownLatch paused = connectionsPaused;
+        if(paused != null){
+            try {
+                paused.await();
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new MqttsnConnectorException(e);
+            }
+        }
+        if(clientId != null && refusedConnections.contains(clientId)){
+            throw new MqttsnConnectorException("broker refused connection for " + clientId);
+        }
+        StubConnection connection = new StubConnection(clientId);
+        connections.add(connection);
+        return connection;
+    }
+
+    @Override
+    public String getConnectionString() {
+        return "stub";
+    }
+
+    /**
+     * Fail the next publishes to the topic
+     * @param count - the number of publishes to fail, Integer.MAX_VALUE to fail them all
+     */
+    public void failPublishes(String topicPath, int count){
+        publishFailures.put(topicPath, new AtomicInteger(count));
+    }
+
+    /**
+     * Fail the next batch publishes outright, as a connection error rather than a result per publish
+     */
+    public void failBatches(int count){
+        batchFailures.set(count);
+    }
+
+    /**
+     * Hold every publish (once it has been counted as an attempt) until resumed
+     */
+    public void pausePublishes(){
+        paused = new CountDownLatch(1);
+    }
+
+    public void resumePublishes(){
+        CountDownLatch paused = this.paused;
+        this.paused = null;
+        if(paused != null) paused.countDown();
+    }
+
+    /**
+     * @return the size of each batch handed to publishBatch, in order
+     */
+    public List<Integer> getBatches(){
+        return batches;
+    }
+
+    /**
+     * Refuse (by canAccept) publishes whose payload is larger than the size given
+     */
+    public void setMaxPayloadSize(int maxPayloadSize){
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    public void failSubscribes(String topicFilter){
+        subscribeFailures.add(topicFilter);
+    }
+
+    /**
+     * Answer subscribes to the filter with the QoS given, as a broker downgrading the subscription would
+     */
+    public void grantQoS(String topicFilter, int QoS){
+        grantedQoS.put(topicFilter, QoS);
+    }
+
+    /**
+     * Refuse to create connections for the client id, as a broker rejecting its credentials would
+     */
+    public void refuseConnections(String clientId){
+        refusedConnections.add(clientId);
+    }
+
+    /**
+     * Hold the creation of connections until resumed
+     */
+    public void pauseConnections(){
+        connectionsPaused = new CountDownLatch(1);
+    }
+
+    public void resumeConnections(){
+        CountDownLatch paused = this.connectionsPaused;
+        this.connectionsPaused = null;
+        if(paused != null) paused.countDown();
+    }
+
+    /**
+     * Mark every connection (and those created from now on) connected or disconnected
+     */
+    public void setConnected(boolean connected){
+        this.connected = connected;
+        for (StubConnection connection : connections){
+            connection.connected = connected;
+        }
+    }
+
+    public List<StubConnection> getConnections(){
+        return connections;
+    }
+
+    public StubConnection getConnection(String clientId){
+        for (StubConnection connection : connections){
+            if(Objects.equals(connection.clientId, clientId)) return connection;
+        }
+        return null;
+    }
+
+    public List<Publish> getPublished(){
+        return published;
+    }
+
+    public List<Publish> getPublished(String topicPath){
+        List<Publish> matching = new ArrayList<>();
+        for (Publish publish : published){
+            if(publish.topicPath.equals(topicPath)) matching.add(publish);
+        }
+        return matching;
+    }
+
+    public int getAttempts(String topicPath){
+        AtomicInteger count = attempts.get(topicPath);
+        return count == null ? 0 : count.get();
+    }
+
+    public static class Publish {
+
+        public final String clientId;
+        public final String topicPath;
+        public final int qos;
+        public final boolean retained;
+        public final byte[] payload;
+
+        Publish(String clientId, String topicPath, int qos, boolean retained, byte[] payload) {
+            this.clientId = clientId;
+            this.topicPath = topicPath;
+            this.qos = qos;
+            this.retained = retained;
+            this.payload = payload;
+        }
+    }
+
+    public class StubConnection extends AbstractMqttsnBackendConnection {
+
+        private final String clientId;
+        private final List<String> subscriptions = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> unsubscribes = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean connected = StubMqttsnConnector.this.connected;
+        private volatile boolean closed = false;
+
+        StubConnection(String clientId) {
+            this.clientId = clientId;
+        }
+
+        public String getClientId(){
+            return clientId;
+        }
+
+        public List<String> getSubscriptions(){
+            synchronized (subscriptions){
+                return new ArrayList<>(subscriptions);
+            }
+        }
+
+        public List<String> getUnsubscribes(){
+            synchronized (unsubscribes){
+                return new ArrayList<>(unsubscribes);
+            }
+        }
+
+        public boolean isClosed(){
+            return closed;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected && !closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean canAccept(IMqttsnContext context, TopicPath topicPath, byte[] payload, IMqttsnMessage message) {
+            return payload == null || payload.length <= maxPayloadSize;
+        }
+
+        @Override
+        public SubscribeResult subscribe(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) throws MqttsnConnectorException {
+            if(subscribeFailures.contains(topicPath.toString())){
+                return new SubscribeResult(Result.STATUS.ERROR, MqttsnConstants.RETURN_CODE_SERVER_UNAVAILABLE, "subscribe failure requested");
+            }
+            subscriptions.add(topicPath.toString());
+            Integer QoS = grantedQoS.get(topicPath.toString());
+            return QoS == null ? new SubscribeResult(Result.STATUS.SUCCESS) : new SubscribeResult(QoS);
+        }
+
+        @Override
+        public UnsubscribeResult unsubscribe(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) throws MqttsnConnectorException {
+            unsubscribes.add(topicPath.toString());
+            subscriptions.remove(topicPath.toString());
+            return new UnsubscribeResult(Result.STATUS.SUCCESS);
+        }
+
+        @Override
+        public PublishResult publish(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained, byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
+            String topic = topicPath.toString();
+            attempts.computeIfAbsent(topic, k -> new AtomicInteger()).incrementAndGet();
+            CountDownLatch paused = StubMqttsnConnector.this.paused;
+            if(paused != null){
+                try {
+                    paused.await();
+                } catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new MqttsnConnectorException(e);
+                }
+            }
+            AtomicInteger failures = publishFailures.get(topic);
+            if(failures != null && failures.getAndDecrement() > 0){
+                return new PublishResult(Result.STATUS.ERROR, "publish failure requested");
+            }
+            published.add(new Publish(clientId, topic, qos, retained, payload));
+            return new PublishResult(Result.STATUS.SUCCESS);
+        }
+
+        @Override
+        public List<PublishResult> publishBatch(List<BrokerPublishOperation> operations) throws MqttsnConnectorException {
+            batches.add(operations.size());
+            if(batchFailures.getAndDecrement() > 0){
+                throw new MqttsnConnectorException("batch failure requested");
+            }
+            //-- otherwise publish each in turn, as a connection without a native batch would
+            List<PublishResult> results = new ArrayList<>(operations.size());
+            for (BrokerPublishOperation op : operations){
+                results.add(publish(op.getContext(), op.getTopicPath(), op.getQos(),
+                        op.isRetained(), op.getPayload(), op.getInitialMessage()));
+            }
+            return results;
+        }
+    }
+}
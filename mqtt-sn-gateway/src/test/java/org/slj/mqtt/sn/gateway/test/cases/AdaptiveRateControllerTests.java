@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnAdaptiveRateController;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+import java.io.IOException;
+
+public class AdaptiveRateControllerTests {
+
+    //-- the controller adjusts the rate at most once per window of a second
+    private static final long WINDOW = 1000;
+    private static final double DELTA = 0.0001d;
+
+    private MqttsnGatewayTestRuntime runtime;
+
+    @After
+    public void tearDown() throws MqttsnException {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testRateStartsAtCeiling() {
+        MqttsnAdaptiveRateController controller = controller();
+        Assert.assertEquals(100d, controller.getRate(), DELTA);
+        Assert.assertEquals(100d, controller.getMaxRate(), DELTA);
+    }
+
+    @Test
+    public void testErrorCutsRateOncePerWindow() {
+        MqttsnAdaptiveRateController controller = controller();
+        long now = System.currentTimeMillis() + WINDOW;
+
+        controller.complete(1, 10, now);
+        Assert.assertEquals("an error should halve the rate", 50d, controller.getRate(), DELTA);
+
+        controller.complete(3, 10, now + WINDOW / 2);
+        Assert.assertEquals("further errors in the same window should not cut again", 50d, controller.getRate(), DELTA);
+
+        controller.complete(1, 10, now + WINDOW);
+        Assert.assertEquals("an error in the next window should cut again", 25d, controller.getRate(), DELTA);
+    }
+
+    @Test
+    public void testSlowAcknowledgementCutsRate() {
+        MqttsnAdaptiveRateController controller = controller();
+        long now = System.currentTimeMillis() + WINDOW;
+
+        controller.complete(0, 200, now);
+        Assert.assertEquals("an acknowledgement at the latency target is healthy", 100d, controller.getRate(), DELTA);
+
+        controller.complete(0, 201, now);
+        Assert.assertEquals("an acknowledgement slower than the target should halve the rate", 50d, controller.getRate(), DELTA);
+    }
+
+    @Test
+    public void testHealthyWindowsIncreaseRateAdditively() {
+        MqttsnAdaptiveRateController controller = controller();
+        long now = System.currentTimeMillis() + WINDOW;
+        controller.complete(1, 10, now);
+        Assert.assertEquals(50d, controller.getRate(), DELTA);
+
+        controller.complete(0, 10, now + WINDOW / 2);
+        Assert.assertEquals("the rate should not rise within the window", 50d, controller.getRate(), DELTA);
+
+        controller.complete(0, 10, now + WINDOW);
+        Assert.assertEquals(70d, controller.getRate(), DELTA);
+        controller.complete(0, 10, now + 2 * WINDOW);
+        Assert.assertEquals(90d, controller.getRate(), DELTA);
+    }
+
+    @Test
+    public void testRateClampedBetweenFloorAndCeiling() {
+        MqttsnAdaptiveRateController controller = controller();
+        long now = System.currentTimeMillis() + WINDOW;
+
+        for (int i = 0; i < 10; i++){
+            controller.complete(1, 10, now += WINDOW);
+        }
+        Assert.assertEquals("the rate should never be cut below the floor", 10d, controller.getRate(), DELTA);
+
+        for (int i = 0; i < 10; i++){
+            controller.complete(0, 10, now += WINDOW);
+        }
+        Assert.assertEquals("the rate should never rise above the ceiling", 100d, controller.getRate(), DELTA);
+    }
+
+    @Test
+    public void testLoweringCeilingLowersRate() {
+        MqttsnAdaptiveRateController controller = controller();
+        controller.setMaxRate(40);
+        Assert.assertEquals(40d, controller.getRate(), DELTA);
+        controller.setMaxRate(5);
+        Assert.assertEquals("the ceiling should never fall below the floor", 10d, controller.getMaxRate(), DELTA);
+    }
+
+    @Test
+    public void testCeilingIsSharedAcrossLanes() throws MqttsnException, IOException {
+        MqttsnAggregatingGateway gateway = new MqttsnAggregatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(new MqttsnGatewayOptions().
+                withBackendPublishLanes(4).withBackendAdaptiveRate(true).withBackendAdaptiveRateMax(1000),
+                new StubMqttsnConnector(), gateway);
+        Assert.assertEquals("each of the 4 lanes should start at a quarter of the ceiling",
+                1000, gateway.getAdaptiveRate());
+    }
+
+    @Test
+    public void testCeilingCappedByStaticLimit() throws MqttsnException, IOException {
+        MqttsnAggregatingGateway gateway = new MqttsnAggregatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(new MqttsnGatewayOptions().
+                withBackendPublishLanes(4).withBackendAdaptiveRate(true).withBackendAdaptiveRateMax(1000).
+                withMaxBrokerPublishesPerSecond(200), new StubMqttsnConnector(), gateway);
+        Assert.assertEquals("the lanes should share the static limit where it is lower", 200, gateway.getAdaptiveRate());
+    }
+
+    private static MqttsnAdaptiveRateController controller(){
+        return new MqttsnAdaptiveRateController("test", 10, 100, 20, 0.5, 200);
+    }
+}
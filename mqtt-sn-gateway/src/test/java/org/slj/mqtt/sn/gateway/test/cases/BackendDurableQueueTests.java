@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnBackendDurableQueue;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.BrokerPublishOperation;
+import org.slj.mqtt.sn.gateway.spi.PublishResult;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.MqttsnContext;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BackendDurableQueueTests {
+
+    private File dir;
+    private MqttsnGatewayTestRuntime runtime;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("mqtt-sn-durable-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testDrainReturnsAppendsInOrder() throws IOException {
+
+        //-- small segments so the queue rolls over several files
+        MqttsnBackendDurableQueue queue = new MqttsnBackendDurableQueue(dir, 1024, 1024 * 1024);
+        queue.open();
+        try {
+            for (int i = 0; i < 500; i++){
+                Assert.assertTrue(queue.append(operation("durable/" + (i % 3), i)));
+            }
+            Assert.assertEquals(500, queue.size());
+
+            List<BrokerPublishOperation> drained = new ArrayList<>();
+            List<BrokerPublishOperation> batch;
+            while(!(batch = queue.drain(70)).isEmpty()){
+                Assert.assertTrue(batch.size() <= 70);
+                drained.addAll(batch);
+            }
+            Assert.assertEquals(500, drained.size());
+            for (int i = 0; i < drained.size(); i++){
+                BrokerPublishOperation op = drained.get(i);
+                Assert.assertEquals("durable/" + (i % 3), op.getTopicPath().toString());
+                Assert.assertEquals("client-" + i, op.getContext().getId());
+                Assert.assertEquals(i % 3, op.getQos());
+                Assert.assertEquals(i % 2 == 0, op.isRetained());
+                Assert.assertEquals("payload-" + i, new String(op.getPayload()));
+            }
+            Assert.assertTrue(queue.isEmpty());
+            Assert.assertEquals(0, queue.getBytes());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testQueueRecoveredAfterRestart() throws IOException {
+
+        MqttsnBackendDurableQueue queue = new MqttsnBackendDurableQueue(dir, 1024, 1024 * 1024);
+        queue.open();
+        for (int i = 0; i < 100; i++){
+            queue.append(operation("recover", i));
+        }
+        List<BrokerPublishOperation> acknowledged = queue.drain(30);
+        Assert.assertEquals(30, acknowledged.size());
+        for (BrokerPublishOperation op : acknowledged){
+            queue.acknowledge(op.getDurableReceipt());
+        }
+        queue.close();
+
+        queue = new MqttsnBackendDurableQueue(dir, 1024, 1024 * 1024);
+        queue.open();
+        try {
+            Assert.assertEquals("acknowledged records should not be recovered", 70, queue.size());
+            List<BrokerPublishOperation> drained = queue.drain(100);
+            Assert.assertEquals(70, drained.size());
+            for (int i = 0; i < drained.size(); i++){
+                Assert.assertEquals("payload-" + (i + 30), new String(drained.get(i).getPayload()));
+            }
+            Assert.assertTrue("the queue should accept appends after recovery", queue.append(operation("recover", 100)));
+            Assert.assertEquals("payload-100", new String(queue.drain(1).get(0).getPayload()));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testUnacknowledgedRecordsRedelivered() throws IOException {
+
+        MqttsnBackendDurableQueue queue = new MqttsnBackendDurableQueue(dir, 1024, 1024 * 1024);
+        queue.open();
+        for (int i = 0; i < 10; i++){
+            queue.append(operation("redeliver", i));
+        }
+        List<BrokerPublishOperation> drained = queue.drain(10);
+        Assert.assertEquals(10, drained.size());
+        //-- the checkpoint stops at the first gap, whatever is acknowledged after it
+        for (int i : new int[] { 0, 1, 2, 4, 5 }){
+            queue.acknowledge(drained.get(i).getDurableReceipt());
+        }
+        Assert.assertEquals(5, queue.getUnacknowledged());
+        queue.close();
+
+        queue = new MqttsnBackendDurableQueue(dir, 1024, 1024 * 1024);
+        queue.open();
+        try {
+            Assert.assertEquals("records from the first unacknowledged should be recovered", 7, queue.size());
+            drained = queue.drain(10);
+            for (int i = 0; i < drained.size(); i++){
+                Assert.assertEquals("payload-" + (i + 3), new String(drained.get(i).getPayload()));
+            }
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testSegmentsDeletedOnceAcknowledged() throws IOException {
+
+        MqttsnBackendDurableQueue queue = new MqttsnBackendDurableQueue(dir, 1024, 1024 * 1024);
+        queue.open();
+        try {
+            for (int i = 0; i < 200; i++){
+                queue.append(operation("segments", i));
+            }
+            List<BrokerPublishOperation> drained = queue.drain(200);
+            Assert.assertEquals(200, drained.size());
+            queue.checkpoint();
+            Assert.assertTrue("drained segments should be kept until acknowledged", countSegments() > 1);
+
+            for (BrokerPublishOperation op : drained){
+                queue.acknowledge(op.getDurableReceipt());
+            }
+            queue.checkpoint();
+            Assert.assertEquals("only the tail segment should remain", 1, countSegments());
+            Assert.assertEquals(0, queue.getUnacknowledged());
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testAppendRefusedAtCapacity() throws IOException {
+
+        MqttsnBackendDurableQueue queue = new MqttsnBackendDurableQueue(dir, 1024, 256);
+        queue.open();
+        try {
+            int appended = 0;
+            while(queue.append(operation("capacity", appended))){
+                appended++;
+                Assert.assertTrue("the byte cap was never reached", appended < 256);
+            }
+            Assert.assertTrue(appended > 0);
+            Assert.assertEquals(appended, queue.size());
+            Assert.assertTrue(queue.getBytes() <= 256);
+
+            Assert.assertEquals(1, queue.drain(1).size());
+            Assert.assertTrue("space released by a drain should be reused", queue.append(operation("capacity", appended)));
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testLaterPublishesQueueBehindDurableBacklog() throws Exception {
+
+        StubMqttsnConnector connector = new StubMqttsnConnector();
+        MqttsnAggregatingGateway gateway = new FastValidatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(
+                new MqttsnGatewayOptions().withBackendDurableQueue(true), connector, gateway);
+        IMqttsnContext context = runtime.createSession("device").getContext();
+
+        connector.setConnected(false);
+        for (int i = 0; i < 5; i++){
+            PublishResult result = gateway.publish(context, new TopicPath("backlog"), 1, false, new byte[]{(byte) i}, null);
+            Assert.assertFalse("publish should be held on disk while the broker is unreachable", result.isError());
+        }
+        Assert.assertEquals(0, gateway.getQueuedCount());
+
+        //-- the broker is back but the backlog has not drained, so the next publish must not overtake it
+        connector.setConnected(true);
+        gateway.publish(context, new TopicPath("backlog"), 1, false, new byte[]{5}, null);
+
+        Assert.assertTrue("backlog should drain once the broker is reachable",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished("backlog").size() == 6, 10000));
+        List<StubMqttsnConnector.Publish> published = connector.getPublished("backlog");
+        for (int i = 0; i < published.size(); i++){
+            Assert.assertEquals("publishes should reach the broker in the order they were made", i, published.get(i).payload[0]);
+        }
+    }
+
+    @Test
+    public void testQueuedPublishesSurviveGatewayRestart() throws Exception {
+
+        File root = Files.createTempDirectory("mqtt-sn-gateway-test").toFile();
+        MqttsnGatewayOptions options = new MqttsnGatewayOptions().withBackendDurableQueue(true);
+        StubMqttsnConnector connector = new StubMqttsnConnector();
+        MqttsnAggregatingGateway gateway = new FastValidatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(MqttsnGatewayTestRuntime.createStorageService(root),
+                options, connector, gateway);
+        IMqttsnContext context = runtime.createSession("device").getContext();
+
+        connector.setConnected(false);
+        for (int i = 0; i < 10; i++){
+            gateway.publish(context, new TopicPath("restart"), 1, false, new byte[]{(byte) i}, null);
+        }
+        File workspace = runtime.getRegistry().getStorageService().getWorkspaceRoot();
+        runtime.stop();
+        //-- the workspace lock is only released when the process exits, as it would be by a real restart
+        new File(workspace, ".lck").delete();
+
+        StubMqttsnConnector restartedConnector = new StubMqttsnConnector();
+        runtime = MqttsnGatewayTestRuntime.start(MqttsnGatewayTestRuntime.createStorageService(root),
+                options, restartedConnector, new FastValidatingGateway());
+        Assert.assertTrue("publishes held on disk should be sent by the restarted gateway",
+                MqttsnGatewayTestRuntime.await(() -> restartedConnector.getPublished("restart").size() == 10, 10000));
+        Assert.assertTrue(connector.getPublished().isEmpty());
+    }
+
+    @Test
+    public void testUnacknowledgedPublishesSurviveGatewayRestart() throws Exception {
+
+        File root = Files.createTempDirectory("mqtt-sn-gateway-test").toFile();
+        MqttsnGatewayOptions options = new MqttsnGatewayOptions().withBackendDurableQueue(true);
+        StubMqttsnConnector connector = new StubMqttsnConnector();
+        MqttsnAggregatingGateway gateway = new FastValidatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(MqttsnGatewayTestRuntime.createStorageService(root),
+                options, connector, gateway);
+        IMqttsnContext context = runtime.createSession("device").getContext();
+
+        connector.setConnected(false);
+        for (int i = 0; i < 10; i++){
+            gateway.publish(context, new TopicPath("unacknowledged"), 1, false, new byte[]{(byte) i}, null);
+        }
+        //-- the backlog is drained to the publisher but the broker never acknowledges it
+        connector.pausePublishes();
+        connector.setConnected(true);
+        Assert.assertTrue(MqttsnGatewayTestRuntime.await(() -> connector.getAttempts("unacknowledged") > 0, 10000));
+        File workspace = runtime.getRegistry().getStorageService().getWorkspaceRoot();
+        runtime.stop();
+        connector.resumePublishes();
+        new File(workspace, ".lck").delete();
+
+        StubMqttsnConnector restartedConnector = new StubMqttsnConnector();
+        runtime = MqttsnGatewayTestRuntime.start(MqttsnGatewayTestRuntime.createStorageService(root),
+                options, restartedConnector, new FastValidatingGateway());
+        Assert.assertTrue("publishes drained but never acknowledged should be sent by the restarted gateway",
+                MqttsnGatewayTestRuntime.await(() -> restartedConnector.getPublished("unacknowledged").size() == 10, 10000));
+        List<StubMqttsnConnector.Publish> published = restartedConnector.getPublished("unacknowledged");
+        for (int i = 0; i < published.size(); i++){
+            Assert.assertEquals(i, published.get(i).payload[0]);
+        }
+    }
+
+    private int countSegments(){
+        File[] segments = dir.listFiles((d, name) -> name.startsWith("segment-"));
+        return segments == null ? 0 : segments.length;
+    }
+
+    private static BrokerPublishOperation operation(String topicPath, int index){
+        return new BrokerPublishOperation(new MqttsnContext("client-" + index), new TopicPath(topicPath),
+                index % 3, index % 2 == 0, ("payload-" + index).getBytes(), null);
+    }
+
+    /**
+     * Check the connection (and so drain the durable queue) every 100ms rather than every 10 seconds.
+     */
+    static class FastValidatingGateway extends MqttsnAggregatingGateway {
+
+        @Override
+        protected long doWork() {
+            return Math.min(super.doWork(), 100);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slj.mqtt.sn.gateway.impl.connector.LoopbackMqttsnConnector;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+public class EmbeddedBrokerTests {
+
+    private MqttsnGatewayTestRuntime runtime;
+    private MqttsnAggregatingGateway gateway;
+    private LoopbackMqttsnConnector connector;
+    private int port;
+
+    @Before
+    public void setup() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)){
+            port = socket.getLocalPort();
+        }
+        connector = new LoopbackMqttsnConnector(LoopbackMqttsnConnector.DESCRIPTOR, new MqttsnConnectorOptions());
+        gateway = new MqttsnAggregatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(new MqttsnGatewayOptions().
+                withEmbeddedBrokerPort(port).withEmbeddedBrokerBindAddress("127.0.0.1"), connector, gateway);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testListenerBound() {
+        Assert.assertEquals(port, connector.getBroker().getListenerPort());
+    }
+
+    @Test
+    public void testPublishSubscribeRoundTrip() throws Exception {
+
+        try (MqttClient subscriber = new MqttClient("subscriber");
+             MqttClient publisher = new MqttClient("publisher")){
+            Assert.assertEquals("granted QoS", 1, subscriber.subscribe("round/trip", 1));
+            publisher.publish("round/trip", 0, false, "hello");
+            Assert.assertEquals("round/trip:0:false:hello", subscriber.readPublish());
+
+            //-- the granted QoS caps delivery
+            publisher.publish("round/trip", 1, false, "again");
+            Assert.assertEquals("round/trip:1:false:again", subscriber.readPublish());
+        }
+    }
+
+    @Test
+    public void testDevicePublishReachesMqttClient() throws Exception {
+
+        IMqttsnSession session = runtime.createSession("device");
+        runtime.getRegistry().getSubscriptionRegistry().subscribe(session, "device/#", 1);
+        try (MqttClient client = new MqttClient("client")){
+            client.subscribe("device/#", 1);
+            gateway.publish(session.getContext(), new TopicPath("device/out"), 1, false,
+                    "from-device".getBytes(StandardCharsets.UTF_8), null);
+            Assert.assertEquals("device/out:1:false:from-device", client.readPublish());
+
+            client.publish("device/in", 0, false, "to-device");
+            Assert.assertTrue("a client publish should reach the subscribed device",
+                    MqttsnGatewayTestRuntime.await(() -> queueSize(session) == 2, 5000));
+        }
+    }
+
+    @Test
+    public void testWildcardDelivery() throws Exception {
+
+        try (MqttClient single = new MqttClient("single");
+             MqttClient multi = new MqttClient("multi");
+             MqttClient publisher = new MqttClient("publisher")){
+            single.subscribe("wild/+", 0);
+            multi.subscribe("wild/#", 0);
+
+            publisher.publish("wild/a/b", 0, false, "deep");
+            publisher.publish("wild/a", 0, false, "shallow");
+            publisher.publish("other/a", 0, false, "unmatched");
+
+            Assert.assertEquals("wild/a/b:0:false:deep", multi.readPublish());
+            Assert.assertEquals("wild/a:0:false:shallow", multi.readPublish());
+            Assert.assertEquals("a single level wildcard only matches one level",
+                    "wild/a:0:false:shallow", single.readPublish());
+            Assert.assertNull(single.readPublish(200));
+            Assert.assertNull(multi.readPublish(200));
+        }
+    }
+
+    @Test
+    public void testRetainedReplayedToNewSubscription() throws Exception {
+
+        try (MqttClient publisher = new MqttClient("publisher")){
+            publisher.publish("retained/a", 1, true, "kept");
+            publisher.publish("retained/b", 1, false, "not-kept");
+        }
+        Assert.assertTrue("the retained message should be stored",
+                MqttsnGatewayTestRuntime.await(() -> {
+                    try {
+                        return !runtime.getGatewayRegistry().getRetainedStore().search("retained/#").isEmpty();
+                    } catch(Exception e){
+                        return false;
+                    }
+                }, 5000));
+
+        try (MqttClient subscriber = new MqttClient("subscriber")){
+            subscriber.subscribe("retained/+", 1);
+            Assert.assertEquals("retained messages are replayed with the retain flag set",
+                    "retained/a:1:true:kept", subscriber.readPublish());
+            Assert.assertNull(subscriber.readPublish(200));
+        }
+    }
+
+    private long queueSize(IMqttsnSession session){
+        try {
+            return runtime.getRegistry().getMessageQueue().queueSize(session);
+        } catch(Exception e){
+            return -1;
+        }
+    }
+
+    /**
+     * Just enough MQTT 3.1.1 to connect, subscribe and exchange publishes with the embedded broker.
+     */
+    private class MqttClient implements AutoCloseable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private int packetId = 0;
+        private byte[] body;
+
+        MqttClient(String clientId) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(socket.getOutputStream());
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(packet);
+            writeString(data, "MQTT");
+            data.write(4);
+            data.write(0x02);
+            data.writeShort(30);
+            writeString(data, clientId);
+            send(0x10, packet.toByteArray());
+            Assert.assertEquals("CONNACK", 0x20, read());
+            Assert.assertEquals("connection accepted", 0, body[1]);
+        }
+
+        int subscribe(String topicFilter, int qos) throws IOException {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(packet);
+            data.writeShort(++packetId);
+            writeString(data, topicFilter);
+            data.write(qos);
+            send(0x82, packet.toByteArray());
+            Assert.assertEquals("SUBACK", 0x90, read());
+            return body[2];
+        }
+
+        void publish(String topicPath, int qos, boolean retained, String payload) throws IOException {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(packet);
+            writeString(data, topicPath);
+            if(qos > 0) data.writeShort(++packetId);
+            data.write(payload.getBytes(StandardCharsets.UTF_8));
+            send(0x30 | qos << 1 | (retained ? 1 : 0), packet.toByteArray());
+            if(qos > 0){
+                Assert.assertEquals("PUBACK", 0x40, read());
+            }
+        }
+
+        String readPublish() throws IOException {
+            return readPublish(5000);
+        }
+
+        /**
+         * @return the next publish as topic:qos:retained:payload (acknowledging it where needed), or null if none arrives in time
+         */
+        String readPublish(int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+            int header;
+            try {
+                header = read();
+            } catch(SocketTimeoutException e){
+                return null;
+            }
+            Assert.assertEquals("PUBLISH", 3, header >> 4);
+            int qos = (header >> 1) & 0x03;
+            int length = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+            String topicPath = new String(body, 2, length, StandardCharsets.UTF_8);
+            int offset = 2 + length;
+            if(qos > 0){
+                send(0x40, new byte[]{ body[offset], body[offset + 1] });
+                offset += 2;
+            }
+            return topicPath + ":" + qos + ":" + ((header & 0x01) != 0) + ":" +
+                    new String(body, offset, body.length - offset, StandardCharsets.UTF_8);
+        }
+
+        private void send(int header, byte[] packet) throws IOException {
+            out.write(header);
+            int length = packet.length;
+            do {
+                int encoded = length % 128;
+                length /= 128;
+                if(length > 0) encoded |= 0x80;
+                out.write(encoded);
+            } while(length > 0);
+            out.write(packet);
+            out.flush();
+        }
+
+        private int read() throws IOException {
+            int header = in.readUnsignedByte();
+            int length = 0, multiplier = 1, encoded;
+            do {
+                encoded = in.readUnsignedByte();
+                length += (encoded & 0x7F) * multiplier;
+                multiplier *= 128;
+            } while((encoded & 0x80) != 0);
+            body = new byte[length];
+            in.readFully(body);
+            return header;
+        }
+
+        private void writeString(DataOutputStream data, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            data.writeShort(bytes.length);
+            data.write(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            send(0xE0, new byte[0]);
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.gateway.impl.MqttsnGatewayRuntimeRegistry;
+import org.slj.mqtt.sn.gateway.impl.gateway.MqttsnGatewayExpansionHandler;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayExpansionHandler;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.impl.ram.MqttsnOffHeapMessageRegistry;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.IMqttsnDataRef;
+import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.spi.IMqttsnMessageRegistry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExpansionHandlerTests {
+
+    private MqttsnGatewayTestRuntime runtime;
+    private MqttsnOffHeapMessageRegistry messageRegistry;
+
+    public void start(MqttsnGatewayOptions options) throws Exception {
+        start(options, new MqttsnGatewayExpansionHandler());
+    }
+
+    public void start(MqttsnGatewayOptions options, IMqttsnGatewayExpansionHandler handler) throws Exception {
+        MqttsnGatewayRuntimeRegistry registry = MqttsnGatewayRuntimeRegistry.defaultConfiguration(
+                MqttsnGatewayTestRuntime.createTemporaryStorageService(), options);
+        messageRegistry = new MqttsnOffHeapMessageRegistry();
+        registry.withServiceReplaceIfExists(IMqttsnMessageRegistry.class, messageRegistry);
+        registry.withServiceReplaceIfExists(IMqttsnGatewayExpansionHandler.class, handler);
+        runtime = MqttsnGatewayTestRuntime.start(registry, new StubMqttsnConnector(), new MqttsnAggregatingGateway());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testUnmatchedDuplicateKeepsSharedPayload() throws Exception {
+
+        MqttsnGatewayOptions options = new MqttsnGatewayOptions();
+        options.withMessageRegistryDeduplication(true);
+        start(options);
+        IMqttsnSession session = runtime.createSession("device");
+        runtime.getRegistry().getSubscriptionRegistry().subscribe(session, "a/b", 1);
+
+        byte[] payload = new byte[]{1, 2, 3, 4};
+        getExpansionHandler().receiveToSessions("a/b", 1, false, payload);
+        //-- identical content on a topic nobody subscribes to is handed the same registry entry
+        getExpansionHandler().receiveToSessions("c/d", 1, false, payload.clone());
+        Assert.assertEquals("the payload queued for the subscriber should be held", 1, messageRegistry.size());
+
+        IMqttsnQueuedPublishMessage queued = runtime.getRegistry().getMessageQueue().poll(session);
+        Assert.assertNotNull(queued);
+        Assert.assertArrayEquals("the subscriber should still read its payload", payload,
+                messageRegistry.get(queued.getDataRefId()));
+
+        messageRegistry.release(queued.getDataRefId());
+        Assert.assertEquals("the last reference should reclaim the payload", 0, messageRegistry.size());
+    }
+
+    @Test
+    public void testShardedExpansionDeliversOncePerRecipient() throws Exception {
+
+        int recipients = 200;
+        MqttsnGatewayOptions options = new MqttsnGatewayOptions();
+        options.withExpansionParallelism(4);
+        options.withExpansionParallelThreshold(10);
+        ShardCountingExpansionHandler handler = new ShardCountingExpansionHandler();
+        start(options, handler);
+
+        List<IMqttsnSession> sessions = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++){
+            IMqttsnSession session = runtime.createSession("device-" + i);
+            runtime.getRegistry().getSubscriptionRegistry().subscribe(session, "a/+", 1);
+            sessions.add(session);
+        }
+
+        byte[] payload = new byte[]{1, 2, 3, 4};
+        getExpansionHandler().receiveToSessions("a/b", 1, false, payload);
+        Assert.assertTrue("the recipients should have been expanded in more than one shard", handler.shards.get() > 1);
+        Assert.assertEquals("every recipient should have been expanded once", recipients, handler.expanded.get());
+        Assert.assertEquals("the recipients should share a single payload", 1, messageRegistry.size());
+
+        IMqttsnDataRef dataRef = null;
+        for (int i = 0; i < recipients; i++){
+            IMqttsnSession session = sessions.get(i);
+            Assert.assertEquals("each recipient should be queued the message once",
+                    1, runtime.getRegistry().getMessageQueue().queueSize(session));
+            IMqttsnQueuedPublishMessage queued = runtime.getRegistry().getMessageQueue().poll(session);
+            Assert.assertArrayEquals(payload, messageRegistry.get(queued.getDataRefId()));
+            if(dataRef == null) dataRef = queued.getDataRefId();
+            Assert.assertEquals("the recipients should share a single payload", dataRef, queued.getDataRefId());
+
+            //-- the expansion released its own reference once, so only the queued references remain
+            messageRegistry.release(queued.getDataRefId());
+            Assert.assertEquals(i == recipients - 1 ? 0 : 1, messageRegistry.size());
+        }
+    }
+
+    private IMqttsnGatewayExpansionHandler getExpansionHandler(){
+        return runtime.getGatewayRegistry().getExpansionHandler();
+    }
+
+    static class ShardCountingExpansionHandler extends MqttsnGatewayExpansionHandler {
+
+        private final AtomicInteger shards = new AtomicInteger();
+        private final AtomicInteger expanded = new AtomicInteger();
+
+        @Override
+        protected int expand(Collection<Map.Entry<IMqttsnContext, Integer>> recipients,
+                             IMqttsnDataRef dataId, PublishData data, int payloadLength) {
+            if(!recipients.isEmpty()) shards.incrementAndGet();
+            expanded.addAndGet(recipients.size());
+            return super.expand(recipients, dataId, data, payloadLength);
+        }
+    }
+}
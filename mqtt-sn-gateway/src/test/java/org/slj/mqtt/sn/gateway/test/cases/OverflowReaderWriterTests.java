@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.gateway.impl.MqttsnGatewayRuntimeRegistry;
+import org.slj.mqtt.sn.gateway.impl.MqttsnJacksonReaderWriter;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.impl.ram.MqttsnFileBackedInMemoryMessageQueue;
+import org.slj.mqtt.sn.model.IntegerDataRef;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.IMqttsnObjectReaderWriter;
+
+public class OverflowReaderWriterTests {
+
+    @Test
+    public void testJsonOverflowRecordsLoadAfterUpgrade() throws Exception {
+
+        MqttsnGatewayRuntimeRegistry registry = MqttsnGatewayRuntimeRegistry.defaultConfiguration(
+                MqttsnGatewayTestRuntime.createTemporaryStorageService(), new MqttsnGatewayOptions());
+        IMqttsnObjectReaderWriter readerWriter =
+                ((MqttsnFileBackedInMemoryMessageQueue) registry.getMessageQueue()).getReaderWriter();
+
+        MqttsnQueuedPublishMessageImpl message = new MqttsnQueuedPublishMessageImpl(new IntegerDataRef(42),
+                new PublishData("some/topic/path", 1, true));
+        byte[] json = new MqttsnJacksonReaderWriter().write(message);
+
+        MqttsnQueuedPublishMessageImpl read = readerWriter.load(MqttsnQueuedPublishMessageImpl.class, json);
+        Assert.assertEquals("a record written by the previous default should load", "some/topic/path",
+                read.getData().getTopicPath());
+        Assert.assertEquals(message.getDataRefId(), read.getDataRefId());
+        Assert.assertTrue(read.getData().isRetained());
+    }
+}
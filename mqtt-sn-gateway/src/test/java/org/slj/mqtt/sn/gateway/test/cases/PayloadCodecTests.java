@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.gateway.impl.gateway.MqttsnGatewayPayloadCodec;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayPayloadCodec;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnPayloadCompressionRule;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class PayloadCodecTests {
+
+    private static final byte[] DICTIONARY = MqttsnGatewayPayloadCodec.trainDictionary(samples(200), 1024);
+
+    private MqttsnGatewayTestRuntime runtime;
+    private StubMqttsnConnector connector;
+    private MqttsnAggregatingGateway gateway;
+    private IMqttsnGatewayPayloadCodec codec;
+
+    @Before
+    public void setup() throws Exception {
+        MqttsnGatewayOptions options = new MqttsnGatewayOptions().
+                withPayloadCompressionRule(new MqttsnPayloadCompressionRule("raw/#", MqttsnPayloadCompressionRule.Compression.NONE, 0)).
+                withPayloadCompressionRule(new MqttsnPayloadCompressionRule("dictionary/#", MqttsnPayloadCompressionRule.Compression.DEFLATE_DICTIONARY, 16, DICTIONARY)).
+                withPayloadCompressionRule(new MqttsnPayloadCompressionRule("deflate/#", MqttsnPayloadCompressionRule.Compression.DEFLATE, 16));
+        connector = new StubMqttsnConnector();
+        gateway = new MqttsnAggregatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(options, connector, gateway);
+        codec = runtime.getGatewayRegistry().getPayloadCodec();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testDeflatedPayloadIsFramedZlib() throws DataFormatException {
+        byte[] payload = batch(10);
+        byte[] encoded = codec.encode("deflate/a", payload);
+        Assert.assertTrue("repetitive payloads should compress", encoded.length < payload.length / 2);
+        Assert.assertEquals("compressed payloads are marked by their header", MqttsnGatewayPayloadCodec.FRAME_DEFLATE, encoded[0]);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(encoded, 1, encoded.length - 1);
+        byte[] inflated = new byte[payload.length];
+        Assert.assertEquals(payload.length, inflater.inflate(inflated));
+        Assert.assertTrue(inflater.finished());
+        Assert.assertArrayEquals(payload, inflated);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        byte[] payload = batch(10);
+        Assert.assertArrayEquals(payload, codec.decode("deflate/a", codec.encode("deflate/a", payload)));
+
+        byte[] sample = sample(1000);
+        byte[] encoded = codec.encode("dictionary/a", sample);
+        Assert.assertTrue("a trained dictionary should compress a single small payload", encoded.length < sample.length / 2);
+        Assert.assertArrayEquals(sample, codec.decode("dictionary/a", encoded));
+    }
+
+    @Test
+    public void testPassThrough() {
+        byte[] payload = batch(10);
+        Assert.assertSame("topics matching no rule are untouched", payload, codec.encode("other/a", payload));
+        Assert.assertSame("a NONE rule leaves payloads untouched", payload, codec.encode("raw/a", payload));
+        byte[] small = "tiny".getBytes(StandardCharsets.UTF_8);
+        Assert.assertSame("payloads below the minimum size are untouched", small, codec.encode("deflate/a", small));
+        byte[] random = new byte[100];
+        new Random(1).nextBytes(random);
+        Assert.assertSame("payloads which do not compress are sent as they are", random, codec.encode("deflate/a", random));
+
+        byte[] encoded = codec.encode("deflate/a", payload);
+        Assert.assertSame("payloads on uncompressed topics are delivered as received", encoded, codec.decode("raw/a", encoded));
+        Assert.assertSame(encoded, codec.decode("other/a", encoded));
+        Assert.assertSame("payloads without a frame header are delivered as received", payload, codec.decode("deflate/a", payload));
+    }
+
+    @Test
+    public void testUnframedZlibDeliveredAsReceived() {
+        //-- a publisher compressing its own payloads, or another gateway with different rules
+        byte[] payload = batch(10);
+        Deflater deflater = new Deflater();
+        deflater.setInput(payload);
+        deflater.finish();
+        byte[] buf = new byte[payload.length];
+        byte[] zlib = Arrays.copyOf(buf, deflater.deflate(buf));
+        Assert.assertSame("a zlib payload the codec did not mark is never inflated", zlib, codec.decode("deflate/a", zlib));
+    }
+
+    @Test
+    public void testPayloadBeginningWithFrameHeaderIsEscaped() {
+        byte[] small = new byte[]{MqttsnGatewayPayloadCodec.FRAME_DEFLATE, 1, 2};
+        byte[] encoded = codec.encode("deflate/a", small);
+        Assert.assertEquals("a payload sent as it is is framed when it would be mistaken for a header",
+                small.length + 1, encoded.length);
+        Assert.assertEquals(MqttsnGatewayPayloadCodec.FRAME_NONE, encoded[0]);
+        Assert.assertArrayEquals(small, codec.decode("deflate/a", encoded));
+
+        byte[] other = new byte[]{MqttsnGatewayPayloadCodec.FRAME_NONE, 1, 2};
+        Assert.assertSame("topics matching no rule are never framed", other, codec.encode("other/a", other));
+    }
+
+    @Test
+    public void testInvalidStreamDeliveredAsReceived() {
+        byte[] encoded = codec.encode("deflate/a", batch(10));
+        byte[] corrupt = encoded.clone();
+        corrupt[corrupt.length - 1] ^= 1;
+        Assert.assertSame("a stream failing its checksum is delivered as received", corrupt, codec.decode("deflate/a", corrupt));
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 3);
+        Assert.assertSame(truncated, codec.decode("deflate/a", truncated));
+
+        Deflater deflater = new Deflater();
+        deflater.setDictionary("an unknown dictionary".getBytes(StandardCharsets.UTF_8));
+        deflater.setInput(batch(10));
+        deflater.finish();
+        byte[] buf = new byte[4096];
+        buf[0] = MqttsnGatewayPayloadCodec.FRAME_DEFLATE;
+        byte[] unknown = Arrays.copyOf(buf, 1 + deflater.deflate(buf, 1, buf.length - 1));
+        Assert.assertSame("a stream needing an unknown dictionary is delivered as received", unknown, codec.decode("deflate/a", unknown));
+    }
+
+    @Test
+    public void testPublishEncodedToBackend() throws Exception {
+        IMqttsnContext context = runtime.createSession("device").getContext();
+        byte[] payload = batch(10);
+        gateway.publish(context, new TopicPath("deflate/out"), 1, false, payload, null);
+        Assert.assertTrue(MqttsnGatewayTestRuntime.await(() -> connector.getPublished("deflate/out").size() == 1, 5000));
+
+        byte[] published = connector.getPublished("deflate/out").get(0).payload;
+        Assert.assertTrue("the broker receives the encoded payload", published.length < payload.length);
+        Assert.assertArrayEquals(payload, codec.decode("deflate/out", published));
+    }
+
+    @Test
+    public void testConnectionAcceptsEncodedSize() throws Exception {
+        IMqttsnContext context = runtime.createSession("device").getContext();
+        byte[] payload = batch(10);
+        connector.setMaxPayloadSize(payload.length / 2);
+
+        Assert.assertFalse("the connection judges the payload as it will be published",
+                gateway.publish(context, new TopicPath("deflate/out"), 1, false, payload, null).isError());
+        Assert.assertTrue("an uncompressed payload over the limit is refused",
+                gateway.publish(context, new TopicPath("raw/out"), 1, false, payload, null).isError());
+    }
+
+    @Test
+    public void testReceivedPayloadDecodedForDevices() throws Exception {
+        byte[] payload = batch(10);
+        gateway.receive("deflate/in", 1, true, codec.encode("deflate/in", payload));
+
+        Assert.assertTrue(MqttsnGatewayTestRuntime.await(() -> retained("deflate/in") != null, 5000));
+        Assert.assertArrayEquals("devices receive the decoded payload", payload, retained("deflate/in").getData());
+    }
+
+    private PublishData retained(String topicPath){
+        try {
+            List<PublishData> retained = runtime.getGatewayRegistry().getRetainedStore().search(topicPath);
+            return retained.isEmpty() ? null : retained.get(0);
+        } catch(Exception e){
+            return null;
+        }
+    }
+
+    private static byte[] batch(int count){
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++){
+            sb.append(new String(sample(i), StandardCharsets.UTF_8));
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<byte[]> samples(int count){
+        List<byte[]> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            samples.add(sample(i));
+        }
+        return samples;
+    }
+
+    private static byte[] sample(int i){
+        return String.format("{\"deviceId\":\"sensor-%04d\",\"temperature\":%d.%d,\"humidity\":%d,\"battery\":%d,\"status\":\"OK\"}",
+                i, 20 + i % 7, i % 10, 40 + i % 20, 90 - i % 30).getBytes(StandardCharsets.UTF_8);
+    }
+}
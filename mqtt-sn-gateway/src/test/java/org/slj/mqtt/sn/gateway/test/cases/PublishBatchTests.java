@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendConnection;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnBlockingConnectorAdapter;
+import org.slj.mqtt.sn.gateway.impl.connector.LoopbackMqttsnConnectorConnection;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.BrokerPublishOperation;
+import org.slj.mqtt.sn.gateway.spi.PublishResult;
+import org.slj.mqtt.sn.gateway.spi.Result;
+import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
+import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorOptions;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.spi.IMqttsnMessage;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class PublishBatchTests {
+
+    private MqttsnGatewayTestRuntime runtime;
+    private StubMqttsnConnector connector;
+    private MqttsnAggregatingGateway gateway;
+    private IMqttsnContext context;
+
+    private void start(MqttsnGatewayOptions options) throws MqttsnException, IOException {
+        connector = new StubMqttsnConnector();
+        gateway = new MqttsnAggregatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(options, connector, gateway);
+        context = runtime.createSession("device").getContext();
+    }
+
+    @After
+    public void tearDown() throws MqttsnException {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testDefaultBatchReturnsResultPerOperation() throws Exception {
+
+        List<String> published = new ArrayList<>();
+        AbstractMqttsnBackendConnection connection = new AbstractMqttsnBackendConnection(){
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public PublishResult publish(IMqttsnContext context, TopicPath topicPath, int qos, boolean retained,
+                                         byte[] payload, IMqttsnMessage message) throws MqttsnConnectorException {
+                if(topicPath.toString().equals("b")) throw new MqttsnConnectorException("publish failure");
+                published.add(topicPath.toString());
+                return new PublishResult(Result.STATUS.SUCCESS);
+            }
+        };
+
+        List<PublishResult> results = connection.publishBatch(operations("a", "b", "c"));
+        Assert.assertEquals("one result per operation", 3, results.size());
+        Assert.assertFalse(results.get(0).isError());
+        Assert.assertTrue("only the failing operation should report an error", results.get(1).isError());
+        Assert.assertFalse(results.get(2).isError());
+        Assert.assertEquals("the rest of the batch should still be published", Arrays.asList("a", "c"), published);
+    }
+
+    @Test
+    public void testLoopbackNativeBatch() throws Exception {
+
+        List<String> routed = new ArrayList<>();
+        LoopbackMqttsnConnectorConnection connection = new LoopbackMqttsnConnectorConnection(new MqttsnConnectorOptions(), "loopback"){
+            @Override
+            protected void route(String topicPath, int qos, boolean retained, byte[] payload) throws MqttsnException {
+                if(topicPath.equals("b")) throw new MqttsnException("route failure");
+                routed.add(topicPath);
+            }
+        };
+
+        List<PublishResult> results = connection.publishBatch(operations("a", "b", "c"));
+        Assert.assertEquals(3, results.size());
+        for (PublishResult result : results){
+            Assert.assertTrue("a disconnected loopback should fail every operation", result.isError());
+        }
+        Assert.assertTrue(routed.isEmpty());
+
+        connection.connect();
+        results = connection.publishBatch(operations("a", "b", "c"));
+        Assert.assertFalse(results.get(0).isError());
+        Assert.assertTrue("only the failing operation should report an error", results.get(1).isError());
+        Assert.assertFalse(results.get(2).isError());
+        Assert.assertEquals(Arrays.asList("a", "c"), routed);
+    }
+
+    @Test
+    public void testBlockingAdapterMapsBatchFailureToEachOperation() throws Exception {
+
+        StubMqttsnConnector connector = new StubMqttsnConnector();
+        StubMqttsnConnector.StubConnection connection = connector.createConnection(new MqttsnConnectorOptions(), "batch");
+        connector.failBatches(1);
+
+        List<CompletableFuture<PublishResult>> futures =
+                MqttsnBlockingConnectorAdapter.adapt(connection).publishBatchAsync(operations("a", "b"));
+        Assert.assertEquals("one future per operation", 2, futures.size());
+        for (CompletableFuture<PublishResult> future : futures){
+            Assert.assertTrue("a failed batch should fail every operation in it", future.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void testQueuedPublishesSentInBatches() throws Exception {
+
+        //-- the linger lets each batch fill however the publisher thread is scheduled
+        start(new MqttsnGatewayOptions().withBackendPublishBatchSize(4).withBackendPublishBatchLingerMillis(1000));
+        for (int i = 0; i < 10; i++){
+            gateway.publish(context, new TopicPath("batched/" + i), 1, false, new byte[]{(byte) i}, null);
+        }
+
+        Assert.assertTrue("every message should be delivered",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished().size() == 10, 5000));
+        Assert.assertEquals("the queue should be drained in batches of at most the batch size",
+                Arrays.asList(4, 4, 2), connector.getBatches());
+        for (int i = 0; i < 10; i++){
+            Assert.assertEquals("batches keep queue order", "batched/" + i, connector.getPublished().get(i).topicPath);
+        }
+    }
+
+    @Test
+    public void testLingerFillsPartialBatch() throws Exception {
+
+        start(new MqttsnGatewayOptions().withBackendPublishBatchSize(10).withBackendPublishBatchLingerMillis(500));
+        gateway.publish(context, new TopicPath("linger/0"), 1, false, new byte[]{0}, null);
+        Thread.sleep(50);
+        gateway.publish(context, new TopicPath("linger/1"), 1, false, new byte[]{1}, null);
+        gateway.publish(context, new TopicPath("linger/2"), 1, false, new byte[]{2}, null);
+
+        Assert.assertTrue("a partial batch should be sent once the linger has passed",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished().size() == 3, 5000));
+        Assert.assertEquals("publishes arriving within the linger should share the batch",
+                Arrays.asList(3), connector.getBatches());
+    }
+
+    @Test
+    public void testNoLingerSendsImmediately() throws Exception {
+
+        start(new MqttsnGatewayOptions().withBackendPublishBatchSize(10));
+        gateway.publish(context, new TopicPath("immediate/0"), 1, false, new byte[]{0}, null);
+        Assert.assertTrue(MqttsnGatewayTestRuntime.await(() -> connector.getPublished().size() == 1, 5000));
+        Assert.assertTrue("a single publish is sent alone rather than as a batch", connector.getBatches().isEmpty());
+    }
+
+    @Test
+    public void testPartialBatchFailureRetriesOnlyFailedOperations() throws Exception {
+
+        start(new MqttsnGatewayOptions().withBackendAdaptiveRate(true).
+                withBackendPublishBatchSize(3).withBackendPublishBatchLingerMillis(1000));
+        connector.failPublishes("partial/b", 1);
+        gateway.publish(context, new TopicPath("partial/a"), 1, false, new byte[]{1}, null);
+        gateway.publish(context, new TopicPath("partial/b"), 1, false, new byte[]{2}, null);
+        gateway.publish(context, new TopicPath("partial/c"), 1, false, new byte[]{3}, null);
+
+        Assert.assertTrue("every message should be delivered",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished().size() == 3, 5000));
+        Assert.assertEquals("the operations which succeeded should not be sent again", 1, connector.getAttempts("partial/a"));
+        Assert.assertEquals("the failed operation should be retried", 2, connector.getAttempts("partial/b"));
+        Assert.assertEquals(1, connector.getAttempts("partial/c"));
+        Assert.assertEquals("the retry is sent alone rather than as a batch", Arrays.asList(3), connector.getBatches());
+        Assert.assertEquals(0, gateway.getQueuedCount());
+    }
+
+    @Test
+    public void testFailedBatchRetriesEveryOperation() throws Exception {
+
+        start(new MqttsnGatewayOptions().withBackendAdaptiveRate(true).
+                withBackendPublishBatchSize(3).withBackendPublishBatchLingerMillis(1000));
+        connector.failBatches(1);
+        for (int i = 0; i < 3; i++){
+            gateway.publish(context, new TopicPath("failed/" + i), 1, false, new byte[]{(byte) i}, null);
+        }
+
+        Assert.assertTrue("every message should be delivered once the broker accepts them",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished().size() == 3, 5000));
+        for (int i = 0; i < 3; i++){
+            Assert.assertEquals("each operation should be published once", 1, connector.getPublished("failed/" + i).size());
+        }
+        Assert.assertEquals(0, gateway.getQueuedCount());
+    }
+
+    private static List<BrokerPublishOperation> operations(String... topics){
+        List<BrokerPublishOperation> ops = new ArrayList<>(topics.length);
+        for (String topic : topics){
+            ops.add(new BrokerPublishOperation(null, new TopicPath(topic), 1, false, new byte[]{1}, null));
+        }
+        return ops;
+    }
+}
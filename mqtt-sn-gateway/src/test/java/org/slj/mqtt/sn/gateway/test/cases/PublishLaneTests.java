@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.PublishResult;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class PublishLaneTests {
+
+    private MqttsnGatewayTestRuntime runtime;
+    private StubMqttsnConnector connector;
+    private MqttsnAggregatingGateway gateway;
+    private IMqttsnContext context;
+
+    private void start(MqttsnGatewayOptions options) throws MqttsnException, IOException {
+        connector = new StubMqttsnConnector();
+        gateway = new MqttsnAggregatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(options, connector, gateway);
+        context = runtime.createSession("device").getContext();
+    }
+
+    @After
+    public void tearDown() throws MqttsnException {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testTopicsArePartitionedAcrossLanesInOrder() throws Exception {
+
+        int laneCount = 4;
+        start(new MqttsnGatewayOptions().withBackendPublishLanes(laneCount));
+        String contextId = runtime.getRegistry().getOptions().getContextId();
+
+        int topics = 8, messages = 50;
+        for (int i = 0; i < messages; i++){
+            for (int t = 0; t < topics; t++){
+                PublishResult result = gateway.publish(context, new TopicPath("lanes/" + t), 1, false, new byte[]{(byte) i}, null);
+                Assert.assertFalse("publish should be queued", result.isError());
+            }
+        }
+        Assert.assertTrue("every message should reach the broker",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished().size() == topics * messages, 5000));
+
+        Set<String> used = new HashSet<>();
+        for (int t = 0; t < topics; t++){
+            String topic = "lanes/" + t;
+            int lane = (topic.hashCode() & Integer.MAX_VALUE) % laneCount;
+            String expected = lane == 0 ? contextId : contextId + "-" + lane;
+            List<StubMqttsnConnector.Publish> published = connector.getPublished(topic);
+            Assert.assertEquals(messages, published.size());
+            for (int i = 0; i < messages; i++){
+                StubMqttsnConnector.Publish publish = published.get(i);
+                Assert.assertEquals("a topic is always published on the connection of its lane", expected, publish.clientId);
+                Assert.assertEquals("order is kept per topic", i, publish.payload[0]);
+            }
+            used.add(expected);
+        }
+        Assert.assertTrue("topics should be spread over more than one lane", used.size() > 1);
+        Assert.assertEquals("the managed connection plus one publish connection per additional lane",
+                laneCount, connector.getConnections().size());
+    }
+
+    @Test
+    public void testFailedPublishIsRequeued() throws Exception {
+
+        //-- with an adaptive rate publish errors do not put the lane to sleep, so retries are immediate
+        start(new MqttsnGatewayOptions().withBackendAdaptiveRate(true));
+        connector.failPublishes("retry/topic", 2);
+
+        gateway.publish(context, new TopicPath("retry/topic"), 1, false, new byte[]{1}, null);
+        Assert.assertTrue("message should be delivered once the broker accepts it",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished("retry/topic").size() == 1, 5000));
+        Assert.assertEquals("two failures and the successful retry", 3, connector.getAttempts("retry/topic"));
+        Assert.assertEquals(0, gateway.getQueuedCount());
+    }
+
+    @Test
+    public void testRetryKeepsTopicOrder() throws Exception {
+
+        //-- one publish per batch, and the first held at the broker until the rest are queued behind it
+        start(new MqttsnGatewayOptions().withBackendAdaptiveRate(true).withBackendPublishBatchSize(1));
+        connector.failPublishes("ordered/topic", 2);
+        connector.pausePublishes();
+
+        int messages = 5;
+        gateway.publish(context, new TopicPath("ordered/topic"), 1, false, new byte[]{0}, null);
+        Assert.assertTrue(MqttsnGatewayTestRuntime.await(() -> connector.getAttempts("ordered/topic") == 1, 5000));
+        for (int i = 1; i < messages; i++){
+            gateway.publish(context, new TopicPath("ordered/topic"), 1, false, new byte[]{(byte) i}, null);
+            gateway.publish(context, new TopicPath("other/topic"), 1, false, new byte[]{(byte) i}, null);
+        }
+        connector.resumePublishes();
+
+        Assert.assertTrue("every message should be delivered",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished("ordered/topic").size() == messages &&
+                        connector.getPublished("other/topic").size() == messages - 1, 5000));
+        List<StubMqttsnConnector.Publish> published = connector.getPublished("ordered/topic");
+        for (int i = 0; i < messages; i++){
+            Assert.assertEquals("a retried publish should not be overtaken on its topic", i, published.get(i).payload[0]);
+        }
+        Assert.assertEquals("two failures then every message once", messages + 2, connector.getAttempts("ordered/topic"));
+        Assert.assertEquals(0, gateway.getQueuedCount());
+    }
+
+    @Test
+    public void testPublishDiscardedOnceRetriesExhausted() throws Exception {
+
+        start(new MqttsnGatewayOptions().withBackendAdaptiveRate(true));
+        connector.failPublishes("failing/topic", Integer.MAX_VALUE);
+
+        gateway.publish(context, new TopicPath("failing/topic"), 1, false, new byte[]{1}, null);
+        Assert.assertTrue("publish should be attempted up to the retry limit",
+                MqttsnGatewayTestRuntime.await(() -> connector.getAttempts("failing/topic") == 5, 5000));
+
+        //-- the lane carries on, and the failing message is not attempted again
+        gateway.publish(context, new TopicPath("healthy/topic"), 1, false, new byte[]{2}, null);
+        Assert.assertTrue("later messages should still be delivered",
+                MqttsnGatewayTestRuntime.await(() -> connector.getPublished("healthy/topic").size() == 1, 5000));
+        Assert.assertEquals("message should be discarded after 5 attempts", 5, connector.getAttempts("failing/topic"));
+        Assert.assertTrue(connector.getPublished("failing/topic").isEmpty());
+        Assert.assertEquals(0, gateway.getQueuedCount());
+    }
+
+    @Test
+    public void testQueueSizeBoundsAllLanes() throws Exception {
+
+        int laneCount = 3, max = 10;
+        start(new MqttsnGatewayOptions().withBackendPublishLanes(laneCount).withMaxBackendQueueSize(max));
+        //-- nothing drains while the broker is unreachable
+        connector.setConnected(false);
+
+        Set<Integer> lanes = new HashSet<>();
+        for (int i = 0; i < max; i++){
+            String topic = "bounded/" + i;
+            lanes.add((topic.hashCode() & Integer.MAX_VALUE) % laneCount);
+            PublishResult result = gateway.publish(context, new TopicPath(topic), 1, false, new byte[]{1}, null);
+            Assert.assertFalse("publish within the bound should be queued", result.isError());
+        }
+        Assert.assertTrue("messages should be queued on more than one lane", lanes.size() > 1);
+        Assert.assertEquals(max, gateway.getQueuedCount());
+
+        PublishResult result = gateway.publish(context, new TopicPath("bounded/overflow"), 1, false, new byte[]{1}, null);
+        Assert.assertTrue("the bound applies across every lane", result.isError());
+        Assert.assertEquals(max, gateway.getQueuedCount());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.MqttsnConstants;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.gateway.IMqttsnGatewayRetainedStore;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.model.TopicInfo;
+import org.slj.mqtt.sn.model.session.IMqttsnQueuedPublishMessage;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+import java.util.List;
+
+public class RetainedStoreTests {
+
+    private MqttsnGatewayTestRuntime runtime;
+
+    public void start(MqttsnGatewayOptions options) throws Exception {
+        runtime = MqttsnGatewayTestRuntime.start(options, new StubMqttsnConnector(), new MqttsnAggregatingGateway());
+    }
+
+    @After
+    public void tearDown() throws MqttsnException {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testRetainAndClearOnEmptyPayload() throws Exception {
+        start(new MqttsnGatewayOptions());
+        IMqttsnGatewayRetainedStore store = getRetainedStore();
+
+        store.retain("a/b", 1, new byte[]{1});
+        store.retain("a/b", 1, new byte[]{2});
+        Assert.assertEquals("a topic holds a single retained message", 1, store.size());
+        List<PublishData> found = store.search("a/b");
+        Assert.assertEquals(1, found.size());
+        Assert.assertArrayEquals("the latest message should replace the earlier one", new byte[]{2}, found.get(0).getData());
+
+        store.retain("a/b", 1, new byte[0]);
+        Assert.assertEquals("an empty payload should clear the topic", 0, store.size());
+        Assert.assertTrue(store.search("a/b").isEmpty());
+
+        store.retain("a/c", 1, new byte[0]);
+        Assert.assertEquals("clearing a topic never retained has no effect", 0, store.size());
+    }
+
+    @Test
+    public void testWildcardSearch() throws Exception {
+        start(new MqttsnGatewayOptions());
+        IMqttsnGatewayRetainedStore store = getRetainedStore();
+        store.retain("a/b", 0, new byte[]{1});
+        store.retain("a/c/d", 0, new byte[]{2});
+        store.retain("e/f", 0, new byte[]{3});
+
+        Assert.assertEquals(2, store.search("a/#").size());
+        Assert.assertEquals(1, store.search("a/+").size());
+        Assert.assertEquals(1, store.search("+/f").size());
+        Assert.assertEquals(3, store.search("#").size());
+    }
+
+    @Test
+    public void testMaxRetainedMessagesBound() throws Exception {
+        start(new MqttsnGatewayOptions().withMaxRetainedMessages(2));
+        IMqttsnGatewayRetainedStore store = getRetainedStore();
+        store.retain("a/1", 0, new byte[]{1});
+        store.retain("a/2", 0, new byte[]{2});
+        store.retain("a/3", 0, new byte[]{3});
+        Assert.assertEquals("a new topic should not be retained once the store is full", 2, store.size());
+        Assert.assertTrue(store.search("a/3").isEmpty());
+
+        store.retain("a/2", 0, new byte[]{4});
+        Assert.assertEquals(2, store.size());
+        Assert.assertArrayEquals("replacing a retained topic is allowed when full",
+                new byte[]{4}, store.search("a/2").get(0).getData());
+
+        store.retain("a/1", 0, new byte[0]);
+        store.retain("a/3", 0, new byte[]{3});
+        Assert.assertEquals("clearing a topic should make room", 1, store.search("a/3").size());
+    }
+
+    @Test
+    public void testRetainedReplayedOnSubscribe() throws Exception {
+        start(new MqttsnGatewayOptions());
+        getRetainedStore().retain("a/b", 1, new byte[]{1, 2});
+
+        //-- the first subscription is sent upstream, where the broker replays its own retained messages
+        IMqttsnSession first = runtime.createSession("first");
+        subscribe(first, "a/#");
+        Assert.assertEquals(0, runtime.getRegistry().getMessageQueue().queueSize(first));
+
+        //-- the second is already covered upstream, so the gateway replays from its local store
+        IMqttsnSession second = runtime.createSession("second");
+        subscribe(second, "a/#");
+        Assert.assertEquals(1, runtime.getRegistry().getMessageQueue().queueSize(second));
+        IMqttsnQueuedPublishMessage queued = runtime.getRegistry().getMessageQueue().poll(second);
+        Assert.assertEquals("a/b", queued.getData().getTopicPath());
+        Assert.assertTrue(queued.getData().isRetained());
+        Assert.assertArrayEquals(new byte[]{1, 2}, runtime.getRegistry().getMessageRegistry().get(queued.getDataRefId()));
+    }
+
+    @Test
+    public void testDevicePublishRetainedOnlyWhenAccepted() throws Exception {
+        start(new MqttsnGatewayOptions());
+        IMqttsnSession session = runtime.createSession("device");
+        runtime.receiveFromDevice(session.getContext(), "a/b", 1, true, new byte[]{1});
+        Assert.assertEquals(1, getRetainedStore().size());
+    }
+
+    @Test
+    public void testDevicePublishNotRetainedWhenRejected() throws Exception {
+        //-- with no room on the backend queue every publish is refused
+        start(new MqttsnGatewayOptions().withMaxBackendQueueSize(0));
+        IMqttsnSession session = runtime.createSession("device");
+        runtime.receiveFromDevice(session.getContext(), "a/b", 1, true, new byte[]{1});
+        Assert.assertEquals("a publish the backend refused should not be retained", 0, getRetainedStore().size());
+    }
+
+    private void subscribe(IMqttsnSession session, String topicFilter) throws MqttsnException {
+        runtime.getGatewayRegistry().getGatewaySessionService().subscribe(session,
+                new TopicInfo(MqttsnConstants.TOPIC_TYPE.NORMAL, topicFilter),
+                runtime.getRegistry().getCodec().createMessageFactory().createSubscribe(1, topicFilter));
+    }
+
+    private IMqttsnGatewayRetainedStore getRetainedStore(){
+        return runtime.getGatewayRegistry().getRetainedStore();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.MqttsnConstants;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnTransparentGateway;
+import org.slj.mqtt.sn.gateway.spi.ConnectResult;
+import org.slj.mqtt.sn.gateway.spi.SubscribeResult;
+import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.MqttsnClientState;
+import org.slj.mqtt.sn.model.TopicInfo;
+import org.slj.mqtt.sn.model.session.IMqttsnSession;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class TransparentGatewayTests {
+
+    private MqttsnGatewayTestRuntime runtime;
+    private StubMqttsnConnector connector;
+    private MqttsnTransparentGateway gateway;
+
+    private void start(MqttsnGatewayOptions options) throws MqttsnException, IOException {
+        connector = new StubMqttsnConnector();
+        gateway = new MqttsnTransparentGateway();
+        runtime = MqttsnGatewayTestRuntime.start(options, connector, gateway);
+    }
+
+    @After
+    public void tearDown() throws MqttsnException {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    private void awaitConnected(IMqttsnContext context) throws InterruptedException {
+        Assert.assertTrue("the broker connection should be established", MqttsnGatewayTestRuntime.await(() -> {
+            try {
+                return gateway.isConnected(context);
+            } catch(MqttsnConnectorException e){
+                return false;
+            }
+        }, 5000));
+    }
+
+    @Test
+    public void testConnectionCreatedPerDevice() throws Exception {
+
+        start(new MqttsnGatewayOptions());
+        IMqttsnContext first = runtime.createSession("first").getContext();
+        IMqttsnContext second = runtime.createSession("second").getContext();
+
+        Assert.assertFalse(gateway.connect(first, null).isError());
+        Assert.assertFalse(gateway.connect(second, null).isError());
+        gateway.publish(first, new TopicPath("devices/first"), 1, false, new byte[]{1}, null);
+        gateway.publish(second, new TopicPath("devices/second"), 1, false, new byte[]{2}, null);
+
+        Assert.assertTrue(MqttsnGatewayTestRuntime.await(() -> connector.getPublished().size() == 2, 5000));
+        Assert.assertEquals(2, gateway.getPoolSize());
+        Assert.assertEquals(2, connector.getConnections().size());
+        Assert.assertEquals("each device publishes on its own connection",
+                "first", connector.getPublished("devices/first").get(0).clientId);
+        Assert.assertEquals("second", connector.getPublished("devices/second").get(0).clientId);
+    }
+
+    @Test
+    public void testConnectionReusedByDevice() throws Exception {
+
+        start(new MqttsnGatewayOptions());
+        IMqttsnContext context = runtime.createSession("device").getContext();
+
+        gateway.connect(context, null);
+        for (int i = 0; i < 10; i++){
+            gateway.publish(context, new TopicPath("reuse"), 1, false, new byte[]{(byte) i}, null);
+        }
+        gateway.subscribe(context, new TopicPath("reuse/#"), null);
+
+        Assert.assertTrue(MqttsnGatewayTestRuntime.await(() ->
+                connector.getConnection("device") != null &&
+                        connector.getConnection("device").getSubscriptions().contains("reuse/#"), 5000));
+        Assert.assertEquals("the pooled connection should be reused", 1, connector.getConnections().size());
+        Assert.assertEquals(1, gateway.getPoolSize());
+        for (int i = 0; i < 10; i++){
+            Assert.assertEquals("operations should run in the order they were made",
+                    i, connector.getPublished("reuse").get(i).payload[0]);
+        }
+    }
+
+    @Test
+    public void testConnectionClosedOnDisconnect() throws Exception {
+
+        start(new MqttsnGatewayOptions());
+        IMqttsnContext context = runtime.createSession("device").getContext();
+        gateway.connect(context, null);
+        awaitConnected(context);
+
+        gateway.disconnect(context, null);
+        Assert.assertEquals(0, gateway.getPoolSize());
+        Assert.assertTrue("the broker connection should be closed",
+                MqttsnGatewayTestRuntime.await(() -> connector.getConnection("device").isClosed(), 5000));
+
+        //-- a new connect establishes a new connection
+        gateway.connect(context, null);
+        awaitConnected(context);
+        Assert.assertEquals(2, connector.getConnections().size());
+    }
+
+    @Test
+    public void testConnectionKeptWhileDeviceSleeps() throws Exception {
+
+        start(new MqttsnGatewayOptions());
+        IMqttsnContext context = runtime.createSession("device").getContext();
+        gateway.connect(context, null);
+        awaitConnected(context);
+
+        gateway.disconnect(context, runtime.getRegistry().getCodec().createMessageFactory().createDisconnect(60));
+        Assert.assertEquals(1, gateway.getPoolSize());
+        Assert.assertTrue(gateway.isConnected(context));
+        Assert.assertFalse(connector.getConnection("device").isClosed());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvictedWhenPoolFull() throws Exception {
+
+        start(new MqttsnGatewayOptions().withTransparentMaxBrokerConnections(2));
+        IMqttsnContext oldest = runtime.createSession("oldest").getContext();
+        IMqttsnContext newest = runtime.createSession("newest").getContext();
+        IMqttsnContext extra = runtime.createSession("extra").getContext();
+
+        gateway.connect(oldest, null);
+        awaitConnected(oldest);
+        Thread.sleep(5);
+        gateway.connect(newest, null);
+        awaitConnected(newest);
+
+        Assert.assertFalse(gateway.connect(extra, null).isError());
+        Assert.assertEquals(2, gateway.getPoolSize());
+        Assert.assertTrue("the least recently used connection should be closed to make room",
+                MqttsnGatewayTestRuntime.await(() -> connector.getConnection("oldest").isClosed(), 5000));
+        Assert.assertFalse(gateway.isConnected(oldest));
+        Assert.assertTrue(gateway.isConnected(newest));
+    }
+
+    @Test
+    public void testActiveDevicesAreNotEvicted() throws Exception {
+
+        start(new MqttsnGatewayOptions().withTransparentMaxBrokerConnections(1));
+        IMqttsnSession active = runtime.createSession("active");
+        runtime.getRegistry().getSessionRegistry().modifyClientState(active, MqttsnClientState.ACTIVE);
+        IMqttsnContext extra = runtime.createSession("extra").getContext();
+
+        gateway.connect(active.getContext(), null);
+        ConnectResult result = gateway.connect(extra, null);
+        Assert.assertTrue("the pool is full of active devices", result.isError());
+        Assert.assertEquals(MqttsnConstants.RETURN_CODE_REJECTED_CONGESTION, result.getReturnCode());
+        Assert.assertEquals(1, gateway.getPoolSize());
+    }
+
+    @Test
+    public void testConnectionEvictedWhenSessionExpires() throws Exception {
+
+        start(new MqttsnGatewayOptions());
+        IMqttsnSession session = runtime.createSession("device");
+        gateway.connect(session.getContext(), null);
+        awaitConnected(session.getContext());
+
+        runtime.getRegistry().getSessionRegistry().clear(session);
+        Assert.assertTrue("the connection of an expired session should be evicted",
+                MqttsnGatewayTestRuntime.await(() -> gateway.getPoolSize() == 0, 5000));
+        Assert.assertTrue(MqttsnGatewayTestRuntime.await(() -> connector.getConnection("device").isClosed(), 5000));
+    }
+
+    @Test
+    public void testConnectRefusedByBroker() throws Exception {
+
+        start(new MqttsnGatewayOptions());
+        IMqttsnContext context = runtime.createSession("device").getContext();
+        connector.refuseConnections("device");
+
+        ConnectResult result = gateway.connect(context, null);
+        Assert.assertTrue("the broker's refusal should reach the device", result.isError());
+        Assert.assertEquals(MqttsnConstants.RETURN_CODE_SERVER_UNAVAILABLE, result.getReturnCode());
+        Assert.assertTrue("the refused connection should not stay pooled",
+                MqttsnGatewayTestRuntime.await(() -> gateway.getPoolSize() == 0, 5000));
+    }
+
+    @Test
+    public void testConnectTimesOutWithoutBrokerAnswer() throws Exception {
+
+        start(new MqttsnGatewayOptions().withTransparentResponseTimeout(200));
+        IMqttsnContext context = runtime.createSession("device").getContext();
+        connector.pauseConnections();
+        try {
+            long start = System.currentTimeMillis();
+            ConnectResult result = gateway.connect(context, null);
+            Assert.assertTrue("a connect the broker never answers should fail", result.isError());
+            Assert.assertEquals(MqttsnConstants.RETURN_CODE_SERVER_UNAVAILABLE, result.getReturnCode());
+            Assert.assertTrue("the connect should wait for the timeout", System.currentTimeMillis() - start >= 200);
+            Assert.assertEquals(0, gateway.getPoolSize());
+        } finally {
+            connector.resumeConnections();
+        }
+        Assert.assertTrue("the late connection should be closed once established",
+                MqttsnGatewayTestRuntime.await(() -> connector.getConnection("device") != null &&
+                        connector.getConnection("device").isClosed(), 5000));
+    }
+
+    @Test
+    public void testSubscribeRefusedByBroker() throws Exception {
+
+        start(new MqttsnGatewayOptions());
+        IMqttsnSession session = runtime.createSession("device");
+        connector.failSubscribes("denied/#");
+        Assert.assertFalse(gateway.connect(session.getContext(), null).isError());
+
+        SubscribeResult result = subscribe(session, "denied/#", 1);
+        Assert.assertTrue("the broker's refusal should reach the device", result.isError());
+        Assert.assertEquals(MqttsnConstants.RETURN_CODE_SERVER_UNAVAILABLE, result.getReturnCode());
+        Assert.assertTrue("a refused subscription should not be held locally",
+                runtime.getRegistry().getSubscriptionRegistry().matches("denied/a").isEmpty());
+    }
+
+    @Test
+    public void testSubscribeGrantedQoSFromBroker() throws Exception {
+
+        start(new MqttsnGatewayOptions());
+        IMqttsnSession session = runtime.createSession("device");
+        connector.grantQoS("capped/#", 0);
+        Assert.assertFalse(gateway.connect(session.getContext(), null).isError());
+
+        SubscribeResult result = subscribe(session, "capped/#", 2);
+        Assert.assertFalse(result.isError());
+        Assert.assertEquals("the device should be granted the broker's QoS", 0, result.getGrantedQoS());
+        Map<IMqttsnContext, Integer> matches = runtime.getRegistry().getSubscriptionRegistry().matches("capped/a");
+        Assert.assertEquals(Integer.valueOf(0), matches.get(session.getContext()));
+
+        result = subscribe(session, "uncapped/#", 2);
+        Assert.assertEquals("where the broker grants what was asked the device keeps it", 2, result.getGrantedQoS());
+    }
+
+    @Test
+    public void testResourcesPerDevice() throws Exception {
+
+        int devices = 500;
+        int threads = 2;
+        start(new MqttsnGatewayOptions().withTransparentConnectThreadCount(threads));
+        List<IMqttsnContext> contexts = new ArrayList<>(devices);
+        for (int i = 0; i < devices; i++){
+            contexts.add(runtime.createSession("device-" + i).getContext());
+        }
+
+        int threadsBefore = Thread.activeCount();
+        long heapBefore = usedHeap();
+        for (IMqttsnContext context : contexts){
+            Assert.assertFalse(gateway.connect(context, null).isError());
+        }
+        Assert.assertEquals(devices, gateway.getPoolSize());
+        int threadsAfter = Thread.activeCount();
+        long heapAfter = usedHeap();
+
+        System.out.println(String.format("transparent pool of %s devices: %s threads added, ~%s bytes of heap per device",
+                devices, threadsAfter - threadsBefore, Math.max(0, heapAfter - heapBefore) / devices));
+        Assert.assertTrue("broker connections should share the fixed connect threads rather than add one per device",
+                threadsAfter - threadsBefore <= threads);
+    }
+
+    private SubscribeResult subscribe(IMqttsnSession session, String topicFilter, int QoS) throws MqttsnException {
+        return runtime.getGatewayRegistry().getGatewaySessionService().subscribe(session,
+                new TopicInfo(MqttsnConstants.TOPIC_TYPE.NORMAL, topicFilter),
+                runtime.getRegistry().getCodec().createMessageFactory().createSubscribe(QoS, topicFilter));
+    }
+
+    private static long usedHeap(){
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
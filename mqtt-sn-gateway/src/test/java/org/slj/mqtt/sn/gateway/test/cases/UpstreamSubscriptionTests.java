@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.gateway.test.cases;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slj.mqtt.sn.gateway.impl.backend.AbstractMqttsnBackendConnection;
+import org.slj.mqtt.sn.gateway.impl.backend.MqttsnUpstreamSubscriptionPlanner;
+import org.slj.mqtt.sn.gateway.impl.gateway.type.MqttsnAggregatingGateway;
+import org.slj.mqtt.sn.gateway.spi.Result;
+import org.slj.mqtt.sn.gateway.spi.SubscribeResult;
+import org.slj.mqtt.sn.gateway.spi.connector.MqttsnConnectorException;
+import org.slj.mqtt.sn.gateway.spi.gateway.MqttsnGatewayOptions;
+import org.slj.mqtt.sn.gateway.test.MqttsnGatewayTestRuntime;
+import org.slj.mqtt.sn.gateway.test.StubMqttsnConnector;
+import org.slj.mqtt.sn.model.IMqttsnContext;
+import org.slj.mqtt.sn.model.MqttsnContext;
+import org.slj.mqtt.sn.spi.IMqttsnMessage;
+import org.slj.mqtt.sn.spi.MqttsnException;
+import org.slj.mqtt.sn.utils.TopicPath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class UpstreamSubscriptionTests {
+
+    private static final IMqttsnContext FIRST = new MqttsnContext("first");
+    private static final IMqttsnContext SECOND = new MqttsnContext("second");
+
+    private MqttsnGatewayTestRuntime runtime;
+
+    @After
+    public void tearDown() throws MqttsnException {
+        if(runtime != null){
+            runtime.stop();
+        }
+    }
+
+    @Test
+    public void testCovers() {
+        Assert.assertTrue(MqttsnUpstreamSubscriptionPlanner.covers("a/b", "a/b"));
+        Assert.assertTrue(MqttsnUpstreamSubscriptionPlanner.covers("a/#", "a/b/c"));
+        Assert.assertTrue(MqttsnUpstreamSubscriptionPlanner.covers("a/#", "a/+/c"));
+        Assert.assertTrue(MqttsnUpstreamSubscriptionPlanner.covers("a/+", "a/b"));
+        Assert.assertTrue(MqttsnUpstreamSubscriptionPlanner.covers("a/+/c", "a/b/c"));
+        Assert.assertFalse(MqttsnUpstreamSubscriptionPlanner.covers("a/+", "a/b/c"));
+        Assert.assertFalse("a single level cannot cover many", MqttsnUpstreamSubscriptionPlanner.covers("a/+", "a/#"));
+        Assert.assertFalse(MqttsnUpstreamSubscriptionPlanner.covers("a/b/c", "a/+/c"));
+        Assert.assertFalse(MqttsnUpstreamSubscriptionPlanner.covers("a/b", "a/b/c"));
+        Assert.assertFalse("wildcards do not match system topics", MqttsnUpstreamSubscriptionPlanner.covers("#", "$SYS/a"));
+    }
+
+    @Test
+    public void testOnlyCoveringFiltersSubscribed() {
+        MqttsnUpstreamSubscriptionPlanner planner = new MqttsnUpstreamSubscriptionPlanner();
+
+        assertPlan(planner.subscribe(FIRST, "a/b/c"), list("a/b/c"), list());
+        assertPlan(planner.subscribe(FIRST, "a/+/d"), list("a/+/d"), list());
+        assertPlan("a wildcard supersedes the filters it covers",
+                planner.subscribe(SECOND, "a/#"), list("a/#"), list("a/b/c", "a/+/d"));
+        assertPlan("a covered filter is not subscribed upstream",
+                planner.subscribe(SECOND, "a/x/y"), list(), list());
+
+        Assert.assertEquals(list("a/#"), planner.getCoveringFilters());
+        Assert.assertEquals(4, planner.getFilterCount());
+    }
+
+    @Test
+    public void testFilterReferencedByEachDevice() {
+        MqttsnUpstreamSubscriptionPlanner planner = new MqttsnUpstreamSubscriptionPlanner();
+        planner.subscribe(FIRST, "shared/filter");
+        assertPlan(planner.subscribe(SECOND, "shared/filter"), list(), list());
+
+        assertPlan("another device still holds the filter", planner.unsubscribe(FIRST, "shared/filter"), list(), list());
+        assertPlan("releasing a reference twice has no effect", planner.unsubscribe(FIRST, "shared/filter"), list(), list());
+        assertPlan(planner.unsubscribe(SECOND, "shared/filter"), list(), list("shared/filter"));
+        Assert.assertEquals(0, planner.getFilterCount());
+    }
+
+    @Test
+    public void testCoveredFiltersPromotedWhenCoveringFilterRemoved() {
+        MqttsnUpstreamSubscriptionPlanner planner = new MqttsnUpstreamSubscriptionPlanner();
+        planner.subscribe(FIRST, "a/#");
+        planner.subscribe(FIRST, "a/b/c");
+        planner.subscribe(FIRST, "a/+/c");
+        planner.subscribe(FIRST, "a/d");
+
+        assertPlan("the covered filters are subscribed before the covering filter is unsubscribed",
+                planner.unsubscribe(FIRST, "a/#"), list("a/+/c", "a/d"), list("a/#"));
+        Assert.assertEquals(set("a/+/c", "a/d"), new HashSet<>(planner.getCoveringFilters()));
+
+        assertPlan(planner.unsubscribe(FIRST, "a/+/c"), list("a/b/c"), list("a/+/c"));
+        Assert.assertEquals(set("a/b/c", "a/d"), new HashSet<>(planner.getCoveringFilters()));
+    }
+
+    @Test
+    public void testReconcileDropsStaleFilters() throws InterruptedException {
+        MqttsnUpstreamSubscriptionPlanner planner = new MqttsnUpstreamSubscriptionPlanner();
+        planner.subscribe(FIRST, "live");
+        planner.subscribe(FIRST, "stale/#");
+        planner.subscribe(FIRST, "stale/a");
+        long before = System.currentTimeMillis() - 1;
+
+        assertPlan("filters referenced since the time given are kept",
+                planner.reconcile(set("live"), before), list(), list());
+
+        Thread.sleep(5);
+        assertPlan(planner.reconcile(set("live", "stale/a"), System.currentTimeMillis()),
+                list("stale/a"), list("stale/#"));
+        Assert.assertEquals(set("live", "stale/a"), new HashSet<>(planner.getCoveringFilters()));
+    }
+
+    @Test
+    public void testResetRecomputesCoveringSet() {
+        MqttsnUpstreamSubscriptionPlanner planner = new MqttsnUpstreamSubscriptionPlanner();
+        planner.subscribe(FIRST, "old");
+
+        Map<String, Set<IMqttsnContext>> references = new HashMap<>();
+        references.put("x/+", new HashSet<>(Arrays.asList(FIRST, SECOND)));
+        references.put("x/y", Collections.singleton(FIRST));
+        references.put("z", Collections.singleton(SECOND));
+        planner.reset(references);
+
+        Assert.assertEquals(3, planner.getFilterCount());
+        Assert.assertEquals(set("x/+", "z"), new HashSet<>(planner.getCoveringFilters()));
+        assertPlan(planner.unsubscribe(FIRST, "x/+"), list(), list());
+        assertPlan(planner.unsubscribe(SECOND, "x/+"), list("x/y"), list("x/+"));
+    }
+
+    @Test
+    public void testGatewaySubscribesBeforeUnsubscribing() throws Exception {
+        StubMqttsnConnector connector = new StubMqttsnConnector();
+        MqttsnAggregatingGateway gateway = start(connector);
+        IMqttsnContext context = runtime.createSession("device").getContext();
+
+        Assert.assertEquals(Result.STATUS.SUCCESS, gateway.subscribe(context, new TopicPath("a/b/c"), null).getStatus());
+        Assert.assertEquals(Result.STATUS.SUCCESS, gateway.subscribe(context, new TopicPath("a/#"), null).getStatus());
+        Assert.assertEquals("already covered upstream",
+                Result.STATUS.NOOP, gateway.subscribe(context, new TopicPath("a/x"), null).getStatus());
+
+        StubMqttsnConnector.StubConnection connection = connector.getConnection(runtime.getRegistry().getOptions().getContextId());
+        Assert.assertEquals(list("a/#"), connection.getSubscriptions());
+        Assert.assertEquals(list("a/b/c"), connection.getUnsubscribes());
+        Assert.assertEquals(1, gateway.getUpstreamSubscriptionCount());
+    }
+
+    @Test
+    public void testFailedSubscribeRolledBack() throws Exception {
+        StubMqttsnConnector connector = new StubMqttsnConnector();
+        MqttsnAggregatingGateway gateway = start(connector);
+        IMqttsnContext context = runtime.createSession("device").getContext();
+
+        gateway.subscribe(context, new TopicPath("a/b/c"), null);
+        connector.failSubscribes("a/#");
+        try {
+            gateway.subscribe(context, new TopicPath("a/#"), null);
+            Assert.fail("the subscribe refused by the broker should fail");
+        } catch(MqttsnConnectorException e){
+        }
+
+        StubMqttsnConnector.StubConnection connection = connector.getConnection(runtime.getRegistry().getOptions().getContextId());
+        Assert.assertEquals("the covered filter should not be unsubscribed", list("a/b/c"), connection.getSubscriptions());
+        Assert.assertTrue(connection.getUnsubscribes().isEmpty());
+        Assert.assertEquals(1, gateway.getUpstreamSubscriptionCount());
+
+        //-- with the failed filter released, a filter it would have covered is subscribed in its own right
+        Assert.assertEquals(Result.STATUS.SUCCESS, gateway.subscribe(context, new TopicPath("a/x"), null).getStatus());
+        Assert.assertEquals(list("a/b/c", "a/x"), connection.getSubscriptions());
+    }
+
+    @Test
+    public void testBatchSubscribesEachFilterAsGateway() throws MqttsnConnectorException {
+        List<IMqttsnMessage> messages = new ArrayList<>();
+        AbstractMqttsnBackendConnection connection = new AbstractMqttsnBackendConnection() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public SubscribeResult subscribe(IMqttsnContext context, TopicPath topicPath, IMqttsnMessage message) throws MqttsnConnectorException {
+                Assert.assertNull("batch subscriptions are not made on behalf of a device", context);
+                messages.add(message);
+                if(topicPath.toString().equals("broken")){
+                    throw new MqttsnConnectorException("subscribe failed");
+                }
+                return new SubscribeResult(Result.STATUS.SUCCESS);
+            }
+        };
+
+        List<SubscribeResult> results = connection.subscribeBatch(
+                Arrays.asList(new TopicPath("one"), new TopicPath("broken"), new TopicPath("three")));
+        Assert.assertEquals(3, results.size());
+        Assert.assertFalse(results.get(0).isError());
+        Assert.assertTrue("a failed filter yields an error result", results.get(1).isError());
+        Assert.assertFalse("a failed filter does not fail the rest of the batch", results.get(2).isError());
+        Assert.assertEquals("subscribe is called with no message, so connections choose the QoS",
+                Arrays.asList(null, null, null), messages);
+    }
+
+    private MqttsnAggregatingGateway start(StubMqttsnConnector connector) throws Exception {
+        MqttsnAggregatingGateway gateway = new MqttsnAggregatingGateway();
+        runtime = MqttsnGatewayTestRuntime.start(new MqttsnGatewayOptions(), connector, gateway);
+        return gateway;
+    }
+
+    private static void assertPlan(MqttsnUpstreamSubscriptionPlanner.Plan plan, List<String> subscribe, List<String> unsubscribe){
+        assertPlan(null, plan, subscribe, unsubscribe);
+    }
+
+    private static void assertPlan(String message, MqttsnUpstreamSubscriptionPlanner.Plan plan, List<String> subscribe, List<String> unsubscribe){
+        Assert.assertEquals(message, new HashSet<>(subscribe), new HashSet<>(plan.getSubscribe()));
+        Assert.assertEquals(message, new HashSet<>(unsubscribe), new HashSet<>(plan.getUnsubscribe()));
+        Assert.assertEquals(message, subscribe.size(), plan.getSubscribe().size());
+        Assert.assertEquals(message, unsubscribe.size(), plan.getUnsubscribe().size());
+    }
+
+    private static List<String> list(String... filters){
+        return Arrays.asList(filters);
+    }
+
+    private static Set<String> set(String... filters){
+        return new HashSet<>(Arrays.asList(filters));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2021 Simon Johnson <simon622 AT gmail DOT com>
+ *
+ * Find me on GitHub:
+ * https://github.com/simon622
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.slj.mqtt.sn.load.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slj.mqtt.sn.PublishData;
+import org.slj.mqtt.sn.impl.MqttsnBinaryReaderWriter;
+import org.slj.mqtt.sn.impl.MqttsnVMObjectReaderWriter;
+import org.slj.mqtt.sn.model.IntegerDataRef;
+import org.slj.mqtt.sn.model.session.impl.MqttsnQueuedPublishMessageImpl;
+import org.slj.mqtt.sn.spi.IMqttsnObjectReaderWriter;
+import org.slj.mqtt.sn.spi.MqttsnException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the core object reader / writers on the queued publish message (the bean written
+ * on every queue overflow to disk). Run the main method, or via the JMH runner.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectReaderWriterBenchmark {
+
+    @Param({"binary", "vm"})
+    public String format;
+
+    private IMqttsnObjectReaderWriter readerWriter;
+    private MqttsnQueuedPublishMessageImpl message;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws MqttsnException {
+        switch (format){
+            case "vm":
+                readerWriter = new MqttsnVMObjectReaderWriter();
+                break;
+            default:
+                readerWriter = new MqttsnBinaryReaderWriter();
+        }
+        message = new MqttsnQueuedPublishMessageImpl(new IntegerDataRef(123456),
+                new PublishData("devices/telemetry/sensor-0001/temperature", 1, false));
+        message.setGrantedQoS(1);
+        encoded = readerWriter.write(message);
+    }
+
+    @Benchmark
+    public byte[] write() throws MqttsnException {
+        return readerWriter.write(message);
+    }
+
+    @Benchmark
+    public MqttsnQueuedPublishMessageImpl read() throws MqttsnException {
+        return readerWriter.load(MqttsnQueuedPublishMessageImpl.class, encoded);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ObjectReaderWriterBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}